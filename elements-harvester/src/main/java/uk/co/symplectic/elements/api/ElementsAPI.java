@@ -15,14 +15,22 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ByteArrayBufferPool;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.utils.http.HttpClient;
+import uk.co.symplectic.utils.http.HttpClientSession;
+import uk.co.symplectic.utils.http.HttpResponseCache;
+import uk.co.symplectic.utils.http.RetryBackoff;
 import uk.co.symplectic.utils.http.ValidatedUrl;
 import uk.co.symplectic.utils.xml.StAXUtils;
+import uk.co.symplectic.utils.xml.XMLDocumentSource;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,7 +38,13 @@ import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Main Elements API Client class.
@@ -46,17 +60,31 @@ public class ElementsAPI {
     public static class ProcessingOptions{
         private final boolean processAllPages;
         private final int perPage;
+        private final int pageFetchWindow;
         //private final Integer page;
 
         /**
-         * Constructor to specify this set of options
+         * Constructor to specify this set of options - pages will be fetched one at a time.
          * @param processAllPages whether queries should make multiple request to the Elements API to retrieve all
          *                        available data relating to the query, or should just return the first page of results.
          * @param perPage how many results should be returned on each page by the API.
          */
         public ProcessingOptions(boolean processAllPages, int perPage) {
+            this(processAllPages, perPage, 1);
+        }
+
+        /**
+         * Constructor to specify this set of options
+         * @param processAllPages whether queries should make multiple request to the Elements API to retrieve all
+         *                        available data relating to the query, or should just return the first page of results.
+         * @param perPage how many results should be returned on each page by the API.
+         * @param pageFetchWindow how many pages of a query may be fetched concurrently (1 or less means pages are
+         *                        fetched one at a time by following the "next" link of each page).
+         */
+        public ProcessingOptions(boolean processAllPages, int perPage, int pageFetchWindow) {
             this.processAllPages = processAllPages;
             this.perPage = perPage;
+            this.pageFetchWindow = Math.max(1, pageFetchWindow);
         }
 
         /**
@@ -74,6 +102,14 @@ public class ElementsAPI {
         public boolean getProcessAllPages() {
             return processAllPages;
         }
+
+        /**
+         * How many pages of a query may be fetched concurrently
+         * @return An integer, 1 means pages are fetched one at a time
+         */
+        public int getPageFetchWindow() {
+            return pageFetchWindow;
+        }
     }
 
     /**
@@ -101,8 +137,23 @@ public class ElementsAPI {
          * @param perPageRef An integer > 0, the amount to fetch per-page for ref detail queries
          */
         public ProcessingDefaults(boolean processAllPages, int perPageFull, int perPageRef) {
-            this.fullDetailOptions = new ProcessingOptions(processAllPages, perPageFull);
-            this.refDetailOptions = new ProcessingOptions(processAllPages, perPageRef);
+            this(processAllPages, perPageFull, perPageRef, 1);
+        }
+
+        /**
+         * Constructor to set up processing defaults
+         * @param processAllPages to indicate whether all the pages be processed
+         * @param perPageFull An integer > 0, the amount to fetch per-page for full detail queries
+         * @param perPageRef An integer > 0, the amount to fetch per-page for ref detail queries
+         * @param pageFetchWindow how many pages of a query may be fetched concurrently (1 means one at a time)
+         */
+        public ProcessingDefaults(boolean processAllPages, int perPageFull, int perPageRef, int pageFetchWindow) {
+            this.fullDetailOptions = new ProcessingOptions(processAllPages, perPageFull, pageFetchWindow);
+            this.refDetailOptions = new ProcessingOptions(processAllPages, perPageRef, pageFetchWindow);
+        }
+
+        int getMaxPageFetchWindow(){
+            return Math.max(fullDetailOptions.getPageFetchWindow(), refDetailOptions.getPageFetchWindow());
         }
 
         /**
@@ -134,11 +185,13 @@ public class ElementsAPI {
     public static final String atomNS = "http://www.w3.org/2005/Atom";
 
     //timing utility functions and fields- very basic - not very realistic results.
-    private static long timeSpentInNetwork = 0;
-    private static long timeSpentInProcessing = 0;
+    //atomic as queries may be executed concurrently (see QueryPartition)
+    //note: timeSpentInNetwork only covers waiting for the response headers - see the session statistics for transfer times.
+    private static final AtomicLong timeSpentInNetwork = new AtomicLong(0);
+    private static final AtomicLong timeSpentInProcessing = new AtomicLong(0);
     private static void resetTimers(){
-        timeSpentInNetwork = 0;
-        timeSpentInProcessing = 0;
+        timeSpentInNetwork.set(0);
+        timeSpentInProcessing.set(0);
     }
 
     /**
@@ -167,28 +220,109 @@ public class ElementsAPI {
         XMLEventProcessor.EventFilter getEventFilter() { return filter; }
     }
 
+    /**
+     * The QueryPartition class represents one independent part of an ElementsFeedQuery, i.e. a single starting URL
+     * (along with any subsequent pages). A query that resolves to several URLs (e.g. an id list query that is split into
+     * batches) will be represented by several partitions. Partitions do not share any state, so as long as each is
+     * executed with its own set of filters they can safely be executed concurrently.
+     * Instances can only be created by calling partitionQuery on an ElementsAPI.
+     */
+    public static class QueryPartition{
+        private final ElementsFeedQuery feedQuery;
+        private final ProcessingOptions processingOptions;
+        private final String queryUrl;
+
+        private QueryPartition(ElementsFeedQuery feedQuery, ProcessingOptions processingOptions, String queryUrl){
+            this.feedQuery = feedQuery;
+            this.processingOptions = processingOptions;
+            this.queryUrl = queryUrl;
+        }
+
+        public ElementsFeedQuery getFeedQuery(){ return feedQuery; }
+
+        @Override
+        public String toString(){ return queryUrl; }
+    }
+
+    /**
+     * Interface that can be passed when executing a query to be told each time a page of the query's results has been
+     * completely processed by the filters (e.g. so that progress through a long running query can be checkpointed).
+     */
+    public interface QueryProgressListener{
+        /**
+         * Called once all the items on a page have been passed through the filters.
+         * @param nextPageUrl the url of the next page of the query, or null if there are no further pages to process
+         *                    for the current query url.
+         */
+        void pageProcessed(String nextPageUrl);
+    }
+
+    /**
+     * Internal interface representing something that can process the response stream of a successful API request.
+     */
+    private interface ResponseProcessor<T>{
+        T process(InputStream response) throws IOException, XMLStreamException;
+    }
+
+    /**
+     * Internal class representing a page of API data that has been fetched (but not yet passed through any filters)
+     * along with the pagination information it contains.
+     */
+    private static class FetchedPage{
+        private final byte[] data;
+        private final ElementsFeedPagination pagination;
+
+        private FetchedPage(byte[] data, ElementsFeedPagination pagination){
+            this.data = data;
+            this.pagination = pagination;
+        }
+    }
+
+    /**
+     * Internal class representing a page that has been processed, i.e. the url that was fetched and the pagination
+     * information it contained.
+     */
+    private static class ProcessedPage{
+        private final ValidatedUrl url;
+        private final ElementsFeedPagination pagination;
+
+        private ProcessedPage(ValidatedUrl url, ElementsFeedPagination pagination){
+            this.url = url;
+            this.pagination = pagination;
+        }
+    }
+
     /**
      * SLF4J Logger
      */
     private static final Logger log = LoggerFactory.getLogger(ElementsAPI.class);
 
+    //buffers used to hold responses in memory while filters that copy sections of them verbatim are run (see parseEventResponse).
+    private static final ByteArrayBufferPool responseBuffers = new ByteArrayBufferPool(32, 256 * 1024, 16 * 1024 * 1024);
+
     private final ElementsAPIVersion version;
 
     private final String url;
-    private final String username;
-    private final String password;
+    //long lived session shared by every request made by this object (so credentials can be sent preemptively).
+    private final HttpClientSession session;
+
+    //on disk cache used for the responses to queries that rarely change (e.g. my-account, groups) - null if not caching.
+    private final HttpResponseCache responseCache;
 
     //TODO: move to processing defaults?
     private final boolean rewriteMismatchedURLs;
     @SuppressWarnings("FieldCanBeLocal")
     private int maxRetries = 5;
-    @SuppressWarnings("FieldCanBeLocal")
-    private int retryDelayMillis = 500;
+    //retries wait 0.5s, 1s, 2s, etc (with jitter) up to 30s, or longer if the server specifies a Retry-After delay.
+    private final RetryBackoff retryBackoff = new RetryBackoff(500, 30000);
 
     private final ProcessingDefaults defaults;
 
     private boolean issuedWarningAboutMismatchedFetchUrls = false;
 
+    //pool used to fetch pages concurrently when the pageFetchWindow is greater than 1 - created on first use.
+    private ExecutorServiceUtils.ExecutorServiceWrapper<FetchedPage> pageFetchPool = null;
+
     /**
      * Chained constructor - to ease creation of a default ElementsAPI
      * @param version the version of the API being contacted, can legitimately be null - version will be extracted
@@ -210,6 +344,24 @@ public class ElementsAPI {
      *                 ref detail queries respectively will be used if @defaults is null.
      */
     public ElementsAPI(ElementsAPIVersion version, String url, String username, String password, boolean rewriteMismatchedURLs, ProcessingDefaults defaults) {
+        this(version, url, username, password, rewriteMismatchedURLs, defaults, null);
+    }
+
+    /**
+     * Main constructor for the ElementsAPI class
+     * @param version the version of the API being contacted - can legitimately be null - version will be extracted
+     * @param url the base url of the API being contacted
+     * @param username user credentials for the API being contacted
+     * @param password user credentials for the API being contacted
+     * @param rewriteMismatchedURLs whether the
+     * @param defaults the ProcessingDefaults to be used
+     *                 the "default" ProcessingDefaults of processing all pages at 25 and 100 items per page for full and
+     *                 ref detail queries respectively will be used if @defaults is null.
+     * @param responseCache a cache to hold the responses to queries that rarely change (my-account and any queries whose
+     *                      responsesCanBeCached) between runs, can be null if no caching is wanted.
+     */
+    public ElementsAPI(ElementsAPIVersion version, String url, String username, String password, boolean rewriteMismatchedURLs, ProcessingDefaults defaults,
+                       HttpResponseCache responseCache) {
 
         ValidatedUrl validatedUrl = getValidatedUrl(url, new MessageFormat("Provided api base URL was invalid: {0}"));
         this.url = StringUtils.stripEnd(url, "/") + "/";
@@ -220,20 +372,19 @@ public class ElementsAPI {
                 log.error(errorMsg);
                 throw new IllegalArgumentException(errorMsg);
             }
-            this.username = username;
-            this.password = password;
+            this.session = new HttpClientSession(username, password);
         }
         else {
             if (StringUtils.isNotBlank(username) || StringUtils.isNotBlank(password)) {
                 String warnMsg = MessageFormat.format("Provided API credentials{0} ignored as the API url ({1}) is not secure", (username == null ? "" : "(" + username + ")"), url);
                 log.warn(warnMsg);
             }
-            this.username = null;
-            this.password = null;
+            this.session = new HttpClientSession();
         }
 
         this.rewriteMismatchedURLs = rewriteMismatchedURLs;
         this.defaults = defaults == null ? ProcessingDefaults.DEFAULTS : defaults;
+        this.responseCache = responseCache;
 
         ElementsAPIVersion extractedVersion = tryToExtractVersion();
 
@@ -255,12 +406,18 @@ public class ElementsAPI {
 
     public ElementsAPIVersion getVersion(){ return this.version; }
 
+    /**
+     * The session used for all requests made by this object - e.g. to report request/authentication statistics.
+     * @return a HttpClientSession
+     */
+    public HttpClientSession getSession(){ return this.session; }
+
     //Should call at end of construction to ensure client is as set up as can be without the version.
     private ElementsAPIVersion tryToExtractVersion(){
         ElementsAPIVersion.VersionExtractingFilter filter = new ElementsAPIVersion.VersionExtractingFilter();
         List<XMLEventProcessor.EventFilter> filters = new ArrayList<XMLEventProcessor.EventFilter>();
         filters.add(filter);
-        executeInternalQuery(getValidatedUrl(this.url + "my-account", new MessageFormat("Constructed my-account URL was invalid: {0}")), filters);
+        executeInternalQuery(getValidatedUrl(this.url + "my-account", new MessageFormat("Constructed my-account URL was invalid: {0}")), filters, responseCache != null);
         return filter.getExtractedItem();
     }
 
@@ -309,6 +466,75 @@ public class ElementsAPI {
      */
 
     public void executeQuery(ElementsFeedQuery feedQuery, ProcessingOptions overrideOptions, APIResponseFilter... filters) {
+        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, overrideOptions);
+        executeQuery(feedQuery.getQueryIterator(url, version.getUrlBuilder(), processingOptions), processingOptions, null, false, filters);
+    }
+
+    /**
+     * Method to execute the requested feedQuery, optionally resuming part way through, and parse the resulting XML
+     * responses using the specified filters. The query will be run using the appropriate ProcessingDefaults.
+     * Resuming is only supported for queries that consist of a single query url (e.g. a full feed of a category).
+     * @param feedQuery an ElementsFeedQuery to be run against the Elements API
+     * @param resumeFromUrl the url of the page to resume from (as previously passed to a progressListener),
+     *                      the query will be run from the start if this is null.
+     * @param progressListener a listener to be told as each page is processed (can be null).
+     * @param filters a set of APIResponseFilters that will be used to parse the XML responses from the API.
+     */
+    public void executeQuery(ElementsFeedQuery feedQuery, String resumeFromUrl, QueryProgressListener progressListener, APIResponseFilter... filters) {
+        if(feedQuery == null) throw new NullArgumentException("feedQuery");
+        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, null);
+        if(resumeFromUrl == null) {
+            executeQuery(feedQuery.getQueryIterator(url, version.getUrlBuilder(), processingOptions), processingOptions, progressListener, false, filters);
+        }
+        else {
+            if (feedQuery.getQueryUrls(url, version.getUrlBuilder(), processingOptions).size() != 1)
+                throw new IllegalArgumentException("Resuming is only supported for queries with a single query url");
+            log.info(MessageFormat.format("Resuming query from {0}", resumeFromUrl));
+            executeQuery(feedQuery.getQueryIterator(resumeFromUrl, processingOptions), processingOptions, progressListener, true, filters);
+        }
+    }
+
+    /**
+     * Method to break the requested feedQuery up into its independent partitions (one per distinct starting URL).
+     * Each partition can then be run via executeQuery(QueryPartition, APIResponseFilter...), potentially concurrently.
+     * @param feedQuery an ElementsFeedQuery to be run against the Elements API
+     * @param overrideOptions the specific options that should be used to run the query.
+     *                        the appropriate ProcessingDefaults will be used if @overrideOptions is null.
+     * @return a List of QueryPartitions that together make up the requested feedQuery.
+     */
+    public List<QueryPartition> partitionQuery(ElementsFeedQuery feedQuery, ProcessingOptions overrideOptions) {
+        if(feedQuery == null) throw new NullArgumentException("feedQuery");
+        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, overrideOptions);
+        List<QueryPartition> partitions = new ArrayList<QueryPartition>();
+        for(String queryUrl : feedQuery.getQueryUrls(url, version.getUrlBuilder(), processingOptions)){
+            partitions.add(new QueryPartition(feedQuery, processingOptions, queryUrl));
+        }
+        return partitions;
+    }
+
+    /**
+     * Method to execute a single partition of a feedQuery and parse the resulting XML responses using the specified filters.
+     * Note: the filters must not be shared with any other partition that is being executed concurrently.
+     * @param partition a QueryPartition (obtained from partitionQuery) to be run against the Elements API
+     * @param filters a set of APIResponseFilters that will be used to parse the XML responses from the API.
+     */
+    public void executeQuery(QueryPartition partition, APIResponseFilter... filters) {
+        if(partition == null) throw new NullArgumentException("partition");
+        executeQuery(partition.feedQuery.getQueryIterator(partition.queryUrl, partition.processingOptions), partition.processingOptions, null, false, filters);
+    }
+
+    /**
+     * Internal helper method to process all the URLs represented by a QueryIterator using the specified filters.
+     * If the processingOptions allow it, once the first page of a query has been processed the remaining pages are
+     * fetched concurrently (see fetchRemainingPages).
+     * @param iterator the QueryIterator to be processed.
+     * @param processingOptions the options in use for this query.
+     * @param progressListener a listener to be told as each page is processed (can be null).
+     * @param resuming whether the iterator starts part way through a query (i.e. the first url is not a first page).
+     * @param filters a set of APIResponseFilters that will be used to parse the XML responses from the API.
+     */
+    private void executeQuery(ElementsFeedQuery.QueryIterator iterator, ProcessingOptions processingOptions, QueryProgressListener progressListener,
+                              boolean resuming, APIResponseFilter... filters) {
         List<XMLEventProcessor.EventFilter> eventFilters = new ArrayList<XMLEventProcessor.EventFilter>();
         for(APIResponseFilter filter : filters){
             if(!filter.supports(version)){
@@ -322,15 +548,18 @@ public class ElementsAPI {
         XMLEventProcessor.ItemCountingFilter itemCounter = getEntryCounter();
         eventFilters.add(itemCounter);
 
-        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, overrideOptions);
-        ElementsFeedQuery.QueryIterator iterator = feedQuery.getQueryIterator(url, version.getUrlBuilder(), processingOptions);
+        //cached responses are always requested one page at a time so that each page can be revalidated.
+        boolean useCache = responseCache != null && iterator.getFeedQuery().responsesCanBeCached();
+
         ElementsFeedPagination pagination = null;
         ValidatedUrl previousQuery = null;
         int queryCounter = 0;
         while(iterator.hasNext(pagination)){
-            String previousUrl = previousQuery == null ? null : previousQuery.getUrl();
+            boolean isFirstPage = !iterator.hasNextPage(pagination) && !(resuming && previousQuery == null);
+            //a resumed query starts from a previously returned "next" url, so check that against the api's base url instead.
+            String previousUrl = previousQuery == null ? (resuming ? url : null) : previousQuery.getUrl();
             ValidatedUrl currentQuery = getValidatedUrl(iterator.next(pagination), previousUrl, new MessageFormat("Invalid API query detected : {0}"));
-            if(previousQuery != null) {
+            if(previousQuery != null || resuming) {
                 if (currentQuery.isMismatched()) {
                     if (queryCounter == 1) {
                         log.warn(MessageFormat.format("Next URL in a feed \"{0}\" has a different host to the previous URL: {1}", currentQuery.getUrl(), previousQuery.getUrl()));
@@ -339,21 +568,32 @@ public class ElementsAPI {
                     //if we want to rewrite any mismatched urls to use the original base url from our query
                     if(rewriteMismatchedURLs) currentQuery.useRewrittenVersion(true);
                 }
-                if (currentQuery.getUrl().equals(previousQuery.getUrl())) {
+                if (previousQuery != null && currentQuery.getUrl().equals(previousQuery.getUrl())) {
                     throw new IllegalStateException("Error detected in the pagination response from Elements - unable to continue processing. Note that this can often indicate a corrupt or missing Search Index in Elements");
                 }
             }
-            pagination = executeInternalQuery(currentQuery, eventFilters);
+            pagination = executeInternalQuery(currentQuery, eventFilters, useCache);
+            if(progressListener != null) progressListener.pageProcessed(pagination == null ? null : pagination.getNextURL());
+
+            if(isFirstPage && !useCache && canFetchPagesConcurrently(processingOptions, pagination)){
+                ProcessedPage lastPage = fetchRemainingPages(currentQuery, pagination, processingOptions.getPageFetchWindow(), progressListener, eventFilters);
+                //if the results shifted whilst fetching, the last page will have a next link to continue following serially.
+                pagination = lastPage.pagination;
+                currentQuery = lastPage.url;
+            }
 
             queryCounter++;
             if (queryCounter % 40 == 0) {
-                log.trace(MessageFormat.format("{0} queries processed: network-time: {1}, processing-time: {2}", queryCounter, ElementsAPI.timeSpentInNetwork, ElementsAPI.timeSpentInProcessing));
+                log.trace(MessageFormat.format("{0} queries processed: network-time: {1}, processing-time: {2}, request-rate: {3}/s", queryCounter,
+                        ElementsAPI.timeSpentInNetwork.get(), ElementsAPI.timeSpentInProcessing.get(), HttpClient.getRateLimiter().getCurrentRate()));
                 ElementsAPI.resetTimers();
             }
 
             previousQuery = currentQuery;
         }
         log.info(MessageFormat.format("Query completed {0} items processed in total", itemCounter.getItemCount()));
+        log.debug(MessageFormat.format("API session statistics - {0}", session));
+        if(useCache) log.debug(MessageFormat.format("API response cache statistics - {0}", responseCache));
     }
 
 
@@ -377,7 +617,7 @@ public class ElementsAPI {
                 }
                 if(rewriteMismatchedURLs) validatedUrl.useRewrittenVersion(true);
             }
-            HttpClient apiClient = new HttpClient(validatedUrl, username, password);
+            HttpClient apiClient = new HttpClient(validatedUrl, session);
             apiResponse = apiClient.executeGetRequest();
             IOUtils.copy(apiResponse.getResponseStream(), outputStream);
         }
@@ -398,21 +638,58 @@ public class ElementsAPI {
      * Internal helper method to perform the processing of a particular URL as part of executing a query
      * @param url the url to be processed.
      * @param eventFilters the filters to be run against the returned XML.
+     * @param useCache whether the response should be served from (and stored in) the response cache.
      * @return an ElementsFeedPagination object representing the position of the current URL in a query of multiple pages.
      * @throws IllegalStateException if errors
      */
-    private ElementsFeedPagination executeInternalQuery(ValidatedUrl url, Collection<XMLEventProcessor.EventFilter> eventFilters) throws IllegalStateException {
+    private ElementsFeedPagination executeInternalQuery(ValidatedUrl url, final Collection<XMLEventProcessor.EventFilter> eventFilters, boolean useCache) throws IllegalStateException {
+        return executeWithRetries(url, useCache, new ResponseProcessor<ElementsFeedPagination>() {
+            @Override
+            public ElementsFeedPagination process(InputStream response) throws IOException, XMLStreamException {
+                return parseEventResponse(response, eventFilters);
+            }
+        });
+    }
+
+    /**
+     * Internal helper method to request a particular URL, retrying if errors occur, and process the response.
+     * If the response cache is in use, a cached response is used without asking the server if it is still fresh,
+     * otherwise the request is made conditional on the cached response having changed.
+     * @param url the url to be requested.
+     * @param useCache whether the response should be served from (and stored in) the response cache.
+     * @param processor what should be done with the response stream.
+     * @return the result of processing the response.
+     * @throws IllegalStateException if errors
+     */
+    private <T> T executeWithRetries(ValidatedUrl url, boolean useCache, ResponseProcessor<T> processor) throws IllegalStateException {
         int retryCount = 0;
         do {
             HttpClient.ApiResponse apiResponse = null;
             IOException responseDisposeError = null;
+            long retryAfterMillis = -1;
             try {
+                HttpResponseCache.Entry cached = useCache ? responseCache.get(url.getUrl()) : null;
+                if(cached != null && responseCache.isFresh(cached)){
+                    responseCache.recordFreshHit(cached);
+                    return processor.process(cached.getBodyStream());
+                }
+
                 long startTime = System.currentTimeMillis();
-                HttpClient apiClient = new HttpClient(url, username, password);
-                apiResponse = apiClient.executeGetRequest();
+                HttpClient apiClient = new HttpClient(url, session);
+                apiResponse = cached == null ? apiClient.executeGetRequest() : apiClient.executeConditionalGetRequest(cached.getETag(), cached.getLastModified());
+                if(useCache) {
+                    if (apiResponse.isNotModified()) {
+                        cached = responseCache.revalidated(cached);
+                    } else {
+                        byte[] body = IOUtils.toByteArray(apiResponse.getResponseStream());
+                        cached = responseCache.put(url.getUrl(), apiResponse.getHeader("ETag"), apiResponse.getHeader("Last-Modified"), body);
+                    }
+                    timeSpentInNetwork.addAndGet(System.currentTimeMillis() - startTime);
+                    return processor.process(cached.getBodyStream());
+                }
                 long endTime = System.currentTimeMillis();
-                timeSpentInNetwork += (endTime - startTime);
-                return parseEventResponse(apiResponse.getResponseStream(), eventFilters);
+                timeSpentInNetwork.addAndGet(endTime - startTime);
+                return processor.process(apiResponse.getResponseStream());
             }
             catch (IOException e) {
                 if(e instanceof HttpClient.InvalidResponseException){
@@ -421,6 +698,7 @@ public class ElementsAPI {
                     if(statusCode == HttpStatus.SC_FORBIDDEN || statusCode == HttpStatus.SC_UNAUTHORIZED) {
                         throw new IllegalStateException(e.getMessage(), e);
                     }
+                    retryAfterMillis = ((HttpClient.InvalidResponseException) e).getRetryAfterMillis();
                     log.error(e.getMessage(), e);
                 }
                 else log.error("IO Error handling API request", e);
@@ -430,6 +708,8 @@ public class ElementsAPI {
                 }
             } catch (XMLStreamException e) {
                 log.error("XML Stream Error handling API request", e);
+                //do not keep re-using a cached response that cannot be parsed.
+                if(useCache) responseCache.remove(url.getUrl());
                 if (++retryCount >= maxRetries) {
                     throw new IllegalStateException("XML Stream Error handling API request", e);
                 }
@@ -448,7 +728,7 @@ public class ElementsAPI {
             }
 
             try {
-                Thread.sleep(retryDelayMillis);
+                Thread.sleep(retryBackoff.getDelayMillis(retryCount, retryAfterMillis));
             } catch (InterruptedException e) {
                 throw new IllegalStateException("Interrupted whilst retrying query");
             }
@@ -456,6 +736,118 @@ public class ElementsAPI {
         } while (true);
     }
 
+    /**
+     * Internal helper to decide if the remaining pages of a query can be fetched concurrently based on the first page.
+     * Requires the API version to support requesting pages by number (rather than by continuation token), and the API
+     * to have reported the page's number, how many results there are and how many are on each page.
+     */
+    private boolean canFetchPagesConcurrently(ProcessingOptions processingOptions, ElementsFeedPagination firstPagination){
+        return processingOptions.getProcessAllPages() && processingOptions.getPageFetchWindow() > 1 &&
+                version.getUrlBuilder().supportsPageQueries() &&
+                firstPagination != null && firstPagination.getNextURL() != null && firstPagination.getPageNumber() == 1 &&
+                firstPagination.getItemsPerPage() > 0 && firstPagination.getResultsCount() > firstPagination.getItemsPerPage();
+    }
+
+    /**
+     * Internal helper method to fetch all the remaining pages of a query once its first page has been processed.
+     * The URL of each page is built directly (using the url builder for the current API version) and up to
+     * pageFetchWindow pages are fetched at once. The fetched pages are handed to the filters strictly in page order.
+     *
+     * Each page is checked against the first page before being processed (same result count and page size, the
+     * expected page number and a next link on every page but the last). If a check fails the result set has shifted
+     * since the first page was fetched, so everything still in flight is discarded and the last consistent page is
+     * returned - its next link allows the caller to fall back to following the feed serially from that point.
+     * @param firstPageUrl the url of the first page of the query (which has already been processed).
+     * @param firstPagination the pagination extracted from the first page.
+     * @param pageFetchWindow how many pages may be in flight at once.
+     * @param progressListener a listener to be told as each page is processed (can be null).
+     * @param eventFilters the filters to be run against each page.
+     * @return a ProcessedPage representing the last page that was processed.
+     */
+    private ProcessedPage fetchRemainingPages(ValidatedUrl firstPageUrl, ElementsFeedPagination firstPagination, int pageFetchWindow,
+                                              QueryProgressListener progressListener, Collection<XMLEventProcessor.EventFilter> eventFilters) {
+        final int perPage = firstPagination.getItemsPerPage();
+        final int resultsCount = firstPagination.getResultsCount();
+        final int pageCount = (resultsCount + perPage - 1) / perPage;
+        log.info(MessageFormat.format("Fetching remaining {0} pages of {1} ({2} at a time)", pageCount - 1, firstPageUrl.getUrl(), pageFetchWindow));
+
+        ElementsAPIURLBuilder builder = version.getUrlBuilder();
+        LinkedList<ValidatedUrl> inFlightUrls = new LinkedList<ValidatedUrl>();
+        LinkedList<Future<FetchedPage>> inFlight = new LinkedList<Future<FetchedPage>>();
+        ProcessedPage lastProcessed = new ProcessedPage(firstPageUrl, firstPagination);
+        int nextPageToSubmit = 2;
+        try {
+            for (int page = 2; page <= pageCount; page++) {
+                //keep the window full
+                while (nextPageToSubmit <= pageCount && nextPageToSubmit < page + pageFetchWindow) {
+                    final ValidatedUrl pageUrl = getValidatedUrl(builder.buildPageQuery(firstPageUrl.getUrl(), nextPageToSubmit), new MessageFormat("Invalid API page query detected : {0}"));
+                    inFlightUrls.addLast(pageUrl);
+                    //the pool is shared between queries, so it must not track pages whose outcome is dealt with here
+                    //(otherwise a page cancelled or failed here would be thrown from another query's submit).
+                    inFlight.addLast(getPageFetchPool().submit(new Callable<FetchedPage>() {
+                        @Override
+                        public FetchedPage call() throws Exception {
+                            return fetchPage(pageUrl);
+                        }
+                    }, false));
+                    nextPageToSubmit++;
+                }
+
+                ValidatedUrl pageUrl = inFlightUrls.removeFirst();
+                FetchedPage fetchedPage = inFlight.removeFirst().get();
+                ElementsFeedPagination pagination = fetchedPage.pagination;
+                boolean consistent = pagination != null && pagination.getResultsCount() == resultsCount && pagination.getItemsPerPage() == perPage &&
+                        pagination.getPageNumber() == page &&
+                        (page == pageCount ? pagination.getNextURL() == null : pagination.getNextURL() != null);
+                if (!consistent) {
+                    log.warn(MessageFormat.format("Results of {0} changed whilst fetching pages concurrently - falling back to following next links from page {1}", firstPageUrl.getUrl(), page - 1));
+                    return lastProcessed;
+                }
+                parseEventResponse(fetchedPage.data, eventFilters);
+                lastProcessed = new ProcessedPage(pageUrl, pagination);
+                if(progressListener != null) progressListener.pageProcessed(pagination.getNextURL());
+            }
+            return lastProcessed;
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Error fetching API page", e.getCause());
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted whilst fetching API pages");
+        }
+        catch (XMLStreamException e) {
+            throw new IllegalStateException("XML Stream Error handling API request", e);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("IO Error handling API request", e);
+        }
+        finally {
+            //discard anything still in flight (e.g. if falling back or errors occurred)
+            for (Future<FetchedPage> pendingPage : inFlight) pendingPage.cancel(true);
+        }
+    }
+
+    /**
+     * Internal helper method to fetch a page into memory (without passing it through any filters) and extract its pagination.
+     * @param url the url of the page to fetch.
+     * @return a FetchedPage
+     */
+    private FetchedPage fetchPage(ValidatedUrl url){
+        return executeWithRetries(url, false, new ResponseProcessor<FetchedPage>() {
+            @Override
+            public FetchedPage process(InputStream response) throws IOException, XMLStreamException {
+                byte[] data = IOUtils.toByteArray(response);
+                List<XMLEventProcessor.EventFilter> noFilters = Collections.emptyList();
+                return new FetchedPage(data, parseEventResponse(data, noFilters));
+            }
+        });
+    }
+
+    private synchronized ExecutorServiceUtils.ExecutorServiceWrapper<FetchedPage> getPageFetchPool(){
+        if(pageFetchPool == null) pageFetchPool = ExecutorServiceUtils.newFixedIOThreadPool("ElementsAPIPageFetch", defaults.getMaxPageFetchWindow());
+        return pageFetchPool;
+    }
+
     /**
      * helper method to process the provided API XML response (represented by the inputStream) using the supplied filters.
      * Note, eventFilters does not need to contain a filter to extract pagination info as one is automatically added
@@ -463,23 +855,84 @@ public class ElementsAPI {
      * @param response the API XML response being processed.
      * @param eventFilters the filters to be run against the XML.
      * @return an ElementsFeedPagination object representing the position of the current URL in a query of multiple pages.
+     * @throws IOException if the response cannot be read.
      * @throws XMLStreamException if XML structure is invalid.
      */
-    private ElementsFeedPagination parseEventResponse(InputStream response, Collection<XMLEventProcessor.EventFilter> eventFilters) throws XMLStreamException {
-        final long startTime = System.currentTimeMillis();
-        //set up the xml reader
-        XMLInputFactory xmlInputFactory = StAXUtils.getXMLInputFactory();
-        XMLEventReader atomReader = xmlInputFactory.createXMLEventReader(response);
+    private ElementsFeedPagination parseEventResponse(InputStream response, Collection<XMLEventProcessor.EventFilter> eventFilters) throws IOException, XMLStreamException {
+        return parseEventResponse(response, null, eventFilters);
+    }
 
+    /**
+     * As parseEventResponse(InputStream, Collection), for a response that has already been read into memory.
+     */
+    private ElementsFeedPagination parseEventResponse(byte[] response, Collection<XMLEventProcessor.EventFilter> eventFilters) throws IOException, XMLStreamException {
+        return parseEventResponse(null, response, eventFilters);
+    }
+
+    /**
+     * Implementation of parseEventResponse - the response is provided either as a stream or as a byte array.
+     * If any of the filters can copy sections of the response verbatim (e.g. to store each entry) rather than
+     * re-serialising the events they are given, then a streamed response is first read into a pooled buffer.
+     */
+    private ElementsFeedPagination parseEventResponse(InputStream responseStream, byte[] responseData, Collection<XMLEventProcessor.EventFilter> eventFilters) throws IOException, XMLStreamException {
+        final long startTime = System.currentTimeMillis();
         XMLEventProcessor processor = new XMLEventProcessor(eventFilters.toArray(new XMLEventProcessor.EventFilter[eventFilters.size()]));
         ElementsAPIVersion.PaginationExtractingFilter paginationFilter = null;
         if(version != null) {
             paginationFilter = version.getPaginationExtractor();
             processor.addFilter(paginationFilter);
         }
-        processor.process(atomReader);
+
+        if(processor.usesDocumentSource()) {
+            if(responseData != null) {
+                parseBufferedResponse(processor, responseData, responseData.length);
+            }
+            else {
+                ByteArrayBufferPool.PooledBuffer buffer = responseBuffers.acquire();
+                try {
+                    buffer.readFrom(responseStream);
+                    parseBufferedResponse(processor, buffer.getBuffer(), buffer.size());
+                }
+                finally {
+                    responseBuffers.release(buffer);
+                }
+            }
+        }
+        else {
+            parseResponse(processor, responseStream != null ? responseStream : new ByteArrayInputStream(responseData));
+        }
         final long endTime = System.currentTimeMillis();
-        timeSpentInProcessing += (endTime - startTime);
+        timeSpentInProcessing.addAndGet(endTime - startTime);
         return paginationFilter == null ? null : paginationFilter.getExtractedItem();
     }
+
+    //set up the xml reader - use the cheaper cursor based reader unless a filter needs the raw events.
+    private static void parseResponse(XMLEventProcessor processor, InputStream response) throws XMLStreamException {
+        XMLInputFactory xmlInputFactory = StAXUtils.getXMLInputFactory();
+        if(processor.supportsCursorProcessing()) {
+            XMLStreamReader atomReader = xmlInputFactory.createXMLStreamReader(response);
+            processor.process(atomReader);
+            atomReader.close();
+        }
+        else {
+            XMLEventReader atomReader = xmlInputFactory.createXMLEventReader(response);
+            processor.process(atomReader);
+        }
+    }
+
+    //the raw bytes can only be handed to the filters if they are UTF-8 (as the API always sends), otherwise the filters
+    //are run from the (more expensive) event based reader so that they can re-serialise the events instead.
+    private static void parseBufferedResponse(XMLEventProcessor processor, byte[] data, int length) throws XMLStreamException {
+        XMLInputFactory xmlInputFactory = StAXUtils.getXMLInputFactory();
+        XMLStreamReader atomReader = xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(data, 0, length));
+        String encoding = atomReader.getEncoding();
+        if(processor.supportsCursorProcessing() && ("UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding))) {
+            processor.process(atomReader, new XMLDocumentSource(data, length));
+            atomReader.close();
+        }
+        else {
+            atomReader.close();
+            processor.process(xmlInputFactory.createXMLEventReader(new ByteArrayInputStream(data, 0, length)));
+        }
+    }
 }
@@ -34,6 +34,21 @@ public interface ElementsAPIURLBuilder {
 
     String buildRelationshipTypesQuery(String endpointUrl, ElementsAPIFeedRelationshipTypesQuery feedQuery);
 
+    /**
+     * @return whether pages of a query can be requested directly by number (buildPageQuery) - false for API versions
+     * whose feeds are paged with continuation tokens, where the "next" link of each page has to be followed.
+     */
+    boolean supportsPageQueries();
+
+    /**
+     * Build the URL of a specific page of a query, so that pages can be requested directly rather than by
+     * following the "next" link of the previous page. Only supported if supportsPageQueries is true.
+     * @param queryUrl the URL of the first page of the query (as returned by one of the other build methods)
+     * @param page the (1 based) page number required
+     * @return the URL of the requested page
+     */
+    String buildPageQuery(String queryUrl, int page);
+
     /**
      * An abstract intermediate class providing a useful helper method to convert integer arrays into an
      * API friendly comma delimited string.
@@ -50,5 +65,13 @@ public interface ElementsAPIURLBuilder {
             }
             return builder.toString();
         }
+
+        /**
+         * Helper for builders whose API versions support page queries, appending the "page" parameter to a query.
+         */
+        protected String appendPageParameter(String queryUrl, int page){
+            if(page < 1) throw new IllegalArgumentException("page must be 1 or greater");
+            return queryUrl + (queryUrl.contains("?") ? "&" : "?") + "page=" + Integer.toString(page);
+        }
     }
 }
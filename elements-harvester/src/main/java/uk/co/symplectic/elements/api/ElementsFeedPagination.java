@@ -18,6 +18,9 @@ package uk.co.symplectic.elements.api;
 @SuppressWarnings("unused")
 public class ElementsFeedPagination {
     private int itemsPerPage;
+    //-1 if the API did not report them
+    private int resultsCount = -1;
+    private int pageNumber = -1;
     private String firstURL;
     private String lastURL;
     private String previousURL;
@@ -27,6 +30,14 @@ public class ElementsFeedPagination {
         return itemsPerPage;
     }
 
+    int getResultsCount() {
+        return resultsCount;
+    }
+
+    int getPageNumber() {
+        return pageNumber;
+    }
+
     String getFirstURL() {
         return firstURL;
     }
@@ -47,6 +58,14 @@ public class ElementsFeedPagination {
         this.itemsPerPage = itemsPerPage;
     }
 
+    public void setResultsCount(int resultsCount) {
+        this.resultsCount = resultsCount;
+    }
+
+    public void setPageNumber(int pageNumber) {
+        this.pageNumber = pageNumber;
+    }
+
     public void setFirstURL(String firstURL) {
         this.firstURL = firstURL;
     }
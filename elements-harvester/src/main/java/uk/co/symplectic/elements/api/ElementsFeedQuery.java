@@ -53,6 +53,10 @@ abstract public class ElementsFeedQuery {
     //subclasses where this is true should override this  method appropriately.
     public boolean queryRepresentsDeletedItems() { return false; }
 
+    //Whether responses to the query change rarely enough to be worth caching between runs, this is assumed to be false.
+    //subclasses where this is true should override this method appropriately.
+    public boolean responsesCanBeCached() { return false; }
+
 
     /**
      * Call to convert this particular query into a set of URLs using the passed in builder to account for version differences.
@@ -67,6 +71,28 @@ abstract public class ElementsFeedQuery {
         return new QueryIterator(options, urls);
     }
 
+    /**
+     * Call to get the distinct set of starting URLs this query represents (e.g. one per batch of an id list query).
+     * Each URL is independent of the others and can be processed (along with all its subsequent pages) on its own.
+     * @param apiBaseUrl the base url of the api you want to query
+     * @param builder an api version specific builder that knows how to construct different types of query URL.
+     * @param options the processing options in use (determines the number of items to fetch per page).
+     * @return a Set of the distinct starting URLs for this query.
+     */
+    Set<String> getQueryUrls(String apiBaseUrl, ElementsAPIURLBuilder builder, ElementsAPI.ProcessingOptions options) {
+        return getUrlStrings(apiBaseUrl, builder, options.getPerPage());
+    }
+
+    /**
+     * Call to get a QueryIterator that will only process a single starting URL (and any subsequent pages).
+     * @param queryUrl one of the starting URLs returned by getQueryUrls
+     * @param options the processing options in use.
+     * @return a QueryIterator that will loop through all the pages of the specified URL.
+     */
+    QueryIterator getQueryIterator(String queryUrl, ElementsAPI.ProcessingOptions options) {
+        return new QueryIterator(options, Collections.singleton(queryUrl));
+    }
+
     /**
      * Call to convert this particular query into (generically) a set of URLs to be fetched
      * Note: each URL in the set may need to have several pages fetched to retrieve all the data for that query.
@@ -115,7 +141,9 @@ abstract public class ElementsFeedQuery {
             this.processingOptions = processingOptions;
         }
 
-        private boolean hasNextPage(ElementsFeedPagination pagination){
+        ElementsFeedQuery getFeedQuery(){ return ElementsFeedQuery.this; }
+
+        boolean hasNextPage(ElementsFeedPagination pagination){
             return processingOptions.getProcessAllPages() && pagination != null && pagination.getNextURL() != null;
         }
 
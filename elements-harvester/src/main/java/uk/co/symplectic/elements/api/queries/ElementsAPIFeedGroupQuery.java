@@ -28,6 +28,10 @@ public class ElementsAPIFeedGroupQuery extends ElementsFeedQuery {
         super(ElementsItemType.GROUP, false);
     }
 
+    //the groups defined in Elements rarely change.
+    @Override
+    public boolean responsesCanBeCached() { return true; }
+
     @Override
     protected Set<String> getUrlStrings(String apiBaseUrl, ElementsAPIURLBuilder builder, int perPage) {
         return Collections.singleton(builder.buildGroupQuery(apiBaseUrl, this));
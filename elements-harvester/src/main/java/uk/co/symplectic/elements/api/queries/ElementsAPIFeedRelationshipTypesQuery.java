@@ -29,6 +29,10 @@ public class ElementsAPIFeedRelationshipTypesQuery extends ElementsFeedQuery {
         super(ElementsItemType.RELATIONSHIP_TYPE, false);
     }
 
+    //the relationship types defined in Elements rarely change.
+    @Override
+    public boolean responsesCanBeCached() { return true; }
+
     @Override
     protected Set<String> getUrlStrings(String apiBaseUrl, ElementsAPIURLBuilder builder, int perPage) {
         return Collections.singleton(builder.buildRelationshipTypesQuery(apiBaseUrl, this));
@@ -160,4 +160,12 @@ public class ElementsAPIv4_XURLBuilder extends ElementsAPIURLBuilder.GenericBase
         queryUrl.appendPath("relationship/types");
         return queryUrl.toString();
     }
+
+    @Override
+    public boolean supportsPageQueries(){ return true; }
+
+    @Override
+    public String buildPageQuery(String queryUrl, int page){
+        return appendPageParameter(queryUrl, page);
+    }
 }
@@ -34,7 +34,7 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
      * @return GeneralAPIv4XOr55_URLBuilder
      */
     public static GeneralAPIv4XOr55_URLBuilder get4XBuilder(){
-        return new GeneralAPIv4XOr55_URLBuilder(true, false);
+        return new GeneralAPIv4XOr55_URLBuilder(true, false, true);
     }
 
     /**
@@ -44,20 +44,23 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
      * @return GeneralAPIv4XOr55_URLBuilder
      */
     public static GeneralAPIv4XOr55_URLBuilder get55Builder(boolean useAffectedWhen){
-        return new GeneralAPIv4XOr55_URLBuilder(false, useAffectedWhen);
+        return new GeneralAPIv4XOr55_URLBuilder(false, useAffectedWhen, false);
     }
 
     private final boolean useOrderBy;
     private final boolean useAffectedWhen;
+    private final boolean usePageNumbers;
 
     /**
      * Private constructor, use static members (get4XBuilder, get55Builder) to construct a builder for a given API type
      * @param useOrderBy whether the "order-by" parameter should be provided for resources that support it (only relevant to 4.X API endpoints)
      * @param useAffectedWhen whether to use "modified-when" or "affected-when" in timestamped queries (only relevant to 5.X API endpoint)
+     * @param usePageNumbers whether pages can be requested by number (4.X API endpoints - 5.5 uses continuation tokens)
      */
-    private GeneralAPIv4XOr55_URLBuilder(boolean useOrderBy, boolean useAffectedWhen){
+    private GeneralAPIv4XOr55_URLBuilder(boolean useOrderBy, boolean useAffectedWhen, boolean usePageNumbers){
         this.useOrderBy = useOrderBy;
         this.useAffectedWhen = useAffectedWhen;
+        this.usePageNumbers = usePageNumbers;
     }
 
 
@@ -192,4 +195,13 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
         queryUrl.appendPath("relationship/types");
         return queryUrl.toString();
     }
+
+    @Override
+    public boolean supportsPageQueries(){ return usePageNumbers; }
+
+    @Override
+    public String buildPageQuery(String queryUrl, int page){
+        if(!usePageNumbers) throw new UnsupportedOperationException("v5.5 API feeds are paged with continuation tokens, not page numbers");
+        return appendPageParameter(queryUrl, page);
+    }
 }
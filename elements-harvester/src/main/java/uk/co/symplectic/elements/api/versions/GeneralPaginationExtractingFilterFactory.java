@@ -56,8 +56,14 @@ public class GeneralPaginationExtractingFilterFactory extends PaginationExtracti
                     if(event.hasAttribute("items-per-page")) {
                         workspace.setItemsPerPage(Integer.parseInt(event.getAttribute("items-per-page")));
                     }
+                    if(event.hasAttribute("results-count")) {
+                        workspace.setResultsCount(Integer.parseInt(event.getAttribute("results-count")));
+                    }
                 }
                 if (name.equals(new QName(apiNS, "page"))) {
+                    if ("this".equals(event.getAttributeValueOrNull("position")) && event.hasAttribute("number")) {
+                        workspace.setPageNumber(Integer.parseInt(event.getAttribute("number")));
+                    }
                     if (event.hasAttribute("position") && event.hasAttribute("href")) {
                         String posValue = event.getAttribute("position");
                         String hrefValue = event.getAttribute("href");
@@ -86,4 +92,4 @@ public class GeneralPaginationExtractingFilterFactory extends PaginationExtracti
     public ElementsAPIVersion.PaginationExtractingFilter createPaginationExtractor(){
         return new GeneralPaginationExtractingFilter();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.translate;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.text.Normalizer;
+
+/**
+ * Writer that puts the text passed through it into Unicode normalisation form C (NFC) on the fly, optionally replacing
+ * any supplementary characters (those outside the Basic Multilingual Plane) with U+FFFD first, before passing it on to
+ * the underlying Writer. The output is the same as applying both to the whole text at once.
+ *
+ * NFC can't be applied to arbitrary pieces of text (a combining mark may need to join the character before it), so the
+ * text is held back until it can be split just before a character below U+0300 - every one of those is unchanged by
+ * NFC and never combines with what precedes it. Translated XML is full of such characters (the markup itself), so
+ * little is held back, and pieces of text that contain nothing from U+0300 upwards are passed on without normalising.
+ * Only close (not flush) passes on text that is still being held back.
+ *
+ * Not thread safe.
+ */
+final class NormalisingWriter extends Writer {
+    private static final char firstCombiningCharacter = '\u0300';
+    //how much text to gather before trying to pass it on.
+    private static final int chunkSize = 8192;
+
+    private final Writer output;
+    private final boolean replaceSupplementaryCharacters;
+
+    private char[] pending = new char[chunkSize * 2];
+    private int pendingCount = 0;
+    //when to next try to pass text on (put back if the text held could not be split, so it is not searched every write).
+    private int processAt = chunkSize;
+
+    NormalisingWriter(Writer output, boolean replaceSupplementaryCharacters) {
+        if (output == null) throw new NullArgumentException("output");
+        this.output = output;
+        this.replaceSupplementaryCharacters = replaceSupplementaryCharacters;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureCapacity(1);
+        pending[pendingCount++] = (char) c;
+        if (pendingCount >= processAt) process(false);
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        ensureCapacity(length);
+        System.arraycopy(buffer, offset, pending, pendingCount, length);
+        pendingCount += length;
+        if (pendingCount >= processAt) process(false);
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        ensureCapacity(length);
+        text.getChars(offset, offset + length, pending, pendingCount);
+        pendingCount += length;
+        if (pendingCount >= processAt) process(false);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        process(true);
+        output.close();
+    }
+
+    private void ensureCapacity(int length) {
+        if (pendingCount + length > pending.length) {
+            char[] newPending = new char[Math.max(pending.length * 2, pendingCount + length)];
+            System.arraycopy(pending, 0, newPending, 0, pendingCount);
+            pending = newPending;
+        }
+    }
+
+    private void process(boolean all) throws IOException {
+        int end = all ? pendingCount : findSplit();
+        if (end > 0) {
+            passOn(end);
+            System.arraycopy(pending, end, pending, 0, pendingCount - end);
+            pendingCount -= end;
+        }
+        processAt = pendingCount + chunkSize;
+    }
+
+    //the last point at which the held text can be split, or 0 if there is none.
+    private int findSplit() {
+        for (int i = pendingCount - 1; i > 0; i--) {
+            if (pending[i] < firstCombiningCharacter) return i;
+        }
+        return 0;
+    }
+
+    //pass on the first length characters held (which may be rewritten in the process).
+    private void passOn(int length) throws IOException {
+        boolean normalised = true;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pending[i];
+            if (c >= firstCombiningCharacter) {
+                if (replaceSupplementaryCharacters && Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(pending[i + 1])) {
+                    c = '\uFFFD';
+                    i++;
+                }
+                normalised = false;
+            }
+            pending[count++] = c;
+        }
+        if (normalised) {
+            output.write(pending, 0, count);
+        } else {
+            output.write(Normalizer.normalize(CharBuffer.wrap(pending, 0, count), Normalizer.Form.NFC));
+        }
+    }
+}
@@ -10,32 +10,93 @@
  */
 package uk.co.symplectic.translate;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+
 import javax.xml.transform.Templates;
 import java.io.File;
+import java.text.MessageFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
- * Class to retain a thread local copy (i.e. one per thread) of the compiled "XSL templates" that represent the crosswalks.
- * Operates effectively as a thread local singleton, ensuring we only compile the XSL once per thread.
+ * Class to retain the compiled "XSL templates" that represent the crosswalks.
+ * Compiled Templates are thread safe, so each stylesheet is compiled once per run and the result shared by every holder
+ * for that stylesheet and every thread using them (rather than once per holder per thread, as translating the five
+ * types of item on each TranslationService thread would otherwise need).
+ *
+ * Compilation starts in the background (on a shared pool) as soon as the first holder for a stylesheet is created, so
+ * it overlaps with whatever else is being set up (and different stylesheets compile in parallel); getTemplates waits
+ * for it to finish.
+ * Any failure to compile (including the stylesheet not existing) is thrown from getTemplates, as before.
  */
 
 public class TemplatesHolder {
-    private String xslFilename;
-    private ThreadLocal<Templates> myTemplates = new ThreadLocal<Templates>();
+    private static final Logger log = LoggerFactory.getLogger(TemplatesHolder.class);
+
+    //keyed by the absolute path of the stylesheet.
+    private static final ConcurrentHashMap<String, FutureTask<Templates>> compiledTemplates = new ConcurrentHashMap<String, FutureTask<Templates>>();
+
+    private static ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> compilerPool = null;
+
+    private static synchronized ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> getCompilerPool() {
+        if (compilerPool == null) compilerPool = ExecutorServiceUtils.newFixedThreadPool("TemplatesCompiler");
+        return compilerPool;
+    }
+
+    private final String xslFilename;
+    private final FutureTask<Templates> myTemplates;
 
     public TemplatesHolder(String xslFilename) {
         this.xslFilename = xslFilename;
+        this.myTemplates = startCompiling(new File(xslFilename).getAbsoluteFile());
     }
 
-    public Templates getTemplates() {
-        if (myTemplates.get() == null) {
-            File xslFile = new File(xslFilename);
-            if (xslFile.exists()) {
-                Templates template = TranslationService.compileSource(xslFile);
-                myTemplates.set(template);
-            } else {
-                throw new IllegalStateException("XSL Translation file not found: " + xslFilename);
+    private static FutureTask<Templates> startCompiling(final File xslFile) {
+        FutureTask<Templates> task = compiledTemplates.get(xslFile.getPath());
+        if (task == null) {
+            FutureTask<Templates> newTask = new FutureTask<Templates>(new Callable<Templates>() {
+                @Override
+                public Templates call() {
+                    if (!xslFile.exists()) throw new IllegalStateException("XSL Translation file not found: " + xslFile.getPath());
+                    long startTime = System.currentTimeMillis();
+                    Templates templates = TranslationService.compileSource(xslFile);
+                    log.info(MessageFormat.format("Compiled XSL {0} in {1}ms", xslFile.getPath(), Long.toString(System.currentTimeMillis() - startTime)));
+                    return templates;
+                }
+            });
+            task = compiledTemplates.putIfAbsent(xslFile.getPath(), newTask);
+            if (task == null) {
+                task = newTask;
+                //not tracked by the pool - any failure is thrown from getTemplates.
+                final FutureTask<Templates> compileTask = newTask;
+                getCompilerPool().submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        compileTask.run();
+                        return true;
+                    }
+                }, false);
             }
         }
-        return myTemplates.get();
+        return task;
+    }
+
+    public Templates getTemplates() {
+        //if the compiler pool has not got to it yet, compile on this thread instead (a FutureTask only ever runs once).
+        myTemplates.run();
+        try {
+            return myTemplates.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException("Unable to compile XSL: " + xslFilename, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for XSL to compile: " + xslFilename, e);
+        }
     }
 }
@@ -28,6 +28,15 @@ import java.util.Map;
 @SuppressWarnings("unused")
 public final class TranslationService {
 
+    /**
+     * Told about each item whose translation failed, where the failure is tolerated (see TranslationServiceConfig)
+     * so that the harvest carries on without it.
+     * Called from the translation threads, so must be thread safe.
+     */
+    public interface FailureListener {
+        void translationFailed(ElementsStoredItemInfo input);
+    }
+
     private TranslationServiceConfig config = new TranslationServiceConfig();
 
     public TranslationService() {}
@@ -27,6 +27,7 @@ public class TranslationServiceConfig {
     private boolean tolerateIndividualIOErrors = false;
     private boolean tolerateIndividualTransformErrors = true;
     private boolean useFullUTF8 = true;
+    private TranslationService.FailureListener failureListener = null;
 
     public boolean getIgnoreFileNotFound() {
         return ignoreFileNotFound;
@@ -64,4 +65,12 @@ public class TranslationServiceConfig {
         this.useFullUTF8 = useFullUTF8;
     }
 
+    public TranslationService.FailureListener getFailureListener() {
+        return failureListener;
+    }
+
+    public void setFailureListener(TranslationService.FailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
 }
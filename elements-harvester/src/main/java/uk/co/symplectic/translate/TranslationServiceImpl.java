@@ -14,6 +14,7 @@ import net.sf.saxon.lib.StandardErrorListener;
 import org.apache.commons.lang.NullArgumentException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ByteArrayBufferPool;
 import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.vivoweb.harvester.store.ElementsItemStore;
 import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
@@ -22,11 +23,12 @@ import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
 import javax.xml.transform.*;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
-import java.text.Normalizer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -42,6 +44,12 @@ final class TranslationServiceImpl {
 
     private static final ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> wrapper = ExecutorServiceUtils.newFixedThreadPool("TranslationService");
 
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    //what Saxon outputs when a translation produces nothing.
+    private static final byte[] emptyOutput = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n".getBytes(utf8);
+    //buffers the translated output of each item is gathered in, reused across items.
+    private static final ByteArrayBufferPool outputBuffers = new ByteArrayBufferPool(32, 64 * 1024, 4 * 1024 * 1024);
+
     private TranslationServiceImpl() {}
 
     static Templates compileSource(Source source) {
@@ -102,6 +110,9 @@ final class TranslationServiceImpl {
         protected abstract void storeOutput(byte[] translatedData) throws IOException;
         protected abstract String getOutputDescription();
 
+        //called if the translation failed but the failure was tolerated.
+        protected abstract void translationFailed();
+
         AbstractTranslateTask(TranslationServiceConfig config, TemplatesHolder translationTemplates, Map<String, Object> extraParams) {
             if(translationTemplates == null) throw new NullArgumentException("translationTemplates");
             if(config == null) throw new NullArgumentException("config");
@@ -129,9 +140,12 @@ final class TranslationServiceImpl {
 
             if (xmlSource != null) {
                 IOException inputStreamCloseError = null;
+                ByteArrayBufferPool.PooledBuffer outputBuffer = outputBuffers.acquire();
                 try {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    StreamResult outputResult = new StreamResult(baos);
+                    //the output is normalised (and, if need be, has supplementary characters replaced) as it is written,
+                    //straight into the buffer as UTF-8.
+                    NormalisingWriter outputWriter = new NormalisingWriter(new OutputStreamWriter(outputBuffer, utf8), !config.getUseFullUTF8());
+                    StreamResult outputResult = new StreamResult(outputWriter);
 
                     Transformer transformer = translationTemplates.getTemplates().newTransformer();
                     transformer.setErrorListener(new TranslateTaskErrorListener(config));
@@ -157,20 +171,15 @@ final class TranslationServiceImpl {
                     }
 
                     transformer.transform(xmlSource, outputResult);
-
-                    String xml = baos.toString("utf-8");
-                    if (!config.getUseFullUTF8()) {
-                        xml = xml.replaceAll("[^\\u0000-\\uFFFF]", "\uFFFD");
-                    }
-                    xml = Normalizer.normalize(xml, Normalizer.Form.NFC);
+                    outputWriter.close();
 
                     //work around saxon oddness
-                    if(xml.equals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")) {
+                    if(isEmptyOutput(outputBuffer)) {
                         storeOutput(null);
 //                        log.info(MessageFormat.format("no translated output for item {0}", inputItem.getItemInfo().getItemId()));
                     }
                     else {
-                        storeOutput(xml.getBytes("utf-8"));
+                        storeOutput(outputBuffer.toByteArray());
                     }
 
                 } catch (IOException e) {
@@ -183,6 +192,7 @@ final class TranslationServiceImpl {
                     retCode = Boolean.FALSE;
                 }
                 finally {
+                    outputBuffers.release(outputBuffer);
                     try {
                         if(xmlSource instanceof StreamSource) {
                             ((StreamSource) xmlSource).getInputStream().close();
@@ -197,9 +207,14 @@ final class TranslationServiceImpl {
                 if(inputStreamCloseError != null) throw inputStreamCloseError;
 
             }
+            if(!retCode) translationFailed();
             return retCode;
         }
 
+        private static boolean isEmptyOutput(ByteArrayBufferPool.PooledBuffer outputBuffer) {
+            return outputBuffer.size() == emptyOutput.length && Arrays.equals(Arrays.copyOf(outputBuffer.getBuffer(), emptyOutput.length), emptyOutput);
+        }
+
         //Is this necessary any more?
         private class TranslateTaskErrorListener implements ErrorListener {
             TranslationServiceConfig config;
@@ -237,6 +252,7 @@ final class TranslationServiceImpl {
         private final Source inputSource;
         private final ElementsItemStore outputStore;
         private final StorableResourceType outputType;
+        private final TranslationService.FailureListener failureListener;
 
         @Override
         protected Source getInputSource() throws IOException{
@@ -258,6 +274,11 @@ final class TranslationServiceImpl {
         @Override
         protected String getOutputDescription(){return "RDF store";}
 
+        @Override
+        protected void translationFailed(){
+            if(failureListener != null) failureListener.translationFailed(inputItem);
+        }
+
         ItemTranslateTask(TranslationServiceConfig config, ElementsStoredItemInfo inputItem, Source inputSource, ElementsItemStore outputStore,
                           StorableResourceType outputType, TemplatesHolder translationTemplates, Map<String, Object> extraParams) {
             super(config, translationTemplates, extraParams);
@@ -270,6 +291,7 @@ final class TranslationServiceImpl {
             this.inputSource = inputSource;
             this.outputStore = outputStore;
             this.outputType = outputType;
+            this.failureListener = config.getFailureListener();
         }
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of growable byte buffers, used to avoid allocating (and growing) a new buffer for every response or
+ * record that passes through the harvester.
+ * Buffers that have grown beyond maxRetainedSize are discarded on release rather than pooled, as are any released
+ * once the pool already holds maxPooled buffers, so the memory the pool can hold on to is bounded.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ByteArrayBufferPool {
+
+    /**
+     * A ByteArrayOutputStream that gives direct access to its internal buffer.
+     */
+    public static class PooledBuffer extends ByteArrayOutputStream {
+        private PooledBuffer(int initialSize) { super(initialSize); }
+
+        /**
+         * @return the internal buffer - only the first size() bytes are valid, and only until the buffer is written to again.
+         */
+        public byte[] getBuffer() { return buf; }
+
+        /**
+         * Append everything remaining in the stream to this buffer (the stream is not closed).
+         */
+        public void readFrom(InputStream stream) throws IOException {
+            while (true) {
+                if (count == buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, 1024));
+                int read = stream.read(buf, count, buf.length - count);
+                if (read < 0) break;
+                count += read;
+            }
+        }
+    }
+
+    private final ConcurrentLinkedQueue<PooledBuffer> available = new ConcurrentLinkedQueue<PooledBuffer>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+    private final int maxPooled;
+    private final int initialSize;
+    private final int maxRetainedSize;
+
+    /**
+     * @param maxPooled the maximum number of idle buffers to hold on to.
+     * @param initialSize the initial size of each new buffer.
+     * @param maxRetainedSize buffers that have grown larger than this are not returned to the pool.
+     */
+    public ByteArrayBufferPool(int maxPooled, int initialSize, int maxRetainedSize) {
+        if (maxPooled < 0) throw new IllegalArgumentException("maxPooled must not be negative");
+        if (initialSize < 1) throw new IllegalArgumentException("initialSize must be at least 1");
+        if (maxRetainedSize < initialSize) throw new IllegalArgumentException("maxRetainedSize must be at least initialSize");
+        this.maxPooled = maxPooled;
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    /**
+     * @return an empty buffer - which should be given back with release once it is no longer needed.
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer buffer = available.poll();
+        if (buffer == null) return new PooledBuffer(initialSize);
+        pooledCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool - it must not be used again by the caller.
+     */
+    public void release(PooledBuffer buffer) {
+        if (buffer == null || buffer.getBuffer().length > maxRetainedSize) return;
+        buffer.reset();
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            available.offer(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+}
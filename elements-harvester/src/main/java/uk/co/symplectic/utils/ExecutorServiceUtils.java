@@ -61,6 +61,13 @@ public final class ExecutorServiceUtils {
         return  new ExecutorServiceWrapper<T>(poolName, getThreadPoolSizeForPool(requestedPoolSize));
     }
 
+    //Pools whose tasks spend most of their time waiting on the network (rather than the CPU) are not limited to
+    //the number of processors on the machine, the requested size is used as is (if it is valid).
+    public static <T> ExecutorServiceWrapper<T> newFixedIOThreadPool(String poolName, int requestedPoolSize) {
+        if(requestedPoolSize < 1) return newFixedThreadPool(poolName, requestedPoolSize);
+        return  new ExecutorServiceWrapper<T>(poolName, requestedPoolSize);
+    }
+
 
     /**
      * Inner class that exists to be hooked into the Runtime's shutdown event when a new ExecutorServiceWrapper is
@@ -150,6 +157,9 @@ public final class ExecutorServiceUtils {
             return submit(task, true);
         }
 
+        //When checkForExceptions is false the task is not tracked at all - the caller is taking responsibility for its
+        //outcome through the returned Future (including cancelling it), so neither a failure nor a cancellation of it
+        //will be thrown from a later submit.
         public synchronized Future<T> submit(Callable<T> task, boolean checkForExceptions) {
             try {
                 //when adding a new task check if any of the previously submitted tasks are now finished
@@ -159,6 +169,11 @@ public final class ExecutorServiceUtils {
                     while (iter.hasNext()) {
                         Future<T> submittedTask = iter.next();
                         try {
+                            if (submittedTask.isCancelled()) {
+                                //whoever cancelled it already knows it did not complete.
+                                iter.remove();
+                                continue;
+                            }
                             if (submittedTask.isDone()) submittedTask.get();
                             //remove completed task from our tracking list
                             iter.remove();
@@ -171,7 +186,7 @@ public final class ExecutorServiceUtils {
                 }
                 //submit the new task;
                 Future<T> result = service.submit(task);
-                uncompletedTasks.add(result);
+                if(checkForExceptions) uncompletedTasks.add(result);
                 return result;
 
             }
@@ -0,0 +1,328 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils;
+
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact set of ints, along the lines of a Roaring bitmap.
+ * The ints are split into chunks of 65536 by their upper 16 bits. While a chunk is sparse the lower 16 bits of its
+ * members are held as a sorted array (2 bytes a member), and once it holds more than arrayLimit members it switches to
+ * a bitmap of the whole chunk (8KB, so well under a bit a member for the dense runs of ids Elements hands out).
+ * Members are iterated in unsigned order.
+ *
+ * Not thread safe - callers must synchronise access themselves.
+ */
+@SuppressWarnings("WeakerAccess")
+public class IntBitmap {
+    //a chunk switches to a bitmap when it grows beyond this many members (the point at which the array would be bigger),
+    //and back to an array when it shrinks to half of it (so that a chunk on the boundary does not keep switching).
+    static final int arrayLimit = 4096;
+    private static final int bitmapWords = 65536 / 64;
+
+    /**
+     * Iterator over the members of an IntBitmap that does not box them.
+     */
+    public interface IntIterator {
+        boolean hasNext();
+        int next();
+        void remove();
+    }
+
+    //the upper 16 bits of each chunk, in order, and for each chunk either the sorted array of its members (the first
+    //cardinalities[i] entries of arrays[i]) or its bitmap (bitmaps[i]).
+    private char[] keys = new char[4];
+    private int[] cardinalities = new int[4];
+    private char[][] arrays = new char[4][];
+    private long[][] bitmaps = new long[4][];
+    private int chunkCount = 0;
+    private int size = 0;
+    private int modCount = 0;
+
+    public IntBitmap() {}
+
+    /**
+     * @param other the bitmap to copy
+     */
+    public IntBitmap(IntBitmap other) {
+        int capacity = Math.max(4, other.chunkCount);
+        keys = copy(other.keys, capacity);
+        cardinalities = new int[capacity];
+        System.arraycopy(other.cardinalities, 0, cardinalities, 0, other.chunkCount);
+        arrays = new char[capacity][];
+        bitmaps = new long[capacity][];
+        for (int i = 0; i < other.chunkCount; i++) {
+            if (other.arrays[i] != null) arrays[i] = copy(other.arrays[i], other.cardinalities[i]);
+            if (other.bitmaps[i] != null) bitmaps[i] = other.bitmaps[i].clone();
+        }
+        chunkCount = other.chunkCount;
+        size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int value) {
+        int chunk = findChunk(high(value));
+        if (chunk < 0) return false;
+        char low = low(value);
+        if (bitmaps[chunk] != null) return (bitmaps[chunk][low >>> 6] & (1L << low)) != 0;
+        return binarySearch(arrays[chunk], cardinalities[chunk], low) >= 0;
+    }
+
+    /**
+     * @return true if the value was added, false if it was already a member.
+     */
+    public boolean add(int value) {
+        char high = high(value);
+        char low = low(value);
+        int chunk = findChunk(high);
+        if (chunk < 0) {
+            chunk = -(chunk + 1);
+            insertChunk(chunk, high);
+        }
+        if (bitmaps[chunk] != null) {
+            long bit = 1L << low;
+            if ((bitmaps[chunk][low >>> 6] & bit) != 0) return false;
+            bitmaps[chunk][low >>> 6] |= bit;
+        } else {
+            int cardinality = cardinalities[chunk];
+            int position = binarySearch(arrays[chunk], cardinality, low);
+            if (position >= 0) return false;
+            if (cardinality >= arrayLimit) {
+                toBitmap(chunk);
+                bitmaps[chunk][low >>> 6] |= 1L << low;
+            } else {
+                position = -(position + 1);
+                char[] array = arrays[chunk];
+                if (cardinality == array.length) {
+                    array = new char[Math.min(arrayLimit, array.length * 2)];
+                    System.arraycopy(arrays[chunk], 0, array, 0, position);
+                    System.arraycopy(arrays[chunk], position, array, position + 1, cardinality - position);
+                    arrays[chunk] = array;
+                } else {
+                    System.arraycopy(array, position, array, position + 1, cardinality - position);
+                }
+                array[position] = low;
+            }
+        }
+        cardinalities[chunk]++;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * @return true if the value was removed, false if it was not a member.
+     */
+    public boolean remove(int value) {
+        int chunk = findChunk(high(value));
+        if (chunk < 0) return false;
+        char low = low(value);
+        if (bitmaps[chunk] != null) {
+            long bit = 1L << low;
+            if ((bitmaps[chunk][low >>> 6] & bit) == 0) return false;
+            bitmaps[chunk][low >>> 6] &= ~bit;
+            if (--cardinalities[chunk] <= arrayLimit / 2) toArray(chunk);
+        } else {
+            int position = binarySearch(arrays[chunk], cardinalities[chunk], low);
+            if (position < 0) return false;
+            char[] array = arrays[chunk];
+            System.arraycopy(array, position + 1, array, position, cardinalities[chunk] - position - 1);
+            if (--cardinalities[chunk] == 0) removeChunk(chunk);
+        }
+        size--;
+        modCount++;
+        return true;
+    }
+
+    public void clear() {
+        keys = new char[4];
+        cardinalities = new int[4];
+        arrays = new char[4][];
+        bitmaps = new long[4][];
+        chunkCount = 0;
+        size = 0;
+        modCount++;
+    }
+
+    public IntIterator intIterator() {
+        return new BitmapIterator();
+    }
+
+    private static char high(int value) {
+        return (char) (value >>> 16);
+    }
+
+    private static char low(int value) {
+        return (char) value;
+    }
+
+    private int findChunk(char high) {
+        return binarySearch(keys, chunkCount, high);
+    }
+
+    private static int binarySearch(char[] array, int length, char value) {
+        int lowIndex = 0;
+        int highIndex = length - 1;
+        while (lowIndex <= highIndex) {
+            int middle = (lowIndex + highIndex) >>> 1;
+            char middleValue = array[middle];
+            if (middleValue < value) lowIndex = middle + 1;
+            else if (middleValue > value) highIndex = middle - 1;
+            else return middle;
+        }
+        return -(lowIndex + 1);
+    }
+
+    private void insertChunk(int chunk, char high) {
+        if (chunkCount == keys.length) {
+            int capacity = keys.length * 2;
+            keys = copy(keys, capacity);
+            int[] newCardinalities = new int[capacity];
+            System.arraycopy(cardinalities, 0, newCardinalities, 0, chunkCount);
+            cardinalities = newCardinalities;
+            char[][] newArrays = new char[capacity][];
+            System.arraycopy(arrays, 0, newArrays, 0, chunkCount);
+            arrays = newArrays;
+            long[][] newBitmaps = new long[capacity][];
+            System.arraycopy(bitmaps, 0, newBitmaps, 0, chunkCount);
+            bitmaps = newBitmaps;
+        }
+        int moved = chunkCount - chunk;
+        System.arraycopy(keys, chunk, keys, chunk + 1, moved);
+        System.arraycopy(cardinalities, chunk, cardinalities, chunk + 1, moved);
+        System.arraycopy(arrays, chunk, arrays, chunk + 1, moved);
+        System.arraycopy(bitmaps, chunk, bitmaps, chunk + 1, moved);
+        keys[chunk] = high;
+        cardinalities[chunk] = 0;
+        arrays[chunk] = new char[4];
+        bitmaps[chunk] = null;
+        chunkCount++;
+    }
+
+    private void removeChunk(int chunk) {
+        int moved = chunkCount - chunk - 1;
+        System.arraycopy(keys, chunk + 1, keys, chunk, moved);
+        System.arraycopy(cardinalities, chunk + 1, cardinalities, chunk, moved);
+        System.arraycopy(arrays, chunk + 1, arrays, chunk, moved);
+        System.arraycopy(bitmaps, chunk + 1, bitmaps, chunk, moved);
+        chunkCount--;
+        arrays[chunkCount] = null;
+        bitmaps[chunkCount] = null;
+    }
+
+    private static char[] copy(char[] array, int length) {
+        char[] copy = new char[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private void toBitmap(int chunk) {
+        long[] bitmap = new long[bitmapWords];
+        char[] array = arrays[chunk];
+        for (int i = 0; i < cardinalities[chunk]; i++) bitmap[array[i] >>> 6] |= 1L << array[i];
+        bitmaps[chunk] = bitmap;
+        arrays[chunk] = null;
+    }
+
+    private void toArray(int chunk) {
+        char[] array = new char[cardinalities[chunk]];
+        long[] bitmap = bitmaps[chunk];
+        int position = 0;
+        for (int word = 0; word < bitmapWords; word++) {
+            long bits = bitmap[word];
+            while (bits != 0) {
+                array[position++] = (char) ((word << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        arrays[chunk] = array;
+        bitmaps[chunk] = null;
+    }
+
+    /**
+     * Walks the chunks in order - within an array chunk by position, within a bitmap chunk by the next low 16 bits to
+     * test. A removal through the iterator can reshape the current chunk, so the iterator then finds its place again
+     * from the value it last returned.
+     */
+    private class BitmapIterator implements IntIterator {
+        private int chunk = 0;
+        private int position = 0;
+        private boolean canRemove = false;
+        private int last;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            checkForComodification();
+            while (chunk < chunkCount) {
+                if (bitmaps[chunk] != null) {
+                    long[] bitmap = bitmaps[chunk];
+                    int word = position >>> 6;
+                    if (word < bitmapWords) {
+                        long bits = bitmap[word] & (-1L << position);
+                        while (bits == 0 && ++word < bitmapWords) bits = bitmap[word];
+                        if (bits != 0) {
+                            position = (word << 6) + Long.numberOfTrailingZeros(bits);
+                            return true;
+                        }
+                    }
+                } else if (position < cardinalities[chunk]) {
+                    return true;
+                }
+                chunk++;
+                position = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public int next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int low = bitmaps[chunk] != null ? position : arrays[chunk][position];
+            last = (keys[chunk] << 16) | low;
+            position++;
+            canRemove = true;
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (!canRemove) throw new IllegalStateException();
+            checkForComodification();
+            IntBitmap.this.remove(last);
+            expectedModCount = modCount;
+            canRemove = false;
+            //carry on from just after the value removed.
+            char high = high(last);
+            chunk = findChunk(high);
+            if (chunk < 0) {
+                chunk = -(chunk + 1);
+                position = 0;
+            } else if (bitmaps[chunk] != null) {
+                position = low(last) + 1;
+            } else {
+                position = -(binarySearch(arrays[chunk], cardinalities[chunk], low(last)) + 1);
+            }
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks ("stripes") that keys are spread across by their hash code, so that work on the same key is
+ * serialised without a lock having to be created (and kept) for every key. Different keys only contend when they
+ * happen to share a stripe.
+ *
+ * lockAll takes every stripe (always in the same order, so two callers of lockAll cannot deadlock each other) for
+ * operations that affect all keys at once.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StripedLock {
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param stripeCount how many stripes to spread keys across (rounded up to a power of two).
+     */
+    public StripedLock(int stripeCount) {
+        if (stripeCount < 1) throw new IllegalArgumentException("stripeCount must be at least 1");
+        int count = Integer.highestOneBit(stripeCount);
+        if (count < stripeCount) count <<= 1;
+        stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * @return the lock guarding the key (which the caller must lock and unlock).
+     */
+    public Lock get(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    public void lockAll() {
+        for (ReentrantLock stripe : stripes) stripe.lock();
+    }
+
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+    }
+}
@@ -12,28 +12,33 @@
 package uk.co.symplectic.utils.http;
 
 import org.apache.commons.lang.NullArgumentException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
-import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.HttpContext;
@@ -48,6 +53,9 @@ import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Simple HTTPClient class based on apache's http components and core.
@@ -68,6 +76,17 @@ public class HttpClient {
     private static final int defaultSoTimeout = 5 * 60 * 1000; // 5 minutes, in milliseconds
     private static final int defaultConnectionTimeout = 30000; // 30 seconds
 
+    //how long to keep idle connections alive if the server does not specify (via a Keep-Alive header).
+    private static final long defaultKeepAliveMillis = 60 * 1000; // 1 minute
+    //pooled connections idle for longer than this are checked before being reused.
+    private static final int validateAfterInactivityMillis = 2000;
+
+    //whether requests should ask the server to compress responses (gzip/deflate).
+    private static boolean requestCompression = true;
+
+    //placeholder for the size of the connection pool (all requests generally go to the same host, so this is also the per route limit).
+    private static int maxConnections = 20;
+
     //placeholder for whether we want to ignore SSL errors in this application.
     private static boolean ignoreSslErrors = false;
 
@@ -80,20 +99,37 @@ public class HttpClient {
     //internal placeholder field for the current underlying Apache client that is in use across any and all threads.
     private static CloseableHttpClient client;
 
-    //default minimum time between requests  = 1 quarter second
-    private static int intervalInMSecs = 250;
+    //status code servers use to indicate we are making too many requests (not defined in HttpStatus).
+    public static final int SC_TOO_MANY_REQUESTS = 429;
 
-    //internal variable tracked to ensure that requests aren't too frequent.
-    private static Date lastRequest = null;
+    //limiter shared by all instances to ensure that requests aren't too frequent - default of 4 requests per second.
+    private static final RequestRateLimiter rateLimiter = new RequestRateLimiter(4, 1);
 
     /**
      * Setter method to configure the minimum delay between successive requests made by HttpClient instances.
-     * @param millis the value to use in milliseconds.
+     * Equivalent to setting a request rate of 1000/millis requests per second.
+     * @param millis the value to use in milliseconds (0 means no limit).
+     */
+    public static void setRequestDelay(int millis) {
+        rateLimiter.setRate(millis > 0 ? 1000.0 / millis : 0);
+    }
+
+    /**
+     * Setter method to configure the maximum rate at which HttpClient instances will make requests
+     * @param requestsPerSecond the maximum sustained rate (0 or less means no limit).
+     * @param burst how many requests can be made back to back after a quiet period.
      */
-    public static synchronized void setRequestDelay(int millis) {
-        intervalInMSecs = millis;
+    public static void setRequestRate(double requestsPerSecond, int burst) {
+        rateLimiter.setRate(requestsPerSecond);
+        rateLimiter.setBurst(burst);
     }
 
+    /**
+     * Getter for the shared rate limiter, e.g. to report the rate currently being used.
+     * @return the RequestRateLimiter used by all HttpClient instances.
+     */
+    public static RequestRateLimiter getRateLimiter() { return rateLimiter; }
+
 
     /**
      * Method to close any currently open low level resources (i.e. Apache clients/connection managers etc)
@@ -121,6 +157,28 @@ public class HttpClient {
         }
     }
 
+    /**
+     * Setter method to configure whether HttpClient instances ask servers to compress (gzip/deflate) their responses.
+     * Responses are always transparently decompressed, so this only affects how much data is transferred.
+     * @param compress whether to send an Accept-Encoding header.
+     */
+    public static void setRequestCompression(boolean compress) {
+        requestCompression = compress;
+    }
+
+    /**
+     * Setter method to configure how many connections can be open at once (both in total and to any one host).
+     * Should be at least as large as the number of requests that may be made concurrently.
+     * @param connections the maximum number of connections (values below 1 are ignored).
+     */
+    public static synchronized void setMaxConnections(int connections) {
+        if(connections > 0 && connections != maxConnections) {
+            maxConnections = connections;
+            //close any existing clients to force regeneration of the client..
+            close();
+        }
+    }
+
     /**
      * Setter method to configure the socket timeout for all client instances
      * (alters the underlying static currentRequestConfig which is loaded into HttpContext for each request if non null).
@@ -155,25 +213,61 @@ public class HttpClient {
      * Delay method - instances ensures that requests are not sent too frequently to the Elements API,
      * by calling this method prior to executing the HttpClient request.
      */
-    private static synchronized void regulateRequestFrequency() {
+    private static void regulateRequestFrequency() {
+        rateLimiter.acquire();
+    }
+
+    /**
+     * Method to interpret the Retry-After header of a response (which may either be in seconds or an http date).
+     * @param response the response being processed.
+     * @return the requested delay in milliseconds or -1 if there is no (valid) Retry-After header.
+     */
+    private static long getRetryAfterMillis(CloseableHttpResponse response){
+        Header header = response.getFirstHeader("Retry-After");
+        if(header == null || header.getValue() == null) return -1;
+        String value = header.getValue().trim();
         try {
-            if (lastRequest != null) {
-                Date current = new Date();
-                if (lastRequest.getTime() + intervalInMSecs > current.getTime()) {
-                    Thread.sleep(intervalInMSecs - (current.getTime() - lastRequest.getTime()));
-                }
-            }
-        } catch (InterruptedException ie) {
-            // Ignore an interrupt
-        } finally {
-            lastRequest = new Date();
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch(NumberFormatException e) {
+            Date retryDate = DateUtils.parseDate(value);
+            if (retryDate == null) return -1;
+            return Math.max(0, retryDate.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Method to feed the outcome of a request back to the rate limiter and convert non 200 responses into exceptions.
+     * @param method the method (GET/POST) used - for logging.
+     * @param response the response received.
+     * @param responseToReturn the ApiResponse wrapping the response (disposed if an exception is thrown).
+     * @param conditional whether the request was conditional (in which case 304 is also acceptable).
+     * @throws IOException an InvalidResponseException if the response code is not 200 (or 304 for conditional requests).
+     */
+    private void checkResponse(String method, CloseableHttpResponse response, ApiResponse responseToReturn, boolean conditional) throws IOException {
+        int responseCode = response.getStatusLine().getStatusCode();
+        log.info(MessageFormat.format("{0} {1} : {2}", method, getUrl(), responseCode));
+
+        if (responseCode == HttpStatus.SC_OK || (conditional && responseCode == HttpStatus.SC_NOT_MODIFIED)) {
+            rateLimiter.recordSuccess();
+            return;
+        }
+
+        long retryAfterMillis = -1;
+        if(responseCode == SC_TOO_MANY_REQUESTS || responseCode == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            retryAfterMillis = getRetryAfterMillis(response);
+            rateLimiter.backOff(retryAfterMillis);
         }
+        String codeDescription = EnglishReasonPhraseCatalog.INSTANCE.getReason(responseCode, null);
+        String message = MessageFormat.format("Invalid Http response code received: {0} ({1})", responseCode, codeDescription);
+        responseToReturn.dispose();
+        throw new InvalidResponseException(message, responseCode, retryAfterMillis);
     }
 
     /**
      * Code to generate a new PoolingHttpClientConnectionManager taking account of current configured state
      * in terms of whether we want to ignore SSL errors or not.
-     * sets allowed amount of connections to default of 20 in all cases.
+     * sets allowed amount of connections to maxConnections (default of 20) in all cases.
      * @return a PoolingHttpClientConnectionManager
      */
     private static synchronized PoolingHttpClientConnectionManager generateConnectionManager(){
@@ -199,7 +293,12 @@ public class HttpClient {
             connectionManager = new PoolingHttpClientConnectionManager();
         }
 
-        connectionManager.setMaxTotal(20);
+        connectionManager.setMaxTotal(maxConnections);
+        //all requests go to the same Elements API host, so allow that route to use the whole pool (default is 2)
+        //otherwise concurrent feeds would just queue up waiting for a connection.
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        //avoid handing out connections the server has silently dropped whilst they sat in the pool.
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityMillis);
         return connectionManager;
     }
 
@@ -214,10 +313,44 @@ public class HttpClient {
         close();
         cachedConnectionManager = generateConnectionManager();
         RequestConfig defaultRequestConfig = RequestConfig.custom().setConnectTimeout(defaultConnectionTimeout).setSocketTimeout(defaultSoTimeout).build();
-        client = HttpClients.custom().setConnectionManager(cachedConnectionManager).setDefaultRequestConfig(defaultRequestConfig).build();
+        client = HttpClients.custom()
+                .setConnectionManager(cachedConnectionManager)
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                //content encoding is negotiated and decoded by this class (see ApiResponse) so we can count the bytes on the wire.
+                .disableContentCompression()
+                .evictIdleConnections(defaultKeepAliveMillis, TimeUnit.MILLISECONDS)
+                .addInterceptorLast(challengeCounter)
+                .build();
         log.info("Created new Apache client resources");
     }
 
+    /**
+     * Keep alive strategy that honours any Keep-Alive header sent by the server, but otherwise only keeps connections
+     * for the default period (rather than indefinitely) so we do not try to reuse connections the server has dropped.
+     */
+    private static final ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : defaultKeepAliveMillis;
+        }
+    };
+
+    /**
+     * Interceptor that sees every response (including the intermediate 401s Apache handles internally)
+     * and records any auth challenges against the session the request was made in.
+     */
+    private static final HttpResponseInterceptor challengeCounter = new HttpResponseInterceptor() {
+        @Override
+        public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                Object session = context.getAttribute(HttpClientSession.SESSION_ATTRIBUTE);
+                if (session instanceof HttpClientSession) ((HttpClientSession) session).recordChallenge();
+            }
+        }
+    };
+
 
     /**
      * Getter for the current low level Apache Http Client
@@ -229,13 +362,11 @@ public class HttpClient {
         return client;
     }
 
-    //HTTPClient Instance fields (credentials, url, etc)
-    final private String username;
-    final private String password;
+    //HTTPClient Instance fields (session, url, etc)
+    final private HttpClientSession session;
     final private String url;
+    final private boolean secure;
 
-    private String getUsername(){return username;}
-    private String getPassword(){return password;}
     private String getUrl(){return url;}
 
     /**
@@ -259,36 +390,34 @@ public class HttpClient {
     }
 
     /**
-     * Constructor for an HTTPClient instance
+     * Constructor for an HTTPClient instance that makes its requests in a new one off session.
+     * Callers making many requests should create a HttpClientSession and use the session based constructor instead.
      * @param url A "ValidatedUrl" representing the URL to which GET/POST requests will be sent.
      * @param username credentials for accessing the URL
      * @param password credentials for accessing the URL
      */
     public HttpClient(ValidatedUrl url, String username, String password) {
+        this(url, new HttpClientSession(username, password));
+    }
+
+    /**
+     * Constructor for an HTTPClient instance that makes its requests as part of an existing (shared) session
+     * @param url A "ValidatedUrl" representing the URL to which GET/POST requests will be sent.
+     * @param session the session (and hence credentials) to use.
+     */
+    public HttpClient(ValidatedUrl url, HttpClientSession session) {
         if(url == null) throw new NullArgumentException("url");
+        if(session == null) throw new NullArgumentException("session");
         this.url = url.getUrl();
-
-        //Only store the username and password if the scheme being used is considered "secure" - to avoid accidentally sending credentials in the clear.
-        if(url.isSecure() && username != null) {
-            this.username = username;
-            this.password = password;
-        } else {
-            this.username = null;
-            this.password = null;
-        }
+        this.session = session;
+        //Only send credentials if the scheme being used is considered "secure" - to avoid accidentally sending credentials in the clear.
+        this.secure = url.isSecure();
     }
 
     private HttpContext getApacheContext(){
-        HttpClientContext context = HttpClientContext.create();
-
         // Prepare the HttpContext
-        if (getUsername() != null){
-            CredentialsProvider credsProvider = new BasicCredentialsProvider();
-            credsProvider.setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(getUsername(), getPassword()));
-            context.setCredentialsProvider(credsProvider);
-        }
+        HttpClientContext context = session.createContext(getUrl(), secure);
         if(currentRequestConfig != null) context.setRequestConfig(currentRequestConfig);
-
         return context;
     }
 
@@ -298,6 +427,19 @@ public class HttpClient {
      * @throws IOException Failure reading the request stream
      */
     public ApiResponse executeGetRequest() throws IOException {
+        return executeConditionalGetRequest(null, null);
+    }
+
+    /**
+     * Method to execute a conditional get request against the URL specified in this instance's constructor.
+     * If either validator is provided and the server reports the resource has not changed the returned response will
+     * have a response code of 304 (see ApiResponse.isNotModified) and no body.
+     * @param eTag the ETag of a previously fetched copy of the resource (sent as If-None-Match), can be null.
+     * @param lastModified the Last-Modified date of a previously fetched copy of the resource (sent as If-Modified-Since), can be null.
+     * @return an APIResponse object corresponding to the request body
+     * @throws IOException Failure reading the request stream
+     */
+    public ApiResponse executeConditionalGetRequest(String eTag, String lastModified) throws IOException {
         CloseableHttpClient httpclient  = getApacheClient();
 
         // Ensure we do not send request too frequently
@@ -305,22 +447,17 @@ public class HttpClient {
 
         // Issue get request
         HttpGet getMethod = new HttpGet(getUrl());
+        if(requestCompression) getMethod.setHeader("Accept-Encoding", "gzip,deflate");
+        if(eTag != null) getMethod.setHeader("If-None-Match", eTag);
+        if(lastModified != null) getMethod.setHeader("If-Modified-Since", lastModified);
+        long startTime = System.nanoTime();
         CloseableHttpResponse response = httpclient.execute(getMethod, getApacheContext());
 
-        ApiResponse responseToReturn = new ApiResponse(response);
+        ApiResponse responseToReturn = new ApiResponse(response, session, getUrl(), startTime);
 
         ///convert non 200 responses into exceptions - this is ok for our purposes.
-        int responseCode = response.getStatusLine().getStatusCode();
-
-        log.info(MessageFormat.format("GET {0} : {1}", getUrl(), responseCode));
-
-            if (responseCode != HttpStatus.SC_OK) {
-            String codeDescription = EnglishReasonPhraseCatalog.INSTANCE.getReason(responseCode, null);
-            String message = MessageFormat.format("Invalid Http response code received: {0} ({1})", responseCode, codeDescription);
-            responseToReturn.dispose();
-            throw new InvalidResponseException(message, responseCode);
-        }
-            return responseToReturn;
+        checkResponse("GET", response, responseToReturn, eTag != null || lastModified != null);
+        return responseToReturn;
 
     }
 
@@ -365,38 +502,60 @@ public class HttpClient {
         HttpPost post = new HttpPost(getUrl());
         post.setEntity(new UrlEncodedFormEntity(nameValuePairs, "UTF-8"));
 
+        long startTime = System.nanoTime();
         CloseableHttpResponse response = httpclient.execute(post, getApacheContext());
 
-        ApiResponse responseToReturn = new ApiResponse(response);
+        ApiResponse responseToReturn = new ApiResponse(response, session, getUrl(), startTime);
         ///convert non 200 responses into exceptions.
-        int responseCode = response.getStatusLine().getStatusCode();
-        log.info(MessageFormat.format("POST {0} : {1}", getUrl(), responseCode));
-        if(responseCode != HttpStatus.SC_OK){
-            String codeDescription = EnglishReasonPhraseCatalog.INSTANCE.getReason(responseCode, null);
-            String message = MessageFormat.format("Invalid Http response code received: {0} ({1})", responseCode, codeDescription);
-            responseToReturn.dispose();
-            throw new HttpClient.InvalidResponseException(message, responseCode);
-        }
+        checkResponse("POST", response, responseToReturn, false);
         return responseToReturn;
     }
 
     /*
     Inner class to represent the response from an API and offer a "dispose" method to close http connections when finished with the stream.
+    The response stream is transparently decompressed if the server used a gzip or deflate content encoding, the
+    number of bytes read before and after decompression is recorded against the session when the response is disposed.
      */
     public static class ApiResponse{
         final private CloseableHttpResponse response;
         final private HttpEntity entity;
+        final private HttpClientSession session;
+        final private String url;
+        final private long startTime;
+        final private long timeToFirstByteNanos;
+        private CountingInputStream wireStream = null;
+        private CountingInputStream decodedStream = null;
         private boolean disposed = false;
 
-        private ApiResponse(CloseableHttpResponse response){
+        private ApiResponse(CloseableHttpResponse response, HttpClientSession session, String url, long startTime){
             if(response == null) throw new NullArgumentException("response");
+            if(session == null) throw new NullArgumentException("session");
             this.response = response;
+            this.session = session;
+            this.url = url;
+            this.startTime = startTime;
+            //the response headers have arrived by the time the apache client returns the response.
+            this.timeToFirstByteNanos = System.nanoTime() - startTime;
             entity = this.response.getEntity();
         }
+
+        private InputStream getWireStream() throws IOException{
+            if(wireStream == null) wireStream = new CountingInputStream(entity.getContent());
+            return wireStream;
+        }
+
         public InputStream getResponseStream() throws IOException{
             if(!disposed) {
                 if(entity != null) {
-                    return new BufferedInputStream(entity.getContent());
+                    if(decodedStream == null) {
+                        InputStream stream = getWireStream();
+                        Header encodingHeader = entity.getContentEncoding();
+                        String encoding = encodingHeader == null ? null : encodingHeader.getValue().trim().toLowerCase(Locale.ROOT);
+                        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) stream = new GZIPInputStream(stream);
+                        else if ("deflate".equals(encoding)) stream = new DeflateInputStream(stream);
+                        decodedStream = new CountingInputStream(stream);
+                    }
+                    return new BufferedInputStream(decodedStream);
                 }
             }
             throw new IOException("APIResponse object already disposed");
@@ -404,30 +563,65 @@ public class HttpClient {
 
         public void dispose() throws IOException{
             if(!disposed) {
-                if(entity != null){
-                    getResponseStream().close();
+                try {
+                    if (entity != null) {
+                        //closing the decoded stream closes the wire stream too.
+                        if (decodedStream != null) decodedStream.close();
+                        else getWireStream().close();
+                    }
+                    response.close();
+                }
+                finally {
+                    disposed = true;
+                    long totalNanos = System.nanoTime() - startTime;
+                    session.recordTransfer(getWireBytes(), getDecodedBytes(), timeToFirstByteNanos, totalNanos);
+                    if (log.isDebugEnabled()) {
+                        log.debug(MessageFormat.format("{0} : {1} bytes on wire, {2} bytes decoded, first byte after {3}ms, completed after {4}ms",
+                                url, getWireBytes(), getDecodedBytes(), getTimeToFirstByteMillis(), TimeUnit.NANOSECONDS.toMillis(totalNanos)));
+                    }
                 }
-                response.close();
-                disposed = true;
             }
         }
 
         public int getResponseCode() {
             return response.getStatusLine().getStatusCode();
         }
+
+        //true if this is the response to a conditional request and the resource has not changed
+        public boolean isNotModified() { return getResponseCode() == HttpStatus.SC_NOT_MODIFIED; }
+
+        //the value of the named response header, or null if it was not sent
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+
+        //number of bytes of the response body read from the network so far (i.e. before decompression)
+        public long getWireBytes() { return wireStream == null ? 0 : wireStream.getByteCount(); }
+
+        //number of bytes of the response body read by the caller so far (i.e. after decompression)
+        public long getDecodedBytes() { return decodedStream == null ? 0 : decodedStream.getByteCount(); }
+
+        //time between sending the request and receiving the response headers
+        public long getTimeToFirstByteMillis() { return TimeUnit.NANOSECONDS.toMillis(timeToFirstByteNanos); }
     }
 
     /**
      * Exception to be raised if the response indicates failure of the requested operation
      * (Currently just if not HTTP OK)
+     * If the server asked us to back off (429/503) then any Retry-After delay is also made available.
      */
     public static class InvalidResponseException extends IOException{
         final int responseCode;
+        final long retryAfterMillis;
         public int getResponseCode(){ return responseCode; }
+        //-1 if the response did not specify a (valid) Retry-After header
+        public long getRetryAfterMillis(){ return retryAfterMillis; }
 
-        private InvalidResponseException(String message, int responseCode){
+        private InvalidResponseException(String message, int responseCode, long retryAfterMillis){
             super(message);
             this.responseCode = responseCode;
+            this.retryAfterMillis = retryAfterMillis;
         }
     }
 }
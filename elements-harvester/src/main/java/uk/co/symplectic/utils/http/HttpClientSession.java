@@ -0,0 +1,178 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.http;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe class representing a long lived "session" with a server, to be shared by all the HttpClient instances
+ * making requests on behalf of a particular user (e.g. one session per ElementsAPI object).
+ *
+ * The session holds a single credentials provider and auth cache rather than building new ones for every request.
+ * The auth cache is primed with a Basic scheme for each host that is contacted so that credentials are sent
+ * preemptively, avoiding the 401 challenge (and the repeated request) that Apache would otherwise need before it
+ * sends any credentials.
+ *
+ * Also keeps counters of how many requests were sent with credentials and how many auth challenges were still received,
+ * along with how many bytes were transferred (on the wire and once decompressed) and where the time was spent.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HttpClientSession {
+
+    //context attribute used to let the shared Apache client's interceptors find the session a request belongs to.
+    static final String SESSION_ATTRIBUTE = HttpClientSession.class.getName();
+
+    //null if the session has no credentials.
+    private final CredentialsProvider credentialsProvider;
+    //BasicAuthCache and BasicCredentialsProvider are both backed by concurrent maps, so can be shared across threads.
+    private final AuthCache authCache = new BasicAuthCache();
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong authenticatedRequestCount = new AtomicLong(0);
+    private final AtomicLong challengeCount = new AtomicLong(0);
+
+    private final AtomicLong transferCount = new AtomicLong(0);
+    private final AtomicLong wireBytes = new AtomicLong(0);
+    private final AtomicLong decodedBytes = new AtomicLong(0);
+    private final AtomicLong timeToFirstByteNanos = new AtomicLong(0);
+    private final AtomicLong transferNanos = new AtomicLong(0);
+
+    /**
+     * Constructor for a session that makes unauthenticated requests.
+     */
+    public HttpClientSession() {
+        this(null, null);
+    }
+
+    /**
+     * Constructor
+     * @param username credentials to send with requests (null if requests should not be authenticated).
+     * @param password credentials to send with requests.
+     */
+    public HttpClientSession(String username, String password) {
+        if (username != null) {
+            credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(username, password));
+        } else {
+            credentialsProvider = null;
+        }
+    }
+
+    public boolean hasCredentials() { return credentialsProvider != null; }
+
+    /**
+     * Creates the (per request) Apache context for a request made as part of this session.
+     * HttpClientContext objects are not thread safe so a new one is used for each request, but it is populated with
+     * the session's shared credentials provider and auth cache.
+     * @param url the url being requested.
+     * @param authenticate whether credentials should be sent with this request (i.e. if the url is secure).
+     * @return a HttpClientContext
+     */
+    HttpClientContext createContext(String url, boolean authenticate) {
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(SESSION_ATTRIBUTE, this);
+        requestCount.incrementAndGet();
+
+        if (authenticate && credentialsProvider != null) {
+            context.setCredentialsProvider(credentialsProvider);
+            HttpHost host = getHost(url);
+            if (host != null) {
+                //racing threads may both add a scheme for the same host - that is harmless.
+                if (authCache.get(host) == null) authCache.put(host, new BasicScheme());
+                context.setAuthCache(authCache);
+            }
+            authenticatedRequestCount.incrementAndGet();
+        }
+        return context;
+    }
+
+    /**
+     * Called (by the shared Apache client) whenever a response from the server challenges a request in this session.
+     */
+    void recordChallenge() {
+        challengeCount.incrementAndGet();
+    }
+
+    /**
+     * Called when a response in this session has been finished with, to record the bytes transferred and time taken.
+     * @param wireBytes how many bytes of body were read from the network (i.e. before any decompression).
+     * @param decodedBytes how many bytes of body were read by the caller (i.e. after any decompression).
+     * @param timeToFirstByteNanos time between sending the request and receiving the response headers.
+     * @param totalNanos time between sending the request and finishing with the response.
+     */
+    void recordTransfer(long wireBytes, long decodedBytes, long timeToFirstByteNanos, long totalNanos) {
+        this.transferCount.incrementAndGet();
+        this.wireBytes.addAndGet(wireBytes);
+        this.decodedBytes.addAndGet(decodedBytes);
+        this.timeToFirstByteNanos.addAndGet(timeToFirstByteNanos);
+        this.transferNanos.addAndGet(totalNanos);
+    }
+
+    private static HttpHost getHost(String url) {
+        try {
+            return URIUtils.extractHost(new URI(url));
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    public long getRequestCount() { return requestCount.get(); }
+
+    public long getAuthenticatedRequestCount() { return authenticatedRequestCount.get(); }
+
+    public long getChallengeCount() { return challengeCount.get(); }
+
+    /**
+     * Without preemptive authentication every authenticated request would first be challenged by the server,
+     * so each authenticated request that was not challenged is a round trip saved.
+     * @return the number of challenge round trips that have been avoided.
+     */
+    public long getChallengesAvoided() { return Math.max(0, authenticatedRequestCount.get() - challengeCount.get()); }
+
+    public long getWireBytes() { return wireBytes.get(); }
+
+    public long getDecodedBytes() { return decodedBytes.get(); }
+
+    /**
+     * @return the total time (in milliseconds) spent waiting for responses to start arriving.
+     */
+    public long getTimeToFirstByteMillis() { return TimeUnit.NANOSECONDS.toMillis(timeToFirstByteNanos.get()); }
+
+    /**
+     * @return the total time (in milliseconds) between sending requests and finishing with their responses.
+     */
+    public long getTransferMillis() { return TimeUnit.NANOSECONDS.toMillis(transferNanos.get()); }
+
+    @Override
+    public String toString() {
+        long transfers = transferCount.get();
+        return MessageFormat.format("requests: {0}, authenticated: {1}, challenges received: {2}, challenge round trips avoided: {3}, " +
+                        "bytes on wire: {4}, bytes decoded: {5}, time to first byte: {6}ms (avg {7}ms), total transfer time: {8}ms",
+                getRequestCount(), getAuthenticatedRequestCount(), getChallengeCount(), getChallengesAvoided(),
+                getWireBytes(), getDecodedBytes(), getTimeToFirstByteMillis(), transfers == 0 ? 0 : getTimeToFirstByteMillis() / transfers, getTransferMillis());
+    }
+}
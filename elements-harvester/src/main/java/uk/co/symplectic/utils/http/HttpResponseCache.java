@@ -0,0 +1,251 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils.http;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, on disk cache of http response bodies keyed by url, intended for small resources that rarely change.
+ *
+ * Each entry records the validators (ETag / Last-Modified) the server sent with the response so that the next request
+ * for that url can be made conditional - if the server answers "304 Not Modified" the cached body is used instead of
+ * downloading it again. If the server sent no validators the cached body is used as is until it is older than the
+ * configured time to live (a ttl of 0 means such entries are always re-fetched).
+ *
+ * Each entry is held as two files in the cache directory, named after a hash of the url: the body and a properties
+ * file describing it. The properties file is written last, and both are written via a temporary file, so an entry is
+ * either complete or absent.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HttpResponseCache {
+
+    /**
+     * SLF4J Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    private static final String propUrl = "url";
+    private static final String propETag = "etag";
+    private static final String propLastModified = "last-modified";
+    private static final String propStoredAt = "stored-at";
+
+    /**
+     * A cached response.
+     */
+    public static class Entry {
+        private final String url;
+        private final String eTag;
+        private final String lastModified;
+        private final long storedAt;
+        private final byte[] body;
+
+        private Entry(String url, String eTag, String lastModified, long storedAt, byte[] body) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.body = body;
+        }
+
+        public String getUrl() { return url; }
+
+        public String getETag() { return eTag; }
+
+        public String getLastModified() { return lastModified; }
+
+        public long getStoredAt() { return storedAt; }
+
+        public boolean hasValidators() { return eTag != null || lastModified != null; }
+
+        public InputStream getBodyStream() { return new ByteArrayInputStream(body); }
+
+        public int getBodyLength() { return body.length; }
+    }
+
+    private final File cacheDir;
+    private final long ttlMillis;
+
+    private final AtomicLong freshHits = new AtomicLong(0);
+    private final AtomicLong revalidatedHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param cacheDir the directory in which to hold the cache (created if necessary).
+     * @param ttlMillis how long a response without validators can be used for without being re-fetched.
+     */
+    public HttpResponseCache(File cacheDir, long ttlMillis) {
+        if (cacheDir == null) throw new NullArgumentException("cacheDir");
+        if (ttlMillis < 0) throw new IllegalArgumentException("ttlMillis must not be negative");
+        this.cacheDir = cacheDir;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param url the url.
+     * @return the cached response for the url, or null if there is no (readable) cached response.
+     */
+    public Entry get(String url) {
+        if (url == null) throw new NullArgumentException("url");
+        File propertiesFile = getPropertiesFile(url);
+        File bodyFile = getBodyFile(url);
+        if (!propertiesFile.exists() || !bodyFile.exists()) return null;
+
+        InputStream propertiesStream = null;
+        try {
+            Properties properties = new Properties();
+            propertiesStream = new FileInputStream(propertiesFile);
+            properties.load(propertiesStream);
+            //guard against (very unlikely) hash collisions.
+            if (!url.equals(properties.getProperty(propUrl))) return null;
+            return new Entry(url, properties.getProperty(propETag), properties.getProperty(propLastModified),
+                    Long.parseLong(properties.getProperty(propStoredAt)), FileUtils.readFileToByteArray(bodyFile));
+        } catch (IOException e) {
+            log.warn(MessageFormat.format("Unable to read cached response for {0} - it will be fetched again", url), e);
+        } catch (NumberFormatException e) {
+            log.warn(MessageFormat.format("Cached response for {0} is corrupt - it will be fetched again", url), e);
+        } finally {
+            if (propertiesStream != null) {
+                try {
+                    propertiesStream.close();
+                } catch (IOException e) {
+                    log.warn("Error closing cached response properties", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param entry a cached response.
+     * @return true if the entry can be used without asking the server (i.e. it has no validators and is within its ttl).
+     */
+    public boolean isFresh(Entry entry) {
+        return !entry.hasValidators() && System.currentTimeMillis() - entry.getStoredAt() < ttlMillis;
+    }
+
+    /**
+     * Record that a cached response was used without contacting the server.
+     */
+    public void recordFreshHit(Entry entry) {
+        freshHits.incrementAndGet();
+        log.debug(MessageFormat.format("Using cached response for {0}", entry.getUrl()));
+    }
+
+    /**
+     * Record that the server confirmed (304) that a cached response is still current.
+     * @return the entry, with its stored time moved on to now.
+     */
+    public Entry revalidated(Entry entry) {
+        revalidatedHits.incrementAndGet();
+        log.debug(MessageFormat.format("Cached response for {0} is still current", entry.getUrl()));
+        Entry refreshed = new Entry(entry.url, entry.eTag, entry.lastModified, System.currentTimeMillis(), entry.body);
+        writeProperties(refreshed);
+        return refreshed;
+    }
+
+    /**
+     * Store a (new) response in the cache.
+     * @param url the url requested.
+     * @param eTag the ETag header sent with the response (can be null).
+     * @param lastModified the Last-Modified header sent with the response (can be null).
+     * @param body the body of the response.
+     * @return the new cache entry - returned even if it could not be written to disk.
+     */
+    public Entry put(String url, String eTag, String lastModified, byte[] body) {
+        if (url == null) throw new NullArgumentException("url");
+        if (body == null) throw new NullArgumentException("body");
+        misses.incrementAndGet();
+        Entry entry = new Entry(url, eTag, lastModified, System.currentTimeMillis(), body);
+        try {
+            //the old description must not survive against the new body if writing fails part way through.
+            FileUtils.deleteQuietly(getPropertiesFile(url));
+            writeAtomically(getBodyFile(url), body);
+            writeProperties(entry);
+        } catch (IOException e) {
+            log.warn(MessageFormat.format("Unable to cache response for {0}", url), e);
+        }
+        return entry;
+    }
+
+    /**
+     * Remove any cached response for a url (e.g. if it could not be processed).
+     */
+    public void remove(String url) {
+        if (url == null) throw new NullArgumentException("url");
+        //remove the properties first so a half removed entry is never considered valid.
+        FileUtils.deleteQuietly(getPropertiesFile(url));
+        FileUtils.deleteQuietly(getBodyFile(url));
+    }
+
+    public long getFreshHits() { return freshHits.get(); }
+
+    public long getRevalidatedHits() { return revalidatedHits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("used without revalidation: {0}, revalidated (not modified): {1}, fetched: {2}",
+                getFreshHits(), getRevalidatedHits(), getMisses());
+    }
+
+    private void writeProperties(Entry entry) {
+        Properties properties = new Properties();
+        properties.setProperty(propUrl, entry.url);
+        if (entry.eTag != null) properties.setProperty(propETag, entry.eTag);
+        if (entry.lastModified != null) properties.setProperty(propLastModified, entry.lastModified);
+        properties.setProperty(propStoredAt, Long.toString(entry.storedAt));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            properties.store(bytes, null);
+            writeAtomically(getPropertiesFile(entry.url), bytes.toByteArray());
+        } catch (IOException e) {
+            log.warn(MessageFormat.format("Unable to cache response for {0}", entry.url), e);
+        }
+    }
+
+    private synchronized void writeAtomically(File file, byte[] data) throws IOException {
+        if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.exists())
+            throw new IOException(MessageFormat.format("Unable to create cache directory {0}", cacheDir.getAbsolutePath()));
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        FileUtils.writeByteArrayToFile(tempFile, data);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File getBodyFile(String url) { return new File(cacheDir, getKey(url) + ".body"); }
+
+    private File getPropertiesFile(String url) { return new File(cacheDir, getKey(url) + ".properties"); }
+
+    private static String getKey(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("utf-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest) key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free "token bucket" rate limiter used to ensure requests are not sent too frequently to a server.
+ *
+ * The limiter is configured in requests per second along with a "burst" size (the number of requests that can be sent
+ * back to back after a quiet period). It is implemented as a generic cell rate algorithm, which is equivalent to a
+ * token bucket but only needs a single atomic "theoretical arrival time", so callers reserve their slot with a CAS and
+ * then sleep (if needed) without holding any lock.
+ *
+ * The rate is adaptive: if the server indicates it is overloaded (backOff) the current rate is halved and all requests
+ * are paused until any Retry-After period has elapsed, the rate then recovers gradually (recordSuccess) back up to the
+ * configured maximum.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RequestRateLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestRateLimiter.class);
+
+    private static final double nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+
+    //how far the rate can be reduced by backOff (as a fraction of the configured maximum)
+    private static final double minimumRateFraction = 0.05;
+    //how much each successful request restores the rate by (as a fraction of the configured maximum)
+    private static final double recoveryRateFraction = 0.01;
+
+    //rates are stored as the raw bits of a double so they can be updated atomically - a rate <= 0 means unlimited.
+    private final AtomicLong maxRate = new AtomicLong();
+    private final AtomicLong currentRate = new AtomicLong();
+    private volatile int burst = 1;
+
+    //the (System.nanoTime) time at which the bucket would next be completely full.
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    //the (System.nanoTime) time until which all requests are paused (e.g. because of a Retry-After header).
+    private final AtomicLong pausedUntil = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor
+     * @param requestsPerSecond the maximum sustained rate of requests, 0 or less means unlimited.
+     * @param burst how many requests can be made back to back (minimum of 1).
+     */
+    public RequestRateLimiter(double requestsPerSecond, int burst) {
+        setRate(requestsPerSecond);
+        setBurst(burst);
+    }
+
+    /**
+     * Set the maximum sustained rate of requests (also resets any adaptive reduction of the current rate)
+     * @param requestsPerSecond the rate, 0 or less means unlimited.
+     */
+    public void setRate(double requestsPerSecond) {
+        double rate = requestsPerSecond > 0 ? requestsPerSecond : 0;
+        maxRate.set(Double.doubleToLongBits(rate));
+        currentRate.set(Double.doubleToLongBits(rate));
+    }
+
+    /**
+     * Set how many requests can be made back to back after a quiet period.
+     * @param burst the burst size (values below 1 are treated as 1).
+     */
+    public void setBurst(int burst) {
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * @return the configured maximum rate in requests per second (0 if unlimited).
+     */
+    public double getMaxRate() { return Double.longBitsToDouble(maxRate.get()); }
+
+    /**
+     * @return the rate (in requests per second) currently being allowed, this will be lower than the maximum
+     * if the server has recently asked us to back off (0 if unlimited).
+     */
+    public double getCurrentRate() { return Double.longBitsToDouble(currentRate.get()); }
+
+    public int getBurst() { return burst; }
+
+    /**
+     * Blocks the calling thread until it is allowed to make a request.
+     */
+    public void acquire() {
+        try {
+            //honour any pause requested by the server first.
+            long pauseNanos = pausedUntil.get() - System.nanoTime();
+            if (pauseNanos > 0) TimeUnit.NANOSECONDS.sleep(pauseNanos);
+
+            double rate = getCurrentRate();
+            if (rate <= 0) return;
+
+            long interval = (long) (nanosPerSecond / rate);
+            long tolerance = interval * (burst - 1);
+            long now, tat, newTat;
+            do {
+                now = System.nanoTime();
+                tat = theoreticalArrivalTime.get();
+                newTat = Math.max(tat, now) + interval;
+            } while (!theoreticalArrivalTime.compareAndSet(tat, newTat));
+
+            long waitNanos = Math.max(tat, now) - tolerance - now;
+            if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        catch (InterruptedException e) {
+            //preserve the interrupt for the caller to deal with
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Call to indicate the server has asked us to slow down (e.g. a 429 or 503 response).
+     * Halves the current rate (down to a floor) and pauses all requests for the retryAfter period if one is provided.
+     * @param retryAfterMillis how long the server asked us to wait (in milliseconds), -1 if not specified.
+     */
+    public void backOff(long retryAfterMillis) {
+        if (retryAfterMillis > 0) {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+            long current;
+            do {
+                current = pausedUntil.get();
+                if (current - until >= 0) break;
+            } while (!pausedUntil.compareAndSet(current, until));
+        }
+
+        double max = getMaxRate();
+        if (max <= 0) return;
+        double floor = max * minimumRateFraction;
+        long currentBits, newBits;
+        double newRate;
+        do {
+            currentBits = currentRate.get();
+            newRate = Math.max(floor, Double.longBitsToDouble(currentBits) / 2);
+            newBits = Double.doubleToLongBits(newRate);
+        } while (!currentRate.compareAndSet(currentBits, newBits));
+        log.warn(MessageFormat.format("Server requested back off (retry after {0} ms) - request rate reduced to {1} per second", retryAfterMillis, newRate));
+    }
+
+    /**
+     * Call to indicate a request succeeded, gradually restores the current rate back towards the configured maximum.
+     */
+    public void recordSuccess() {
+        double max = getMaxRate();
+        if (max <= 0) return;
+        long currentBits, newBits;
+        do {
+            currentBits = currentRate.get();
+            double rate = Double.longBitsToDouble(currentBits);
+            if (rate >= max) return;
+            newBits = Double.doubleToLongBits(Math.min(max, rate + max * recoveryRateFraction));
+        } while (!currentRate.compareAndSet(currentBits, newBits));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.http;
+
+import java.util.Random;
+
+/**
+ * Small immutable class to calculate how long to wait before retrying a failed request.
+ * Uses exponential backoff (doubling from the base delay up to the max delay) with "equal jitter", i.e. the delay is
+ * somewhere between half and all of the exponential value, so that concurrent clients that fail at the same time
+ * do not all retry at the same moment.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RetryBackoff {
+    private static final Random random = new Random();
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryBackoff(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 1) throw new IllegalArgumentException("baseDelayMillis must be positive");
+        if (maxDelayMillis < baseDelayMillis) throw new IllegalArgumentException("maxDelayMillis must not be less than baseDelayMillis");
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param attempt which retry this is (1 for the first retry)
+     * @return how long to wait (in milliseconds) before making the retry.
+     */
+    public long getDelayMillis(int attempt) {
+        //cap the shift so that we can never overflow.
+        int shift = Math.min(Math.max(attempt - 1, 0), 30);
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        long half = cap / 2;
+        return half + (long) (random.nextDouble() * (cap - half));
+    }
+
+    /**
+     * @param attempt which retry this is (1 for the first retry)
+     * @param retryAfterMillis the delay requested by the server (e.g. from a Retry-After header), -1 if none.
+     * @return how long to wait (in milliseconds) before making the retry - never less than the server requested.
+     */
+    public long getDelayMillis(int attempt, long retryAfterMillis) {
+        return Math.max(getDelayMillis(attempt), retryAfterMillis);
+    }
+}
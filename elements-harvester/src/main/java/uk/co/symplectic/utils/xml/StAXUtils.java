@@ -11,19 +11,97 @@
 
 package uk.co.symplectic.utils.xml;
 
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Class to simplify use of StAX Factories in the application by wrapping them as thread safe singletons
+ *
+ * The XMLInputFactory implementation can be chosen explicitly (e.g. Woodstox or Aalto) by class name, otherwise the
+ * standard StAX discovery mechanism is used. Either way any "fast path" properties the implementation supports are
+ * turned on.
  */
 
 public final class StAXUtils {
+    private static final Logger log = LoggerFactory.getLogger(StAXUtils.class);
+
     private static XMLEventFactory xmlEventFactory = null;
     private static XMLInputFactory xmlInputFactory = null;
     private static XMLOutputFactory xmlOutputFactory = null;
 
+    //class name of the XMLInputFactory implementation to use - null means use standard StAX discovery.
+    private static String xmlInputFactoryClassName = null;
+
+    //Properties (defined by Stax2, and so shared by Woodstox and Aalto, or specific to Woodstox) that speed up parsing
+    //without changing what is reported - they are only set if the implementation in use says it supports them.
+    private static final Map<String, Object> fastPathProperties = new LinkedHashMap<String, Object>();
+    static {
+        //intern element/attribute names and namespace uris so that name comparisons are mostly reference checks.
+        fastPathProperties.put("org.codehaus.stax2.internNames", Boolean.TRUE);
+        fastPathProperties.put("org.codehaus.stax2.internNsUris", Boolean.TRUE);
+        //don't track the location of every event (only used in error messages).
+        fastPathProperties.put("org.codehaus.stax2.preserveLocation", Boolean.FALSE);
+        //only parse text content if it is actually asked for.
+        fastPathProperties.put("com.ctc.wstx.lazyParsing", Boolean.TRUE);
+    }
+
+    /**
+     * Choose the XMLInputFactory implementation to be used by getXMLInputFactory.
+     * Should be called before any parsing takes place.
+     * @param className the class name of the implementation (e.g. com.ctc.wstx.stax.WstxInputFactory or
+     *                  com.fasterxml.aalto.stax.InputFactoryImpl), null or empty to use standard StAX discovery.
+     * @throws IllegalArgumentException if the class cannot be instantiated as an XMLInputFactory.
+     */
+    public static void setXMLInputFactoryClass(String className) {
+        String trimmedClassName = StringUtils.trimToNull(className);
+        //fail fast if the class is not usable
+        XMLInputFactory factory = createXMLInputFactory(trimmedClassName);
+        synchronized (StAXUtils.class) {
+            xmlInputFactoryClassName = trimmedClassName;
+            xmlInputFactory = factory;
+        }
+        log.info(MessageFormat.format("Using XMLInputFactory : {0}", factory.getClass().getName()));
+    }
+
+    /**
+     * Create a new XMLInputFactory with all supported fast path properties turned on.
+     * @param className the class name of the implementation to create, null to use standard StAX discovery.
+     * @return the new factory
+     * @throws IllegalArgumentException if the class cannot be instantiated as an XMLInputFactory.
+     */
+    public static XMLInputFactory createXMLInputFactory(String className) {
+        XMLInputFactory factory;
+        if (className == null) {
+            factory = XMLInputFactory.newFactory();
+        } else {
+            try {
+                factory = Class.forName(className).asSubclass(XMLInputFactory.class).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(MessageFormat.format("XMLInputFactory class {0} could not be found or instantiated", className), e);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(MessageFormat.format("Class {0} is not an XMLInputFactory", className), e);
+            }
+        }
+        for (Map.Entry<String, Object> property : fastPathProperties.entrySet()) {
+            if (factory.isPropertySupported(property.getKey())) {
+                try {
+                    factory.setProperty(property.getKey(), property.getValue());
+                } catch (IllegalArgumentException e) {
+                    log.debug(MessageFormat.format("XMLInputFactory {0} rejected property {1}", factory.getClass().getName(), property.getKey()), e);
+                }
+            }
+        }
+        return factory;
+    }
+
 
     public static XMLEventFactory getXMLEventFactory() {
         if (xmlEventFactory == null) {
@@ -40,7 +118,7 @@ public final class StAXUtils {
         if (xmlInputFactory == null) {
             synchronized (StAXUtils.class) {
                 if (xmlInputFactory == null) {
-                    xmlInputFactory = XMLInputFactory.newFactory();
+                    xmlInputFactory = createXMLInputFactory(xmlInputFactoryClassName);
                 }
             }
         }
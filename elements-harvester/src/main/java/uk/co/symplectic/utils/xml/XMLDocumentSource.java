@@ -0,0 +1,128 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils.xml;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import java.text.MessageFormat;
+
+/**
+ * The raw (UTF-8 encoded) bytes of an XML document that is being processed from an XMLStreamReader.
+ *
+ * Made available to EventFilters (see XMLEventProcessor.WrappedXmlEvent.getSource) so that they can copy sections of
+ * the original document verbatim, rather than re-serialising the events that were parsed from it.
+ * StAX reports locations as character offsets, so this class maps those onto byte offsets by walking the UTF-8 data.
+ * Offsets are almost always asked for in document order, so the walk resumes from the last offset mapped.
+ * Not thread safe - an instance should only be used by the processor it was given to.
+ */
+@SuppressWarnings("WeakerAccess")
+public class XMLDocumentSource {
+
+    private final byte[] data;
+    private final int length;
+    private final int startOffset;
+
+    //the last character offset that was mapped and the byte offset it mapped to.
+    private int charCursor = 0;
+    private int byteCursor;
+
+    /**
+     * @param data buffer holding the UTF-8 encoded document (it must not be modified while this source is in use).
+     * @param length how many bytes of the buffer hold the document.
+     */
+    public XMLDocumentSource(byte[] data, int length) {
+        if (data == null) throw new NullArgumentException("data");
+        if (length < 0 || length > data.length) throw new IllegalArgumentException("length must be within the bounds of data");
+        this.data = data;
+        this.length = length;
+        //a byte order mark is not reported as part of the document.
+        boolean hasBom = length >= 3 && (data[0] & 0xff) == 0xef && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf;
+        this.startOffset = hasBom ? 3 : 0;
+        this.byteCursor = startOffset;
+    }
+
+    public int getLength() { return length; }
+
+    /**
+     * @param charOffset a character offset reported by the parser (e.g. Location.getCharacterOffset).
+     * @return the offset of the byte at which that character starts.
+     */
+    public int getByteOffset(int charOffset) {
+        if (charOffset < 0) throw new IllegalArgumentException("charOffset must not be negative");
+        if (charOffset < charCursor) {
+            charCursor = 0;
+            byteCursor = startOffset;
+        }
+        while (charCursor < charOffset) {
+            if (byteCursor >= length) throw new IllegalArgumentException(MessageFormat.format("Character offset {0} is beyond the end of the document", charOffset));
+            int lead = data[byteCursor] & 0xff;
+            if (lead < 0x80) {
+                byteCursor++;
+                charCursor++;
+            } else if (lead < 0xe0) {
+                byteCursor += 2;
+                charCursor++;
+            } else if (lead < 0xf0) {
+                byteCursor += 3;
+                charCursor++;
+            } else {
+                //characters outside the BMP are two (surrogate) chars in java.
+                byteCursor += 4;
+                charCursor += 2;
+            }
+        }
+        return byteCursor;
+    }
+
+    /**
+     * @param byteOffset the offset of the "&lt;" that starts a tag.
+     * @return the offset just after the "&gt;" that ends the tag (ignoring any that appear within quoted attribute values).
+     */
+    public int getTagEnd(int byteOffset) {
+        if (byteOffset < 0 || byteOffset >= length || data[byteOffset] != '<')
+            throw new IllegalArgumentException(MessageFormat.format("There is no tag at byte offset {0}", byteOffset));
+        byte quote = 0;
+        for (int i = byteOffset + 1; i < length; i++) {
+            byte current = data[i];
+            if (quote != 0) {
+                if (current == quote) quote = 0;
+            } else if (current == '"' || current == '\'') {
+                quote = current;
+            } else if (current == '>') {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException(MessageFormat.format("The tag at byte offset {0} is not terminated", byteOffset));
+    }
+
+    /**
+     * @return true if the bytes at the offset are exactly those provided.
+     */
+    public boolean matches(int byteOffset, byte[] expected) {
+        if (byteOffset < 0 || byteOffset + expected.length > length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (data[byteOffset + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy a section of the document, unaltered, into the array provided.
+     * @param target the array to copy into.
+     * @param targetOffset where in the target array to start copying to.
+     * @param start the offset of the first byte to copy.
+     * @param end the offset after the last byte to copy.
+     */
+    public void copyTo(byte[] target, int targetOffset, int start, int end) {
+        if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException(MessageFormat.format("Invalid section {0} to {1}", start, end));
+        System.arraycopy(data, start, target, targetOffset, end - start);
+    }
+}
@@ -15,7 +15,9 @@ import org.apache.commons.lang.NullArgumentException;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.*;
 import java.text.MessageFormat;
 import java.util.*;
@@ -24,15 +26,26 @@ import java.util.*;
  * Processor class for dealing with XMLEventStreams.
  * Filters registered either on construction or using the addFilter method are invoked if the document location specified in the filter is encountered.
  * Filters then receive all events from the stream until that location scope is exited.
+ * A document can be processed from an XMLEventReader or, if none of the filters need access to the raw XMLEvents
+ * (see EventFilter.requiresRawEvents), from a cursor style XMLStreamReader which avoids creating an event object for every token.
+ * When processing from an XMLStreamReader the raw bytes of the document can also be provided (see XMLDocumentSource) so
+ * that filters can copy sections of the document verbatim.
  **/
 public class XMLEventProcessor {
 
     /*
     Storage for filters that will be invoked by this processor when parsing an XML stream.
-    The Hash map linking a given Filter document location (expressed as a QName list) to the set of filters that should be activated if that location is found in the document.
-    This makes it much easier to retrieve the relevant filters when needed.
+    The filters are held in a tree (trie) of document locations - each node represents one location and holds the filters
+    that should be activated if that location is found in the document, along with links to the nodes for the locations
+    directly beneath it. While processing, the node for each open element is found from its parent's node with a single
+    lookup, rather than by rebuilding and hashing the whole path on every event.
      */
-    private HashMap<List<QName>, List<EventFilter>> filters = new HashMap<List<QName>, List<EventFilter>>();
+    private final LocationNode filterTree = new LocationNode();
+
+    //how many of the registered filters need the raw XMLEvents (and so prevent processing from an XMLStreamReader).
+    private int filtersRequiringRawEvents = 0;
+    //how many of the registered filters make use of the raw bytes of the document if they are available.
+    private int filtersUsingDocumentSource = 0;
 
     /*
     Constructor allowing the easy addition of filters to run on this processor
@@ -48,9 +61,14 @@ public class XMLEventProcessor {
      */
     public void addFilter(EventFilter filter) {
         if (filter != null) {
-            List<QName> key = filter.getFilterLocation();
-            if (this.filters.get(key) == null) this.filters.put(key, new ArrayList<EventFilter>());
-            this.filters.get(key).add(filter);
+            LocationNode node = filterTree;
+            for (QName name : filter.getFilterLocation()) {
+                node = node.getOrCreateChild(name);
+            }
+            node.filters.add(filter);
+            if (filter.usesDocumentSource()) node.hasSourceFilters = true;
+            if (filter.requiresRawEvents()) filtersRequiringRawEvents++;
+            if (filter.usesDocumentSource()) filtersUsingDocumentSource++;
         }
     }
 
@@ -63,10 +81,28 @@ public class XMLEventProcessor {
             throw new IllegalStateException("Must enter process with the XMLEventReader currently on a StartElements or StartDocument event");
     }
 
+    /**
+     * @return true if none of the registered filters need access to raw XMLEvents, meaning documents can be processed
+     * from an XMLStreamReader (see process(XMLStreamReader)).
+     */
+    public boolean supportsCursorProcessing() {
+        return filtersRequiringRawEvents == 0;
+    }
+
+    /**
+     * @return true if any of the registered filters can make use of the raw bytes of the document
+     * (see process(XMLStreamReader, XMLDocumentSource)).
+     */
+    public boolean usesDocumentSource() {
+        return filtersUsingDocumentSource > 0;
+    }
+
     /*
     Main processing method - does the work of advancing the stream, tracking scope,
     invoking filters when relevant and handing out events to any filters in scope
     Note : ONLY this method must ever advance the stream - which is why it only ever hands out events and proxies when invoking external events
+    Note : this is the innermost loop of all feed and file parsing, so nothing is allocated per event - the scope tracking
+    arrays, the WrappedXmlEvent and the relative location views are all created once and then re-used.
      */
     public void process(XMLEventReader reader) throws XMLStreamException{
         if (reader != null) {
@@ -77,98 +113,229 @@ public class XMLEventProcessor {
             //Test that incoming reader is in a sensible state to start processing
             checkInitialState(proxy);
 
-            //initialise scope tracking stack
-            Stack<ProcessScope> stack = new Stack<ProcessScope>();
+            //initialise scope tracking
+            ScopeTracker scopes = new ScopeTracker();
+            WrappedXmlEvent wrappedEvent = new WrappedXmlEvent(proxy);
 
             //MAIN LOOP this is the only thing that should ever advance the reader stream.
             while (reader.hasNext()) {
                 XMLEvent event = reader.nextEvent();
-                WrappedXmlEvent wrappedEvent = new WrappedXmlEvent(event, proxy);
-
-                //work out the new scope's document location based on the existing scope stack and the name of the element we just encountered
-                List<QName> currentDocumentLocation = new ArrayList<QName>();
-                for (ProcessScope scope : stack) {
-                    currentDocumentLocation.add(scope.getName());
-                }
+                wrappedEvent.setRawEvent(event);
 
                 //if we have encountered a StartElement we have a new scope
-                if (event.isStartElement()) {
-                    StartElement eventAsStartElement = event.asStartElement();
-                    //get the new scope's name
-                    QName eventQName = eventAsStartElement.getName();
+                if (event.isStartElement()) enterScope(event.asStartElement().getName(), wrappedEvent, scopes);
 
-                    //update the current location
-                    currentDocumentLocation.add(eventQName);
+                dispatchEvent(wrappedEvent, scopes);
 
-                    //retrieve any filters associated with the new scope's document location  and create a ProcessScope object to track the new scope.
-                    ProcessScope newScope = new ProcessScope(eventQName, filters.get(currentDocumentLocation));
+                //if we have encountered an EndElement then we are exiting a scope.
+                if (event.isEndElement()) exitScope(event.asEndElement().getName(), wrappedEvent, scopes);
+            }
+        }
+    }
 
-                    //Inform all the filters activated in our new scope that we are about to start sending them events
-                    for (EventFilter filter : newScope.getFiltersInScope()) {
-                        filter.itemStart(wrappedEvent);
-                    }
+    /*
+    Cursor based equivalent of process(XMLEventReader) - the filters are invoked in exactly the same way, but are handed
+    WrappedXmlEvents that read names, attributes and values from the XMLStreamReader rather than from XMLEvent objects.
+    Can only be used if supportsCursorProcessing is true (i.e. if no filter needs to access the raw XMLEvents).
+    Note : ONLY this method must ever advance the stream. To support value extraction (which needs to look at the token
+    after a StartElement) the StartElement's details are captured and the reader is advanced to the next token BEFORE the
+    StartElement is dispatched to the filters.
+     */
+    public void process(XMLStreamReader reader) throws XMLStreamException{
+        process(reader, null);
+    }
 
-                    //put the ProcessScope object representing our new scope into the tracking stack
-                    stack.push(newScope);
-                }
+    /*
+    As process(XMLStreamReader), but also making the raw bytes of the document being read available to the filters
+    (see WrappedXmlEvent.getSource), along with the character offset of each token and the namespaces in scope.
+    The source must hold exactly the (UTF-8 encoded) document that the reader is reading.
+     */
+    public void process(XMLStreamReader reader, XMLDocumentSource source) throws XMLStreamException{
+        if (reader != null) {
+            if (!supportsCursorProcessing())
+                throw new IllegalStateException("Cannot process an XMLStreamReader as one or more filters require raw XMLEvents");
+            int eventType = reader.getEventType();
+            if (eventType != XMLStreamConstants.START_DOCUMENT && eventType != XMLStreamConstants.START_ELEMENT)
+                throw new IllegalStateException("Must enter process with the XMLStreamReader currently on a StartElements or StartDocument event");
 
-                //for all events work through all the filters in all the currently active scopes and pass them the details of the current event
-                //Note: this will include the "StartElement" from a scope that has only just been activated and the EndElements from a scope that is about to close
-                for (ProcessScope scope : stack) {
-                    for (EventFilter filter : scope.getFiltersInScope()) {
-                        List<QName> relativeLocation = currentDocumentLocation.subList(filter.getFilterLocation().size(), currentDocumentLocation.size());
-                        filter.processEvent(wrappedEvent, relativeLocation);
-                    }
-                }
+            //initialise scope tracking
+            ScopeTracker scopes = new ScopeTracker();
+            CursorXmlEvent cursorEvent = new CursorXmlEvent(source);
 
-                //if we have encountered an EndElement then we are exiting a scope.
-                if (event.isEndElement()) {
-                    EndElement eventAsEndElement = event.asEndElement();
-                    //get the name of the scope that is closing.
-                    QName eventQName = eventAsEndElement.getName();
-
-                    //Get the name of the scope that we thing we are currently in from our scope tracking stack.
-                    ProcessScope currentScope = stack.empty() ? null : stack.peek();
-
-                    //Test that the scope we are exiting in the stream is what we were expecting from our tracking.
-                    //Error out if there is a discrepancy
-                    if (currentScope == null) throw new XMLStreamException("Invalid XML structure detected");
-                    QName expectedName = currentScope.getName();
-                    if (!eventQName.equals(expectedName))
-                        throw new XMLStreamException("Invalid XML structure detected");
-
-                    //Inform all the filters in the scope we are about to exit that we are about to stop sending them events.
-                    for (EventFilter filter : currentScope.getFiltersInScope()) {
-                        filter.itemEnd(wrappedEvent);
+            //MAIN LOOP this is the only thing that should ever advance the reader stream.
+            while (true) {
+                boolean advanced = false;
+                if (eventType == XMLStreamConstants.START_ELEMENT) {
+                    cursorEvent.captureStartElement(reader);
+                    //looking up a location is comparatively expensive, so it is only done for elements that need it.
+                    if (source != null && scopes.opensSourceScope(cursorEvent.getName(), filterTree)) cursorEvent.captureSourceOffset(reader);
+                    if (reader.hasNext()) {
+                        cursorEvent.captureFollowingToken(reader.next(), reader);
+                        advanced = true;
                     }
+                    enterScope(cursorEvent.getName(), cursorEvent, scopes);
+                    dispatchEvent(cursorEvent, scopes);
+                }
+                else {
+                    cursorEvent.captureToken(eventType, reader);
+                    dispatchEvent(cursorEvent, scopes);
+                    if (eventType == XMLStreamConstants.END_ELEMENT) exitScope(cursorEvent.getName(), cursorEvent, scopes);
+                }
 
-                    //remove the current scope from the tracking stack.
-                    stack.pop();
+                if (advanced) {
+                    eventType = reader.getEventType();
+                }
+                else {
+                    if (!reader.hasNext()) break;
+                    eventType = reader.next();
                 }
             }
         }
     }
 
     /*
-        Immutable Helper class to track XML document scopes as we process the file.
-        Each represents the Scope associated with processing an Element of name "name"
-        And any filters that were newly activated at this scope
+    Helper method used by "process" - moves the scope tracking into a newly started element (finding the location node
+    that represents it) and informs all the filters activated in the new scope that we are about to start sending them events.
      */
-    private class ProcessScope {
-        private final QName name;
-        private final List<EventFilter> filtersInScope = new ArrayList<EventFilter>();
-
-        ProcessScope(QName name, List<EventFilter> filters) {
-            this.name = name;
-            if (filters != null) {
-                for (EventFilter filter : filters) {
-                    if (filter != null) this.filtersInScope.add(filter);
-                }
+    private void enterScope(QName name, WrappedXmlEvent wrappedEvent, ScopeTracker scopes) throws XMLStreamException {
+        LocationNode newScope = scopes.push(name, filterTree);
+        if (newScope != null) {
+            List<EventFilter> filtersInScope = newScope.filters;
+            for (int i = 0; i < filtersInScope.size(); i++) {
+                filtersInScope.get(i).itemStart(wrappedEvent);
             }
         }
+    }
 
-        QName getName() { return name; }
-        List<EventFilter> getFiltersInScope() { return filtersInScope; }
+    /*
+    Helper method used by "process" - works through all the filters in all the currently active scopes and passes them the details of the current event
+    Note: this will include the "StartElement" from a scope that has only just been activated and the EndElements from a scope that is about to close
+    Note: the location node for any scope below one that had no node is also null - so we can stop at the first one.
+     */
+    private void dispatchEvent(WrappedXmlEvent wrappedEvent, ScopeTracker scopes) throws XMLStreamException {
+        for (int depth = 1; depth <= scopes.depth; depth++) {
+            LocationNode scope = scopes.nodes[depth - 1];
+            if (scope == null) break;
+            List<EventFilter> filtersInScope = scope.filters;
+            if (filtersInScope.isEmpty()) continue;
+            List<QName> relativeLocation = scopes.getLocationBelow(depth);
+            for (int i = 0; i < filtersInScope.size(); i++) {
+                filtersInScope.get(i).processEvent(wrappedEvent, relativeLocation);
+            }
+        }
+    }
+
+    /*
+    Helper method used by "process" - checks that the element being closed is the one our tracking expects (erroring out if not),
+    informs all the filters in the scope we are about to exit that we are about to stop sending them events and then
+    removes the scope from the tracking.
+     */
+    private void exitScope(QName name, WrappedXmlEvent wrappedEvent, ScopeTracker scopes) throws XMLStreamException {
+        if (scopes.depth == 0) throw new XMLStreamException("Invalid XML structure detected");
+        QName expectedName = scopes.names[scopes.depth - 1];
+        if (!name.equals(expectedName))
+            throw new XMLStreamException("Invalid XML structure detected");
+
+        LocationNode currentScope = scopes.nodes[scopes.depth - 1];
+        if (currentScope != null) {
+            List<EventFilter> filtersInScope = currentScope.filters;
+            for (int i = 0; i < filtersInScope.size(); i++) {
+                filtersInScope.get(i).itemEnd(wrappedEvent);
+            }
+        }
+        scopes.pop();
+    }
+
+    /*
+        Helper class representing one document location in the tree of filter locations.
+        Holds the filters that are activated at this location and the nodes for the locations directly beneath it.
+     */
+    private static class LocationNode {
+        private final Map<QName, LocationNode> children = new HashMap<QName, LocationNode>();
+        private final List<EventFilter> filters = new ArrayList<EventFilter>();
+        //whether any of the filters use the document source (see EventFilter.usesDocumentSource).
+        private boolean hasSourceFilters = false;
+
+        LocationNode getOrCreateChild(QName name) {
+            LocationNode child = children.get(name);
+            if (child == null) {
+                child = new LocationNode();
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+
+    /*
+        Helper class to track XML document scopes as we process the file.
+        Holds the names of the currently open elements, and the LocationNode for each of them (null if no filter is
+        interested in that location or anywhere beneath it), in arrays indexed by depth that grow as needed.
+     */
+    private static class ScopeTracker {
+        private QName[] names = new QName[16];
+        private LocationNode[] nodes = new LocationNode[16];
+        private RelativeLocation[] relativeLocations = new RelativeLocation[16];
+        private int depth = 0;
+
+        LocationNode push(QName name, LocationNode root) {
+            if (depth == names.length) {
+                names = Arrays.copyOf(names, depth * 2);
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                relativeLocations = Arrays.copyOf(relativeLocations, depth * 2);
+            }
+            LocationNode parent = depth == 0 ? root : nodes[depth - 1];
+            LocationNode node = parent == null ? null : parent.children.get(name);
+            names[depth] = name;
+            nodes[depth] = node;
+            depth++;
+            return node;
+        }
+
+        //whether the element about to be pushed would activate any filters that use the document source.
+        boolean opensSourceScope(QName name, LocationNode root) {
+            LocationNode parent = depth == 0 ? root : nodes[depth - 1];
+            LocationNode node = parent == null ? null : parent.children.get(name);
+            return node != null && node.hasSourceFilters;
+        }
+
+        void pop() {
+            depth--;
+            names[depth] = null;
+            nodes[depth] = null;
+        }
+
+        //the current document location relative to the scope at the given depth (i.e. the names of the elements below it).
+        List<QName> getLocationBelow(int scopeDepth) {
+            RelativeLocation location = relativeLocations[scopeDepth - 1];
+            if (location == null) {
+                location = new RelativeLocation(this, scopeDepth);
+                relativeLocations[scopeDepth - 1] = location;
+            }
+            return location;
+        }
+    }
+
+    /*
+        Read only, live, view of the current document location below a given depth.
+        One is created per depth and re-used for every event, so it is only valid during the call it is passed to.
+     */
+    private static class RelativeLocation extends AbstractList<QName> implements RandomAccess {
+        private final ScopeTracker scopes;
+        private final int offset;
+
+        RelativeLocation(ScopeTracker scopes, int offset) {
+            this.scopes = scopes;
+            this.offset = offset;
+        }
+
+        @Override
+        public QName get(int index) {
+            if (index < 0 || index >= size()) throw new IndexOutOfBoundsException(Integer.toString(index));
+            return scopes.names[offset + index];
+        }
+
+        @Override
+        public int size() { return scopes.depth - offset; }
     }
 
     /**
@@ -177,25 +344,75 @@ public class XMLEventProcessor {
      *
      * The XMLEventProcessor only ever passes WrappedXmlEvent objects out (e.g. to EventFilters, etc), so you can rely on
      * having one of these if you are using this framework to parse XML.
+     * Note: the processor re-uses a single WrappedXmlEvent for every event in a stream, so one must not be held on to
+     * beyond the call it was passed to (hold on to the raw event instead if necessary).
+     * Note: when a document is being processed from an XMLStreamReader there are no raw events - getRawEvent will throw.
      */
     @SuppressWarnings({"WeakerAccess", "unused"})
     public static class WrappedXmlEvent{
-        private final XMLEvent innerEvent;
+        private XMLEvent innerEvent = null;
         private final ReaderProxy reader;
 
         //package access as should only be created by these processes..
         WrappedXmlEvent(XMLEvent event, ReaderProxy reader){
-            if(event == null) throw new NullArgumentException("event");
+            this(reader);
+            setRawEvent(event);
+        }
+
+        WrappedXmlEvent(ReaderProxy reader){
             if(reader == null) throw new NullArgumentException("reader");
-            this.innerEvent = event;
             this.reader = reader;
         }
 
+        //for subclasses that do not wrap XMLEvents (see CursorXmlEvent).
+        private WrappedXmlEvent(){
+            this.reader = null;
+        }
+
+        void setRawEvent(XMLEvent event){
+            if(event == null) throw new NullArgumentException("event");
+            this.innerEvent = event;
+        }
+
         public XMLEvent getRawEvent(){ return innerEvent; }
+
+        /**
+         * @return the raw bytes of the document being processed, or null if they were not provided to the processor.
+         */
+        public XMLDocumentSource getSource(){ return null; }
+
+        /**
+         * @return the character offset in the document at which the current event starts (for an empty element, the
+         * start and end elements both report the offset of the tag) - only available if getSource is not null, and
+         * for a start element only if it starts an item for a filter that uses the document source (-1 otherwise).
+         */
+        public int getSourceOffset(){ return -1; }
+
+        /**
+         * @return the namespace bindings (prefix to uri, "" for the default namespace) inherited from the ancestors of the
+         * current element (i.e. not including any declared on the element itself) - only available if getSource is not null.
+         */
+        public Map<String, String> getInheritedNamespaces(){ return null; }
+
         private XMLEvent getNextEvent() throws XMLStreamException { return reader.peek(); }
 
+        //the underlying accessors - overridden when not wrapping XMLEvents.
+        int getEventType(){ return innerEvent.getEventType(); }
+
+        //the value of the named attribute of the current start element (null if it does not have one).
+        String getAttributeValue(QName name){
+            Attribute att = innerEvent.asStartElement().getAttributeByName(name);
+            return att == null ? null : att.getValue();
+        }
+
+        //the text immediately following the current start element (null if the next event is not character data).
+        String getFollowingText() throws XMLStreamException {
+            XMLEvent nextEvent = getNextEvent();
+            return nextEvent != null && nextEvent.isCharacters() ? nextEvent.asCharacters().getData() : null;
+        }
+
         public boolean isRelevantForExtraction(){
-            return innerEvent.isStartElement();
+            return getEventType() == XMLStreamConstants.START_ELEMENT;
         }
 
         //if the wrapped event is a start or end Element we respond with the name, otherwise we respond with null
@@ -207,8 +424,7 @@ public class XMLEventProcessor {
 
         public boolean hasAttribute(QName name){
             if(isRelevantForExtraction()){
-                Attribute att = innerEvent.asStartElement().getAttributeByName(name);
-                return att != null;
+                return getAttributeValue(name) != null;
             }
             return false;
         }
@@ -219,8 +435,8 @@ public class XMLEventProcessor {
 
         private  String innerGetAttribute(QName name, boolean required){
             if(isRelevantForExtraction()){
-                Attribute att = innerEvent.asStartElement().getAttributeByName(name);
-                if(att != null) return att.getValue();
+                String value = getAttributeValue(name);
+                if(value != null) return value;
                 if(required) throw new IllegalStateException(MessageFormat.format("Missing attribute ({0}) attempting extraction at [{1}]", name.toString(), getName().toString()));
                 return null;
             }
@@ -247,10 +463,7 @@ public class XMLEventProcessor {
         //this works for all our use cases though...
         public boolean hasValue() throws XMLStreamException{
             if(isRelevantForExtraction()){
-                XMLEvent nextEvent = getNextEvent();
-                if (nextEvent != null && nextEvent.isCharacters()){
-                    return true;
-                }
+                return getFollowingText() != null;
             }
             return false;
         }
@@ -259,10 +472,8 @@ public class XMLEventProcessor {
         //this works for all our use cases though...
         private String innerGetValue(boolean required) throws XMLStreamException{
             if(isRelevantForExtraction()){
-                XMLEvent nextEvent = getNextEvent();
-                if (nextEvent != null && nextEvent.isCharacters()){
-                    return nextEvent.asCharacters().getData();
-                }
+                String value = getFollowingText();
+                if (value != null) return value;
                 if(required) throw new IllegalStateException(MessageFormat.format("Missing value attempting extraction at [{0}]", getName().toString()));
                 return null;
             }
@@ -278,7 +489,7 @@ public class XMLEventProcessor {
 
         //helper method to expose underlying event type as a string... for logging/exceptions
         private String getEventTypeString() {
-            int eventType = getRawEvent().getEventType();
+            int eventType = getEventType();
             switch (eventType) {
                 case XMLEvent.START_ELEMENT: return "START_ELEMENT";
                 case XMLEvent.END_ELEMENT: return "END_ELEMENT";
@@ -298,6 +509,157 @@ public class XMLEventProcessor {
 
     }
 
+    /*
+    WrappedXmlEvent used when processing from an XMLStreamReader.
+    Holds a copy of the details of the current token (the name and attributes of a start element are captured before the
+    reader moves on, along with the text that follows it) in arrays that are re-used for every token.
+    If the document source has been provided it also tracks the namespace declarations of the open elements (as a stack
+    of prefix/uri pairs, with the size of the stack recorded as each element is opened) and can report the offset of
+    each token. Other than for start elements (where the reader has moved on before they are dispatched) the offset is
+    only looked up if it is asked for.
+     */
+    private static class CursorXmlEvent extends WrappedXmlEvent {
+        private final XMLDocumentSource source;
+        private XMLStreamReader reader = null;
+        private int sourceOffset = -1;
+        private String[] namespacePrefixes = null;
+        private String[] namespaceUris = null;
+        private int namespaceCount = 0;
+        private int[] namespaceCountAtDepth = null;
+        private int depth = 0;
+        private boolean elementClosed = false;
+
+        private int eventType = XMLStreamConstants.START_DOCUMENT;
+        private QName name = null;
+        private String followingText = null;
+        private int attributeCount = 0;
+        private String[] attributeNamespaces = new String[8];
+        private String[] attributeLocalNames = new String[8];
+        private String[] attributeValues = new String[8];
+
+        CursorXmlEvent(XMLDocumentSource source) {
+            this.source = source;
+            if (source != null) {
+                namespacePrefixes = new String[8];
+                namespaceUris = new String[8];
+                namespaceCountAtDepth = new int[16];
+            }
+        }
+
+        void captureStartElement(XMLStreamReader reader) {
+            if (source != null) {
+                trackToken(reader);
+                //the declarations on this element are only in scope within it.
+                if (depth == namespaceCountAtDepth.length) namespaceCountAtDepth = Arrays.copyOf(namespaceCountAtDepth, depth * 2);
+                namespaceCountAtDepth[depth++] = namespaceCount;
+                int declared = reader.getNamespaceCount();
+                if (namespaceCount + declared > namespaceUris.length) {
+                    namespacePrefixes = Arrays.copyOf(namespacePrefixes, (namespaceCount + declared) * 2);
+                    namespaceUris = Arrays.copyOf(namespaceUris, (namespaceCount + declared) * 2);
+                }
+                for (int i = 0; i < declared; i++) {
+                    String prefix = reader.getNamespacePrefix(i);
+                    String uri = reader.getNamespaceURI(i);
+                    namespacePrefixes[namespaceCount] = prefix == null ? "" : prefix;
+                    namespaceUris[namespaceCount++] = uri == null ? "" : uri;
+                }
+            }
+            eventType = XMLStreamConstants.START_ELEMENT;
+            name = reader.getName();
+            followingText = null;
+            attributeCount = reader.getAttributeCount();
+            if (attributeCount > attributeValues.length) {
+                attributeNamespaces = new String[attributeCount];
+                attributeLocalNames = new String[attributeCount];
+                attributeValues = new String[attributeCount];
+            }
+            for (int i = 0; i < attributeCount; i++) {
+                attributeNamespaces[i] = reader.getAttributeNamespace(i);
+                attributeLocalNames[i] = reader.getAttributeLocalName(i);
+                attributeValues[i] = reader.getAttributeValue(i);
+            }
+        }
+
+        void captureFollowingToken(int tokenType, XMLStreamReader reader) {
+            //matches XMLEvent.isCharacters - which is true for all three of these.
+            if (tokenType == XMLStreamConstants.CHARACTERS || tokenType == XMLStreamConstants.CDATA || tokenType == XMLStreamConstants.SPACE)
+                followingText = reader.getText();
+        }
+
+        void captureToken(int tokenType, XMLStreamReader reader) {
+            if (source != null) {
+                trackToken(reader);
+                if (tokenType == XMLStreamConstants.END_ELEMENT) elementClosed = true;
+            }
+            eventType = tokenType;
+            name = tokenType == XMLStreamConstants.END_ELEMENT ? reader.getName() : null;
+            followingText = null;
+            attributeCount = 0;
+        }
+
+        //must be called before the reader moves on from the token.
+        void captureSourceOffset(XMLStreamReader reader) {
+            sourceOffset = reader.getLocation().getCharacterOffset();
+        }
+
+        private void trackToken(XMLStreamReader reader) {
+            //the declarations of an element that has just been closed went out of scope along with it.
+            if (elementClosed) {
+                namespaceCount = namespaceCountAtDepth[--depth];
+                elementClosed = false;
+            }
+            this.reader = reader;
+            sourceOffset = -1;
+        }
+
+        @Override
+        public XMLEvent getRawEvent() {
+            throw new IllegalStateException("Raw XMLEvents are not available when processing from an XMLStreamReader");
+        }
+
+        @Override
+        public XMLDocumentSource getSource() { return source; }
+
+        @Override
+        public int getSourceOffset() {
+            if (sourceOffset < 0 && source != null && eventType != XMLStreamConstants.START_ELEMENT)
+                sourceOffset = reader.getLocation().getCharacterOffset();
+            return sourceOffset;
+        }
+
+        @Override
+        public Map<String, String> getInheritedNamespaces() {
+            if (source == null) return null;
+            //for a start or end element, leave out the declarations made on the element itself.
+            boolean onElement = eventType == XMLStreamConstants.START_ELEMENT || eventType == XMLStreamConstants.END_ELEMENT;
+            int inherited = onElement && depth > 0 ? namespaceCountAtDepth[depth - 1] : namespaceCount;
+            //later declarations (deeper in the document) override earlier ones.
+            Map<String, String> namespaces = new LinkedHashMap<String, String>();
+            for (int i = 0; i < inherited; i++) namespaces.put(namespacePrefixes[i], namespaceUris[i]);
+            return namespaces;
+        }
+
+        @Override
+        int getEventType() { return eventType; }
+
+        @Override
+        public QName getName() { return name; }
+
+        @Override
+        String getAttributeValue(QName attributeName) {
+            String namespace = attributeName.getNamespaceURI();
+            String localName = attributeName.getLocalPart();
+            for (int i = 0; i < attributeCount; i++) {
+                String attributeNamespace = attributeNamespaces[i] == null ? "" : attributeNamespaces[i];
+                if (localName.equals(attributeLocalNames[i]) && namespace.equals(attributeNamespace)) return attributeValues[i];
+            }
+            return null;
+        }
+
+        @Override
+        String getFollowingText() { return followingText; }
+    }
+
     /*
     Helper class to wrap an XMLEventReader to only provide access to the underlying peek method
     Exists to allow access to the stream to be exposed to invoked filters without granting access to methods that advance the stream.
@@ -359,9 +721,12 @@ public class XMLEventProcessor {
             }
 
             public boolean matches(List<QName> objectToTest){
-                //noinspection SimplifiableIfStatement
-                if (objectToTest == null) return false;
-                return this.getLocationAsList().equals(objectToTest);
+                if (objectToTest == null || objectToTest.size() != location.size()) return false;
+                //compare by index so that matching a (random access) relative location does not need an iterator.
+                for (int i = 0; i < location.size(); i++) {
+                    if (!location.get(i).equals(objectToTest.get(i))) return false;
+                }
+                return true;
             }
         }
 
@@ -384,6 +749,15 @@ public class XMLEventProcessor {
         protected void itemEnd(WrappedXmlEvent finalEvent) throws XMLStreamException { }
         //abstract stub for process event - ensure users have to do something to create a concrete filter.
         protected abstract void processEvent(WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException;
+
+        //whether this filter needs the raw XMLEvents (WrappedXmlEvent.getRawEvent) rather than just the names, attributes
+        //and values of the elements - only override to return false if that is definitely not the case, as it allows the
+        //processor to be run from an XMLStreamReader.
+        protected boolean requiresRawEvents() { return true; }
+
+        //whether this filter makes use of the raw bytes of the document (WrappedXmlEvent.getSource) when they are
+        //available - if so the caller should provide them when processing from an XMLStreamReader.
+        protected boolean usesDocumentSource() { return false; }
     }
 
     /**
@@ -404,6 +778,9 @@ public class XMLEventProcessor {
 
         @Override
         protected void processEvent(WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException {}
+
+        @Override
+        protected boolean requiresRawEvents() { return false; }
     }
 
     /**
@@ -458,6 +835,10 @@ public class XMLEventProcessor {
         }
 
         abstract protected T finaliseItemExtraction(WrappedXmlEvent finalEvent);
+
+        //extractors work from the names, attributes and values of the elements alone.
+        @Override
+        protected boolean requiresRawEvents() { return false; }
     }
 
     /**
@@ -21,12 +21,15 @@ import org.w3c.dom.NodeList;
 import uk.co.symplectic.utils.LoggingUtils;
 import uk.co.symplectic.utils.configuration.ConfigParser;
 import uk.co.symplectic.utils.triplestore.*;
+import uk.co.symplectic.utils.xml.StAXUtils;
 import uk.co.symplectic.elements.api.ElementsAPI;
 import uk.co.symplectic.utils.http.HttpClient;
+import uk.co.symplectic.utils.http.HttpResponseCache;
 import uk.co.symplectic.elements.api.ElementsAPIVersion;
 import uk.co.symplectic.translate.TranslationService;
 import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.vivoweb.harvester.config.EligibilityFilter;
+import uk.co.symplectic.vivoweb.harvester.config.HarvestCheckpoint;
 import uk.co.symplectic.vivoweb.harvester.config.StateManagement;
 import uk.co.symplectic.vivoweb.harvester.config.Configuration;
 import uk.co.symplectic.vivoweb.harvester.fetch.*;
@@ -34,6 +37,7 @@ import uk.co.symplectic.vivoweb.harvester.model.*;
 import uk.co.symplectic.vivoweb.harvester.store.*;
 import uk.co.symplectic.vivoweb.harvester.translate.*;
 import uk.co.symplectic.vivoweb.harvester.utils.ElementsGroupCollection;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdSet;
 import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemKeyedCollection;
 import uk.co.symplectic.vivoweb.harvester.utils.IncludedGroups;
 
@@ -47,6 +51,7 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 //import org.vivoweb.harvester.util.args.UsageException;
@@ -61,6 +66,7 @@ public class ElementsFetchAndTranslate {
     final private static String subtractionsFileName = "subtractions.n3";
     final private static String fragmentsDirName = "fragments";
     final private static String groupCacheFileName = "group-membership-cache.xml";
+    final private static String checkpointFileName = "checkpoint.txt";
 
     /**
      * Main entry method for ElementsFetchAndTranslate
@@ -91,6 +97,9 @@ public class ElementsFetchAndTranslate {
             Configuration.parse("elementsfetch.properties");
             log.info(Configuration.getConfiguredValues());
 
+            //choose the XML parser before anything is parsed.
+            StAXUtils.setXMLInputFactoryClass(Configuration.getXmlInputFactory());
+
             //only one of these will be true, both can be false
             boolean forceFullPull = args.length != 0 && args[0].equals("--full");
             boolean reprocessTranslations = args.length != 0 && args[0].equals("--reprocess");
@@ -186,6 +195,8 @@ public class ElementsFetchAndTranslate {
 
             int includedUserCount = 0;
             int includedObjectCount = 0;
+            //only used for full pulls, so that they can be resumed if they fail.
+            HarvestCheckpoint checkpoint = null;
 
             if(updateLocalTDB) {
                 //Set up the services that will be used to do asynchronous work
@@ -196,7 +207,7 @@ public class ElementsFetchAndTranslate {
                 Set<String> relationshipTypesNeedingObjectsForTranslation = Configuration.getRelTypesToReprocess();
 
                 //Set up a fetcher that uses the Elements API.
-                ElementsFetch elementsFetcher = currentRunClassification != StateManagement.RunClassification.REPROCESSING ? new ElementsFetch(elementsAPI) : null;
+                ElementsFetch elementsFetcher = currentRunClassification != StateManagement.RunClassification.REPROCESSING ? new ElementsFetch(elementsAPI, Configuration.getMaxConcurrentFeeds(), Configuration.getStoreWriteBehindQueueSize()) : null;
 
                 //Configure extraction of extra data that can be used to establish if users should be included.
                 if(eligibilityFilter instanceof EligibilityFilter.LabelSchemeFilter){
@@ -208,7 +219,7 @@ public class ElementsFetchAndTranslate {
 
                 ElementsRdfStore rdfStore = ElementsStoreFactory.getRdfStore();
                 //Set up the objectStore (for raw Elements API data) and the rdfStore (for translated RDF XML data)
-                ElementsItemFileStore objectStore = ElementsStoreFactory.getObjectStore();
+                final ElementsItemFileStore objectStore = ElementsStoreFactory.getObjectStore();
 
                 //Get some config needed for wiring up the translation observers
                 String xslFilename = Configuration.getXslTemplate();
@@ -217,8 +228,19 @@ public class ElementsFetchAndTranslate {
 
                 //Hook item observers to the object store so that translations happen for any objects and relationships that arrive in that store
                 //translations are configured to output to the rdfStore;
-                objectStore.addItemObserver(new ElementsObjectTranslateObserver(rdfStore, xslFilename));
-                objectStore.addItemObserver(new ElementsRelationshipTranslateObserver(objectStore, rdfStore, xslFilename, relationshipTypesNeedingObjectsForTranslation));
+                //a record that fails to translate must not be skipped as unchanged next run, so its digest is dropped.
+                TranslationService.FailureListener retryFailedTranslations = new TranslationService.FailureListener() {
+                    @Override
+                    public void translationFailed(ElementsStoredItemInfo input) {
+                        objectStore.forgetDigest(input.getItemInfo().getItemId(), input.getResourceType());
+                    }
+                };
+                ElementsObjectTranslateObserver objectTranslateObserver = new ElementsObjectTranslateObserver(rdfStore, xslFilename);
+                objectTranslateObserver.setFailureListener(retryFailedTranslations);
+                objectStore.addItemObserver(objectTranslateObserver);
+                ElementsRelationshipTranslateObserver relationshipTranslateObserver = new ElementsRelationshipTranslateObserver(objectStore, rdfStore, xslFilename, relationshipTypesNeedingObjectsForTranslation);
+                relationshipTranslateObserver.setFailureListener(retryFailedTranslations);
+                objectStore.addItemObserver(relationshipTranslateObserver);
 
                 //TODO: work out how to marshall user photos into a web accessible area in a sensible manner based on included user set...
                 //Hook a photo retrieval observer onto the rdf store so that photos will be fetched and dropped in the object store for any translated users.
@@ -231,7 +253,9 @@ public class ElementsFetchAndTranslate {
                 }
                 objectStore.addItemObserver(photoRetrievalObserver);
                 //Hook a photo RDF generating observer onto the object store so that any fetched photos have corresponding "rdf" created in the translated output.
-                objectStore.addItemObserver(new ElementsUserPhotoRdfGeneratingObserver(rdfStore, xslFilename, processedImageDir, Configuration.getVivoImageBasePath()));
+                ElementsUserPhotoRdfGeneratingObserver photoRdfGeneratingObserver = new ElementsUserPhotoRdfGeneratingObserver(rdfStore, xslFilename, processedImageDir, Configuration.getVivoImageBasePath());
+                photoRdfGeneratingObserver.setFailureListener(retryFailedTranslations);
+                objectStore.addItemObserver(photoRdfGeneratingObserver);
 
 
                 //we are about to start doing things that affect out caches..
@@ -259,13 +283,29 @@ public class ElementsFetchAndTranslate {
                             }
                         }
                     }
+                    if(pullNewDataSinceDate == null) checkpoint = getHarvestCheckpoint(state);
+                    //if resuming, carry on with the generations of the caches that the failed harvest cleared down
+                    //(until they are committed, reopening the stores gives back the caches from before that harvest).
+                    if(checkpoint != null && (checkpoint.isClearedDown(StorableResourceType.RAW_OBJECT) || checkpoint.isClearedDown(StorableResourceType.RAW_RELATIONSHIP))){
+                        objectStore.resumeGenerations();
+                        rdfStore.resumeGenerations();
+                    }
+
                     //building the in memory relationship cache does not affect our disk caches so...
                     begunProcessing = true;
 
-                    processObjects(objectStore, elementsFetcher, pullNewDataSinceDate);
+                    //if resuming, translations of items already fetched may not have completed before the failure, so redo them.
+                    if(checkpoint != null && checkpoint.isClearedDown(StorableResourceType.RAW_OBJECT)){
+                        reprocessCachedItems(objectStore, StorableResourceType.RAW_OBJECT);
+                    }
+                    if(checkpoint != null && checkpoint.isClearedDown(StorableResourceType.RAW_RELATIONSHIP)){
+                        reprocessCachedItems(objectStore, StorableResourceType.RAW_RELATIONSHIP);
+                    }
+
+                    processObjects(objectStore, elementsFetcher, pullNewDataSinceDate, checkpoint);
                     //fetch relationships.
                     boolean repullRelsForVis = Configuration.getShouldRepullRelsToCorrectVisibility();
-                    processRelationships(objectStore, elementsFetcher, pullNewDataSinceDate, relationshipTypesToInclude, repullRelsForVis, relationshipTypesNeedingObjectsForTranslation);
+                    processRelationships(objectStore, elementsFetcher, pullNewDataSinceDate, relationshipTypesToInclude, repullRelsForVis, relationshipTypesNeedingObjectsForTranslation, checkpoint);
                 }
                 else{
                     begunProcessing = true; //not sure we need to flag this..
@@ -275,22 +315,27 @@ public class ElementsFetchAndTranslate {
 
                 //load the user cache from the now up to date full cache of user definitions on disk ..(they MUST be present)..
                 ElementsItemKeyedCollection.ItemRestrictor restrictToUsers = new ElementsItemKeyedCollection.RestrictToSubTypes(ElementsObjectCategory.USER);
-                ElementsItemKeyedCollection.ItemInfo userInfoCache = new ElementsItemKeyedCollection.ItemInfo(restrictToUsers);
-                for (StoredData.InFile userData : objectStore.getAllExistingFilesOfType(StorableResourceType.RAW_OBJECT, ElementsObjectCategory.USER)) {
-                    ElementsStoredItemInfo userItem = ElementsStoredItemInfo.loadStoredResource(userData, StorableResourceType.RAW_OBJECT);
-                    userInfoCache.put(userItem.getItemInfo().getItemId(), userItem.getItemInfo());
-                }
+                final ElementsItemKeyedCollection.ItemInfo userInfoCache = new ElementsItemKeyedCollection.ItemInfo(restrictToUsers);
+                objectStore.scanAllExistingItemsOfType(StorableResourceType.RAW_OBJECT, ElementsObjectCategory.USER, new ElementsItemFileStore.StoredItemVisitor() {
+                    @Override
+                    public void visit(ElementsStoredItemInfo userItem) {
+                        userInfoCache.put(userItem.getItemInfo().getItemId(), userItem.getItemInfo());
+                    }
+                });
 
                 //Now query the groups, post processing to build a group hierarchy containing users.
                 ElementsGroupCollection groupCache;
+                //the groups fetched to build the hierarchy are held so they can be translated later without fetching them again.
+                ElementsItemStore.BufferingStore fetchedGroups = null;
                 if(currentRunClassification == StateManagement.RunClassification.REPROCESSING || (skipGroups && currentRunClassification == StateManagement.RunClassification.DELTA)) {
                     groupCache = createGroupCache(objectStore, userInfoCache.keySet());
                 }
                 else{
                     groupCache = new ElementsGroupCollection();
-                    elementsFetcher.execute(new ElementsFetch.GroupConfig(), groupCache.getStoreWrapper());
+                    fetchedGroups = new ElementsItemStore.BufferingStore();
+                    elementsFetcher.execute(new ElementsFetch.GroupConfig(), new ElementsItemStore.MultiStore(groupCache.getStoreWrapper(), fetchedGroups));
                     groupCache.constructHierarchy();
-                    groupCache.populateUserMembership(elementsFetcher, userInfoCache.keySet());
+                    groupCache.populateUserMembership(elementsFetcher, userInfoCache.keySet(), Configuration.getMaxConcurrentFeeds());
                     createGroupMembershipDocument(groupCache);
                 }
 
@@ -304,16 +349,18 @@ public class ElementsFetchAndTranslate {
                 groupCache.createCanonicalNames(includedGroups.getIncludedGroups().keySet());
 
                 //Wire up the group translation observer...(needs group cache to work out members Ids and included users to get the user info of those members)
-                objectStore.addItemObserver(new ElementsGroupTranslateObserver(rdfStore, xslFilename, groupCache, includedGroups));
+                ElementsGroupTranslateObserver groupTranslateObserver = new ElementsGroupTranslateObserver(rdfStore, xslFilename, groupCache, includedGroups);
+                groupTranslateObserver.setFailureListener(retryFailedTranslations);
+                objectStore.addItemObserver(groupTranslateObserver);
 
                 if(currentRunClassification == StateManagement.RunClassification.REPROCESSING || (skipGroups && currentRunClassification == StateManagement.RunClassification.DELTA)) {
                     reprocessCachedItems(objectStore, StorableResourceType.RAW_GROUP);
                 }
                 else{
-                    //fetch the groups and translate them
+                    //store the groups fetched earlier and translate them
                     log.info("Clearing down old group cache");
                     objectStore.cleardown(StorableResourceType.RAW_GROUP);
-                    elementsFetcher.execute(new ElementsFetch.GroupConfig(), objectStore);
+                    fetchedGroups.replayInto(objectStore);
                 }
 
                 log.info("ElementsFetchAndTranslate: Translating Group Memberships");
@@ -346,6 +393,17 @@ public class ElementsFetchAndTranslate {
                 log.info("Waiting for enqueued translations to complete");
                 TranslationService.awaitShutdown();
 
+                //everything cleared down this run has now been fetched and translated again, so the new generations
+                //can replace the old ones in the caches (which are removed in the background).
+                objectStore.commitGenerations();
+                rdfStore.commitGenerations();
+
+                //report how much of what was fetched and translated this run had really changed, and persist the digests
+                //of the output for the next run to compare against.
+                logChangeCounts(objectStore);
+                logChangeCounts(rdfStore);
+                rdfStore.saveDigestIndex();
+
                 //changes towards making include monitoring a separate step in the process?
 
                 //Hook a monitor up to work out which objects and relationships we want to send to vivo
@@ -355,9 +413,9 @@ public class ElementsFetchAndTranslate {
                 //TODO: test performance against spinning rust...
 
                 boolean visibleLinksOnly = Configuration.getVisibleLinksOnly();
-                ElementsVivoIncludeMonitor monitor = new ElementsVivoIncludeMonitor(includedUsers.keySet(), includedGroups.getIncludedGroups().keySet(), Configuration.getCategoriesToHarvest(), rdfStore, visibleLinksOnly);
+                final ElementsVivoIncludeMonitor monitor = new ElementsVivoIncludeMonitor(includedUsers.keySet(), includedGroups.getIncludedGroups().keySet(), Configuration.getCategoriesToHarvest(), rdfStore, visibleLinksOnly);
 
-                counter = 0;
+                final AtomicInteger relCounter = new AtomicInteger(0);
                 BufferedWriter relWriter = null;
                 BufferedWriter incRelWriter = null;
                 try {
@@ -367,28 +425,39 @@ public class ElementsFetchAndTranslate {
                     File incRelationshipListFile = new File(interimTdbDirectory, "includedRelationships.txt");
                     incRelWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(incRelationshipListFile), "utf-8"));
 
-                    for (StoredData.InFile relData : objectStore.getAllExistingFilesOfType(StorableResourceType.RAW_RELATIONSHIP)) {
-                        ElementsStoredItemInfo relItem = ElementsStoredItemInfo.loadStoredResource(relData, StorableResourceType.RAW_RELATIONSHIP);
-                        monitor.observe(relItem);
+                    //relationships are observed in parallel, the list files are written to one relationship at a time.
+                    final BufferedWriter finalRelWriter = relWriter;
+                    final BufferedWriter finalIncRelWriter = incRelWriter;
+                    objectStore.scanAllExistingItemsOfType(StorableResourceType.RAW_RELATIONSHIP, new ElementsItemFileStore.StoredItemVisitor() {
+                        @Override
+                        public void visit(ElementsStoredItemInfo relItem) throws IOException {
+                            monitor.observe(relItem);
+                            boolean included = monitor.getIncludedItems().contains(relItem.getItemInfo().getItemId());
+                            synchronized (finalRelWriter) {
+                                finalRelWriter.write(relItem.getItemInfo().toString());
+                                finalRelWriter.newLine();
+                                if (included) {
+                                    finalIncRelWriter.write(relItem.getItemInfo().toString());
+                                    finalIncRelWriter.newLine();
+                                }
+                            }
 
-                        relWriter.write(relItem.getItemInfo().toString());
-                        relWriter.newLine();
-                        if(monitor.getIncludedItems().get(ElementsItemType.RELATIONSHIP).contains(relItem.getItemInfo().getItemId())){
-                            incRelWriter.write(relItem.getItemInfo().toString());
-                            incRelWriter.newLine();
+                            int processed = relCounter.incrementAndGet();
+                            if (processed % 10000 == 0)
+                                log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} relationships processed from cache", processed));
                         }
-
-                        counter++;
-                        if (counter % 10000 == 0)
-                            log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} relationships processed from cache", counter));
-                    }
-                    log.info(MessageFormat.format("ElementsFetchAndTranslate: finished processing relationships from cache, {0} items processed in total", counter));
+                    });
+                    log.info(MessageFormat.format("ElementsFetchAndTranslate: finished processing relationships from cache, {0} items processed in total", relCounter.get()));
                 }
                 finally{
                     if (relWriter != null) relWriter.close();
                     if (incRelWriter != null) incRelWriter.close();
                 }
 
+                //the raw data is not changed from here on, so persist the index of it for the next run to scan.
+                objectStore.saveItemInfoIndex();
+                objectStore.saveDigestIndex();
+
                 //update object counts
                 includedUserCount = includedUsers.values().size();
                 includedObjectCount = monitor.getIncludedItems().get(ElementsItemType.OBJECT).size() - includedUserCount;
@@ -427,7 +496,7 @@ public class ElementsFetchAndTranslate {
                     log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} non-user objects being sent to vivo", includedObjectCount));
 
                 log.info("ElementsFetchAndTranslate: Calculating output files related to included objects");
-                List<StoredData.InFile> filesToProcess = new ArrayList<StoredData.InFile>();
+                List<StoredData> filesToProcess = new ArrayList<StoredData>();
                 BufferedWriter writer = null;
                 try {
                     File transferListFile = new File(interimTdbDirectory, "fileList.txt");
@@ -438,7 +507,7 @@ public class ElementsFetchAndTranslate {
                         for (ElementsItemId includedItem : monitor.getIncludedItems().get(type)) {
                             //TODO: restrict to certain output resource types?
                             for (BasicElementsStoredItem item : rdfStore.retrieveAllRelatedResources(includedItem)) {
-                                filesToProcess.add((StoredData.InFile) item.getStoredData());
+                                filesToProcess.add(item.getStoredData());
                                 writer.write(item.getStoredData().getAddress());
                                 writer.newLine();
                             }
@@ -487,7 +556,14 @@ public class ElementsFetchAndTranslate {
             splitter.split(subtractionsFile, state.getCurrentRunStartedAt(), FileSplitter.Type.Subtractions);
 
             //if completed successfully manage state file..
-            stateManager.manageStateForCompleteRun(state, includedUserCount, includedObjectCount);
+            if(checkpoint != null) {
+                //a resumed harvest only has data that is current as of when the (original) harvest started fetching.
+                stateManager.manageStateForCompleteRun(state, includedUserCount, includedObjectCount, checkpoint.getFetchStartedAt());
+                checkpoint.delete();
+            }
+            else {
+                stateManager.manageStateForCompleteRun(state, includedUserCount, includedObjectCount);
+            }
 
         }
         catch (ConfigParser.UsageException e) {
@@ -550,9 +626,10 @@ public class ElementsFetchAndTranslate {
      * @param elementsFetcher an ElementsFetch helper class designed to facilitate fetching data from the Elements API.
      * @param modifiedSince the date time that the cache was last updated, process will run a "delta" if this is
      *                      supplied, and a "full" if it is null.
+     * @param checkpoint where to record progress (null if progress should not be recorded).
      * @throws IOException if errors occur
      */
-    private static void processObjects(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince) throws IOException{
+    private static void processObjects(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince, HarvestCheckpoint checkpoint) throws IOException{
         //fetch all configured categories - ensure that users ARE fetched regardless of configuration
         //TODO: decide if not having users in configured categories should result in different behaviour in the monitor
         List<ElementsObjectCategory> categories = new ArrayList<ElementsObjectCategory>();
@@ -560,12 +637,51 @@ public class ElementsFetchAndTranslate {
         if(!categories.contains(ElementsObjectCategory.USER)) categories.add(0, ElementsObjectCategory.USER);
 
         if(modifiedSince == null) {
-            log.info("Clearing down object cache (Full pull) - this may take some time..");
-            objectStore.cleardown(StorableResourceType.RAW_OBJECT);
+            clearDownForFullPull(objectStore, StorableResourceType.RAW_OBJECT, checkpoint);
         }
 
         ElementsFetch.ObjectConfig objConfig = new ElementsFetch.ObjectConfig(true, modifiedSince, categories);
-        elementsFetcher.execute(objConfig, objectStore);
+        elementsFetcher.execute(objConfig, objectStore, checkpoint);
+    }
+
+    /**
+     * Method to clear down a type of raw data ahead of a full pull, unless the checkpoint shows that this (resumed) full
+     * pull has already cleared it down, in which case everything in the cache was fetched by this harvest and is kept.
+     * The cleardown only starts a new generation of the cache (see ElementsItemFileStore.cleardown), the old one is kept
+     * until the harvest commits the new one, so a failed full pull leaves the last good cache in place.
+     * @param objectStore the local cache of raw data.
+     * @param type The type of data to clear down.
+     * @param checkpoint where to record the cleardown (can be null).
+     * @throws IOException if errors occur
+     */
+    private static void clearDownForFullPull(ElementsItemFileStore objectStore, StorableResourceType type, HarvestCheckpoint checkpoint) throws IOException{
+        String pluralTypeNameForLog = type.getKeyItemType().getPluralName();
+        if(checkpoint != null && checkpoint.isClearedDown(type)) {
+            log.info(MessageFormat.format("Keeping cached {0} fetched before the last checkpoint (resuming full pull)", pluralTypeNameForLog));
+            return;
+        }
+        log.info(MessageFormat.format("Clearing down {0} cache (Full pull)", pluralTypeNameForLog));
+        objectStore.cleardown(type);
+        if(checkpoint != null) checkpoint.recordCleardown(type);
+    }
+
+    /**
+     * Method to get the checkpoint for a full pull, if the previous full pull failed and left a checkpoint behind
+     * then that is loaded (so the harvest can be resumed), otherwise a new checkpoint is started.
+     * @param state the current state.
+     * @return a HarvestCheckpoint
+     */
+    private static HarvestCheckpoint getHarvestCheckpoint(StateManagement.State state){
+        File checkpointFile = new File(checkpointFileName);
+        if(state.getPreviousRunClassification() == StateManagement.PriorRunClassification.FAILED_FULL) {
+            HarvestCheckpoint checkpoint = HarvestCheckpoint.load(checkpointFile);
+            if(checkpoint != null) {
+                log.warn(MessageFormat.format("Resuming failed full harvest from checkpoint - {0}", checkpoint));
+                log.warn(MessageFormat.format("Delete \"{0}\" to make the full harvest start again from scratch.", checkpointFile.getAbsolutePath()));
+                return checkpoint;
+            }
+        }
+        return HarvestCheckpoint.create(checkpointFile, state.getCurrentRunStartedAt());
     }
 
     /**
@@ -581,7 +697,7 @@ public class ElementsFetchAndTranslate {
         String pluralTypeNameForLog = type.getKeyItemType().getPluralName();
         log.info(MessageFormat.format("Reprocessing Elements {0} from cache", pluralTypeNameForLog));
         int counter = 0;
-        for (StoredData.InFile data : objectStore.getAllExistingFilesOfType(type)) {
+        for (StoredData data : objectStore.getAllExistingDataOfType(type)) {
             ElementsStoredItemInfo item = ElementsStoredItemInfo.loadStoredResource(data, type);
             try {
                 objectStore.touchItem(item.getItemInfo(), type);
@@ -595,6 +711,19 @@ public class ElementsFetchAndTranslate {
         log.info(MessageFormat.format("Reprocessing complete, {0} {1} enqueued for re-processing in total", counter, pluralTypeNameForLog));
     }
 
+    /**
+     * Log how many items of each type were stored in a store this run, and how many of those were skipped as unchanged.
+     * @param store the store to report on.
+     */
+    private static void logChangeCounts(ElementsItemFileStore store){
+        for(StorableResourceType type : store.getSupportedTypes()) {
+            int changed = store.getChangedItemCount(type);
+            int unchanged = store.getUnchangedItemCount(type);
+            if(changed + unchanged > 0)
+                log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} {1} items stored this run - {2} changed, {3} skipped as unchanged", changed + unchanged, type, changed, unchanged));
+        }
+    }
+
 
     /**
      * Method to loop through all Elements relationships, of the types specified in relationshipTypesToInclude,
@@ -610,88 +739,98 @@ public class ElementsFetchAndTranslate {
      * @param relationshipTypesToReprocess Any types of relationship (string) that should be reprocessed regardless of
      *                                     visibility concerns if the linked objects are changed
      *                                     e.g. when the translation of objects occurs when the relationship is processed.
+     * @param checkpoint where to record progress (null if progress should not be recorded).
      * @throws IOException if errors occur
      */
-    private static void processRelationships(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince, Set<ElementsItemId> relationshipTypesToInclude,
-                                             boolean repullRelsToCorrectVisibility, Set<String> relationshipTypesToReprocess) throws IOException{
+    private static void processRelationships(ElementsItemFileStore objectStore, final ElementsFetch elementsFetcher, Date modifiedSince, Set<ElementsItemId> relationshipTypesToInclude,
+                                             final boolean repullRelsToCorrectVisibility, final Set<String> relationshipTypesToReprocess, HarvestCheckpoint checkpoint) throws IOException{
         if(modifiedSince == null) {
-            log.info("Clearing down relationship cache (Full pull) - this may take some time..");
-            objectStore.cleardown(StorableResourceType.RAW_RELATIONSHIP);
+            clearDownForFullPull(objectStore, StorableResourceType.RAW_RELATIONSHIP, checkpoint);
         }
 
         //bring relationship cache up to date
         ElementsFetch.RelationshipConfig relConfig = new ElementsFetch.RelationshipConfig(modifiedSince, relationshipTypesToInclude);
-        elementsFetcher.execute(relConfig, objectStore);
+        elementsFetcher.execute(relConfig, objectStore, checkpoint);
 
         //handle issues with simple update of relationships not being enough
         if(modifiedSince != null){
             //Work out if we need to do any re-processing
-            Set<ElementsItemId> modifiedObjects = objectStore.getAffectedItems(StorableResourceType.RAW_OBJECT);
+            //objects that were fetched this run but turned out to be unchanged still count, as the API considered them
+            //modified and that may reflect a change to the visibility of their relationships.
+            final Set<ElementsItemId> modifiedObjects = new ElementsItemIdSet<ElementsItemId>(objectStore.getAffectedItems(StorableResourceType.RAW_OBJECT));
+            modifiedObjects.addAll(objectStore.getUnchangedItems(StorableResourceType.RAW_OBJECT));
 
             if(modifiedObjects.size() > 0) {
 
                 //get the set of relationships we have already updated this run, as these have already been re-pulled and therefore re-processed.
-                Set<ElementsItemId> modifiedRelationships = objectStore.getAffectedItems(StorableResourceType.RAW_RELATIONSHIP);
+                final Set<ElementsItemId> modifiedRelationships = objectStore.getAffectedItems(StorableResourceType.RAW_RELATIONSHIP);
+                //relationships that were fetched this run but turned out to be unchanged have not been re-processed,
+                //but are up to date so there is no point re-pulling them.
+                final Set<ElementsItemId> unchangedRelationships = objectStore.getUnchangedItems(StorableResourceType.RAW_RELATIONSHIP);
                 log.info(MessageFormat.format("ElementsFetchAndTranslate: Processing relationship cache to establish which to re-pull/re-process based on the {0} objects modified this run", modifiedObjects.size()));
-                Set<ElementsItemId> relationshipsToRepull = new HashSet<ElementsItemId>();
-                Set<ElementsItemInfo> relationshipsToReprocess = new HashSet<ElementsItemInfo>();
-
-                //loop over the current state of our raw object cache (which is up to date on this thread) to establish which relationships are related to the recently modified objects
-                int counter = 0;
-                for (StoredData.InFile relData : objectStore.getAllExistingFilesOfType(StorableResourceType.RAW_RELATIONSHIP)) {
-                    ElementsStoredItemInfo relItem = ElementsStoredItemInfo.loadStoredResource(relData, StorableResourceType.RAW_RELATIONSHIP);
-
-                    //check if we have already processed the relationship this run, so then we can ignore it.
-                    if(!modifiedRelationships.contains(relItem.getItemInfo().getItemId())) {
-                        //check if the object on either side is one that has been modified, if so then flag this relationship as needing re-pulling
-                        //otherwise we only want to reprocess rels linked to modified non users as a hack to ensure we pick up any visibility changes...
-                        boolean shouldRepull = false;
-                        boolean shouldReprocess = false;
-                        for (ElementsItemId.ObjectId objectId : relItem.getItemInfo().asRelationshipInfo().getObjectIds()) {
-                            if (modifiedObjects.contains(objectId)) {
-                                //if the unmodified relationship contains a modified object that is not a user it may have an altered visibility flag
-                                //so we mark it for re-pulling if we are worried about that for this API version.
-                                if (repullRelsToCorrectVisibility && objectId.getItemSubType() != ElementsObjectCategory.USER) {
-                                    shouldRepull = true;
-                                    break;
-                                }
+                final Set<ElementsItemId> relationshipsToRepull = Collections.synchronizedSet(new ElementsItemIdSet<ElementsItemId>());
+                final Set<ElementsItemInfo> relationshipsToReprocess = Collections.synchronizedSet(new HashSet<ElementsItemInfo>());
+
+                //look up the relationships in our raw cache (which is up to date at this point) that are related to the recently modified objects
+                //(directly from the store's index where possible), and establish which of those need re-pulling or re-processing.
+                //relationships are examined in parallel so everything the visitor touches is either read only or synchronized.
+                final AtomicInteger relCounter = new AtomicInteger(0);
+                objectStore.scanRelationshipsLinkedTo(StorableResourceType.RAW_RELATIONSHIP, modifiedObjects, new ElementsItemFileStore.StoredItemVisitor() {
+                    @Override
+                    public void visit(ElementsStoredItemInfo relItem) {
+                        //check if we have already processed the relationship this run, so then we can ignore it.
+                        if(!modifiedRelationships.contains(relItem.getItemInfo().getItemId())) {
+                            //check if the object on either side is one that has been modified, if so then flag this relationship as needing re-pulling
+                            //otherwise we only want to reprocess rels linked to modified non users as a hack to ensure we pick up any visibility changes...
+                            boolean canRepull = !unchangedRelationships.contains(relItem.getItemInfo().getItemId());
+                            boolean shouldRepull = false;
+                            boolean shouldReprocess = false;
+                            for (ElementsItemId.ObjectId objectId : relItem.getItemInfo().asRelationshipInfo().getObjectIds()) {
+                                if (modifiedObjects.contains(objectId)) {
+                                    //if the unmodified relationship contains a modified object that is not a user it may have an altered visibility flag
+                                    //so we mark it for re-pulling if we are worried about that for this API version.
+                                    if (canRepull && repullRelsToCorrectVisibility && objectId.getItemSubType() != ElementsObjectCategory.USER) {
+                                        shouldRepull = true;
+                                        break;
+                                    }
 
-                                //hack that exists to handle case where a user has been "modified" in a way that affects their URI (e.g. username)
-                                //In this case we need to ensure that we repull the relationships for v5.5 API endpoints.
-                                //With v4.9 API endpoints this was not needed as modifying the user stamped all neighbouring objects as affected.
-                                //As v4.9 API only operates on affected-when (even though it calls it "modified-since") the result of this is that every item in a relationship
-                                //with the modified user is going to have been updated this run (and therefore in modified objects) because we repull all rels containing an object we updated this run
-                                //in order to ensure we pick up visibility changes, all rels to the modified user were being re-pulled anyway.
-                                //This is NOT be picked up against a v5.5 API as that specifically pulls based on the real "modification date", not "affected".
-                                //The neighbouring objects have therefore not been updated this run, and we need a specific check to force the repull of the rel, to ensure the
-                                //"stub" version of the object in the raw-relationship data will create the correct URI (e.g. with the new username).
-                                if(elementsFetcher.getApiVersion().greaterThanOrEqualTo(ElementsAPIVersion.VERSION_5_5) && objectId.getItemSubType() == ElementsObjectCategory.USER){
-                                    shouldRepull = true;
-                                    break;
-                                }
+                                    //hack that exists to handle case where a user has been "modified" in a way that affects their URI (e.g. username)
+                                    //In this case we need to ensure that we repull the relationships for v5.5 API endpoints.
+                                    //With v4.9 API endpoints this was not needed as modifying the user stamped all neighbouring objects as affected.
+                                    //As v4.9 API only operates on affected-when (even though it calls it "modified-since") the result of this is that every item in a relationship
+                                    //with the modified user is going to have been updated this run (and therefore in modified objects) because we repull all rels containing an object we updated this run
+                                    //in order to ensure we pick up visibility changes, all rels to the modified user were being re-pulled anyway.
+                                    //This is NOT be picked up against a v5.5 API as that specifically pulls based on the real "modification date", not "affected".
+                                    //The neighbouring objects have therefore not been updated this run, and we need a specific check to force the repull of the rel, to ensure the
+                                    //"stub" version of the object in the raw-relationship data will create the correct URI (e.g. with the new username).
+                                    if(canRepull && elementsFetcher.getApiVersion().greaterThanOrEqualTo(ElementsAPIVersion.VERSION_5_5) && objectId.getItemSubType() == ElementsObjectCategory.USER){
+                                        shouldRepull = true;
+                                        break;
+                                    }
 
-                                //if the unmodified relationship contains any modified objects
-                                // and is of a type that we need to reprocess (i.e. one where the translation of the objects occurs within the relationship)
-                                //then we will need to re-translate the item. we may not need to re-pull it (e.g if that is turned off or if only the user has been changed)
-                                if(relationshipTypesToReprocess != null && !relationshipTypesToReprocess.isEmpty()) {
-                                    if (relationshipTypesToReprocess.contains("all") || relationshipTypesToReprocess.contains(relItem.getItemInfo().asRelationshipInfo().getType())) {
-                                        shouldReprocess = true;
-                                        //deliberately don't break the loop over objects in the link, as the second object could be the one that triggers a repull
+                                    //if the unmodified relationship contains any modified objects
+                                    // and is of a type that we need to reprocess (i.e. one where the translation of the objects occurs within the relationship)
+                                    //then we will need to re-translate the item. we may not need to re-pull it (e.g if that is turned off or if only the user has been changed)
+                                    if(relationshipTypesToReprocess != null && !relationshipTypesToReprocess.isEmpty()) {
+                                        if (relationshipTypesToReprocess.contains("all") || relationshipTypesToReprocess.contains(relItem.getItemInfo().asRelationshipInfo().getType())) {
+                                            shouldReprocess = true;
+                                            //deliberately don't break the loop over objects in the link, as the second object could be the one that triggers a repull
+                                        }
                                     }
                                 }
                             }
-                        }
 
-                        //put link into appropriate bin, repull if requested, if not being re-pulled then reprocess if requested.
-                        if(shouldRepull) relationshipsToRepull.add(relItem.getItemInfo().getItemId());
-                        else if (shouldReprocess) relationshipsToReprocess.add(relItem.getItemInfo());
+                            //put link into appropriate bin, repull if requested, if not being re-pulled then reprocess if requested.
+                            if(shouldRepull) relationshipsToRepull.add(relItem.getItemInfo().getItemId());
+                            else if (shouldReprocess) relationshipsToReprocess.add(relItem.getItemInfo());
+                        }
+                        int processed = relCounter.incrementAndGet();
+                        if (processed % 1000 == 0)
+                            log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} relationships linked to modified objects processed from cache", processed));
                     }
-                    counter++;
-                    if (counter % 1000 == 0)
-                        log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} relationships processed from cache", counter));
-                }
+                });
 
-                log.info(MessageFormat.format("ElementsFetchAndTranslate: finished processing relationships from cache, {0} items processed in total", counter));
+                log.info(MessageFormat.format("ElementsFetchAndTranslate: finished processing relationships from cache, {0} relationships linked to modified objects processed in total", relCounter.get()));
 
 
                 //re-pull data for those relationships batched up sensibly.
@@ -701,7 +840,7 @@ public class ElementsFetchAndTranslate {
                 }
 
                 if(!relationshipsToReprocess.isEmpty()) {
-                    counter = 0;
+                    int counter = 0;
                     //re-process data for relationships that need to be re-processed
                     for (ElementsItemInfo relInfo : relationshipsToReprocess) {
                         objectStore.touchItem(relInfo, StorableResourceType.RAW_RELATIONSHIP);
@@ -730,16 +869,18 @@ public class ElementsFetchAndTranslate {
         try {
             log.info("Recreating Groups information from cache");
             StorableResourceType type = StorableResourceType.RAW_GROUP;
-            ElementsGroupCollection groupCache = new ElementsGroupCollection();
-
-            int counter = 0;
-            for (StoredData.InFile data : objectStore.getAllExistingFilesOfType(type)) {
-                ElementsStoredItemInfo item = ElementsStoredItemInfo.loadStoredResource(data, StorableResourceType.RAW_GROUP);
-                ElementsGroupInfo groupInfo = item.getItemInfo().asGroupInfo();
-                groupCache.put(item.getItemInfo().getItemId(), new ElementsGroupInfo.GroupHierarchyWrapper(groupInfo));
-                counter++;
-                if(counter % 1000 == 0) log.info(MessageFormat.format("{0} groups added to cache", counter));
-            }
+            final ElementsGroupCollection groupCache = new ElementsGroupCollection();
+
+            final AtomicInteger counter = new AtomicInteger(0);
+            objectStore.scanAllExistingItemsOfType(type, new ElementsItemFileStore.StoredItemVisitor() {
+                @Override
+                public void visit(ElementsStoredItemInfo item) {
+                    ElementsGroupInfo groupInfo = item.getItemInfo().asGroupInfo();
+                    groupCache.put(item.getItemInfo().getItemId(), new ElementsGroupInfo.GroupHierarchyWrapper(groupInfo));
+                    int added = counter.incrementAndGet();
+                    if(added % 1000 == 0) log.info(MessageFormat.format("{0} groups added to cache", added));
+                }
+            });
 
             groupCache.constructHierarchy();
 
@@ -1008,21 +1149,41 @@ public class ElementsFetchAndTranslate {
             HttpClient.ignoreSslErrors();
         }
 
+        HttpClient.setRequestCompression(Configuration.getApiRequestCompression());
+
         int soTimeout = Configuration.getApiSoTimeout();
         if (soTimeout > 4999 && soTimeout < (30 * 60 * 1000)) {
             HttpClient.setSocketTimeout(soTimeout);
         }
 
+        //an explicit request rate takes precedence over the (older) request delay setting.
+        double requestRate = Configuration.getApiRequestsPerSecond();
         int requestDelay = Configuration.getApiRequestDelay();
-        if (requestDelay > -1 && requestDelay < (5 * 60 * 1000)) {
-            HttpClient.setRequestDelay(requestDelay);
+        if (requestRate > 0) {
+            HttpClient.setRequestRate(requestRate, Configuration.getApiRequestBurst());
+        }
+        else {
+            if (requestDelay > -1 && requestDelay < (5 * 60 * 1000)) {
+                HttpClient.setRequestDelay(requestDelay);
+            }
+            HttpClient.getRateLimiter().setBurst(Configuration.getApiRequestBurst());
         }
 
         int fullDetailPerPage = Configuration.getFullDetailPerPage();
         int refDetailPerPage = Configuration.getRefDetailPerPage();
+        int pageFetchWindow = Configuration.getPageFetchWindow();
+        //each concurrent feed makes its own requests, alongside up to pageFetchWindow page fetches shared between them.
+        HttpClient.setMaxConnections(Math.max(20, Configuration.getMaxConcurrentFeeds() + pageFetchWindow));
         boolean rewriteMismatchedUrls = Configuration.getRewriteMismatchedUrls();
-        ElementsAPI.ProcessingDefaults defaults = new ElementsAPI.ProcessingDefaults(true, fullDetailPerPage, refDetailPerPage);
-        return new ElementsAPI(apiVersion, apiEndpoint, apiUsername, apiPassword, rewriteMismatchedUrls, defaults);
+        ElementsAPI.ProcessingDefaults defaults = new ElementsAPI.ProcessingDefaults(true, fullDetailPerPage, refDetailPerPage, pageFetchWindow);
+
+        //slow changing feeds (my-account, groups, relationship types) are cached between runs in the "other" output directory.
+        HttpResponseCache responseCache = null;
+        if (Configuration.getApiResponseCaching()) {
+            File cacheDir = new File(Configuration.getOtherOutputDir(), "api-response-cache");
+            responseCache = new HttpResponseCache(cacheDir, Configuration.getApiResponseCacheTtl() * 1000L);
+        }
+        return new ElementsAPI(apiVersion, apiEndpoint, apiUsername, apiPassword, rewriteMismatchedUrls, defaults, responseCache);
 
     }
 
@@ -18,6 +18,9 @@ import uk.co.symplectic.utils.configuration.ConfigParser;
 import uk.co.symplectic.utils.configuration.ConfigValue;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+import uk.co.symplectic.vivoweb.harvester.store.RecordCodec;
+import uk.co.symplectic.vivoweb.harvester.store.StoreLayout;
+import uk.co.symplectic.vivoweb.harvester.store.WriteDurability;
 import uk.co.symplectic.vivoweb.harvester.utils.GroupMatcher;
 
 import java.io.File;
@@ -114,6 +117,13 @@ public class Configuration {
 
         private ConfigKey ARG_API_SOCKET_TIMEOUT = new ConfigKey("apiSocketTimeout", "0"); //TODO: review this default
         private ConfigKey ARG_API_REQUEST_DELAY = new ConfigKey("apiRequestDelay", "-1"); //TODO: review this default
+        private ConfigKey ARG_API_REQUESTS_PER_SECOND = new ConfigKey("apiRequestsPerSecond", "-1");
+        private ConfigKey ARG_API_REQUEST_BURST = new ConfigKey("apiRequestBurst", "1");
+        private ConfigKey ARG_MAX_CONCURRENT_FEEDS = new ConfigKey("maxConcurrentFeeds", "1");
+        private ConfigKey ARG_PAGE_FETCH_WINDOW = new ConfigKey("pageFetchWindow", "1");
+        private ConfigKey ARG_API_REQUEST_COMPRESSION = new ConfigKey("apiRequestCompression", "true");
+        private ConfigKey ARG_API_RESPONSE_CACHING = new ConfigKey("apiResponseCaching", "true");
+        private ConfigKey ARG_API_RESPONSE_CACHE_TTL = new ConfigKey("apiResponseCacheTtl", "0");
 
         private ConfigKey ARG_MAX_XSL_THREADS = new ConfigKey("maxXslThreads", "0"); //TODO: review this default
         private ConfigKey ARG_MAX_RESOURCE_THREADS = new ConfigKey("maxResourceThreads", "0"); //TODO: review this default
@@ -121,6 +131,11 @@ public class Configuration {
         private ConfigKey ARG_MAX_FRAGMENT_FILE_SIZE = new ConfigKey("maxFragmentFileSize", "1228800"); //TODO: review this default
 
         private ConfigKey ARG_ZIP_FILES = new ConfigKey("zipFiles", "false"); //TODO: review this default
+        private ConfigKey ARG_STORE_LAYOUT = new ConfigKey("storeLayout", "flat");
+        private ConfigKey ARG_STORE_WRITE_DURABILITY = new ConfigKey("storeWriteDurability", "none");
+        private ConfigKey ARG_STORE_WRITE_BEHIND_QUEUE_SIZE = new ConfigKey("storeWriteBehindQueueSize", "1000");
+        private ConfigKey ARG_STORE_CODEC = new ConfigKey("storeCodec", "gzip");
+        private ConfigKey ARG_XML_INPUT_FACTORY = new ConfigKey("xmlInputFactory", "");
 
         private ConfigKey ARG_CHANGE_PROTECTION_ENABLED = new ConfigKey("changeProtectionEnabled", "true"); //TODO: review this default
         private ConfigKey ARG_ALLOWED_USER_CHANGE_FRACTION = new ConfigKey("allowedUserChangeFraction", "0.2"); //TODO: review this default
@@ -143,6 +158,13 @@ public class Configuration {
 
         private int apiSoTimeout = -1;
         private int apiRequestDelay = -1;
+        private double apiRequestsPerSecond = -1;
+        private int apiRequestBurst = 1;
+        private int maxConcurrentFeeds = 1;
+        private int pageFetchWindow = 1;
+        private boolean apiRequestCompression = true;
+        private boolean apiResponseCaching = true;
+        private int apiResponseCacheTtl = 0;
 
         private int fullDetailPerPage = -1;
         private int refDetailPerPage = -1;
@@ -179,6 +201,11 @@ public class Configuration {
         private File otherOutputDir;
 
         private boolean zipFiles = false;
+        private StoreLayout storeLayout = StoreLayout.FLAT;
+        private WriteDurability storeWriteDurability = WriteDurability.NONE;
+        private int storeWriteBehindQueueSize = 0;
+        private RecordCodec storeCodec = RecordCodec.GZIP;
+        private String xmlInputFactory = null;
 
         private boolean changeProtectionEnabled = true;
         private double allowedUserChangeFraction;
@@ -267,6 +294,42 @@ public class Configuration {
         }
 
 
+        private StoreLayout getStoreLayout(ConfigKey configKey) {
+            ConfigValue confValue = configKey.getValue(props);
+            String testValue = StringUtils.trimToNull(confValue.getReadValue());
+            if(testValue != null) {
+                for (StoreLayout layout : StoreLayout.values()) {
+                    if (layout.name().equalsIgnoreCase(testValue)) return layout;
+                }
+            }
+            configErrors.add(MessageFormat.format("Invalid value provided for argument {0} (must be a valid store layout : \"flat\", \"hashed\" or \"segmented\")", confValue));
+            return null;
+        }
+
+        private WriteDurability getWriteDurability(ConfigKey configKey) {
+            ConfigValue confValue = configKey.getValue(props);
+            String testValue = StringUtils.trimToNull(confValue.getReadValue());
+            if(testValue != null) {
+                for (WriteDurability durability : WriteDurability.values()) {
+                    if (durability.name().equalsIgnoreCase(testValue)) return durability;
+                }
+            }
+            configErrors.add(MessageFormat.format("Invalid value provided for argument {0} (must be a valid write durability : \"none\", \"atomic\" or \"sync\")", confValue));
+            return null;
+        }
+
+        private RecordCodec getRecordCodec(ConfigKey configKey) {
+            ConfigValue confValue = configKey.getValue(props);
+            String testValue = StringUtils.trimToNull(confValue.getReadValue());
+            if(testValue != null) {
+                for (RecordCodec codec : RecordCodec.values()) {
+                    if (codec.name().equalsIgnoreCase(testValue)) return codec;
+                }
+            }
+            configErrors.add(MessageFormat.format("Invalid value provided for argument {0} (must be a valid store codec : \"gzip\", \"deflate\" or \"none\")", confValue));
+            return null;
+        }
+
         private GroupMatcher getGroupMatcher(ConfigKey groupIdsKey, ConfigKey nameRegexesKey, ConfigKey descRegexesKey) {
             List<ElementsItemId.GroupId> groupIds = new ArrayList<ElementsItemId.GroupId>();
             //allow null as that means exclude nothing
@@ -363,6 +426,14 @@ public class Configuration {
 
             values.apiSoTimeout = getInt(ARG_API_SOCKET_TIMEOUT);
             values.apiRequestDelay = getInt(ARG_API_REQUEST_DELAY);
+            values.apiRequestsPerSecond = getDouble(ARG_API_REQUESTS_PER_SECOND);
+            values.apiRequestBurst = getInt(ARG_API_REQUEST_BURST);
+            values.maxConcurrentFeeds = getInt(ARG_MAX_CONCURRENT_FEEDS);
+            values.pageFetchWindow = getInt(ARG_PAGE_FETCH_WINDOW);
+            values.apiRequestCompression = getBoolean(ARG_API_REQUEST_COMPRESSION);
+            values.apiResponseCaching = getBoolean(ARG_API_RESPONSE_CACHING);
+            values.apiResponseCacheTtl = getInt(ARG_API_RESPONSE_CACHE_TTL);
+            if(values.apiResponseCacheTtl < 0) configErrors.add(MessageFormat.format("Invalid value ({0}) provided for argument {1} (must not be negative)", values.apiResponseCacheTtl, ARG_API_RESPONSE_CACHE_TTL.getName()));
 
             values.groupsToHarvestMatcher = getGroupMatcher(ARG_PARAMS_GROUPS, ARG_PARAMS_GROUP_REGEXES, ARG_PARAMS_GROUP_DESC_REGEXES);
             values.groupsToIncludeChildrenOfMatcher = getGroupMatcher(ARG_INCLUDE_CHILD_GROUPS, ARG_INCLUDE_CHILD_GROUPS_REGEXES, ARG_INCLUDE_CHILD_GROUPS_DESC_REGEXES);
@@ -400,6 +471,12 @@ public class Configuration {
             values.ignoreSSLErrors = getBoolean(ARG_IGNORE_SSL_ERRORS);
             values.rewriteMismatchedUrls = getBoolean(ARG_REWRITE_MISMATCHED_URLS);
             values.zipFiles = getBoolean(ARG_ZIP_FILES);
+            values.storeLayout = getStoreLayout(ARG_STORE_LAYOUT);
+            values.storeWriteDurability = getWriteDurability(ARG_STORE_WRITE_DURABILITY);
+            values.storeWriteBehindQueueSize = getInt(ARG_STORE_WRITE_BEHIND_QUEUE_SIZE);
+            if(values.storeWriteBehindQueueSize < 0) configErrors.add(MessageFormat.format("Invalid value ({0}) provided for argument {1} (must not be negative)", values.storeWriteBehindQueueSize, ARG_STORE_WRITE_BEHIND_QUEUE_SIZE.getName()));
+            values.storeCodec = getRecordCodec(ARG_STORE_CODEC);
+            values.xmlInputFactory = StringUtils.trimToNull(getString(ARG_XML_INPUT_FACTORY, true));
             values.maxFragmentFileSize = getInt(ARG_MAX_FRAGMENT_FILE_SIZE);
 
             values.eligibilityFilter = getEligibilityScheme();
@@ -456,6 +533,20 @@ public class Configuration {
         return values.apiRequestDelay;
     }
 
+    public static double getApiRequestsPerSecond() { return values.apiRequestsPerSecond; }
+
+    public static int getApiRequestBurst() { return values.apiRequestBurst; }
+
+    public static int getMaxConcurrentFeeds() { return values.maxConcurrentFeeds; }
+
+    public static int getPageFetchWindow() { return values.pageFetchWindow; }
+
+    public static boolean getApiRequestCompression() { return values.apiRequestCompression; }
+
+    public static boolean getApiResponseCaching() { return values.apiResponseCaching; }
+
+    public static int getApiResponseCacheTtl() { return values.apiResponseCacheTtl; }
+
     public static int getFullDetailPerPage() {
         return values.fullDetailPerPage;
     }
@@ -566,6 +657,16 @@ public class Configuration {
         return values.zipFiles;
     }
 
+    public static StoreLayout getStoreLayout() { return values.storeLayout; }
+
+    public static WriteDurability getStoreWriteDurability() { return values.storeWriteDurability; }
+
+    public static int getStoreWriteBehindQueueSize() { return values.storeWriteBehindQueueSize; }
+
+    public static RecordCodec getStoreCodec() { return values.storeCodec; }
+
+    public static String getXmlInputFactory() { return values.xmlInputFactory; }
+
     public static boolean getChangeProtectionEnabled() {
         return values.changeProtectionEnabled;
     }
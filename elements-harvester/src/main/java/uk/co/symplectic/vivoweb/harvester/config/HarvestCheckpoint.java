@@ -0,0 +1,251 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.vivoweb.harvester.config;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Class to handle management of the "checkpoint.txt" file that records how far a full harvest has got, so that a
+ * failed full harvest can be resumed rather than having to re-fetch everything from the start.
+ *
+ * The checkpoint records:
+ *   when the full harvest started fetching (data fetched by a resumed harvest is only current as of this time),
+ *   which raw resource types have been cleared down by this harvest,
+ *   which fetch queries have completed,
+ *   and for any query in progress, the url of the next page to be fetched.
+ *
+ * The contents of the raw cache for a resource type are only trusted once that type has been cleared down by the
+ * harvest, as from then on everything in it was fetched by this harvest. Any other resource type still holds stale
+ * data from before the harvest and will be cleared down as normal when the harvest reaches it.
+ * Items from a page that was in progress when a harvest failed are re-fetched, as the checkpoint is only moved on
+ * once every item on a page has been stored. To avoid rewriting the file for every page, the progress of a query is
+ * only written every progressWriteInterval pages (cleardowns and completed queries are always written straight away),
+ * so a resumed harvest may re-fetch up to that many pages of each query that was in progress.
+ */
+@SuppressWarnings({"WeakerAccess", "UnusedReturnValue"})
+public class HarvestCheckpoint {
+
+    /**
+     * SLF4J Logger
+     */
+    final private static Logger log = LoggerFactory.getLogger(HarvestCheckpoint.class);
+
+    /**
+     * Prefixes used for each line of the checkpoint file (after the initial date line)
+     */
+    final private static String clearedPrefix = "cleared\t";
+    final private static String completedPrefix = "completed\t";
+    final private static String inProgressPrefix = "in-progress\t";
+
+    /**
+     * How many pages of progress can be recorded before the checkpoint file is rewritten
+     */
+    final private static int progressWriteInterval = 10;
+
+    /*
+        The file holding the checkpoint
+     */
+    final private File checkpointFile;
+
+    final private Date fetchStartedAt;
+    final private Set<String> clearedResourceTypes = new LinkedHashSet<String>();
+    final private Set<String> completedQueries = new LinkedHashSet<String>();
+    //query key -> url of next page to fetch.
+    final private Map<String, String> queriesInProgress = new LinkedHashMap<String, String>();
+    //pages of progress recorded since the file was last written.
+    private int unwrittenProgress = 0;
+
+    private HarvestCheckpoint(File checkpointFile, Date fetchStartedAt){
+        if(checkpointFile == null) throw new NullArgumentException("checkpointFile");
+        if(fetchStartedAt == null) throw new NullArgumentException("fetchStartedAt");
+        this.checkpointFile = checkpointFile;
+        this.fetchStartedAt = fetchStartedAt;
+    }
+
+    /**
+     * Create a new (empty) checkpoint for a full harvest that is just starting, replacing any existing checkpoint file.
+     * @param checkpointFile where the checkpoint should be stored.
+     * @param fetchStartedAt when the harvest started.
+     * @return a HarvestCheckpoint.
+     */
+    public static HarvestCheckpoint create(File checkpointFile, Date fetchStartedAt){
+        HarvestCheckpoint checkpoint = new HarvestCheckpoint(checkpointFile, fetchStartedAt);
+        checkpoint.write();
+        return checkpoint;
+    }
+
+    /**
+     * Load an existing checkpoint
+     * @param checkpointFile where the checkpoint is stored.
+     * @return a HarvestCheckpoint or null if there is no (valid) checkpoint file.
+     */
+    public static HarvestCheckpoint load(File checkpointFile){
+        if(checkpointFile == null) throw new NullArgumentException("checkpointFile");
+        if(!checkpointFile.exists()) return null;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), "utf-8"));
+            String str = reader.readLine();
+            if(str == null) throw new ParseException("checkpoint file is empty", 0);
+            HarvestCheckpoint checkpoint = new HarvestCheckpoint(checkpointFile, getDateFormat().parse(str));
+            while ((str = reader.readLine()) != null) {
+                if (str.startsWith(clearedPrefix)) {
+                    checkpoint.clearedResourceTypes.add(str.substring(clearedPrefix.length()));
+                } else if (str.startsWith(completedPrefix)) {
+                    checkpoint.completedQueries.add(str.substring(completedPrefix.length()));
+                } else if (str.startsWith(inProgressPrefix)) {
+                    String[] parts = str.substring(inProgressPrefix.length()).split("\t", 2);
+                    if(parts.length != 2) throw new ParseException(str, 0);
+                    checkpoint.queriesInProgress.put(parts[0], parts[1]);
+                } else if (str.length() != 0) {
+                    throw new ParseException(str, 0);
+                }
+            }
+            return checkpoint;
+        }
+        catch (IOException e) {
+            log.warn(MessageFormat.format("Could not load checkpoint file {0} - it will be ignored", checkpointFile.getAbsolutePath()), e);
+        }
+        catch (ParseException e) {
+            log.warn(MessageFormat.format("Checkpoint file {0} appears to be corrupt - it will be ignored", checkpointFile.getAbsolutePath()), e);
+        }
+        finally {
+            try {
+                if (reader != null) reader.close();
+            }
+            catch(IOException e){
+                log.warn("Error closing checkpoint file", e);
+            }
+        }
+        return null;
+    }
+
+    public Date getFetchStartedAt(){ return fetchStartedAt; }
+
+    /**
+     * @param resourceType the type of raw data.
+     * @return true if this harvest has already cleared down (and hence can trust the contents of) the resourceType.
+     */
+    public synchronized boolean isClearedDown(StorableResourceType resourceType){
+        return clearedResourceTypes.contains(resourceType.toString());
+    }
+
+    public synchronized void recordCleardown(StorableResourceType resourceType){
+        if(clearedResourceTypes.add(resourceType.toString())) write();
+    }
+
+    public synchronized boolean isQueryComplete(String queryKey){
+        return completedQueries.contains(queryKey);
+    }
+
+    /**
+     * @param queryKey the query.
+     * @return the url of the next page to be fetched if the query was in progress, otherwise null.
+     */
+    public synchronized String getResumeUrl(String queryKey){
+        return queriesInProgress.get(queryKey);
+    }
+
+    /**
+     * Record that a page of a query has been fully processed.
+     * @param queryKey the query.
+     * @param nextPageUrl the url of the next page of the query (null if there are no more pages).
+     */
+    public synchronized void recordProgress(String queryKey, String nextPageUrl){
+        if(nextPageUrl == null) queriesInProgress.remove(queryKey);
+        else queriesInProgress.put(queryKey, nextPageUrl);
+        if(++unwrittenProgress >= progressWriteInterval) write();
+    }
+
+    public synchronized void recordQueryComplete(String queryKey){
+        queriesInProgress.remove(queryKey);
+        completedQueries.add(queryKey);
+        write();
+    }
+
+    /**
+     * Remove the checkpoint file (i.e. once the harvest has completed successfully).
+     */
+    public synchronized void delete(){
+        if(checkpointFile.exists() && !checkpointFile.delete()){
+            log.warn(MessageFormat.format("Unable to delete checkpoint file {0}", checkpointFile.getAbsolutePath()));
+        }
+    }
+
+    @Override
+    public synchronized String toString(){
+        return MessageFormat.format("full harvest started {0}, trusted raw data: {1}, completed queries: {2}, queries in progress: {3}",
+                getDateFormat().format(fetchStartedAt), clearedResourceTypes, completedQueries, queriesInProgress.keySet());
+    }
+
+    //SimpleDateFormat is not thread safe so create as needed.
+    private static SimpleDateFormat getDateFormat(){
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    }
+
+    /**
+     * Write the checkpoint to a temporary file, sync it to disk and then move it into place so that neither a failure
+     * part way through writing nor a crash soon after can leave an empty or truncated checkpoint behind.
+     */
+    private void write(){
+        File tempFile = new File(checkpointFile.getAbsolutePath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            writer = new BufferedWriter(new OutputStreamWriter(outputStream, "utf-8"));
+            writer.write(getDateFormat().format(fetchStartedAt));
+            writer.newLine();
+            for (String type : clearedResourceTypes) {
+                writer.write(clearedPrefix + type);
+                writer.newLine();
+            }
+            for (String query : completedQueries) {
+                writer.write(completedPrefix + query);
+                writer.newLine();
+            }
+            for (Map.Entry<String, String> query : queriesInProgress.entrySet()) {
+                writer.write(inProgressPrefix + query.getKey() + "\t" + query.getValue());
+                writer.newLine();
+            }
+            writer.flush();
+            outputStream.getFD().sync();
+            writer.close();
+            writer = null;
+            Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unwrittenProgress = 0;
+        }
+        catch(IOException e){
+            //the harvest can carry on - but may not be able to resume from this point.
+            log.error(MessageFormat.format("Error writing checkpoint file {0}", checkpointFile.getAbsolutePath()), e);
+        }
+        finally{
+            try {
+                if(writer != null) writer.close();
+            }
+            catch(IOException e){
+                log.error("Error closing checkpoint file", e);
+            }
+        }
+    }
+}
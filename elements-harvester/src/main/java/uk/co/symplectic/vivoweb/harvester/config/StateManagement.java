@@ -210,8 +210,17 @@ public class StateManagement {
     }
 
     public boolean manageStateForCompleteRun(State state, int userCount, int objectCount){
+        return manageStateForCompleteRun(state, userCount, objectCount, state.getCurrentRunStartedAt());
+    }
+
+    /**
+     * Variant of manageStateForCompleteRun for when the raw cache is only up to date as of an earlier time than the
+     * start of the current run (e.g. a full harvest that was resumed from a checkpoint).
+     */
+    public boolean manageStateForCompleteRun(State state, int userCount, int objectCount, Date fetchStartedAt){
+        if(fetchStartedAt == null) throw new NullArgumentException("fetchStartedAt");
         //we don't update the date in the file if we are reprocessing as the data in the raw cache has not been altered..
-        Date dateToWrite = state.getRunClassification() == RunClassification.REPROCESSING ? state.getLastRunDate() : state.getCurrentRunStartedAt();
+        Date dateToWrite = state.getRunClassification() == RunClassification.REPROCESSING ? state.getLastRunDate() : fetchStartedAt;
         return writeStateFile(state.getCurrentRunCount(), userCount, objectCount, dateToWrite, null);
     }
 
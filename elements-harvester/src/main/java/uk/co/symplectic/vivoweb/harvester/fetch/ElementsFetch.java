@@ -11,6 +11,7 @@
 package uk.co.symplectic.vivoweb.harvester.fetch;
 
 import org.apache.commons.lang.NullArgumentException;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,20 +22,31 @@ import uk.co.symplectic.elements.api.queries.ElementsAPIFeedGroupQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedObjectQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedRelationshipQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedRelationshipTypesQuery;
+import uk.co.symplectic.vivoweb.harvester.config.HarvestCheckpoint;
 import uk.co.symplectic.vivoweb.harvester.model.*;
 import uk.co.symplectic.vivoweb.harvester.store.ElementsItemStore;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
+import uk.co.symplectic.vivoweb.harvester.store.IElementsStoredItemObserver;
 import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
+import uk.co.symplectic.vivoweb.harvester.store.WriteBehindItemStore;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdSet;
+import uk.co.symplectic.utils.ByteArrayBufferPool;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.utils.xml.StAXUtils;
+import uk.co.symplectic.utils.xml.XMLDocumentSource;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Classes designed to facilitate fetching of data from an ElementsAPI object and storing them in a ElementsItemStore object.
@@ -47,10 +59,14 @@ public class ElementsFetch {
 
     /**
      * General purpose XMLEventFilterWrapper designed to wrap an ItemExtractingFilter T that extracts an item of type S
-     * For every entry processed by the filter. The Raw XML that was parsed to create the extracted item S is internally
-     * stored (by outputting all the processed events passing through this wrapper to an XMLOutputStream) and then stored
-     * in a byte array. The extracted Item S and the byte array representing the raw data that was parsed to extract S
-     * are then passed to an abstract method (processItem).
+     * For every entry processed by the filter. The Raw XML that was parsed to create the extracted item S is captured
+     * in a byte array, wrapped in the specified root element. The extracted Item S and the byte array representing the
+     * raw data that was parsed to extract S are then passed to an abstract method (processItem).
+     *
+     * When the processor is given the raw bytes of the document (see XMLDocumentSource) the item's XML is copied
+     * straight out of them into an array of exactly the right size, with the namespaces the item inherited declared on
+     * the root element. Otherwise the events passing through this wrapper are re-serialised with an XMLEventWriter
+     * (which needs the raw XMLEvents) into a pooled buffer.
      * @param <S> Type of Item to be extracted.
      * @param <T> Type of Inner Filter that extracts an Item of type S.
      */
@@ -58,8 +74,21 @@ public class ElementsFetch {
 
         private static final int logProgressEveryN = 1000;
 
+        private static final Charset utf8 = Charset.forName("utf-8");
+        //buffers used when re-serialising the events of each item.
+        private static final ByteArrayBufferPool dataBuffers = new ByteArrayBufferPool(32, 16 * 1024, 1024 * 1024);
+        private static final String xmlDeclaration = "<?xml version='1.0' encoding='UTF-8'?>";
+
         private XMLEventWriter writer = null;
-        private ByteArrayOutputStream dataStream = null;
+        private ByteArrayBufferPool.PooledBuffer dataStream = null;
+        //details of the item currently being copied from the document source (if there is one).
+        private XMLDocumentSource itemSource = null;
+        private int itemStartOffset = -1;
+        //the bytes written before and after each item copied from the document source - these only change if the
+        //namespaces the items inherit do (i.e. practically never), so are kept along with the namespaces they declare.
+        private Map<String, String> wrappedNamespaces = null;
+        private byte[] itemPrefix = null;
+        private byte[] itemSuffix = null;
         private final XMLEventFactory eventFactory = StAXUtils.getXMLEventFactory();
         private final QName rootElement;
         private final String itemDescriptor;
@@ -79,37 +108,107 @@ public class ElementsFetch {
             this.itemDescriptor = trimmedDescriptor == null ? "items" : itemDescriptor;
         }
 
+        //items are copied from the document source if the processor provides it, and the raw events are only needed if not.
+        //Without a root element there is nowhere to declare the namespaces in scope, so the events are always re-serialised.
+        @Override
+        protected boolean requiresRawEvents() { return rootElement == null; }
+
+        @Override
+        protected boolean usesDocumentSource() { return rootElement != null; }
+
         @Override
         protected void postInnerItemStart(XMLEventProcessor.WrappedXmlEvent initialEvent) throws XMLStreamException {
-            XMLOutputFactory factory = StAXUtils.getXMLOutputFactory();
-            dataStream = new ByteArrayOutputStream();
-            writer = factory.createXMLEventWriter(dataStream, "utf-8");
-            writer.add(eventFactory.createStartDocument());
-            if(rootElement != null) writer.add(eventFactory.createStartElement(rootElement, null, null));
+            itemSource = initialEvent.getSource();
+            if(itemSource != null) {
+                QName name = initialEvent.getName();
+                String tagName = StringUtils.isEmpty(name.getPrefix()) ? name.getLocalPart() : name.getPrefix() + ":" + name.getLocalPart();
+                itemStartOffset = itemSource.getByteOffset(initialEvent.getSourceOffset());
+                //guard against a parser that reports offsets we do not understand - we must never store mangled data.
+                if(!itemSource.matches(itemStartOffset, ("<" + tagName).getBytes(utf8)))
+                    throw new IllegalStateException(MessageFormat.format("Location reported by the XML parser does not match the start of <{0}>", tagName));
+                Map<String, String> inheritedNamespaces = initialEvent.getInheritedNamespaces();
+                if(!inheritedNamespaces.equals(wrappedNamespaces)) prepareItemWrapper(inheritedNamespaces);
+            }
+            else {
+                dataStream = dataBuffers.acquire();
+                XMLOutputFactory factory = StAXUtils.getXMLOutputFactory();
+                writer = factory.createXMLEventWriter(dataStream, "utf-8");
+                writer.add(eventFactory.createStartDocument());
+                if(rootElement != null) writer.add(eventFactory.createStartElement(rootElement, null, null));
+            }
         }
 
         @Override
         protected void postInnerProcessEvent(XMLEventProcessor.WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException {
-            writer.add(event.getRawEvent());
+            if(itemSource == null) writer.add(event.getRawEvent());
         }
 
         @Override
         protected void postInnerItemEnd(XMLEventProcessor.WrappedXmlEvent finalEvent) throws XMLStreamException {
-            if(rootElement != null) writer.add(eventFactory.createEndElement(rootElement, null));
-            writer.add(eventFactory.createEndDocument());
-            writer.close();
             try {
+                byte[] data;
+                if(itemSource != null) {
+                    //the end tag (or, for an empty element, the start tag) is at the offset of the final event.
+                    int itemEndOffset = itemSource.getTagEnd(itemSource.getByteOffset(finalEvent.getSourceOffset()));
+                    int itemLength = itemEndOffset - itemStartOffset;
+                    data = new byte[itemPrefix.length + itemLength + itemSuffix.length];
+                    System.arraycopy(itemPrefix, 0, data, 0, itemPrefix.length);
+                    itemSource.copyTo(data, itemPrefix.length, itemStartOffset, itemEndOffset);
+                    System.arraycopy(itemSuffix, 0, data, itemPrefix.length + itemLength, itemSuffix.length);
+                }
+                else {
+                    if(rootElement != null) writer.add(eventFactory.createEndElement(rootElement, null));
+                    writer.add(eventFactory.createEndDocument());
+                    writer.close();
+                    data = dataStream.toByteArray();
+                }
+
                 S item = innerFilter.getExtractedItem();
                 counter++;
                 if(counter % logProgressEveryN == 0) {
                     log.info(MessageFormat.format("{0} {1} processed and stored", counter, itemDescriptor));
                 }
 
-                processItem(item, dataStream.toByteArray());
+                processItem(item, data);
             }
             catch(IOException e){
                 throw new IllegalStateException(e);
             }
+            finally {
+                if(dataStream != null) dataBuffers.release(dataStream);
+                dataStream = null;
+                writer = null;
+                itemSource = null;
+            }
+        }
+
+        /*
+        Prepares the XML declaration and root element start tag written before an item copied from the document source,
+        and the root element end tag written after it. All the namespaces the item inherited from where it was found are
+        declared on the root element so that the copied XML means exactly what it did there.
+        If the root element's namespace is not the default namespace in scope it is bound to a prefix that is not.
+         */
+        private void prepareItemWrapper(Map<String, String> inheritedNamespaces) {
+            String defaultNamespace = inheritedNamespaces.containsKey("") ? inheritedNamespaces.get("") : "";
+            String rootPrefix = "";
+            if(!rootElement.getNamespaceURI().equals(defaultNamespace)) {
+                int suffix = 0;
+                do { rootPrefix = "root" + suffix++; } while (inheritedNamespaces.containsKey(rootPrefix));
+            }
+            String rootTagName = rootPrefix.length() == 0 ? rootElement.getLocalPart() : rootPrefix + ":" + rootElement.getLocalPart();
+            StringBuilder tag = new StringBuilder(xmlDeclaration).append('<').append(rootTagName);
+            if(rootPrefix.length() > 0) appendNamespaceDeclaration(tag, rootPrefix, rootElement.getNamespaceURI());
+            for(Map.Entry<String, String> namespace : inheritedNamespaces.entrySet()) {
+                appendNamespaceDeclaration(tag, namespace.getKey(), namespace.getValue());
+            }
+            tag.append('>');
+            wrappedNamespaces = inheritedNamespaces;
+            itemPrefix = tag.toString().getBytes(utf8);
+            itemSuffix = ("</" + rootTagName + ">").getBytes(utf8);
+        }
+
+        private static void appendNamespaceDeclaration(StringBuilder tag, String prefix, String uri) {
+            tag.append(prefix.length() == 0 ? " xmlns" : " xmlns:" + prefix).append("=\"").append(StringEscapeUtils.escapeXml(uri)).append('"');
         }
 
         /**
@@ -188,6 +287,63 @@ public class ElementsFetch {
         }
     }
 
+    /**
+     * Simple wrapper that serialises all calls into the wrapped ElementsItemStore.
+     * Used when queries are being executed concurrently so that the underlying store (and any observers attached to it)
+     * only ever see one storeItem or deleteItem call at a time, whilst the network and parsing work proceeds in parallel.
+     */
+    private static class SynchronizedItemStore implements ElementsItemStore {
+        protected final ElementsItemStore innerStore;
+
+        static ElementsItemStore wrap(ElementsItemStore store){
+            if(store instanceof ElementsItemStore.ElementsDeletableItemStore)
+                return new SynchronizedDeletableItemStore((ElementsItemStore.ElementsDeletableItemStore) store);
+            return new SynchronizedItemStore(store);
+        }
+
+        private SynchronizedItemStore(ElementsItemStore innerStore){
+            if(innerStore == null) throw new NullArgumentException("innerStore");
+            this.innerStore = innerStore;
+        }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            synchronized (innerStore) {
+                return innerStore.storeItem(itemInfo, resourceType, data);
+            }
+        }
+    }
+
+    private static class SynchronizedDeletableItemStore extends SynchronizedItemStore implements ElementsItemStore.ElementsDeletableItemStore {
+        private final ElementsItemStore.ElementsDeletableItemStore innerDeletableStore;
+
+        private SynchronizedDeletableItemStore(ElementsItemStore.ElementsDeletableItemStore innerStore){
+            super(innerStore);
+            this.innerDeletableStore = innerStore;
+        }
+
+        @Override
+        public ElementsStoredItemInfo touchItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, IElementsStoredItemObserver... explicitObservers) throws IOException {
+            synchronized (innerStore) {
+                return innerDeletableStore.touchItem(itemInfo, resourceType, explicitObservers);
+            }
+        }
+
+        @Override
+        public void deleteItem(ElementsItemId itemId, StorableResourceType resourceType) throws IOException {
+            synchronized (innerStore) {
+                innerDeletableStore.deleteItem(itemId, resourceType);
+            }
+        }
+
+        @Override
+        public void cleardown(StorableResourceType resourceType, boolean followObservers) throws IOException {
+            synchronized (innerStore) {
+                innerDeletableStore.cleardown(resourceType, followObservers);
+            }
+        }
+    }
+
     /**
      * The FetchConfig class and its various subclasses represent the concept of a set or type of data to be retrieved
      * from the ElementsAPI by the ElementsFetch class.
@@ -391,7 +547,7 @@ public class ElementsFetch {
         protected Collection<DescribedQuery> getQueries(boolean fullDetails){
             String description = MessageFormat.format("Re-pulling {0} relationships for modified objects", relationshipsToProcess.size());
             DescribedQuery query = new DescribedQuery(
-                    new ElementsAPIFeedRelationshipQuery.IdList(new HashSet<ElementsItemId.RelationshipId>(relationshipsToProcess)), description
+                    new ElementsAPIFeedRelationshipQuery.IdList(new ElementsItemIdSet<ElementsItemId.RelationshipId>(relationshipsToProcess)), description
             );
             return Collections.singletonList(query);
         }
@@ -454,35 +610,235 @@ public class ElementsFetch {
     private static Logger log = LoggerFactory.getLogger(ElementsFetch.class);
     //the api to fetch data from
     final private ElementsAPI elementsAPI;
+    //how many query partitions (feeds) can be in flight at once - 1 or less means run everything serially.
+    final private int maxConcurrentFeeds;
+    //pool used to run query partitions when maxConcurrentFeeds > 1 - created on first use.
+    private ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> fetchPool = null;
+    //how many fetched items can be waiting to be written to the store (see WriteBehindItemStore) - 0 means none.
+    final private int writeBehindQueueSize;
 
     /**
      * ElementsFetch constructor accepting the ElementsAPI object that will be the source of all data fetched.
+     * All queries will be executed serially.
      * @param api the ElementsAPI from which data will be fetched
      */
     public ElementsFetch(ElementsAPI api) {
+        this(api, 1);
+    }
+
+    /**
+     * ElementsFetch constructor accepting the ElementsAPI object that will be the source of all data fetched
+     * along with the maximum number of feeds that may be fetched concurrently.
+     * @param api the ElementsAPI from which data will be fetched
+     * @param maxConcurrentFeeds how many query partitions may be in flight at once (1 or less means serial execution).
+     */
+    public ElementsFetch(ElementsAPI api, int maxConcurrentFeeds) {
+        this(api, maxConcurrentFeeds, 0);
+    }
+
+    /**
+     * ElementsFetch constructor accepting the ElementsAPI object that will be the source of all data fetched
+     * along with the maximum number of feeds that may be fetched concurrently and how far writing the fetched items to
+     * the store may fall behind parsing them.
+     * @param api the ElementsAPI from which data will be fetched
+     * @param maxConcurrentFeeds how many query partitions may be in flight at once (1 or less means serial execution).
+     * @param writeBehindQueueSize how many fetched items may be waiting to be written to the store
+     *                             (0 means each item is written before the next is parsed).
+     */
+    public ElementsFetch(ElementsAPI api, int maxConcurrentFeeds, int writeBehindQueueSize) {
         if (api == null) throw new NullArgumentException("api");
+        if (writeBehindQueueSize < 0) throw new IllegalArgumentException("writeBehindQueueSize must not be negative");
         this.elementsAPI = api;
+        this.maxConcurrentFeeds = maxConcurrentFeeds;
+        this.writeBehindQueueSize = writeBehindQueueSize;
     }
 
     /**
      * execute call to process the provided FetchConfig, which will retrieve the specified data from the configured
      * ElementsAPI and store (or delete) it in the provided ElementsItemStore
+     * This call does not return until all the queries represented by the config have completed, regardless of whether
+     * the queries are executed serially or concurrently, and everything fetched has been written to the store.
      * @param config the "FetchConfig" to process
      * @param objectStore where the fetched data should be stored (or deleted).
      * @throws IOException if errors occur.
      */
-    @SuppressWarnings("RedundantThrows")
     public void execute(FetchConfig config, ElementsItemStore objectStore)throws IOException {
+        execute(config, objectStore, null);
+    }
+
+    /**
+     * execute call to process the provided FetchConfig, recording progress in the provided checkpoint so that the
+     * fetch can be resumed if it fails part way through.
+     * Any queries the checkpoint records as complete are skipped and any query it records as in progress is resumed
+     * from the next page that had not yet been processed. Queries are identified by their description.
+     * Note: resuming is only supported for FetchConfigs whose queries each consist of a single query url.
+     * @param config the "FetchConfig" to process
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @param checkpoint where progress should be recorded (can be null, in which case progress is not recorded).
+     * @throws IOException if errors occur.
+     */
+    public void execute(FetchConfig config, ElementsItemStore objectStore, HarvestCheckpoint checkpoint)throws IOException {
         if(config == null) throw new NullArgumentException("config");
         if (objectStore == null) throw new NullArgumentException("objectStore");
+        if(writeBehindQueueSize == 0) {
+            executeQueries(config, objectStore, checkpoint);
+            return;
+        }
+        //write the fetched items in the background, so that parsing carries on whilst they are written.
+        //everything must be written before returning, as callers go on to read the store back.
+        WriteBehindItemStore writeBehindStore = WriteBehindItemStore.wrap(objectStore, writeBehindQueueSize);
+        boolean completed = false;
+        try {
+            executeQueries(config, writeBehindStore, checkpoint);
+            completed = true;
+        }
+        finally {
+            //if the queries failed, still wait for what was queued, but don't let a write failure hide the original one.
+            try {
+                writeBehindStore.close();
+            }
+            catch (IOException e) {
+                if (completed) throw e;
+                log.error("Error writing fetched items to the store", e);
+            }
+        }
+    }
+
+    //run all the queries of the config, either serially or concurrently.
+    private void executeQueries(FetchConfig config, ElementsItemStore objectStore, HarvestCheckpoint checkpoint) {
+        if(maxConcurrentFeeds > 1) {
+            executeConcurrently(config, objectStore, checkpoint);
+            return;
+        }
         for (FetchConfig.DescribedQuery describedQuery : config.getQueries()) {
             if (describedQuery != null) {
                 log.info(describedQuery.description);
-                elementsAPI.executeQuery(describedQuery.query, describedQuery.getExtractor(objectStore));
+                executeQuery(describedQuery, objectStore, checkpoint);
             }
         }
     }
 
+    /**
+     * Internal method to run a single DescribedQuery to completion, skipping or resuming it based on the checkpoint.
+     * @param describedQuery the query to run.
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @param checkpoint where progress should be recorded (can be null).
+     */
+    private void executeQuery(FetchConfig.DescribedQuery describedQuery, final ElementsItemStore objectStore, final HarvestCheckpoint checkpoint){
+        if(checkpoint == null) {
+            elementsAPI.executeQuery(describedQuery.query, describedQuery.getExtractor(objectStore));
+            return;
+        }
+        final String queryKey = describedQuery.description;
+        if(checkpoint.isQueryComplete(queryKey)) {
+            log.info(MessageFormat.format("Skipping \"{0}\" as it was completed before the last checkpoint", queryKey));
+            return;
+        }
+        ElementsAPI.QueryProgressListener progressListener = new ElementsAPI.QueryProgressListener() {
+            @Override
+            public void pageProcessed(String nextPageUrl) {
+                flushWrites(objectStore);
+                checkpoint.recordProgress(queryKey, nextPageUrl);
+            }
+        };
+        elementsAPI.executeQuery(describedQuery.query, checkpoint.getResumeUrl(queryKey), progressListener, describedQuery.getExtractor(objectStore));
+        flushWrites(objectStore);
+        checkpoint.recordQueryComplete(queryKey);
+    }
+
+    //progress must not be recorded until the items fetched so far are actually in the store.
+    private static void flushWrites(ElementsItemStore objectStore){
+        if(!(objectStore instanceof WriteBehindItemStore)) return;
+        try {
+            ((WriteBehindItemStore) objectStore).flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Error writing fetched items to the store", e);
+        }
+    }
+
+    /**
+     * Internal method to process the provided FetchConfig with up to maxConcurrentFeeds query partitions in flight at once.
+     * Queries that fetch new/updated items are all run first, and only once they have ALL completed are the queries
+     * representing deleted items run. This ensures that a deletion is always applied after any store of the same item
+     * (as would be the case if the queries were run serially).
+     * @param config the "FetchConfig" to process
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @param checkpoint where progress should be recorded (can be null).
+     */
+    private void executeConcurrently(FetchConfig config, ElementsItemStore objectStore, HarvestCheckpoint checkpoint) {
+        //the filters run on the pool threads, so make sure the store only sees one call at a time
+        //(a write behind store already ensures that).
+        ElementsItemStore synchronizedStore = objectStore instanceof WriteBehindItemStore ? objectStore : SynchronizedItemStore.wrap(objectStore);
+        List<FetchConfig.DescribedQuery> updateQueries = new ArrayList<FetchConfig.DescribedQuery>();
+        List<FetchConfig.DescribedQuery> deletionQueries = new ArrayList<FetchConfig.DescribedQuery>();
+        for (FetchConfig.DescribedQuery describedQuery : config.getQueries()) {
+            if (describedQuery != null) {
+                if (describedQuery.query.queryRepresentsDeletedItems()) deletionQueries.add(describedQuery);
+                else updateQueries.add(describedQuery);
+            }
+        }
+        executeConcurrently(updateQueries, synchronizedStore, checkpoint);
+        executeConcurrently(deletionQueries, synchronizedStore, checkpoint);
+    }
+
+    /**
+     * Internal method to run all the partitions of the provided queries on the fetch pool and wait for them to complete.
+     * Each partition is given its own extractor (the filters are stateful so cannot be shared between threads).
+     * If any partition fails the remaining partitions are cancelled and an IllegalStateException is thrown.
+     * The tasks are not tracked by the (shared) pool, as their outcome is dealt with here - so a failed or cancelled
+     * partition cannot surface later from another feed's submit.
+     * When checkpointing, each query is run as a single task (as progress is recorded per query, not per partition).
+     * @param queries the DescribedQueries to run.
+     * @param objectStore where the fetched data should be stored (or deleted) - must be safe for concurrent use.
+     * @param checkpoint where progress should be recorded (can be null).
+     */
+    private void executeConcurrently(List<FetchConfig.DescribedQuery> queries, final ElementsItemStore objectStore, final HarvestCheckpoint checkpoint) {
+        if(queries.isEmpty()) return;
+        List<Future<Boolean>> tasks = new ArrayList<Future<Boolean>>();
+        for (final FetchConfig.DescribedQuery describedQuery : queries) {
+            log.info(describedQuery.description);
+            if(checkpoint != null) {
+                tasks.add(getFetchPool().submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        executeQuery(describedQuery, objectStore, checkpoint);
+                        return true;
+                    }
+                }, false));
+                continue;
+            }
+            List<ElementsAPI.QueryPartition> partitions = elementsAPI.partitionQuery(describedQuery.query, null);
+            for(final ElementsAPI.QueryPartition partition : partitions) {
+                tasks.add(getFetchPool().submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        elementsAPI.executeQuery(partition, describedQuery.getExtractor(objectStore));
+                        return true;
+                    }
+                }, false));
+            }
+        }
+        try {
+            for (Future<Boolean> task : tasks) task.get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Error executing concurrent API query", e.getCause());
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted whilst waiting for concurrent API queries to complete", e);
+        }
+        finally {
+            //if anything went wrong make sure we don't leave partitions running in the background.
+            for (Future<Boolean> task : tasks) task.cancel(true);
+        }
+    }
+
+    private synchronized ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> getFetchPool(){
+        if(fetchPool == null) fetchPool = ExecutorServiceUtils.newFixedIOThreadPool("ElementsFetch", maxConcurrentFeeds);
+        return fetchPool;
+    }
+
     public ElementsAPIVersion getApiVersion(){ return elementsAPI.getVersion(); }
 }
 
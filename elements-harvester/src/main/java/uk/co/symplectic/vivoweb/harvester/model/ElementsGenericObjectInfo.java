@@ -10,6 +10,10 @@
  */
 package uk.co.symplectic.vivoweb.harvester.model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Subclass of ElementsObjectInfo to represent an Elements Object of a type you have no special need to store extra data
  * about. Exposes nothing more than the base abstract class. Used for everything except users as things stand.
@@ -24,4 +28,16 @@ class ElementsGenericObjectInfo extends ElementsObjectInfo {
     ElementsGenericObjectInfo(ElementsObjectCategory category, int id) {
         super(category, id);
     }
+
+    //only the id is held about generic objects.
+    static ElementsObjectInfo readRecordData(DataInput input) throws IOException {
+        ElementsItemId.ObjectId objectId = readObjectId(input);
+        return ElementsItemInfo.createObjectItem((ElementsObjectCategory) objectId.getItemSubType(), objectId.getId());
+    }
+
+    @Override
+    public void writeRecord(DataOutput output) throws IOException {
+        output.writeByte(OBJECT_RECORD);
+        writeObjectId(output, getObjectId());
+    }
 }
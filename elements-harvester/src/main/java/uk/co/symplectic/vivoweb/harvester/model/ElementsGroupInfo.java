@@ -17,6 +17,9 @@ import org.w3c.dom.Element;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -114,6 +117,26 @@ public class ElementsGroupInfo extends ElementsItemInfo{
     public ElementsItemId.GroupId getParentId() { return parentId; }
     private void setParentId(Integer parentId) { this.parentId = parentId == null ? null : ElementsItemId.createGroupId(parentId); }
 
+    static ElementsGroupInfo readRecordData(DataInput input) throws IOException {
+        ElementsGroupInfo groupInfo = new ElementsGroupInfo(input.readInt());
+        if(input.readBoolean()) groupInfo.setParentId(input.readInt());
+        groupInfo.setMembershipFeedUrl(readNullableString(input));
+        groupInfo.setName(readNullableString(input));
+        groupInfo.setDescription(readNullableString(input));
+        return groupInfo;
+    }
+
+    @Override
+    public void writeRecord(DataOutput output) throws IOException {
+        output.writeByte(GROUP_RECORD);
+        output.writeInt(getItemId().getId());
+        output.writeBoolean(parentId != null);
+        if(parentId != null) output.writeInt(parentId.getId());
+        writeNullableString(output, membershipFeedUrl);
+        writeNullableString(output, name);
+        writeNullableString(output, description);
+    }
+
 
     /**
      * The GroupHierarchyWrapper is a wrapper for the basic ElementsGroupInfo object that represents the fact that an
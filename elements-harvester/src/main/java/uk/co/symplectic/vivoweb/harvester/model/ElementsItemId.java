@@ -11,7 +11,6 @@
 package uk.co.symplectic.vivoweb.harvester.model;
 
 import org.apache.commons.lang.NullArgumentException;
-import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import java.text.MessageFormat;
 
@@ -23,6 +22,9 @@ import java.text.MessageFormat;
  *
  * These items are "equatable" and sensibly handle hashcode's so can be used in sets for comparison purposes, etc.
  * Construction requires that you use one of the static createXXXXId methods.
+ *
+ * An id can also be packed into a long (see asLong and fromLong), which is how the large collections of ids the harvester
+ * keeps track of are held (see ElementsItemIdSet and ElementsItemIdMap).
  */
 
 public class ElementsItemId{
@@ -52,9 +54,33 @@ public class ElementsItemId{
         return id;
     }
 
+    /**
+     * @return this id packed into a long: the index of its subtype (see ElementsItemType.SubType.getIndex) in the upper
+     * 32 bits and its integer identifier in the lower 32. As subtype indexes are assigned at runtime the value must not
+     * be persisted.
+     */
+    public long asLong(){
+        return ((long) subType.getIndex() << 32) | (id & 0xffffffffL);
+    }
+
+    /**
+     * @param value an id packed by asLong
+     * @return the id, as the concrete ElementsItemId subclass for its subtype.
+     */
+    public static ElementsItemId fromLong(long value){
+        ElementsItemType.SubType subType = ElementsItemType.getSubType((int) (value >>> 32));
+        int id = (int) value;
+        if(subType instanceof ElementsObjectCategory) return new ObjectId((ElementsObjectCategory) subType, id);
+        if(subType == ElementsItemType.GenericGroup) return new GroupId(id);
+        if(subType == ElementsItemType.GenericRelationship) return new RelationshipId(id);
+        if(subType == ElementsItemType.GenericRelationshipType) return new RelationshipTypeId(id);
+        throw new IllegalStateException(MessageFormat.format("No ElementsItemId class exists for subtype {0}", subType.getSingular()));
+    }
+
     @Override
     public int hashCode(){
-        return new HashCodeBuilder(17,31).append(this.getItemDescriptor()).append(this.getId()).toHashCode();
+        //subtypes are registered singletons, so their index identifies them as well as their descriptor does
+        return 31 * subType.getIndex() + id;
     }
 
     @Override
@@ -63,9 +89,7 @@ public class ElementsItemId{
         if(obj == this) return true;
 
         ElementsItemId objAsID = (ElementsItemId) obj;
-        //noinspection SimplifiableIfStatement
-        if(!(this.getItemDescriptor().equals(objAsID.getItemDescriptor()))) return false;
-        return this.getId() == (objAsID.getId());
+        return this.subType == objAsID.subType && this.id == objAsID.id;
     }
 
     @Override
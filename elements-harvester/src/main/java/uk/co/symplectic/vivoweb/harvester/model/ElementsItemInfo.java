@@ -14,6 +14,11 @@ package uk.co.symplectic.vivoweb.harvester.model;
 import org.apache.commons.lang.NullArgumentException;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.MessageFormat;
+
 /**
  * A class to represent the concept of a set of data about an Elements Item (represented by the corresponding itemId).
  * This class primarily acts to provide a static place from which the concrete implementations for different types
@@ -27,6 +32,10 @@ import uk.co.symplectic.utils.xml.XMLEventProcessor;
  * Also exposes "getExtractor" which provides a single place to request an XMLEventProcessor.ItemExtractingFilter
  * That can extract an object if a particular type from a given ExtractionSource.
  * This delegates to the various Extractor inner classes defined within the concrete sub-classes
+ *
+ * Finally objects, relationships and groups can be written to (and read back from) a compact binary "record"
+ * (see writeRecord and readRecord) holding the same data as their Extractors pull out of the XML.
+ * This is what the ElementsItemInfoIndex uses to avoid re-parsing the raw data store.
  */
 
 @SuppressWarnings("WeakerAccess")
@@ -66,6 +75,54 @@ public abstract class ElementsItemInfo {
         }
     }
 
+    //Record kinds - the first byte of every record written by writeRecord.
+    static final byte OBJECT_RECORD = 0;
+    static final byte USER_RECORD = 1;
+    static final byte RELATIONSHIP_RECORD = 2;
+    static final byte GROUP_RECORD = 3;
+
+    /**
+     * Read back an ElementsItemInfo from a record created by writeRecord.
+     * @param input where to read the record from
+     * @return the ElementsItemInfo
+     * @throws IOException if the record cannot be read or is not valid
+     */
+    public static ElementsItemInfo readRecord(DataInput input) throws IOException {
+        byte kind = input.readByte();
+        switch(kind){
+            case OBJECT_RECORD : return ElementsGenericObjectInfo.readRecordData(input);
+            case USER_RECORD : return ElementsUserInfo.readRecordData(input);
+            case RELATIONSHIP_RECORD : return ElementsRelationshipInfo.readRecordData(input);
+            case GROUP_RECORD : return ElementsGroupInfo.readRecordData(input);
+            default : throw new IOException(MessageFormat.format("Unknown item record kind {0}", kind));
+        }
+    }
+
+    //helpers for writing the parts of records that may be null
+    static void writeNullableString(DataOutput output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if(value != null) output.writeUTF(value);
+    }
+
+    static String readNullableString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    static void writeObjectId(DataOutput output, ElementsItemId.ObjectId objectId) throws IOException {
+        output.writeUTF(objectId.getItemSubType().getSingular());
+        output.writeInt(objectId.getId());
+    }
+
+    static ElementsItemId.ObjectId readObjectId(DataInput input) throws IOException {
+        String category = input.readUTF();
+        try {
+            return ElementsItemId.createObjectId(ElementsObjectCategory.valueOf(category), input.readInt());
+        }
+        catch(IndexOutOfBoundsException e){
+            throw new IOException(MessageFormat.format("Unknown object category {0} in item record", category), e);
+        }
+    }
+
     //Main class definition
     private final ElementsItemId itemId;
 
@@ -77,6 +134,16 @@ public abstract class ElementsItemInfo {
     //methods that may need overriding in concrete subclasses
     public ElementsItemId getItemId() { return itemId; }
 
+    /**
+     * Write the data held about this item as a compact binary record (which can be read back with readRecord).
+     * @param output where to write the record
+     * @throws IOException if the record cannot be written
+     * @throws UnsupportedOperationException if this type of item cannot be written as a record
+     */
+    public void writeRecord(DataOutput output) throws IOException {
+        throw new UnsupportedOperationException(MessageFormat.format("{0} cannot be written as an item record", getItemId()));
+    }
+
     //paired is/as methods to simplify access to concrete subtypes in code.
     public boolean isObjectInfo(){
         return this instanceof ElementsObjectInfo;
@@ -118,4 +185,4 @@ public abstract class ElementsItemInfo {
         return null;
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
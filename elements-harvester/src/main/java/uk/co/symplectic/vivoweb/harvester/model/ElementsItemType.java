@@ -16,6 +16,7 @@ import org.apache.commons.lang.StringUtils;
 
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * enum representing the concept of a "type" of data from Elements
@@ -62,12 +63,17 @@ public enum ElementsItemType{
      */
     private static final Map<ElementsItemType, Map<String, SubType>> singularMap = new HashMap<ElementsItemType, Map<String, SubType>>();
     private static final Map<ElementsItemType, Map<String, SubType>> pluralMap = new HashMap<ElementsItemType, Map<String, SubType>>();
+    /**
+     * SubType's in the order they were registered, so that each can be identified by a small index (see SubType.getIndex)
+     */
+    private static final List<SubType> subTypesByIndex = new CopyOnWriteArrayList<SubType>();
 
     /**
      * method to register an item type in the maps above (called by constructor within SubType class)
      * @param subType the Subtype to be registered in the static type maps
+     * @return the index assigned to the subType
      */
-    private static synchronized void addSubType(SubType subType){
+    private static synchronized int addSubType(SubType subType){
         ElementsItemType mainType = subType.getMainType();
         if(!singularMap.containsKey(mainType)) singularMap.put(mainType, new HashMap<String, SubType>());
         if(!pluralMap.containsKey(mainType)) pluralMap.put(mainType, new HashMap<String, SubType>());
@@ -75,6 +81,20 @@ public enum ElementsItemType{
         if (singularMap.get(mainType).put(subType.getSingular(), subType) != null || pluralMap.get(mainType).put(subType.getPlural(), subType) != null) {
             throw new IllegalStateException(MessageFormat.format("Duplicate value given for singular / plural in ElementsItemType {0}'s SubTypes", mainType.getName()));
         }
+        subTypesByIndex.add(subType);
+        return subTypesByIndex.size() - 1;
+    }
+
+    /**
+     * Method to retrieve a registered subtype by its index
+     * @param index The index of the desired subType (see SubType.getIndex).
+     * @return The desired type
+     */
+    public static SubType getSubType(int index) {
+        if (index < 0 || index >= subTypesByIndex.size()) {
+            throw new IndexOutOfBoundsException(MessageFormat.format("{0} is not the index of a known subtype", Integer.toString(index)));
+        }
+        return subTypesByIndex.get(index);
     }
 
     /**
@@ -110,6 +130,7 @@ public enum ElementsItemType{
         private final ElementsItemType mainType;
         private final String singular;
         private final String plural;
+        private final int index;
 
         public ElementsItemType getMainType() { return mainType; }
         public String getSingular() { return singular; }
@@ -117,6 +138,12 @@ public enum ElementsItemType{
             return plural;
         }
 
+        /**
+         * @return a small index identifying this subtype, assigned as subtypes are registered (so it is only
+         * meaningful within this process and must not be persisted).
+         */
+        public int getIndex() { return index; }
+
         protected SubType(ElementsItemType mainType, String singular, String plural){
             if (StringUtils.trimToNull(singular) == null) throw new NullArgumentException("singular");
             if (StringUtils.trimToNull(plural) == null) throw new NullArgumentException("plural");
@@ -124,7 +151,7 @@ public enum ElementsItemType{
             this.singular = singular;
             this.plural = plural;
             //add to parent dictionaries
-            addSubType(this);
+            this.index = addSubType(this);
         }
     }
 
@@ -134,4 +161,4 @@ public enum ElementsItemType{
         }
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
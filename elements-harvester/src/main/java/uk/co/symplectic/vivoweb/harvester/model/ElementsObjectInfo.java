@@ -72,6 +72,10 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
         private static String labelSchemeName = null;
         private static String genericFieldName = null;
 
+        //the user label scheme and generic field whose values are extracted (null if not being extracted).
+        public static String getLabelSchemeName() { return labelSchemeName; }
+        public static String getGenericFieldName() { return genericFieldName; }
+
         private ElementsObjectInfo workspace  = null;
         private ElementsUserInfo.UserExtraData additionalUserData = null;
 
@@ -13,6 +13,9 @@ package uk.co.symplectic.vivoweb.harvester.model;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -143,6 +146,26 @@ public class ElementsRelationshipInfo extends ElementsItemInfo{
 
     public List<ElementsItemId.ObjectId> getObjectIds() { return Collections.unmodifiableList(objectIds); }
 
+    static ElementsRelationshipInfo readRecordData(DataInput input) throws IOException {
+        ElementsRelationshipInfo relationshipInfo = new ElementsRelationshipInfo(input.readInt());
+        relationshipInfo.setType(readNullableString(input));
+        relationshipInfo.setIsVisible(input.readBoolean());
+        int objectCount = input.readUnsignedByte();
+        for(int i = 0; i < objectCount; i++) relationshipInfo.addObjectId(readObjectId(input));
+        return relationshipInfo;
+    }
+
+    @Override
+    public void writeRecord(DataOutput output) throws IOException {
+        output.writeByte(RELATIONSHIP_RECORD);
+        output.writeInt(getItemId().getId());
+        writeNullableString(output, type);
+        output.writeBoolean(isVisible);
+        //completeness is not recorded as it is derived from the number of linked objects.
+        output.writeByte(objectIds.size());
+        for(ElementsItemId.ObjectId objectId : objectIds) writeObjectId(output, objectId);
+    }
+
     @Override
     public String toString(){
         StringBuilder builder = new StringBuilder(this.getItemId().toString());
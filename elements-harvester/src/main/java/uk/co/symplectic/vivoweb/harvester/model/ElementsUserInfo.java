@@ -13,6 +13,9 @@ package uk.co.symplectic.vivoweb.harvester.model;
 import org.apache.commons.lang.StringUtils;
 import uk.co.symplectic.utils.ImageUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collections;
@@ -105,6 +108,52 @@ public class ElementsUserInfo extends ElementsObjectInfo {
         return additionalInfo.genericFieldValue;
     }
 
+    //flags used to pack the boolean parts of the additional data into a single byte of a record.
+    private static final int populatedFlag = 1;
+    private static final int publicFlag = 2;
+    private static final int currentStaffFlag = 4;
+    private static final int academicFlag = 8;
+
+    static ElementsUserInfo readRecordData(DataInput input) throws IOException {
+        ElementsUserInfo userInfo = new ElementsUserInfo(input.readInt());
+        int flags = input.readUnsignedByte();
+        if((flags & populatedFlag) != 0) {
+            UserExtraData extraData = new UserExtraData()
+                    .setIsPublic((flags & publicFlag) != 0)
+                    .setIsCurrentStaff((flags & currentStaffFlag) != 0)
+                    .setPhotoUrl(readNullableString(input))
+                    .setUsername(readNullableString(input))
+                    .setProprietaryID(readNullableString(input))
+                    .setGenericFieldValue(readNullableString(input));
+            extraData.setIsAcademic((flags & academicFlag) != 0);
+            int labelCount = input.readInt();
+            for (int i = 0; i < labelCount; i++) extraData.addLabelSchemeValue(input.readUTF());
+            userInfo.addExtraData(extraData);
+        }
+        return userInfo;
+    }
+
+    @Override
+    public void writeRecord(DataOutput output) throws IOException {
+        output.writeByte(USER_RECORD);
+        output.writeInt(getItemId().getId());
+        if(isNotFullyPopulated()){
+            output.writeByte(0);
+            return;
+        }
+        int flags = populatedFlag;
+        if(additionalInfo.isPublic) flags |= publicFlag;
+        if(additionalInfo.isCurrentStaff) flags |= currentStaffFlag;
+        if(additionalInfo.isAcademic) flags |= academicFlag;
+        output.writeByte(flags);
+        writeNullableString(output, additionalInfo.photoUrl);
+        writeNullableString(output, additionalInfo.username);
+        writeNullableString(output, additionalInfo.proprietaryID);
+        writeNullableString(output, additionalInfo.genericFieldValue);
+        output.writeInt(additionalInfo.labelSchemeValues.size());
+        for(String labelSchemeValue : additionalInfo.labelSchemeValues) output.writeUTF(labelSchemeValue);
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     static class UserExtraData{
         private boolean isPublic = true;
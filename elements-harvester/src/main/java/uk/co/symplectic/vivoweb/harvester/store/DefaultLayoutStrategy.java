@@ -15,13 +15,16 @@ import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
 import java.util.*;
 
 /**
  * Class that defines the DefaultLayoutStrategy as used by the ElementsItemFileStores used in this project.
  * Specifies where the files representing different types (StorableResourceTypes) of Elements data are placed on disk.
  * Additionally provides search utilities to identify all files of a given Elements Type/SubType
+ * Files are placed directly in a directory per type, subclasses can spread them over subdirectories of those instead
+ * by overriding getItemDirectory and getItemDirectories.
  */
 
 @SuppressWarnings("WeakerAccess")
@@ -48,69 +51,96 @@ public class DefaultLayoutStrategy implements LayoutStrategy {
     @Override
     public File getItemFile(File storeDir, ElementsItemId itemId, StorableResourceType resourceType) {
         if(mainResourceTypes.containsValue(resourceType))
-            return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), Integer.toString(itemId.getId()), null);
+            return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), itemId.getId(), null);
         if(resourceTypesWithOwnDirectory.contains(resourceType))
-            return getResourceFile(storeDir, itemId.getItemDescriptor(), resourceType.getName(), Integer.toString(itemId.getId()));
-        return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), Integer.toString(itemId.getId()), resourceType.getName());
+            return getResourceFile(storeDir, itemId.getItemDescriptor(), resourceType.getName(), itemId.getId());
+        return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), itemId.getId(), resourceType.getName());
     }
 
     @Override
     public Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType) {
+        return getAllExistingFilesOfType(storeDir, resourceType, null);
+    }
+
+    public Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType) {
         List<File> filesOfType = new ArrayList<File>();
-        for(ElementsItemType.SubType subType : resourceType.getSupportedSubTypes()){
-            filesOfType.addAll(getAllExistingFilesOfType(storeDir, resourceType, subType));
+        ExistingFileIterator files = iterateExistingFilesOfType(storeDir, resourceType, subType);
+        try {
+            while (files.hasNext()) filesOfType.add(files.next());
+        } finally {
+            files.close();
         }
         return filesOfType;
     }
 
-    @SuppressWarnings("ConstantConditions")
-    public Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType) {
-        if(subType.getMainType() != resourceType.getKeyItemType()) throw new IllegalStateException("requested subtype must match resource item type");
-        List<File> filesOfType = new ArrayList<File>();
+    @Override
+    public ExistingFileIterator iterateExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType) {
+        Collection<ElementsItemType.SubType> subTypes = subType == null ? resourceType.getSupportedSubTypes() : Collections.singleton(subType);
         final String resourceTypeDescriptor = resourceType.getName();
-        String subTypeDescriptor = subType.getSingular();
-        if(resourceTypesWithOwnDirectory.contains(resourceType)){
-            File dir = new File(storeDir, subTypeDescriptor + "-" + resourceTypeDescriptor);
-            if(dir.exists())
-                filesOfType.addAll(Arrays.asList(dir.listFiles()));
-        }
-        if(mainResourceTypes.containsValue(resourceType)){
-            File dir = new File(storeDir, subTypeDescriptor);
-            if(dir.exists()) {
-                filesOfType.addAll(Arrays.asList(dir.listFiles(
-                        new FilenameFilter() {
-                            @Override
-                            public boolean accept(File dir, String name) {
-                                return !name.contains("-");
-                            }
-                        }
-                )));
+        List<ExistingFileIterator.Source> sources = new ArrayList<ExistingFileIterator.Source>();
+        for(ElementsItemType.SubType currentSubType : subTypes) {
+            if (currentSubType.getMainType() != resourceType.getKeyItemType()) throw new IllegalStateException("requested subtype must match resource item type");
+            String subTypeDescriptor = currentSubType.getSingular();
+            if (resourceTypesWithOwnDirectory.contains(resourceType)) {
+                File dir = new File(storeDir, subTypeDescriptor + "-" + resourceTypeDescriptor);
+                for (File itemDir : getItemDirectories(dir)) sources.add(new ExistingFileIterator.Source(itemDir, acceptCompleteFiles));
             }
-        }
-        else{
-            File dir = new File(storeDir, subTypeDescriptor);
-            if(dir.exists()) {
-                filesOfType.addAll(Arrays.asList(dir.listFiles(
-                        new FilenameFilter() {
-                            @Override
-                            public boolean accept(File dir, String name) {
-                                return name.endsWith("-" + resourceTypeDescriptor);
-                            }
-                        }
-                )));
+            if (mainResourceTypes.containsValue(resourceType)) {
+                File dir = new File(storeDir, subTypeDescriptor);
+                for (File itemDir : getItemDirectories(dir)) sources.add(new ExistingFileIterator.Source(itemDir, acceptMainFiles));
+            }
+            else {
+                DirectoryStream.Filter<Path> acceptExtraFiles = new DirectoryStream.Filter<Path>() {
+                    @Override
+                    public boolean accept(Path entry) {
+                        return entry.getFileName().toString().endsWith("-" + resourceTypeDescriptor);
+                    }
+                };
+                File dir = new File(storeDir, subTypeDescriptor);
+                for (File itemDir : getItemDirectories(dir)) sources.add(new ExistingFileIterator.Source(itemDir, acceptExtraFiles));
             }
         }
+        return new ExistingFileIterator(sources);
+    }
 
-        return filesOfType;
+    //files still being written (see FileItemStorage) are not yet part of the store.
+    private static final DirectoryStream.Filter<Path> acceptCompleteFiles = new DirectoryStream.Filter<Path>() {
+        @Override
+        public boolean accept(Path entry) { return !entry.getFileName().toString().endsWith(FileItemStorage.partialFileSuffix); }
+    };
+
+    private static final DirectoryStream.Filter<Path> acceptMainFiles = new DirectoryStream.Filter<Path>() {
+        @Override
+        public boolean accept(Path entry) {
+            String name = entry.getFileName().toString();
+            return !name.contains("-") && !name.endsWith(FileItemStorage.partialFileSuffix);
+        }
+    };
+
+    /**
+     * @param typeDirectory the directory holding all the files of a type
+     * @param id the id of the item
+     * @return the directory that the item's file should go in.
+     */
+    protected File getItemDirectory(File typeDirectory, int id) {
+        return typeDirectory;
+    }
+
+    /**
+     * @param typeDirectory the directory holding all the files of a type
+     * @return every directory that getItemDirectory might have placed a file of the type in.
+     */
+    protected Collection<File> getItemDirectories(File typeDirectory) {
+        return Collections.singletonList(typeDirectory);
     }
 
-    private File getObjectExtraFile(File storeDir, String categoryDescriptor, String id, String type) {
+    private File getObjectExtraFile(File storeDir, String categoryDescriptor, int id, String type) {
         File file = storeDir;
         if (storeDir == null || categoryDescriptor == null) {
             throw new IllegalStateException();
         }
 
-        file = new File(file, categoryDescriptor);
+        file = getItemDirectory(new File(file, categoryDescriptor), id);
         if (!file.exists()) {
             //noinspection ResultOfMethodCallIgnored
             file.mkdirs();
@@ -119,23 +149,23 @@ public class DefaultLayoutStrategy implements LayoutStrategy {
         if (!StringUtils.isEmpty(type)) {
             return new File(file, id + "-" + type);
         } else {
-            return new File(file, id);
+            return new File(file, Integer.toString(id));
         }
     }
 
 
-    private File getResourceFile(File storeDir, String categoryDescriptor, String resourceLabel, String id) {
+    private File getResourceFile(File storeDir, String categoryDescriptor, String resourceLabel, int id) {
         File file = storeDir;
         if (storeDir == null || categoryDescriptor == null) {
             throw new IllegalStateException();
         }
 
-        file = new File(file, categoryDescriptor + "-" + resourceLabel);
+        file = getItemDirectory(new File(file, categoryDescriptor + "-" + resourceLabel), id);
         if (!file.exists()) {
             //noinspection ResultOfMethodCallIgnored
             file.mkdirs();
         }
 
-        return new File(file, id);
+        return new File(file, Integer.toString(id));
     }
 }
@@ -0,0 +1,305 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdMap;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index of a digest of the content of every item of a set of resource types in an ElementsItemFileStore, so that
+ * the store can tell when it is asked to store exactly what it already holds for an item (see ElementsItemFileStore.storeItem).
+ *
+ * Digests are calculated over a canonical form of the data, which leaves out anything that changes without the
+ * record itself changing. For raw XML from the Elements API that is the XML declaration, every last-modified-when
+ * attribute and the content of any Atom updated element (none of which are used by the translations).
+ * For translated RDF only the XML declaration is left out, and any other data (e.g. photos) is digested as is.
+ *
+ * Like the ElementsItemInfoIndex, the index is persisted to a single file by save, and that file is deleted as soon
+ * as the index is next modified, so if a run fails before saving again the next run treats every item as changed.
+ *
+ * File format (all values as written by DataOutput):
+ *   int magic, int version, int resource type count,
+ *   then per type : UTF type name, int digest count, then per digest : UTF sub type, int id, digest bytes
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsItemDigestIndex {
+    private static final Logger log = LoggerFactory.getLogger(ElementsItemDigestIndex.class);
+
+    private static final int magic = 0x45494448;
+    private static final int formatVersion = 1;
+
+    //only used to detect changes, not for security, so a fast 16 byte digest is enough.
+    private static final String digestAlgorithm = "MD5";
+    private static final int digestLength = 16;
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final byte[] declarationStart = "<?xml".getBytes(utf8);
+    private static final byte[] declarationEnd = "?>".getBytes(utf8);
+    private static final byte[] lastModifiedAttribute = " last-modified-when=".getBytes(utf8);
+    private static final byte[] updatedStart = "<updated>".getBytes(utf8);
+    private static final byte[] updatedEnd = "</updated>".getBytes(utf8);
+
+    private final File file;
+    private final Map<StorableResourceType, Map<ElementsItemId, byte[]>> digests = new HashMap<StorableResourceType, Map<ElementsItemId, byte[]>>();
+
+    private boolean loaded = false;
+    //whether the file on disk currently matches what is held in memory.
+    private boolean persisted = false;
+
+    /**
+     * @param file where the index is persisted.
+     * @param indexedTypes the resource types to hold digests for.
+     */
+    public ElementsItemDigestIndex(File file, StorableResourceType... indexedTypes) {
+        if(file == null) throw new NullArgumentException("file");
+        if(indexedTypes == null || indexedTypes.length == 0) throw new IllegalArgumentException("indexedTypes must not be null or empty");
+        this.file = file;
+        for(StorableResourceType type : indexedTypes) digests.put(type, new ElementsItemIdMap<ElementsItemId, byte[]>());
+    }
+
+    public boolean isIndexed(StorableResourceType resourceType) { return digests.containsKey(resourceType); }
+
+    /**
+     * @return true if the digest held for the item is the one provided.
+     */
+    public synchronized boolean matches(ElementsItemId itemId, StorableResourceType resourceType, byte[] digest) {
+        return Arrays.equals(getDigests(resourceType).get(itemId), digest);
+    }
+
+    /**
+     * Add or replace the digest held for an item.
+     */
+    public synchronized void put(ElementsItemId itemId, StorableResourceType resourceType, byte[] digest) {
+        if(digest == null || digest.length != digestLength) throw new IllegalArgumentException("digest must be one calculated by computeDigest");
+        Map<ElementsItemId, byte[]> typeDigests = getDigests(resourceType);
+        if(Arrays.equals(typeDigests.get(itemId), digest)) return;
+        modified();
+        typeDigests.put(itemId, digest);
+    }
+
+    public synchronized void remove(ElementsItemId itemId, StorableResourceType resourceType) {
+        Map<ElementsItemId, byte[]> typeDigests = getDigests(resourceType);
+        if(!typeDigests.containsKey(itemId)) return;
+        modified();
+        typeDigests.remove(itemId);
+    }
+
+    /**
+     * Remove every digest held for a resource type.
+     */
+    public synchronized void clear(StorableResourceType resourceType) {
+        Map<ElementsItemId, byte[]> typeDigests = getDigests(resourceType);
+        if(typeDigests.isEmpty()) return;
+        modified();
+        typeDigests.clear();
+    }
+
+    /**
+     * Calculate the digest of the canonical form of some data (see class description).
+     * @param resourceType the type of resource the data is for.
+     * @param data the data to be stored.
+     * @return the digest.
+     */
+    public static byte[] computeDigest(StorableResourceType resourceType, byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(digestAlgorithm);
+        }
+        catch(NoSuchAlgorithmException e){
+            //every java platform is required to support MD5.
+            throw new IllegalStateException(e);
+        }
+
+        String extension = resourceType.getFileExtension();
+        if(!"xml".equals(extension) && !"rdf".equals(extension)) {
+            digest.update(data);
+            return digest.digest();
+        }
+
+        int position = skipDeclaration(data);
+        int copiedUpTo = position;
+        boolean isRawData = "xml".equals(extension);
+        while(isRawData && position < data.length) {
+            if(matches(data, position, lastModifiedAttribute)) {
+                //leave out the whole attribute, including the space before it.
+                int valueEnd = skipQuotedValue(data, position + lastModifiedAttribute.length);
+                digest.update(data, copiedUpTo, position - copiedUpTo);
+                position = copiedUpTo = valueEnd;
+            }
+            else if(matches(data, position, updatedStart)) {
+                //keep the element itself but leave out its content.
+                int contentStart = position + updatedStart.length;
+                int contentEnd = indexOf(data, contentStart, updatedEnd);
+                digest.update(data, copiedUpTo, contentStart - copiedUpTo);
+                position = copiedUpTo = contentEnd;
+            }
+            else {
+                position++;
+            }
+        }
+        digest.update(data, copiedUpTo, data.length - copiedUpTo);
+        return digest.digest();
+    }
+
+    //the offset of the first byte after any byte order mark, XML declaration and whitespace at the start of the data.
+    private static int skipDeclaration(byte[] data) {
+        int position = data.length >= 3 && (data[0] & 0xff) == 0xef && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf ? 3 : 0;
+        if(matches(data, position, declarationStart)) {
+            int end = indexOf(data, position, declarationEnd);
+            position = end == data.length ? position : end + declarationEnd.length;
+        }
+        while(position < data.length && (data[position] == ' ' || data[position] == '\t' || data[position] == '\r' || data[position] == '\n')) position++;
+        return position;
+    }
+
+    //the offset after the end of the quoted value starting at position (or the end of the data if it is not quoted).
+    private static int skipQuotedValue(byte[] data, int position) {
+        if(position >= data.length || (data[position] != '"' && data[position] != '\'')) return position;
+        byte quote = data[position];
+        for(int i = position + 1; i < data.length; i++) {
+            if(data[i] == quote) return i + 1;
+        }
+        return data.length;
+    }
+
+    private static int indexOf(byte[] data, int from, byte[] expected) {
+        for(int i = from; i < data.length; i++) {
+            if(matches(data, i, expected)) return i;
+        }
+        return data.length;
+    }
+
+    private static boolean matches(byte[] data, int position, byte[] expected) {
+        if(position + expected.length > data.length) return false;
+        for(int i = 0; i < expected.length; i++) {
+            if(data[position + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private Map<ElementsItemId, byte[]> getDigests(StorableResourceType resourceType) {
+        ensureLoaded();
+        Map<ElementsItemId, byte[]> typeDigests = digests.get(resourceType);
+        if(typeDigests == null) throw new IllegalStateException("resourceType is not indexed");
+        return typeDigests;
+    }
+
+    //called before any change - a persisted copy of the index is no longer valid once the index starts changing.
+    private void modified() {
+        if(persisted) {
+            persisted = false;
+            if(!file.delete() && file.exists())
+                throw new IllegalStateException(MessageFormat.format("Unable to remove outdated item digest index \"{0}\"", file.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Write the index to its file (if it has changed since it was last loaded or saved).
+     * @throws IOException if the index cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        ensureLoaded();
+        if(persisted) return;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists())
+            throw new IOException(MessageFormat.format("Unable to create directory \"{0}\"", parent.getAbsolutePath()));
+        File tempFile = new File(file.getPath() + ".tmp");
+        int digestCount = 0;
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            output.writeInt(magic);
+            output.writeInt(formatVersion);
+            output.writeInt(digests.size());
+            for(Map.Entry<StorableResourceType, Map<ElementsItemId, byte[]>> typeDigests : digests.entrySet()) {
+                output.writeUTF(typeDigests.getKey().toString());
+                output.writeInt(typeDigests.getValue().size());
+                for(Map.Entry<ElementsItemId, byte[]> digest : typeDigests.getValue().entrySet()) {
+                    output.writeUTF(digest.getKey().getItemSubType().getSingular());
+                    output.writeInt(digest.getKey().getId());
+                    output.write(digest.getValue());
+                }
+                digestCount += typeDigests.getValue().size();
+            }
+        }
+        finally {
+            if(output != null) output.close();
+        }
+        if(file.exists() && !file.delete())
+            throw new IOException(MessageFormat.format("Unable to replace item digest index \"{0}\"", file.getAbsolutePath()));
+        if(!tempFile.renameTo(file))
+            throw new IOException(MessageFormat.format("Unable to move item digest index into place at \"{0}\"", file.getAbsolutePath()));
+        persisted = true;
+        log.info(MessageFormat.format("Saved item digest index \"{0}\" ({1} items)", file.getAbsolutePath(), digestCount));
+    }
+
+    //load the persisted index (if there is a usable one) the first time the index is used.
+    private void ensureLoaded() {
+        if(loaded) return;
+        loaded = true;
+        if(!file.exists()) return;
+        try {
+            persisted = load();
+            if(!persisted) log.info(MessageFormat.format("Item digest index \"{0}\" is not in the current format, every item will be treated as changed", file.getAbsolutePath()));
+        }
+        catch(IOException e) {
+            log.warn(MessageFormat.format("Unable to read item digest index \"{0}\", every item will be treated as changed", file.getAbsolutePath()), e);
+            persisted = false;
+        }
+        if(!persisted) {
+            for (Map<ElementsItemId, byte[]> typeDigests : digests.values()) typeDigests.clear();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private boolean load() throws IOException {
+        Map<String, StorableResourceType> typesByName = new HashMap<String, StorableResourceType>();
+        for(StorableResourceType type : digests.keySet()) typesByName.put(type.toString(), type);
+        int digestCount = 0;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if(input.readInt() != magic || input.readInt() != formatVersion) return false;
+            int typeCount = input.readInt();
+            for(int i = 0; i < typeCount; i++) {
+                StorableResourceType type = typesByName.get(input.readUTF());
+                if(type == null) return false;
+                Map<ElementsItemId, byte[]> typeDigests = digests.get(type);
+                int typeDigestCount = input.readInt();
+                for(int j = 0; j < typeDigestCount; j++) {
+                    ElementsItemId itemId = ElementsItemInfoIndex.createItemId(ElementsItemInfoIndex.readSubType(input, type), input.readInt());
+                    byte[] digest = new byte[digestLength];
+                    input.readFully(digest);
+                    typeDigests.put(itemId, digest);
+                }
+                digestCount += typeDigestCount;
+            }
+        }
+        finally {
+            if(input != null) input.close();
+        }
+        log.info(MessageFormat.format("Loaded item digest index \"{0}\" ({1} items)", file.getAbsolutePath(), digestCount));
+        return true;
+    }
+}
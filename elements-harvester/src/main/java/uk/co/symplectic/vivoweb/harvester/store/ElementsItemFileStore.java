@@ -12,12 +12,18 @@ package uk.co.symplectic.vivoweb.harvester.store;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.NullArgumentException;
+import uk.co.symplectic.utils.StripedLock;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdSet;
 import java.io.*;
 import java.util.*;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
 
 /**
  * This class allows you to create a generic disk backed store of data for essentially any raw data that corresponds to
@@ -32,33 +38,158 @@ import java.util.zip.GZIPOutputStream;
  *
  *
  *
- * Offers various options for how files are handled: Layout strategy, handling of empty files, zipping of files, etc
+ * Offers various options for how files are handled: Layout strategy, handling of empty files, compression of files
+ * (see RecordCodec), etc
+ * The data can either be held in a file per resource (laid out by a LayoutStrategy) or packed into segment files
+ * (see SegmentItemStorage), in which case getAllExistingFilesOfType is not available.
+ * Either way each resource type is held in "generations" (see GenerationalItemStorage), so that a cleardown only
+ * starts a new, empty, generation rather than deleting everything there and then, and the data it replaces is kept
+ * until the new generation is committed (see commitGenerations).
+ *
+ * Items of a particular type can also be scanned in parallel (see scanAllExistingItemsOfType), which loads each
+ * stored resource as an ElementsStoredItemInfo on a shared fork join pool.
+ * If the store is given an ElementsItemInfoIndex, it is kept up to date as items are stored and deleted, and scans of
+ * indexed types are served from it (once it is complete) rather than by re-parsing every file.
+ * If the store is given an ElementsItemDigestIndex, storing data that is the same as what is already held for an item
+ * (once volatile fields such as modification dates are ignored) neither writes the data nor triggers the observers,
+ * so that only records that have really changed are passed on (see getUnchangedItems). Subclasses can exempt items
+ * whose observers must run whatever was fetched (see isSkippedWhenUnchanged), and a digest is dropped again if
+ * processing the item further fails (see forgetDigest), so that the item is retried rather than skipped next run.
+ *
+ * The store is safe to use from several threads at once (e.g. the fetch, the photo workers and the translation
+ * workers all store items): writes, touches and deletes of the same item are serialised by a lock striped on the item
+ * id (so that the data, the indexes and the observers see them in the same order), while different items proceed in
+ * parallel. Observers are notified from whichever thread made the change, so must be thread safe themselves.
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletableItemStore {
     private List<StorableResourceType> supportedTypes = new ArrayList<StorableResourceType>();
     private File dir = null;
-    final private LayoutStrategy layoutStrategy;
-    private List<IElementsStoredItemObserver> itemObservers = new ArrayList<IElementsStoredItemObserver>();
+    final private GenerationalItemStorage storage;
+    //copied on write, so that observers can be added or removed while items are being stored.
+    private final List<IElementsStoredItemObserver> itemObservers = new CopyOnWriteArrayList<IElementsStoredItemObserver>();
+    //serialises the changes made to each item (see class javadoc).
+    private final StripedLock itemLocks = new StripedLock(itemLockStripes);
     private final Map<StorableResourceType, Set<ElementsItemId>> affectedItems = new HashMap<StorableResourceType, Set<ElementsItemId>>();
     private boolean keepEmpty = false;
-    private boolean zipFiles = true;
+    private final RecordEncoder encoder;
+    private final ElementsItemInfoIndex itemInfoIndex;
+    private final ElementsItemDigestIndex digestIndex;
+    private final Map<StorableResourceType, Set<ElementsItemId>> unchangedItems = new HashMap<StorableResourceType, Set<ElementsItemId>>();
+    //counts of the items stored during the lifetime of this object, split by whether their data was actually changed.
+    private final Map<StorableResourceType, AtomicInteger> changedCounts = new HashMap<StorableResourceType, AtomicInteger>();
+    private final Map<StorableResourceType, AtomicInteger> unchangedCounts = new HashMap<StorableResourceType, AtomicInteger>();
+    //enough stripes that threads working on different items rarely wait for each other.
+    private static final int itemLockStripes = 256;
+
+    /**
+     * Interface for code that wants to be shown every item of a particular type held in the store.
+     * Items are visited concurrently from multiple threads, in no particular order, so implementations must be thread safe.
+     */
+    public interface StoredItemVisitor {
+        void visit(ElementsStoredItemInfo item) throws IOException;
+    }
+
+    //the number of files below which a scan task loads its files itself rather than splitting them any further.
+    private static final int scanBatchSize = 64;
+    //pool shared by all scans, created on first use and sized to the number of processors on the machine.
+    private static ForkJoinPool scanPool = null;
+
+    private static synchronized ForkJoinPool getScanPool() {
+        if (scanPool == null) scanPool = new ForkJoinPool();
+        return scanPool;
+    }
+
+    //Wrapper to carry an IOException raised by a visitor out of the fork join pool.
+    private static class ScanIOException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ScanIOException(IOException cause) { super(cause); }
+    }
+
+    //The items being scanned, which are either loaded from their stored data or from the item info index.
+    private interface ScanSource {
+        int size();
+        ElementsStoredItemInfo load(int index);
+    }
+
+    /**
+     * Task that loads and visits a slice of the items being scanned, splitting it in half until it is small enough.
+     */
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ScanSource source;
+        private final int start;
+        private final int end;
+        private final StoredItemVisitor visitor;
+
+        ScanTask(ScanSource source, int start, int end, StoredItemVisitor visitor) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > scanBatchSize) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ScanTask(source, start, middle, visitor), new ScanTask(source, middle, end, visitor));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                ElementsStoredItemInfo item = source.load(i);
+                try {
+                    visitor.visit(item);
+                } catch (IOException e) {
+                    throw new ScanIOException(e);
+                }
+            }
+        }
+    }
 
     public List<StorableResourceType> getSupportedTypes(){return Collections.unmodifiableList(supportedTypes);}
 
+    private static GenerationalItemStorage createFileStorage(File dir, final LayoutStrategy layoutStrategy, StorableResourceType... supportedTypes) {
+        if(dir == null) throw new NullArgumentException("dir");
+        if(supportedTypes == null || supportedTypes.length == 0) throw new IllegalArgumentException("supportedTypes must not be null or empty");
+        return new GenerationalItemStorage(dir, new GenerationalItemStorage.StorageFactory() {
+            @Override
+            public ItemStorage create(File generationDir) { return new FileItemStorage(generationDir, layoutStrategy); }
+        }, Arrays.asList(supportedTypes));
+    }
+
     public ElementsItemFileStore(File dir, boolean keepEmpty, boolean zipFiles, LayoutStrategy layoutStrategy, StorableResourceType... supportedTypes) {
+        this(dir, keepEmpty, zipFiles, layoutStrategy, null, supportedTypes);
+    }
+
+    public ElementsItemFileStore(File dir, boolean keepEmpty, boolean zipFiles, LayoutStrategy layoutStrategy, ElementsItemInfoIndex itemInfoIndex, StorableResourceType... supportedTypes) {
+        this(dir, keepEmpty, zipFiles ? RecordCodec.GZIP : RecordCodec.NONE, createFileStorage(dir, layoutStrategy != null ? layoutStrategy : new DefaultLayoutStrategy(), supportedTypes),
+                itemInfoIndex, null, supportedTypes);
+    }
+
+    ElementsItemFileStore(File dir, boolean keepEmpty, RecordCodec codec, GenerationalItemStorage storage, ElementsItemInfoIndex itemInfoIndex,
+                          ElementsItemDigestIndex digestIndex, StorableResourceType... supportedTypes) {
         if(dir == null) throw new NullArgumentException("dir");
+        if(storage == null) throw new NullArgumentException("storage");
         if(supportedTypes == null || supportedTypes.length == 0) throw new IllegalArgumentException("supportedTypes must not be null or empty");
 
         this.dir = dir;
         this.keepEmpty = keepEmpty;
-        this.zipFiles = zipFiles;
 
-        this.layoutStrategy = layoutStrategy != null ? layoutStrategy : new DefaultLayoutStrategy();
+        this.storage = storage;
+        this.itemInfoIndex = itemInfoIndex;
+        this.digestIndex = digestIndex;
         this.supportedTypes.addAll(Arrays.asList(supportedTypes));
-        //initialise affected item lists for each resource type
+        this.encoder = new RecordEncoder(codec != null ? codec : RecordCodec.NONE, dir, this.supportedTypes);
+        //initialise affected item lists and counts for each resource type
+        //(these maps are not changed after this, the sets in them are guarded by their own locks)
         for(StorableResourceType type : supportedTypes){
-            affectedItems.put(type, new HashSet<ElementsItemId>());
+            affectedItems.put(type, new ElementsItemIdSet<ElementsItemId>());
+            unchangedItems.put(type, new ElementsItemIdSet<ElementsItemId>());
+            changedCounts.put(type, new AtomicInteger(0));
+            unchangedCounts.put(type, new AtomicInteger(0));
         }
     }
 
@@ -66,11 +197,50 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
      * Method to retrieve information about all the resource in this store, of a particular StorableResourceType,
      * that have been "affected" during the lifetime of this object
      * @param resourceType the StorableResourceType of items you are interested in
-     * @return  Set<ElementsItemId> of all the items for which the resourceType has been affected
+     * @return  Set<ElementsItemId> of all the items for which the resourceType has been affected (a snapshot, taken as the call is made)
      */
     public Set<ElementsItemId> getAffectedItems(StorableResourceType resourceType){
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        return Collections.unmodifiableSet(affectedItems.get(resourceType));
+        return snapshot(affectedItems.get(resourceType));
+    }
+
+    /**
+     * Method to retrieve information about all the resources in this store, of a particular StorableResourceType,
+     * that were stored during the lifetime of this object with exactly the data that was already held for them.
+     * These have not been written or passed to the observers, so are not included in getAffectedItems
+     * (unless they were also affected in some other way).
+     * @param resourceType the StorableResourceType of items you are interested in
+     * @return  Set<ElementsItemId> of all the items for which the resourceType was stored unchanged (a snapshot, taken as the call is made)
+     */
+    public Set<ElementsItemId> getUnchangedItems(StorableResourceType resourceType){
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        return snapshot(unchangedItems.get(resourceType));
+    }
+
+    //a copy of one of the item sets, taken under its lock as items may be being stored by other threads.
+    private static Set<ElementsItemId> snapshot(Set<ElementsItemId> items) {
+        synchronized (items) {
+            return Collections.unmodifiableSet(new ElementsItemIdSet<ElementsItemId>(items));
+        }
+    }
+
+    /**
+     * @param resourceType the StorableResourceType of items you are interested in
+     * @return how many times data of that type has been written to this store during the lifetime of this object.
+     */
+    public int getChangedItemCount(StorableResourceType resourceType){
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        return changedCounts.get(resourceType).get();
+    }
+
+    /**
+     * @param resourceType the StorableResourceType of items you are interested in
+     * @return how many times data of that type has been skipped during the lifetime of this object, as it was
+     *         unchanged from what was already held.
+     */
+    public int getUnchangedItemCount(StorableResourceType resourceType){
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        return unchangedCounts.get(resourceType).get();
     }
 
     /**
@@ -83,7 +253,10 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
     private boolean markItemAsAffected(StorableResourceType resourceType, ElementsItemId itemId) {
         //TODO: do checks that resource type is valid for store and item? its only ever called from places that already do their own checks?
         Set<ElementsItemId> currentList = affectedItems.get(resourceType);
-        return currentList != null && currentList.add(itemId);
+        if(currentList == null) return false;
+        synchronized (currentList) {
+            return currentList.add(itemId);
+        }
     }
 
     /**
@@ -127,13 +300,32 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
     public BasicElementsStoredItem retrieveItem(ElementsItemId itemId, StorableResourceType resourceType){
         if(!resourceType.isAppropriateForItem(itemId))  throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
-        //return file == null ? null : new ElementsStoredItemInfo.InFile(file, itemInfo, resourceType, shouldZipResourceFile(resourceType));
-        return file == null || !file.exists() ? null : new BasicElementsStoredItem(itemId, resourceType, new StoredData.InFile(file, shouldZipResourceFile(resourceType)));
+        return !storage.exists(itemId, resourceType) ? null : new BasicElementsStoredItem(itemId, resourceType, storage.getItemData(itemId, resourceType, shouldZipResourceFile(resourceType)));
+    }
+
+    /**
+     * Method to retrieve all StoredItem of a particular resourceType that exist in this store.
+     * @param resourceType The Type of resource you want to retrieve
+     * @return A Collection of StoredData objects to provide access to the relevant resources
+     */
+    public Collection<StoredData> getAllExistingDataOfType(StorableResourceType resourceType){
+        return getAllExistingDataOfType(resourceType, null);
+    }
+
+    /**
+     * Method to retrieve all StoredItem of a particular resourceType that exist in this store.
+     * @param resourceType The Type of resource you want to retrieve
+     * @param subType The subtype of resource you want to retrieve
+     * @return A Collection of StoredData objects to provide access to the relevant resources
+     */
+    public Collection<StoredData> getAllExistingDataOfType(StorableResourceType resourceType, ElementsItemType.SubType subType){
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        return storage.getAllExisting(resourceType, subType, shouldZipResourceFile(resourceType));
     }
 
     /**
      * Method to retrieve all StoredItem of a particular resourceType that exist in this store.
+     * Only available if the store holds each resource in its own file.
      * @param resourceType The Type of resource you want to retrieve
      * @return A Collection of StoredData.InFile objects to provide access to the relevant resources
      */
@@ -148,23 +340,228 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
      * @return A Collection of StoredData.InFile objects to provide access to the relevant resources
      */
     public Collection<StoredData.InFile> getAllExistingFilesOfType(StorableResourceType resourceType, ElementsItemType.SubType subType){
-        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        Collection<File> files = subType == null ? layoutStrategy.getAllExistingFilesOfType(dir,resourceType) : layoutStrategy.getAllExistingFilesOfType(dir, resourceType, subType);
-        boolean isZipped = shouldZipResourceFile(resourceType);
+        if(!storage.holdsFiles()) throw new IllegalStateException("store does not hold its resources in individual files");
         Collection<StoredData.InFile> data = new ArrayList<StoredData.InFile>();
-        for(File file : files) data.add(new StoredData.InFile(file, isZipped));
+        for(StoredData file : getAllExistingDataOfType(resourceType, subType)) data.add((StoredData.InFile) file);
         return data;
     }
 
+    /**
+     * Method to load and visit every item of a particular resourceType that exists in this store, spreading the work
+     * of reading and parsing the files across all the processors on the machine.
+     * Only valid for the "RAW-xxx" resource types that ElementsStoredItemInfo.loadStoredResource can load.
+     * @param resourceType The Type of resource you want to scan
+     * @param visitor a thread safe StoredItemVisitor that will be passed each item in turn
+     * @throws IOException if the visitor throws one (the scan is abandoned)
+     */
+    public void scanAllExistingItemsOfType(StorableResourceType resourceType, StoredItemVisitor visitor) throws IOException {
+        scanAllExistingItemsOfType(resourceType, null, visitor);
+    }
+
+    /**
+     * Method to load and visit every item of a particular resourceType that exists in this store, spreading the work
+     * of reading and parsing the files across all the processors on the machine.
+     * Only valid for the "RAW-xxx" resource types that ElementsStoredItemInfo.loadStoredResource can load.
+     * @param resourceType The Type of resource you want to scan
+     * @param subType The subtype of resource you want to scan
+     * @param visitor a thread safe StoredItemVisitor that will be passed each item in turn
+     * @throws IOException if the visitor throws one (the scan is abandoned)
+     */
+    public void scanAllExistingItemsOfType(final StorableResourceType resourceType, ElementsItemType.SubType subType, final StoredItemVisitor visitor) throws IOException {
+        if(visitor == null) throw new NullArgumentException("visitor");
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        if(itemInfoIndex != null && itemInfoIndex.isIndexed(resourceType)) {
+            if (itemInfoIndex.isComplete(resourceType, subType)) {
+                scan(createIndexScanSource(resourceType, itemInfoIndex.getRecords(resourceType, subType)), visitor);
+            }
+            else {
+                //fill in the index from the stored data as it is scanned.
+                final Set<ElementsItemId> scannedItems = Collections.synchronizedSet(new ElementsItemIdSet<ElementsItemId>());
+                scanStoredData(resourceType, subType, new StoredItemVisitor() {
+                    @Override
+                    public void visit(ElementsStoredItemInfo item) throws IOException {
+                        itemInfoIndex.putIfAbsent(item.getItemInfo(), resourceType);
+                        scannedItems.add(item.getItemInfo().getItemId());
+                        visitor.visit(item);
+                    }
+                });
+                itemInfoIndex.markComplete(resourceType, subType, scannedItems);
+            }
+        }
+        else {
+            scanStoredData(resourceType, subType, visitor);
+        }
+    }
+
+    /**
+     * Method to load and visit every relationship of a particular resourceType in this store that links to any of
+     * the objects provided (in the same way as scanAllExistingItemsOfType).
+     * If the store has a complete item info index for the resourceType the relationships are looked up directly,
+     * in time proportional to the number of objects, otherwise every relationship is scanned (which completes the index).
+     * @param resourceType The Type of relationship resource you want to scan
+     * @param objectIds the objects of interest
+     * @param visitor a thread safe StoredItemVisitor that will be passed each linked relationship in turn
+     * @throws IOException if the visitor throws one (the scan is abandoned)
+     */
+    public void scanRelationshipsLinkedTo(StorableResourceType resourceType, final Set<? extends ElementsItemId> objectIds, final StoredItemVisitor visitor) throws IOException {
+        if(objectIds == null) throw new NullArgumentException("objectIds");
+        if(visitor == null) throw new NullArgumentException("visitor");
+        if(resourceType.getKeyItemType() != ElementsItemType.RELATIONSHIP) throw new IllegalStateException("resourceType must be a type of relationship resource");
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        if(objectIds.isEmpty()) return;
+        if(itemInfoIndex != null && itemInfoIndex.isIndexed(resourceType) && itemInfoIndex.isComplete(resourceType, null)) {
+            scan(createIndexScanSource(resourceType, itemInfoIndex.getLinkedRelationships(resourceType, objectIds)), visitor);
+        }
+        else {
+            scanAllExistingItemsOfType(resourceType, new StoredItemVisitor() {
+                @Override
+                public void visit(ElementsStoredItemInfo item) throws IOException {
+                    for (ElementsItemId.ObjectId objectId : item.getItemInfo().asRelationshipInfo().getObjectIds()) {
+                        if (objectIds.contains(objectId)) {
+                            visitor.visit(item);
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    //scans the stored data a batch at a time (e.g. a segment at a time), in the order the storage finds most efficient.
+    private void scanStoredData(final StorableResourceType resourceType, ElementsItemType.SubType subType, final StoredItemVisitor visitor) throws IOException {
+        storage.scanAllExisting(resourceType, subType, shouldZipResourceFile(resourceType), new ItemStorage.BatchVisitor() {
+            @Override
+            public void visit(List<StoredData> batch) throws IOException {
+                scan(createDataScanSource(resourceType, batch), visitor);
+            }
+        });
+    }
+
+    private ScanSource createDataScanSource(final StorableResourceType resourceType, final List<StoredData> data) {
+        return new ScanSource() {
+            @Override
+            public int size() { return data.size(); }
+
+            @Override
+            public ElementsStoredItemInfo load(int index) { return ElementsStoredItemInfo.loadStoredResource(data.get(index), resourceType); }
+        };
+    }
+
+    private ScanSource createIndexScanSource(final StorableResourceType resourceType, final List<byte[]> records) {
+        final boolean isZipped = shouldZipResourceFile(resourceType);
+        return new ScanSource() {
+            @Override
+            public int size() { return records.size(); }
+
+            @Override
+            public ElementsStoredItemInfo load(int index) {
+                ElementsItemInfo itemInfo = ElementsItemInfoIndex.decode(records.get(index));
+                return new ElementsStoredItemInfo(itemInfo, resourceType, storage.getItemData(itemInfo.getItemId(), resourceType, isZipped));
+            }
+        };
+    }
+
+    private static void scan(ScanSource source, StoredItemVisitor visitor) throws IOException {
+        if(source.size() == 0) return;
+        try {
+            getScanPool().invoke(new ScanTask(source, 0, source.size(), visitor));
+        }
+        catch(ScanIOException e){
+            //the pool may hand back a copy of the exception that wraps the original, so look down the chain for the cause.
+            Throwable cause = e;
+            while (!(cause instanceof IOException)) cause = cause.getCause();
+            throw (IOException) cause;
+        }
+    }
+
     //See interface for javadoc
     @Override
     public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException{
         //TODO: do something better here with error message?
         if(!resourceType.isAppropriateForItem(itemInfo.getItemId())) throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemInfo.getItemId(), resourceType);
-        ElementsStoredItemInfo storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, new StoredData.InFile(file, shouldZipResourceFile(resourceType)));
-        store(file, data, zipFiles && resourceType.shouldZip());
+        ElementsItemId itemId = itemInfo.getItemId();
+        byte[] dataToStore = data == null ? new byte[0] : data;
+        boolean shouldKeep = keepEmpty || dataToStore.length > 0;
+
+        //the digest and the encoded data are worked out before the item's lock is taken, as they are the expensive part.
+        //(data that looks unchanged is only encoded if it turns out to have changed once the lock is held).
+        byte[] digest = null;
+        if(shouldKeep && digestIndex != null && digestIndex.isIndexed(resourceType) && isSkippedWhenUnchanged(itemId, resourceType)) {
+            digest = ElementsItemDigestIndex.computeDigest(resourceType, dataToStore);
+        }
+        byte[] encodedData = null;
+        if(shouldKeep && (digest == null || !digestIndex.matches(itemId, resourceType, digest))) {
+            encodedData = encoder.encode(resourceType, itemId.getItemSubType(), dataToStore);
+        }
+
+        ElementsStoredItemInfo storedItem;
+        Lock itemLock = itemLocks.get(itemId);
+        itemLock.lock();
+        try {
+            //the item's data is located under the lock, so that it is where this call writes even if a cleardown has
+            //started a new generation of the type in the meantime.
+            storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, storage.getItemData(itemId, resourceType, shouldZipResourceFile(resourceType)));
+            //if exactly this data is already held there is nothing to write and nothing new for the observers to process.
+            //(the storage is checked too, in case the data has been removed from under the index).
+            if(digest != null && digestIndex.matches(itemId, resourceType, digest) && storage.exists(itemId, resourceType)) {
+                unchangedCounts.get(resourceType).incrementAndGet();
+                Set<ElementsItemId> unchanged = unchangedItems.get(resourceType);
+                synchronized (unchanged) {
+                    unchanged.add(itemId);
+                }
+                return storedItem;
+            }
+            if(shouldKeep && encodedData == null) encodedData = encoder.encode(resourceType, itemId.getItemSubType(), dataToStore);
+            store(itemInfo, resourceType, storedItem, encodedData, digest);
+        } finally {
+            itemLock.unlock();
+        }
+        return storedItem;
+    }
+
+    /**
+     * Whether storing data for an item that is the same as what is already held should be skipped (when the store
+     * has an ElementsItemDigestIndex of the resourceType). Items this returns false for are always written and
+     * passed on to the observers, and no digest is held for them.
+     */
+    protected boolean isSkippedWhenUnchanged(ElementsItemId itemId, StorableResourceType resourceType) {
+        return true;
+    }
+
+    /**
+     * Drop the digest held for an item, so that whatever is next stored for it is treated as changed.
+     * To be called when processing a stored item further (e.g. translating it) fails, so that it is retried next run.
+     */
+    public void forgetDigest(ElementsItemId itemId, StorableResourceType resourceType) {
+        if(digestIndex == null || !digestIndex.isIndexed(resourceType)) return;
+        Lock itemLock = itemLocks.get(itemId);
+        itemLock.lock();
+        try {
+            digestIndex.remove(itemId, resourceType);
+        } finally {
+            itemLock.unlock();
+        }
+    }
+
+    //must hold the item's lock.
+    private void store(ElementsItemInfo itemInfo, StorableResourceType resourceType, ElementsStoredItemInfo storedItem, byte[] encodedData, byte[] digest) throws IOException {
+        ElementsItemId itemId = itemInfo.getItemId();
+        boolean shouldKeep = encodedData != null;
+        changedCounts.get(resourceType).incrementAndGet();
+
+        //if not keeping empties and the data is empty make sure nothing is left behind
+        if (shouldKeep) storage.store(itemId, resourceType, encodedData);
+        else storage.delete(itemId, resourceType);
+        if(digestIndex != null && digestIndex.isIndexed(resourceType)) {
+            if(digest != null) digestIndex.put(itemId, resourceType, digest);
+            else digestIndex.remove(itemId, resourceType);
+        }
+        if(itemInfoIndex != null && itemInfoIndex.isIndexed(resourceType)) {
+            //empty data may not have been kept.
+            if(storage.exists(itemId, resourceType)) itemInfoIndex.put(itemInfo, resourceType);
+            else itemInfoIndex.remove(itemInfo.getItemId(), resourceType);
+        }
 
         //flag the item as having been affected during this run
         //if it is a newly affected item, or if the data is actually being updated during this processing run then process any observers
@@ -173,7 +570,6 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
                 observer.observe(storedItem);
             }
         }
-        return storedItem;
     }
 
     //See interface for javadoc
@@ -182,24 +578,31 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         //TODO: do something better here with error message?
         if(!resourceType.isAppropriateForItem(itemInfo.getItemId())) throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemInfo.getItemId(), resourceType);
-        ElementsStoredItemInfo storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, new StoredData.InFile(file, shouldZipResourceFile(resourceType)));
-        if(!file.exists()){ throw new FileNotFoundException(file.getAbsolutePath()); }
+        ElementsStoredItemInfo storedItem;
+        Lock itemLock = itemLocks.get(itemInfo.getItemId());
+        itemLock.lock();
+        try {
+            //located under the lock, as in storeItem.
+            storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, storage.getItemData(itemInfo.getItemId(), resourceType, shouldZipResourceFile(resourceType)));
+            if(!storage.exists(itemInfo.getItemId(), resourceType)){ throw new FileNotFoundException(storedItem.getAddress()); }
 
 
-        if(explicitObservers != null && explicitObservers.length != 0) {
-            //reprocess any specifically requested observers regardless of whether the item has been "affected" already.
-            for (IElementsStoredItemObserver observer : explicitObservers) {
-                observer.observe(storedItem);
+            if(explicitObservers != null && explicitObservers.length != 0) {
+                //reprocess any specifically requested observers regardless of whether the item has been "affected" already.
+                for (IElementsStoredItemObserver observer : explicitObservers) {
+                    observer.observe(storedItem);
+                }
             }
-        }
 
-        //flag the item as having been affected during this run
-        //if it is a newly affected item, or if the data is actually being updated during this processing run then process any observers
-        if(markItemAsAffected(resourceType, itemInfo.getItemId())) {
-            for (IElementsStoredItemObserver observer : itemObservers) {
-                observer.observe(storedItem);
+            //flag the item as having been affected during this run
+            //if it is a newly affected item, or if the data is actually being updated during this processing run then process any observers
+            if(markItemAsAffected(resourceType, itemInfo.getItemId())) {
+                for (IElementsStoredItemObserver observer : itemObservers) {
+                    observer.observe(storedItem);
+                }
             }
+        } finally {
+            itemLock.unlock();
         }
         return storedItem;
     }
@@ -210,14 +613,19 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         //TODO: do something better here with error message?
         if(!resourceType.isAppropriateForItem(itemId)) throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
         //TODO: should this log if there is nothing to delete?, note that file would not always be present, e.g. for a translated prof-activity?
-        if(file.exists())
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
-        //TODO: should this use markAsAffected?
-        for(IElementsStoredItemObserver observer : itemObservers) {
-            observer.observeDeletion(itemId, resourceType);
+        Lock itemLock = itemLocks.get(itemId);
+        itemLock.lock();
+        try {
+            storage.delete(itemId, resourceType);
+            if(itemInfoIndex != null && itemInfoIndex.isIndexed(resourceType)) itemInfoIndex.remove(itemId, resourceType);
+            if(digestIndex != null && digestIndex.isIndexed(resourceType)) digestIndex.remove(itemId, resourceType);
+            //TODO: should this use markAsAffected?
+            for(IElementsStoredItemObserver observer : itemObservers) {
+                observer.observeDeletion(itemId, resourceType);
+            }
+        } finally {
+            itemLock.unlock();
         }
     }
 
@@ -225,11 +633,23 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         cleardown(resourceType, true);
     }
 
-    //See interface for javadoc
+    /**
+     * See interface for javadoc.
+     * Nothing is deleted there and then - the type moves to a fresh, empty, generation (see GenerationalItemStorage), and
+     * the data it held is only removed (in the background) once commitGenerations is called. Until then, that data is
+     * what the store holds for the type if it is reopened, so a run that fails before committing loses nothing.
+     */
     @Override
     public void cleardown(StorableResourceType resourceType, boolean followObservers) throws IOException {
-        for (StoredData.InFile data : getAllExistingFilesOfType(resourceType)) {
-            data.delete();
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        //ordered with any changes to individual items that are in progress.
+        itemLocks.lockAll();
+        try {
+            storage.deleteAll(resourceType);
+            if(itemInfoIndex != null && itemInfoIndex.isIndexed(resourceType)) itemInfoIndex.clear(resourceType);
+            if(digestIndex != null && digestIndex.isIndexed(resourceType)) digestIndex.clear(resourceType);
+        } finally {
+            itemLocks.unlockAll();
         }
         if (followObservers){
             for (IElementsStoredItemObserver observer : itemObservers) {
@@ -238,26 +658,90 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         }
     }
 
-    private boolean shouldZipResourceFile(StorableResourceType resourceType) {return zipFiles && resourceType.shouldZip();}
+    /**
+     * Persist the item info index (if this store has one) so that the next run can scan from it.
+     * Should be called once the store is no longer being changed.
+     * @throws IOException if the index cannot be written
+     */
+    public void saveItemInfoIndex() throws IOException {
+        if(itemInfoIndex != null) itemInfoIndex.save();
+    }
 
-    private void store(File file, byte[] data, boolean shouldZip) throws IOException{
-        byte[] dataToStore = data == null ? new byte[0] : data;
-        if (keepEmpty || dataToStore.length > 0) {
-            OutputStream outputStream = null;
-            try {
-                outputStream = (new BufferedOutputStream(new FileOutputStream(file)));
-                if(shouldZip) outputStream = new GZIPOutputStream(outputStream);
-                IOUtils.copy(new ByteArrayInputStream(dataToStore), outputStream);
-            } finally {
-                if (outputStream != null) {
-                    outputStream.close();
-                }
+    /**
+     * Persist the index of content digests (if this store has one) so that the next run can tell which items are unchanged.
+     * Should be called once the store is no longer being changed.
+     * @throws IOException if the index cannot be written
+     */
+    public void saveDigestIndex() throws IOException {
+        if(digestIndex != null) digestIndex.save();
+    }
+
+    /**
+     * Make the generations started by cleardown (or resumed by resumeGenerations) the ones this store holds from now
+     * on, removing the data they replace in the background.
+     * Should be called once everything of the cleared down types has been stored again.
+     * @throws IOException if the change cannot be recorded
+     */
+    public void commitGenerations() throws IOException {
+        storage.commit();
+    }
+
+    /**
+     * Carry on with the generations that an earlier run started by cleardown but never committed (e.g. when resuming a
+     * failed full pull), rather than the data held before that cleardown.
+     * Must be called before anything has been read from or written to the store.
+     */
+    public void resumeGenerations() {
+        storage.resumePending();
+    }
+
+    public RecordCodec getCodec() {
+        return encoder.getCodec();
+    }
+
+    /**
+     * Rewrite everything of a particular resourceType held in this store with the store's current RecordCodec (as
+     * anything written before the codec was changed, or before a dictionary was trained, is left as it was).
+     * This is not a change to the items, so the observers are not triggered.
+     * Must not be called while anything else is using the store.
+     * @param resourceType the StorableResourceType to rewrite
+     * @param retrainDictionary whether to train a new dictionary from the existing data first (for the DEFLATE codec,
+     *                          a dictionary is trained anyway if there isn't one for the type).
+     * @return how many resources were rewritten (resources already held as the codec would write them are left alone).
+     * @throws IOException if the existing data cannot be read or the new data written.
+     */
+    public int recompress(final StorableResourceType resourceType, boolean retrainDictionary) throws IOException {
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        if(!resourceType.shouldZip()) return 0;
+        int rewritten = 0;
+        for(final ElementsItemType.SubType subType : resourceType.getSupportedSubTypes()) {
+            if (resourceType.selectCodec(encoder.getCodec()) == RecordCodec.DEFLATE && (retrainDictionary || !encoder.hasDictionary(resourceType, subType))) {
+                List<StoredData> existing = new ArrayList<StoredData>(getAllExistingDataOfType(resourceType, subType));
+                int step = Math.max(1, existing.size() / RecordEncoder.trainingSampleCount);
+                List<byte[]> samples = new ArrayList<byte[]>();
+                for (int i = 0; i < existing.size(); i += step) samples.add(readAll(existing.get(i).getInputStream()));
+                encoder.train(resourceType, subType, samples);
             }
+            rewritten += storage.rewriteAll(resourceType, subType, new ItemStorage.Rewriter() {
+                @Override
+                public byte[] rewrite(byte[] storedData) throws IOException {
+                    byte[] data = readAll(RecordCodec.decode(new ByteArrayInputStream(storedData)));
+                    byte[] newData = encoder.encode(resourceType, subType, data);
+                    return Arrays.equals(newData, storedData) ? null : newData;
+                }
+            });
         }
-        //if not keeping empties and the file is empty
-        else if(file.exists()){
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
+        return rewritten;
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
         }
     }
+
+    //whatever the store is writing with now, anything of a type that is ever compressed may have been written compressed.
+    private boolean shouldZipResourceFile(StorableResourceType resourceType) {return resourceType.shouldZip();}
 }
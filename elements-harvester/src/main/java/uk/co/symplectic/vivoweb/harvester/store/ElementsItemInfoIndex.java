@@ -0,0 +1,392 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.apache.commons.lang.ObjectUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.*;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdMap;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdSet;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * A compact binary index of the ElementsItemInfo held about every item of a set of "RAW-xxx" resource types in an
+ * ElementsItemFileStore - i.e. exactly what ElementsStoredItemInfo.loadStoredResource would extract by re-parsing
+ * each stored file (ids, categories, visibility, linked objects, user eligibility data, etc).
+ *
+ * The store keeps the index up to date as items are stored, deleted and cleared down, and fills it in the first time
+ * a type of item is scanned from disk, after which scans are served from the index rather than the files.
+ * The index is only trusted for a (resource type, sub type) pair once it is known to hold every item of that type
+ * (see isComplete).
+ * For relationships the index also maintains the reverse adjacency from each object to the relationships that link
+ * to it (see getLinkedRelationships), so the relationships touching a handful of objects can be found directly.
+ * The adjacency is derived from the relationship records, so it is rebuilt as the index is loaded rather than saved.
+ *
+ * The index is persisted to a single file by save. That file is deleted as soon as the index is next modified, so
+ * if a run fails before saving again the next run rebuilds the index rather than trusting stale data.
+ * The file also records which user label scheme and generic field were being extracted, as user records built for
+ * one set of eligibility settings are no use for another.
+ *
+ * File format (all values as written by DataOutput):
+ *   int magic, int version, nullable label scheme name, nullable generic field name,
+ *   int resource type count, then per type : UTF type name, int complete sub type count, UTF sub type names...,
+ *                                             int record count, then per record : UTF sub type, int id, int length, record bytes
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsItemInfoIndex {
+    private static final Logger log = LoggerFactory.getLogger(ElementsItemInfoIndex.class);
+
+    private static final int magic = 0x45494958;
+    private static final int formatVersion = 1;
+
+    private final File file;
+    private final Map<StorableResourceType, Map<ElementsItemId, byte[]>> records = new HashMap<StorableResourceType, Map<ElementsItemId, byte[]>>();
+    private final Map<StorableResourceType, Set<ElementsItemType.SubType>> completeSubTypes = new HashMap<StorableResourceType, Set<ElementsItemType.SubType>>();
+
+    //object id to the ids of the indexed relationships that link to it.
+    private final Map<ElementsItemId, Set<ElementsItemId>> linkedRelationships = new ElementsItemIdMap<ElementsItemId, Set<ElementsItemId>>();
+
+    private boolean loaded = false;
+    //whether the file on disk currently matches what is held in memory.
+    private boolean persisted = false;
+
+    /**
+     * @param file where the index is persisted.
+     * @param indexedTypes the "RAW-xxx" resource types to index.
+     */
+    public ElementsItemInfoIndex(File file, StorableResourceType... indexedTypes) {
+        if(file == null) throw new NullArgumentException("file");
+        if(indexedTypes == null || indexedTypes.length == 0) throw new IllegalArgumentException("indexedTypes must not be null or empty");
+        this.file = file;
+        for(StorableResourceType type : indexedTypes) {
+            records.put(type, new ElementsItemIdMap<ElementsItemId, byte[]>());
+            completeSubTypes.put(type, new HashSet<ElementsItemType.SubType>());
+        }
+    }
+
+    public boolean isIndexed(StorableResourceType resourceType) { return records.containsKey(resourceType); }
+
+    /**
+     * @param resourceType the resource type of interest
+     * @param subType the sub type of interest (null for all the sub types of the resource type)
+     * @return true if the index is known to hold every stored item of that type.
+     */
+    public synchronized boolean isComplete(StorableResourceType resourceType, ElementsItemType.SubType subType) {
+        ensureLoaded();
+        Set<ElementsItemType.SubType> complete = getCompleteSubTypes(resourceType);
+        return subType == null ? complete.containsAll(resourceType.getSupportedSubTypes()) : complete.contains(subType);
+    }
+
+    /**
+     * Record that the index now holds every stored item of a type (e.g. because every file has just been scanned),
+     * dropping any items of that type that were not seen.
+     * @param resourceType the resource type that was scanned
+     * @param subType the sub type that was scanned (null for all the sub types of the resource type)
+     * @param existingItems every item of that type that is currently stored
+     */
+    public synchronized void markComplete(StorableResourceType resourceType, ElementsItemType.SubType subType, Set<ElementsItemId> existingItems) {
+        modified();
+        Iterator<ElementsItemId> indexedItems = getRecords(resourceType).keySet().iterator();
+        while(indexedItems.hasNext()) {
+            ElementsItemId itemId = indexedItems.next();
+            if((subType == null || itemId.getItemSubType() == subType) && !existingItems.contains(itemId)) {
+                unlink(resourceType, getRecords(resourceType).get(itemId));
+                indexedItems.remove();
+            }
+        }
+        if(subType == null) getCompleteSubTypes(resourceType).addAll(resourceType.getSupportedSubTypes());
+        else getCompleteSubTypes(resourceType).add(subType);
+    }
+
+    /**
+     * Add or replace the data held about an item.
+     */
+    public synchronized void put(ElementsItemInfo itemInfo, StorableResourceType resourceType) {
+        byte[] record = encode(itemInfo);
+        modified();
+        unlink(resourceType, getRecords(resourceType).put(itemInfo.getItemId(), record));
+        link(resourceType, itemInfo);
+    }
+
+    /**
+     * Add the data held about an item, unless something is already held about it (which is at least as up to date).
+     */
+    public synchronized void putIfAbsent(ElementsItemInfo itemInfo, StorableResourceType resourceType) {
+        Map<ElementsItemId, byte[]> typeRecords = getRecords(resourceType);
+        if(!typeRecords.containsKey(itemInfo.getItemId())) {
+            byte[] record = encode(itemInfo);
+            modified();
+            typeRecords.put(itemInfo.getItemId(), record);
+            link(resourceType, itemInfo);
+        }
+    }
+
+    public synchronized void remove(ElementsItemId itemId, StorableResourceType resourceType) {
+        modified();
+        unlink(resourceType, getRecords(resourceType).remove(itemId));
+    }
+
+    /**
+     * Remove everything held about a resource type - which leaves the index complete for that type (as it is empty).
+     */
+    public synchronized void clear(StorableResourceType resourceType) {
+        modified();
+        if(isRelationshipType(resourceType)) linkedRelationships.clear();
+        getRecords(resourceType).clear();
+        getCompleteSubTypes(resourceType).addAll(resourceType.getSupportedSubTypes());
+    }
+
+    /**
+     * @param resourceType the resource type of interest
+     * @param subType the sub type of interest (null for all the sub types of the resource type)
+     * @return a snapshot of the records held for that type, which can be turned back into ElementsItemInfo with decode.
+     */
+    public synchronized List<byte[]> getRecords(StorableResourceType resourceType, ElementsItemType.SubType subType) {
+        List<byte[]> matching = new ArrayList<byte[]>();
+        for(Map.Entry<ElementsItemId, byte[]> record : getRecords(resourceType).entrySet()) {
+            if(subType == null || record.getKey().getItemSubType() == subType) matching.add(record.getValue());
+        }
+        return matching;
+    }
+
+    /**
+     * @param objectIds the objects of interest
+     * @return a snapshot of the records held for the relationships (of the resourceType) that link to any of the objects.
+     */
+    public synchronized List<byte[]> getLinkedRelationships(StorableResourceType resourceType, Collection<? extends ElementsItemId> objectIds) {
+        Map<ElementsItemId, byte[]> typeRecords = getRecords(resourceType);
+        Set<ElementsItemId> relationshipIds = new ElementsItemIdSet<ElementsItemId>();
+        for(ElementsItemId objectId : objectIds) {
+            Set<ElementsItemId> linked = linkedRelationships.get(objectId);
+            if(linked != null) relationshipIds.addAll(linked);
+        }
+        List<byte[]> matching = new ArrayList<byte[]>();
+        for(ElementsItemId relationshipId : relationshipIds) {
+            byte[] record = typeRecords.get(relationshipId);
+            if(record != null) matching.add(record);
+        }
+        return matching;
+    }
+
+    private static boolean isRelationshipType(StorableResourceType resourceType) {
+        return resourceType.getKeyItemType() == ElementsItemType.RELATIONSHIP;
+    }
+
+    //add a relationship to the adjacency of each object it links.
+    private void link(StorableResourceType resourceType, ElementsItemInfo itemInfo) {
+        if(!isRelationshipType(resourceType) || !itemInfo.isRelationshipInfo()) return;
+        for(ElementsItemId.ObjectId objectId : itemInfo.asRelationshipInfo().getObjectIds()) {
+            Set<ElementsItemId> linked = linkedRelationships.get(objectId);
+            if(linked == null) {
+                linked = new HashSet<ElementsItemId>(2);
+                linkedRelationships.put(objectId, linked);
+            }
+            linked.add(itemInfo.getItemId());
+        }
+    }
+
+    //remove a (no longer indexed) relationship from the adjacency of each object it linked.
+    private void unlink(StorableResourceType resourceType, byte[] oldRecord) {
+        if(oldRecord == null || !isRelationshipType(resourceType)) return;
+        ElementsItemInfo itemInfo = decode(oldRecord);
+        if(!itemInfo.isRelationshipInfo()) return;
+        for(ElementsItemId.ObjectId objectId : itemInfo.asRelationshipInfo().getObjectIds()) {
+            Set<ElementsItemId> linked = linkedRelationships.get(objectId);
+            if(linked != null && linked.remove(itemInfo.getItemId()) && linked.isEmpty()) linkedRelationships.remove(objectId);
+        }
+    }
+
+    public static ElementsItemInfo decode(byte[] record) {
+        try {
+            return ElementsItemInfo.readRecord(new DataInputStream(new ByteArrayInputStream(record)));
+        }
+        catch(IOException e){
+            throw new IllegalStateException("Invalid record in item info index", e);
+        }
+    }
+
+    private static byte[] encode(ElementsItemInfo itemInfo) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            itemInfo.writeRecord(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        }
+        catch(IOException e){
+            //writing to memory - should never happen.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Map<ElementsItemId, byte[]> getRecords(StorableResourceType resourceType) {
+        ensureLoaded();
+        Map<ElementsItemId, byte[]> typeRecords = records.get(resourceType);
+        if(typeRecords == null) throw new IllegalStateException("resourceType is not indexed");
+        return typeRecords;
+    }
+
+    private Set<ElementsItemType.SubType> getCompleteSubTypes(StorableResourceType resourceType) {
+        Set<ElementsItemType.SubType> complete = completeSubTypes.get(resourceType);
+        if(complete == null) throw new IllegalStateException("resourceType is not indexed");
+        return complete;
+    }
+
+    //called before any change - a persisted copy of the index is no longer valid once the index starts changing.
+    private void modified() {
+        ensureLoaded();
+        if(persisted) {
+            persisted = false;
+            if(!file.delete() && file.exists())
+                throw new IllegalStateException(MessageFormat.format("Unable to remove outdated item info index \"{0}\"", file.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Write the index to its file (if it has changed since it was last loaded or saved).
+     * @throws IOException if the index cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        ensureLoaded();
+        if(persisted) return;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists())
+            throw new IOException(MessageFormat.format("Unable to create directory \"{0}\"", parent.getAbsolutePath()));
+        File tempFile = new File(file.getPath() + ".tmp");
+        int recordCount = 0;
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            output.writeInt(magic);
+            output.writeInt(formatVersion);
+            writeNullableString(output, ElementsObjectInfo.Extractor.getLabelSchemeName());
+            writeNullableString(output, ElementsObjectInfo.Extractor.getGenericFieldName());
+            output.writeInt(records.size());
+            for(Map.Entry<StorableResourceType, Map<ElementsItemId, byte[]>> typeRecords : records.entrySet()) {
+                output.writeUTF(typeRecords.getKey().toString());
+                Set<ElementsItemType.SubType> complete = completeSubTypes.get(typeRecords.getKey());
+                output.writeInt(complete.size());
+                for(ElementsItemType.SubType subType : complete) output.writeUTF(subType.getSingular());
+                output.writeInt(typeRecords.getValue().size());
+                for(Map.Entry<ElementsItemId, byte[]> record : typeRecords.getValue().entrySet()) {
+                    output.writeUTF(record.getKey().getItemSubType().getSingular());
+                    output.writeInt(record.getKey().getId());
+                    output.writeInt(record.getValue().length);
+                    output.write(record.getValue());
+                }
+                recordCount += typeRecords.getValue().size();
+            }
+        }
+        finally {
+            if(output != null) output.close();
+        }
+        if(file.exists() && !file.delete())
+            throw new IOException(MessageFormat.format("Unable to replace item info index \"{0}\"", file.getAbsolutePath()));
+        if(!tempFile.renameTo(file))
+            throw new IOException(MessageFormat.format("Unable to move item info index into place at \"{0}\"", file.getAbsolutePath()));
+        persisted = true;
+        log.info(MessageFormat.format("Saved item info index \"{0}\" ({1} items)", file.getAbsolutePath(), recordCount));
+    }
+
+    //load the persisted index (if there is a usable one) the first time the index is used.
+    private void ensureLoaded() {
+        if(loaded) return;
+        loaded = true;
+        if(!file.exists()) return;
+        try {
+            persisted = load();
+            if(!persisted) log.info(MessageFormat.format("Item info index \"{0}\" does not match the current configuration, it will be rebuilt", file.getAbsolutePath()));
+        }
+        catch(IOException e) {
+            log.warn(MessageFormat.format("Unable to read item info index \"{0}\", it will be rebuilt", file.getAbsolutePath()), e);
+            persisted = false;
+        }
+        if(!persisted) {
+            for (StorableResourceType type : records.keySet()) {
+                records.get(type).clear();
+                completeSubTypes.get(type).clear();
+            }
+            linkedRelationships.clear();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private boolean load() throws IOException {
+        Map<String, StorableResourceType> typesByName = new HashMap<String, StorableResourceType>();
+        for(StorableResourceType type : records.keySet()) typesByName.put(type.toString(), type);
+
+        int recordCount = 0;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if(input.readInt() != magic || input.readInt() != formatVersion) return false;
+            if(!ObjectUtils.equals(readNullableString(input), ElementsObjectInfo.Extractor.getLabelSchemeName())) return false;
+            if(!ObjectUtils.equals(readNullableString(input), ElementsObjectInfo.Extractor.getGenericFieldName())) return false;
+            int typeCount = input.readInt();
+            for(int i = 0; i < typeCount; i++) {
+                StorableResourceType type = typesByName.get(input.readUTF());
+                if(type == null) return false;
+                int completeCount = input.readInt();
+                for(int j = 0; j < completeCount; j++) completeSubTypes.get(type).add(readSubType(input, type));
+                Map<ElementsItemId, byte[]> typeRecords = records.get(type);
+                int typeRecordCount = input.readInt();
+                for(int j = 0; j < typeRecordCount; j++) {
+                    ElementsItemId itemId = createItemId(readSubType(input, type), input.readInt());
+                    byte[] record = new byte[input.readInt()];
+                    input.readFully(record);
+                    typeRecords.put(itemId, record);
+                    if(isRelationshipType(type)) link(type, decode(record));
+                }
+                recordCount += typeRecordCount;
+            }
+        }
+        finally {
+            if(input != null) input.close();
+        }
+        log.info(MessageFormat.format("Loaded item info index \"{0}\" ({1} items)", file.getAbsolutePath(), recordCount));
+        return true;
+    }
+
+    static ElementsItemType.SubType readSubType(DataInput input, StorableResourceType type) throws IOException {
+        String name = input.readUTF();
+        try {
+            //going via ElementsObjectCategory ensures the object categories have been registered as sub types.
+            if(type.getKeyItemType() == ElementsItemType.OBJECT) return ElementsObjectCategory.valueOf(name);
+            return ElementsItemType.getSubType(type.getKeyItemType(), name);
+        }
+        catch(IndexOutOfBoundsException e) {
+            throw new IOException(MessageFormat.format("Unknown sub type {0} in item info index", name), e);
+        }
+    }
+
+    static ElementsItemId createItemId(ElementsItemType.SubType subType, int id) {
+        switch(subType.getMainType()) {
+            case OBJECT : return ElementsItemId.createObjectId((ElementsObjectCategory) subType, id);
+            case RELATIONSHIP : return ElementsItemId.createRelationshipId(id);
+            case GROUP : return ElementsItemId.createGroupId(id);
+            case RELATIONSHIP_TYPE : return ElementsItemId.createRelationshipTypeId(id);
+            default : throw new IllegalStateException("unsupported item type");
+        }
+    }
+
+    private static void writeNullableString(DataOutput output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if(value != null) output.writeUTF(value);
+    }
+
+    private static String readNullableString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+}
@@ -15,6 +15,9 @@ import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Interfaces representing the concept of a "Store" for ElementsItem related resources.
@@ -35,23 +38,71 @@ public interface ElementsItemStore {
     ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException;
 
 
-//    class MultiStore implements ElementsItemStore {
-//        List<ElementsItemStore> stores = new ArrayList<ElementsItemStore>();
-//
-//        public MultiStore(ElementsItemStore... stores) {
-//            if (stores == null || stores.length == 0)
-//                throw new IllegalArgumentException("stores must not be null or empty");
-//            this.stores.addAll(Arrays.asList(stores));
-//        }
-//
-//        @Override
-//        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
-//            for (ElementsItemStore store : stores) {
-//                store.storeItem(itemInfo, resourceType, data);
-//            }
-//            return null;
-//        }
-//    }
+    /**
+     * Store that passes every item it is given on to each of a set of stores (in order).
+     * Allows the items from a single fetch to be delivered to several consumers, so that a feed only has to be
+     * retrieved and parsed once.
+     * Returns whatever the first of the stores returns.
+     */
+    class MultiStore implements ElementsItemStore {
+        private final List<ElementsItemStore> stores = new ArrayList<ElementsItemStore>();
+
+        public MultiStore(ElementsItemStore... stores) {
+            if (stores == null || stores.length == 0)
+                throw new IllegalArgumentException("stores must not be null or empty");
+            this.stores.addAll(Arrays.asList(stores));
+        }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            ElementsStoredItemInfo result = null;
+            for (int i = 0; i < stores.size(); i++) {
+                ElementsStoredItemInfo storeResult = stores.get(i).storeItem(itemInfo, resourceType, data);
+                if(i == 0) result = storeResult;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Store that simply holds on to the items it is given in memory so that they can be "replayed" into another store later.
+     * Intended for small sets of items (e.g. groups) that are needed in more than one place at different points of a run.
+     */
+    class BufferingStore implements ElementsItemStore {
+        private static class BufferedItem {
+            private final ElementsItemInfo itemInfo;
+            private final StorableResourceType resourceType;
+            private final byte[] data;
+
+            private BufferedItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) {
+                this.itemInfo = itemInfo;
+                this.resourceType = resourceType;
+                this.data = data;
+            }
+        }
+
+        private final List<BufferedItem> items = new ArrayList<BufferedItem>();
+
+        @Override
+        public synchronized ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            items.add(new BufferedItem(itemInfo, resourceType, data));
+            return null;
+        }
+
+        public synchronized int size() { return items.size(); }
+
+        /**
+         * Pass every item held in this buffer on to another store, in the order they were originally stored.
+         * @param store the store to replay the items into.
+         * @throws IOException if the target store cannot store an item.
+         */
+        public synchronized void replayInto(ElementsItemStore store) throws IOException {
+            if (store == null) throw new IllegalArgumentException("store must not be null");
+            for (BufferedItem item : items) {
+                store.storeItem(item.itemInfo, item.resourceType, item.data);
+            }
+        }
+    }
 
     /**
      * Richer interface the expands the definition of a store
@@ -11,25 +11,60 @@
 
 package uk.co.symplectic.vivoweb.harvester.store;
 
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * An ElementsItemFileStore, specifically configured (in terms of accepted types, layout strategy, etc)
  * to act as the raw data store for the harvester
+ * Keeps an ElementsItemInfoIndex of the raw objects, relationships and groups alongside the data, and an
+ * ElementsItemDigestIndex of everything stored so that records re-fetched unchanged are not reprocessed.
+ * Users are the exception - they are always reprocessed, as their photo is fetched when they are (and the photo can
+ * change, or have failed to be fetched before, without anything in the user's record changing).
+ * The data can be laid out in any of the StoreLayouts (FLAT by default), and written with any WriteDurability (NONE by default).
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class ElementsRawDataStore extends ElementsItemFileStore {
-    private static LayoutStrategy layoutStrategy = new DefaultLayoutStrategy(
-            new StorableResourceType[]{StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP},
-            new StorableResourceType[]{StorableResourceType.RAW_USER_PHOTO}
-    );
+    private static final StorableResourceType[] mainResourceTypes = new StorableResourceType[]{StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP};
+    private static final StorableResourceType[] resourceTypesWithOwnDirectory = new StorableResourceType[]{StorableResourceType.RAW_USER_PHOTO};
 
     public ElementsRawDataStore(File dir) {
         this(dir, false, false);
     }
 
+    //file (within the store directory) holding the index of the item info for all the raw objects, relationships and groups.
+    private static final String itemInfoIndexFileName = "item-info.index";
+    //file (within the store directory) holding the content digests of everything in the store.
+    private static final String digestIndexFileName = "item-digest.index";
+
+    private static final List<StorableResourceType> supportedTypes = Arrays.asList(
+            StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_USER_PHOTO, StorableResourceType.RAW_GROUP);
+
     public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles){
-        super(dir, keepEmpty, zipFiles, ElementsRawDataStore.layoutStrategy,
-                StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_USER_PHOTO, StorableResourceType.RAW_GROUP);
+        this(dir, keepEmpty, zipFiles, StoreLayout.FLAT);
+    }
+
+    public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles, StoreLayout layout){
+        this(dir, keepEmpty, zipFiles, layout, WriteDurability.NONE);
+    }
+
+    public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles, StoreLayout layout, WriteDurability durability){
+        this(dir, keepEmpty, zipFiles ? RecordCodec.GZIP : RecordCodec.NONE, layout, durability);
+    }
+
+    public ElementsRawDataStore(File dir, boolean keepEmpty, RecordCodec codec, StoreLayout layout, WriteDurability durability){
+        super(dir, keepEmpty, codec, layout.createStorage(dir, mainResourceTypes, resourceTypesWithOwnDirectory, supportedTypes, durability),
+                new ElementsItemInfoIndex(new File(dir, itemInfoIndexFileName), StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP),
+                new ElementsItemDigestIndex(new File(dir, digestIndexFileName), supportedTypes.toArray(new StorableResourceType[supportedTypes.size()])),
+                supportedTypes.toArray(new StorableResourceType[supportedTypes.size()]));
+    }
+
+    @Override
+    protected boolean isSkippedWhenUnchanged(ElementsItemId itemId, StorableResourceType resourceType) {
+        return !(resourceType == StorableResourceType.RAW_OBJECT && itemId.getItemSubType() == ElementsObjectCategory.USER);
     }
 }
@@ -11,22 +11,45 @@
 package uk.co.symplectic.vivoweb.harvester.store;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * An ElementsItemFileStore, specifically configured (in terms of accepted types, layout strategy, etc)
  * to act as the output rdf data store for the harvester
+ * Keeps an ElementsItemDigestIndex of everything stored so that translations that produce the same output as before
+ * are not rewritten.
+ * The data can be laid out in any of the StoreLayouts (FLAT by default), and written with any WriteDurability (NONE by default).
  */
 @SuppressWarnings("unused")
 public class ElementsRdfStore extends ElementsItemFileStore {
 
-    private static LayoutStrategy layoutStrategy = new DefaultLayoutStrategy(
-            new StorableResourceType[]{StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP}, null);
+    private static final StorableResourceType[] mainResourceTypes = new StorableResourceType[]{StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP};
 
     public ElementsRdfStore(File dir){ this(dir, false, false); }
 
-    public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles){
-        super(dir, keepEmpty, zipFiles, ElementsRdfStore.layoutStrategy,
+    //file (within the store directory) holding the content digests of everything in the store.
+    private static final String digestIndexFileName = "item-digest.index";
+
+    private static final List<StorableResourceType> supportedTypes = Arrays.asList(
             StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP,
-                StorableResourceType.TRANSLATED_USER_PHOTO_DESCRIPTION, StorableResourceType.TRANSLATED_USER_GROUP_MEMBERSHIP);
+            StorableResourceType.TRANSLATED_USER_PHOTO_DESCRIPTION, StorableResourceType.TRANSLATED_USER_GROUP_MEMBERSHIP);
+
+    public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles){
+        this(dir, keepEmpty, zipFiles, StoreLayout.FLAT);
+    }
+
+    public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles, StoreLayout layout){
+        this(dir, keepEmpty, zipFiles, layout, WriteDurability.NONE);
+    }
+
+    public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles, StoreLayout layout, WriteDurability durability){
+        this(dir, keepEmpty, zipFiles ? RecordCodec.GZIP : RecordCodec.NONE, layout, durability);
+    }
+
+    public ElementsRdfStore(File dir, boolean keepEmpty, RecordCodec codec, StoreLayout layout, WriteDurability durability){
+        super(dir, keepEmpty, codec, layout.createStorage(dir, mainResourceTypes, null, supportedTypes, durability), null,
+                new ElementsItemDigestIndex(new File(dir, digestIndexFileName), supportedTypes.toArray(new StorableResourceType[supportedTypes.size()])),
+                supportedTypes.toArray(new StorableResourceType[supportedTypes.size()]));
     }
 }
@@ -27,7 +27,7 @@ public class ElementsStoreFactory {
         } else {
             synchronized (ElementsStoreFactory.class) {
                 if (objectStore == null)
-                    objectStore = new ElementsRawDataStore(Configuration.getRawOutputDir(), false, Configuration.getZipFiles());
+                    objectStore = new ElementsRawDataStore(Configuration.getRawOutputDir(), false, getStoreCodec(), Configuration.getStoreLayout(), Configuration.getStoreWriteDurability());
                 return objectStore;
             }
         }
@@ -39,9 +39,14 @@ public class ElementsStoreFactory {
         } else {
             synchronized (ElementsStoreFactory.class) {
                 if(rdfStore == null)
-                    rdfStore = new ElementsRdfStore(Configuration.getRdfOutputDir(), false, Configuration.getZipFiles());
+                    rdfStore = new ElementsRdfStore(Configuration.getRdfOutputDir(), false, getStoreCodec(), Configuration.getStoreLayout(), Configuration.getStoreWriteDurability());
                 return rdfStore;
             }
         }
     }
+
+    //the codec only applies if the stores are to be compressed at all.
+    private static RecordCodec getStoreCodec() {
+        return Configuration.getZipFiles() ? Configuration.getStoreCodec() : RecordCodec.NONE;
+    }
 }
@@ -19,6 +19,7 @@ import uk.co.symplectic.utils.xml.XMLEventProcessor;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,6 +37,8 @@ import java.text.MessageFormat;
  * BasicElementsStoredItem, StoredData/ResourceType pairs
  * These load methods will only work for "RAW-xxx" storable resources types and leverage the relevant Extractors to
  * create the ElementsItemInfo from the underlying data.
+ * The load methods are safe to call from multiple threads at once - every call gets its own extractor, processor and
+ * reader (the shared XMLInputFactory is only used to create readers, which is thread safe).
  */
 
 @SuppressWarnings("unused")
@@ -68,7 +71,7 @@ public class ElementsStoredItemInfo {
         return innerItem.getStoredData().getAddress();
     }
 
-    private synchronized static <T> T loadFromStoredData(StoredData data, XMLEventProcessor.ItemExtractingFilter<T> extractor) {
+    private static <T> T loadFromStoredData(StoredData data, XMLEventProcessor.ItemExtractingFilter<T> extractor) {
         if (data == null) throw new NullArgumentException("data");
         InputStream inputStream = null;
         try {
@@ -76,7 +79,10 @@ public class ElementsStoredItemInfo {
             inputStream = data.getInputStream();
             XMLInputFactory xmlInputFactory = StAXUtils.getXMLInputFactory();
             XMLEventProcessor processor = new XMLEventProcessor(extractor);
-            processor.process(xmlInputFactory.createXMLEventReader(inputStream));
+            //extractors only need names, attributes and values so the cheaper cursor based reader can be used.
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+            processor.process(reader);
+            reader.close();
 
             return extractor.getExtractedItem();
         } catch (FileNotFoundException fileNotFoundException) {
@@ -104,16 +110,16 @@ public class ElementsStoredItemInfo {
         }
     }
 
-    public synchronized static ElementsStoredItemInfo loadStoredResource(BasicElementsStoredItem item){
+    public static ElementsStoredItemInfo loadStoredResource(BasicElementsStoredItem item){
         return loadStoredResource(item.getStoredData(), item.getResourceType(), item.getItemId());
     }
 
-    public synchronized static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type){
+    public static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type){
         return loadStoredResource(data, type, null);
     }
 
     @SuppressWarnings("WeakerAccess")
-    public synchronized static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type, ElementsItemId idToCompareTo){
+    public static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type, ElementsItemId idToCompareTo){
         if(data == null) throw new NullArgumentException("data");
         if(type == null) throw new NullArgumentException("type");
         StorableResourceType[] validTypes = {StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP};
@@ -0,0 +1,95 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * Lazy iterator over the files held in a series of directories, which reads each directory a little at a time
+ * (via a DirectoryStream) rather than listing the whole thing into memory up front.
+ * Only one directory is open at a time; the iterator should be closed if it is not read to the end.
+ */
+class ExistingFileIterator implements Iterator<File>, Closeable {
+
+    /**
+     * A directory to be read, and the filter deciding which of its entries are wanted.
+     */
+    static class Source {
+        private final File directory;
+        private final DirectoryStream.Filter<Path> filter;
+
+        Source(File directory, DirectoryStream.Filter<Path> filter) {
+            if (directory == null) throw new NullArgumentException("directory");
+            if (filter == null) throw new NullArgumentException("filter");
+            this.directory = directory;
+            this.filter = filter;
+        }
+    }
+
+    private final Iterator<Source> sources;
+    private DirectoryStream<Path> currentStream = null;
+    private Iterator<Path> current = null;
+
+    ExistingFileIterator(Collection<Source> sources) {
+        if (sources == null) throw new NullArgumentException("sources");
+        this.sources = new ArrayList<Source>(sources).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+            closeCurrent();
+            if (!sources.hasNext()) return false;
+            Source source = sources.next();
+            if (!source.directory.isDirectory()) continue;
+            try {
+                currentStream = Files.newDirectoryStream(source.directory.toPath(), source.filter);
+            } catch (IOException e) {
+                throw new IllegalStateException(MessageFormat.format("Could not read directory {0}", source.directory.getAbsolutePath()), e);
+            }
+            current = currentStream.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next().toFile();
+    }
+
+    @Override
+    public void remove() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public void close() { closeCurrent(); }
+
+    private void closeCurrent() {
+        if (currentStream != null) {
+            try {
+                currentStream.close();
+            } catch (IOException e) {
+                //nothing useful can be done about it.
+            }
+        }
+        currentStream = null;
+        current = null;
+    }
+}
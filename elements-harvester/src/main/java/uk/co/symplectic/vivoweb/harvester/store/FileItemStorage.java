@@ -0,0 +1,160 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.NullArgumentException;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * ItemStorage that holds each resource in its own (optionally compressed) file, placed within the store directory
+ * according to a LayoutStrategy.
+ * Scans and cleardowns stream the directories rather than listing every file of the type up front.
+ * How carefully each file is written is governed by a WriteDurability.
+ */
+class FileItemStorage implements ItemStorage {
+    //how many files are handed to a scan's visitor at a time.
+    private static final int scanBatchSize = 4096;
+    //suffix of the file an item is written to before being renamed into place (unless the durability is NONE).
+    static final String partialFileSuffix = ".partial";
+
+    private final File dir;
+    private final LayoutStrategy layoutStrategy;
+    private final WriteDurability durability;
+
+    FileItemStorage(File dir, LayoutStrategy layoutStrategy) {
+        this(dir, layoutStrategy, WriteDurability.NONE);
+    }
+
+    FileItemStorage(File dir, LayoutStrategy layoutStrategy, WriteDurability durability) {
+        if(dir == null) throw new NullArgumentException("dir");
+        if(layoutStrategy == null) throw new NullArgumentException("layoutStrategy");
+        if(durability == null) throw new NullArgumentException("durability");
+        this.dir = dir;
+        this.layoutStrategy = layoutStrategy;
+        this.durability = durability;
+    }
+
+    @Override
+    public StoredData.InFile getItemData(ElementsItemId itemId, StorableResourceType resourceType, boolean isZipped) {
+        return new StoredData.InFile(layoutStrategy.getItemFile(dir, itemId, resourceType), isZipped);
+    }
+
+    @Override
+    public boolean exists(ElementsItemId itemId, StorableResourceType resourceType) {
+        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
+        return file != null && file.exists();
+    }
+
+    @Override
+    public void store(ElementsItemId itemId, StorableResourceType resourceType, byte[] data) throws IOException {
+        write(layoutStrategy.getItemFile(dir, itemId, resourceType), data);
+    }
+
+    private void write(File file, byte[] data) throws IOException {
+        //unless writing in place, write alongside the final file (so on the same file system) and rename it into place.
+        File target = durability == WriteDurability.NONE ? file : new File(file.getPath() + partialFileSuffix);
+        FileOutputStream fileStream = new FileOutputStream(target);
+        try {
+            fileStream.write(data);
+            if(durability == WriteDurability.SYNC) fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+        if(target != file) {
+            try {
+                Files.move(target.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                //noinspection ResultOfMethodCallIgnored
+                target.delete();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void delete(ElementsItemId itemId, StorableResourceType resourceType) {
+        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
+        if(file.exists())
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+    }
+
+    @Override
+    public void deleteAll(StorableResourceType resourceType) {
+        ExistingFileIterator files = layoutStrategy.iterateExistingFilesOfType(dir, resourceType, null);
+        try {
+            while (files.hasNext()) {
+                //noinspection ResultOfMethodCallIgnored
+                files.next().delete();
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    @Override
+    public List<StoredData> getAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped) {
+        Collection<File> files = subType == null ? layoutStrategy.getAllExistingFilesOfType(dir, resourceType) : layoutStrategy.getAllExistingFilesOfType(dir, resourceType, subType);
+        List<StoredData> data = new ArrayList<StoredData>();
+        for(File file : files) data.add(new StoredData.InFile(file, isZipped));
+        return data;
+    }
+
+    @Override
+    public int rewriteAll(StorableResourceType resourceType, ElementsItemType.SubType subType, Rewriter rewriter) throws IOException {
+        int rewritten = 0;
+        ExistingFileIterator files = layoutStrategy.iterateExistingFilesOfType(dir, resourceType, subType);
+        try {
+            while (files.hasNext()) {
+                File file = files.next();
+                byte[] data = rewriter.rewrite(FileUtils.readFileToByteArray(file));
+                if (data == null) continue;
+                write(file, data);
+                rewritten++;
+            }
+        } finally {
+            files.close();
+        }
+        return rewritten;
+    }
+
+    @Override
+    public void close() {
+        //nothing is held open between calls.
+    }
+
+    @Override
+    public void scanAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped, BatchVisitor visitor) throws IOException {
+        ExistingFileIterator files = layoutStrategy.iterateExistingFilesOfType(dir, resourceType, subType);
+        try {
+            List<StoredData> batch = new ArrayList<StoredData>(scanBatchSize);
+            while (files.hasNext()) {
+                batch.add(new StoredData.InFile(files.next(), isZipped));
+                if (batch.size() == scanBatchSize) {
+                    visitor.visit(batch);
+                    batch = new ArrayList<StoredData>(scanBatchSize);
+                }
+            }
+            if (!batch.isEmpty()) visitor.visit(batch);
+        } finally {
+            files.close();
+        }
+    }
+}
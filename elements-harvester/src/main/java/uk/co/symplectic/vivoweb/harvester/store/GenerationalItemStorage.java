@@ -0,0 +1,369 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.NullArgumentException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * ItemStorage that holds the data of each resource type in a "generation", so that everything held for a type can be
+ * replaced without having to delete it first (see deleteAll and commit).
+ *
+ * Generation 0 of every type is held directly in the store directory (where stores held everything before there were
+ * generations), each later generation is held in its own directory within the "generations" directory of the store,
+ * named for the type and the generation (e.g. generations/raw-object.3). Whichever directory a generation is in, the
+ * data is held there by the ItemStorage the StorageFactory creates for it, exactly as it would be in the store directory.
+ *
+ * deleteAll does not delete anything - it starts a new, empty, "pending" generation of the type, which is used from
+ * then on. The generation that was in use is left untouched until commit is called, and is what the store holds if it
+ * is reopened before then. So a run that fails part way through replacing a type leaves the last complete copy of it
+ * in place (although a later run can choose to carry on with the pending generation instead, see resumePending).
+ * Generations that have been superseded are removed in the background.
+ * The generations of each type are recorded in the generations.properties file in the store directory, which is
+ * replaced atomically whenever they change.
+ */
+class GenerationalItemStorage implements ItemStorage {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationalItemStorage.class);
+
+    //directory (within the store directory) holding every generation after the first.
+    static final String generationDirectoryName = "generations";
+    //file (within the store directory) recording the generations of each type.
+    private static final String generationFileName = "generations.properties";
+
+    /**
+     * Interface to create the storage for a generation held in a particular directory
+     */
+    interface StorageFactory {
+        ItemStorage create(File dir);
+    }
+
+    /**
+     * The generations of a single resource type, guarded by the lock on the storage.
+     */
+    private static class TypeGenerations {
+        private int current = 0;
+        private int pending = -1;
+        //generations awaiting removal.
+        private final Set<Integer> retired = new TreeSet<Integer>();
+        //the storage of each generation after the first that has been used so far.
+        private final Map<Integer, ItemStorage> storages = new HashMap<Integer, ItemStorage>();
+        //the storage of the generation in use - the current one, unless a pending one has been started or resumed.
+        private volatile ItemStorage active = null;
+    }
+
+    private static ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> removalPool = null;
+
+    private static synchronized ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> getRemovalPool() {
+        if (removalPool == null) removalPool = ExecutorServiceUtils.newFixedThreadPool("GenerationRemoval", 1);
+        return removalPool;
+    }
+
+    private final File dir;
+    private final File file;
+    private final StorageFactory factory;
+    //the storage of generation 0, which is shared by every type.
+    private final ItemStorage baseStorage;
+    private final Map<StorableResourceType, TypeGenerations> generations = new HashMap<StorableResourceType, TypeGenerations>();
+    private int nextGeneration = 1;
+
+    GenerationalItemStorage(File dir, StorageFactory factory, Collection<StorableResourceType> supportedTypes) {
+        if (dir == null) throw new NullArgumentException("dir");
+        if (factory == null) throw new NullArgumentException("factory");
+        if (supportedTypes == null || supportedTypes.isEmpty()) throw new IllegalArgumentException("supportedTypes must not be null or empty");
+        this.dir = dir;
+        this.file = new File(dir, generationFileName);
+        this.factory = factory;
+        this.baseStorage = factory.create(dir);
+        for (StorableResourceType type : supportedTypes) generations.put(type, new TypeGenerations());
+        try {
+            open();
+        } catch (IOException e) {
+            throw new IllegalStateException(MessageFormat.format("Could not read the generations of store {0}", dir.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * @return whether the storage holds each resource in its own file (see FileItemStorage).
+     */
+    boolean holdsFiles() {
+        return baseStorage instanceof FileItemStorage;
+    }
+
+    @Override
+    public StoredData getItemData(ElementsItemId itemId, StorableResourceType resourceType, boolean isZipped) {
+        return getActive(resourceType).getItemData(itemId, resourceType, isZipped);
+    }
+
+    @Override
+    public boolean exists(ElementsItemId itemId, StorableResourceType resourceType) {
+        return getActive(resourceType).exists(itemId, resourceType);
+    }
+
+    @Override
+    public void store(ElementsItemId itemId, StorableResourceType resourceType, byte[] data) throws IOException {
+        getActive(resourceType).store(itemId, resourceType, data);
+    }
+
+    @Override
+    public void delete(ElementsItemId itemId, StorableResourceType resourceType) throws IOException {
+        getActive(resourceType).delete(itemId, resourceType);
+    }
+
+    /**
+     * Start a new, empty, generation of the type, which is used from now on in place of whatever was in use before.
+     * That is not deleted until the new generation has been committed (unless it was itself an uncommitted generation).
+     */
+    @Override
+    public synchronized void deleteAll(StorableResourceType resourceType) throws IOException {
+        TypeGenerations typeGenerations = getGenerations(resourceType);
+        int uncommitted = typeGenerations.pending;
+        if (uncommitted >= 0) typeGenerations.retired.add(uncommitted);
+        typeGenerations.pending = nextGeneration++;
+        save();
+        typeGenerations.active = getStorage(resourceType, typeGenerations.pending);
+        log.info(MessageFormat.format("Started generation {0} of {1} in {2}", typeGenerations.pending, resourceType, dir.getAbsolutePath()));
+        if (uncommitted >= 0) scheduleRemoval(resourceType, uncommitted);
+    }
+
+    /**
+     * Make every pending generation that is in use the current generation of its type, and remove the generations
+     * they replace in the background.
+     * @return the types whose generation changed.
+     */
+    synchronized List<StorableResourceType> commit() throws IOException {
+        List<StorableResourceType> committed = new ArrayList<StorableResourceType>();
+        Map<StorableResourceType, Integer> replaced = new HashMap<StorableResourceType, Integer>();
+        for (Map.Entry<StorableResourceType, TypeGenerations> entry : generations.entrySet()) {
+            TypeGenerations typeGenerations = entry.getValue();
+            if (!isPendingInUse(typeGenerations)) continue;
+            replaced.put(entry.getKey(), typeGenerations.current);
+            typeGenerations.retired.add(typeGenerations.current);
+            typeGenerations.current = typeGenerations.pending;
+            typeGenerations.pending = -1;
+            committed.add(entry.getKey());
+        }
+        if (committed.isEmpty()) return committed;
+        save();
+        for (StorableResourceType type : committed) {
+            log.info(MessageFormat.format("Committed generation {0} of {1} in {2}", generations.get(type).current, type, dir.getAbsolutePath()));
+            scheduleRemoval(type, replaced.get(type));
+        }
+        return committed;
+    }
+
+    /**
+     * Use the pending generation of each type that has one (left behind by an earlier run that started it but did not
+     * commit it) in place of its current generation.
+     * @return the types whose pending generation is now in use.
+     */
+    synchronized List<StorableResourceType> resumePending() {
+        List<StorableResourceType> resumed = new ArrayList<StorableResourceType>();
+        for (Map.Entry<StorableResourceType, TypeGenerations> entry : generations.entrySet()) {
+            TypeGenerations typeGenerations = entry.getValue();
+            if (typeGenerations.pending < 0 || isPendingInUse(typeGenerations)) continue;
+            typeGenerations.active = getStorage(entry.getKey(), typeGenerations.pending);
+            resumed.add(entry.getKey());
+            log.info(MessageFormat.format("Resumed generation {0} of {1} in {2}", typeGenerations.pending, entry.getKey(), dir.getAbsolutePath()));
+        }
+        return resumed;
+    }
+
+    @Override
+    public List<StoredData> getAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped) {
+        return getActive(resourceType).getAllExisting(resourceType, subType, isZipped);
+    }
+
+    @Override
+    public void scanAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped, BatchVisitor visitor) throws IOException {
+        getActive(resourceType).scanAllExisting(resourceType, subType, isZipped, visitor);
+    }
+
+    @Override
+    public int rewriteAll(StorableResourceType resourceType, ElementsItemType.SubType subType, Rewriter rewriter) throws IOException {
+        return getActive(resourceType).rewriteAll(resourceType, subType, rewriter);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        baseStorage.close();
+        for (TypeGenerations typeGenerations : generations.values()) {
+            for (ItemStorage storage : typeGenerations.storages.values()) storage.close();
+        }
+    }
+
+    private TypeGenerations getGenerations(StorableResourceType resourceType) {
+        TypeGenerations typeGenerations = generations.get(resourceType);
+        if (typeGenerations == null) throw new IllegalStateException("resourceType is incompatible with storage");
+        return typeGenerations;
+    }
+
+    //must hold the lock on this object.
+    private static boolean isPendingInUse(TypeGenerations typeGenerations) {
+        return typeGenerations.pending >= 0 && typeGenerations.active == typeGenerations.storages.get(typeGenerations.pending);
+    }
+
+    private ItemStorage getActive(StorableResourceType resourceType) {
+        return getGenerations(resourceType).active;
+    }
+
+    //must hold the lock on this object.
+    private ItemStorage getStorage(StorableResourceType resourceType, int generation) {
+        if (generation == 0) return baseStorage;
+        TypeGenerations typeGenerations = getGenerations(resourceType);
+        ItemStorage storage = typeGenerations.storages.get(generation);
+        if (storage == null) {
+            storage = factory.create(getGenerationDirectory(resourceType, generation));
+            typeGenerations.storages.put(generation, storage);
+        }
+        return storage;
+    }
+
+    private File getGenerationDirectory(StorableResourceType resourceType, int generation) {
+        return new File(new File(dir, generationDirectoryName), resourceType + "." + generation);
+    }
+
+    private void scheduleRemoval(final StorableResourceType resourceType, final int generation) {
+        getRemovalPool().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    remove(resourceType, generation);
+                    log.info(MessageFormat.format("Removed generation {0} of {1} from {2} in {3}ms", generation, resourceType, dir.getAbsolutePath(), System.currentTimeMillis() - startTime));
+                    return true;
+                } catch (IOException e) {
+                    //it is still recorded as retired, so removing it is tried again when the store is next opened.
+                    log.error(MessageFormat.format("Error removing generation {0} of {1} from {2}", generation, resourceType, dir.getAbsolutePath()), e);
+                    return false;
+                }
+            }
+        });
+    }
+
+    private void remove(StorableResourceType resourceType, int generation) throws IOException {
+        if (generation == 0) {
+            //the store directory is shared with the other types, so their data has to be picked out.
+            baseStorage.deleteAll(resourceType);
+        }
+        else {
+            ItemStorage storage;
+            synchronized (this) {
+                storage = getGenerations(resourceType).storages.remove(generation);
+            }
+            if (storage != null) storage.close();
+            FileUtils.deleteDirectory(getGenerationDirectory(resourceType, generation));
+        }
+        synchronized (this) {
+            getGenerations(resourceType).retired.remove(generation);
+            save();
+        }
+    }
+
+    //must hold the lock on this object.
+    private void open() throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream input = new FileInputStream(file);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+        }
+        Set<String> inUse = new HashSet<String>();
+        for (Map.Entry<StorableResourceType, TypeGenerations> entry : generations.entrySet()) {
+            StorableResourceType type = entry.getKey();
+            TypeGenerations typeGenerations = entry.getValue();
+            typeGenerations.current = Integer.parseInt(properties.getProperty(type + ".current", "0"));
+            typeGenerations.pending = Integer.parseInt(properties.getProperty(type + ".pending", "-1"));
+            for (String generation : StringUtils.split(properties.getProperty(type + ".retired", ""), ',')) {
+                typeGenerations.retired.add(Integer.parseInt(generation.trim()));
+            }
+            Set<Integer> known = new HashSet<Integer>(typeGenerations.retired);
+            known.add(typeGenerations.current);
+            if (typeGenerations.pending >= 0) known.add(typeGenerations.pending);
+            for (int generation : known) {
+                nextGeneration = Math.max(nextGeneration, generation + 1);
+                inUse.add(getGenerationDirectory(type, generation).getName());
+            }
+            typeGenerations.active = getStorage(type, typeGenerations.current);
+        }
+
+        //anything else in the generations directory was started but never recorded, so is of no use.
+        final List<File> orphans = new ArrayList<File>();
+        File[] directories = new File(dir, generationDirectoryName).listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                String name = directory.getName();
+                int split = name.lastIndexOf('.');
+                if (split > 0 && split + 1 < name.length() && StringUtils.isNumeric(name.substring(split + 1)))
+                    nextGeneration = Math.max(nextGeneration, Integer.parseInt(name.substring(split + 1)) + 1);
+                if (!inUse.contains(name)) orphans.add(directory);
+            }
+        }
+
+        for (Map.Entry<StorableResourceType, TypeGenerations> entry : generations.entrySet()) {
+            for (int generation : entry.getValue().retired) scheduleRemoval(entry.getKey(), generation);
+        }
+        if (!orphans.isEmpty()) {
+            getRemovalPool().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (File orphan : orphans) {
+                        try {
+                            FileUtils.forceDelete(orphan);
+                        } catch (IOException e) {
+                            log.error(MessageFormat.format("Error removing unused generation {0}", orphan.getAbsolutePath()), e);
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+
+    //must hold the lock on this object.
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<StorableResourceType, TypeGenerations> entry : generations.entrySet()) {
+            StorableResourceType type = entry.getKey();
+            TypeGenerations typeGenerations = entry.getValue();
+            properties.setProperty(type + ".current", Integer.toString(typeGenerations.current));
+            if (typeGenerations.pending >= 0) properties.setProperty(type + ".pending", Integer.toString(typeGenerations.pending));
+            if (!typeGenerations.retired.isEmpty()) properties.setProperty(type + ".retired", StringUtils.join(typeGenerations.retired, ','));
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            properties.store(output, "Generations of each resource type held in this store");
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
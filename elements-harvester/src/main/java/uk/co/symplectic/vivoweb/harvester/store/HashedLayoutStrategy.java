@@ -0,0 +1,64 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * LayoutStrategy that places files in the same directories as the DefaultLayoutStrategy, but fans each of those
+ * directories out into bucketCount subdirectories (named b00 to bff) chosen by a hash of the item id.
+ * (The names of the buckets cannot clash with those of item files, which are named for the item id).
+ * This keeps the number of entries in any one directory manageable for stores holding hundreds of thousands of items.
+ * Existing stores can be moved between the two layouts with the StoreLayoutMigrator.
+ */
+@SuppressWarnings("WeakerAccess")
+public class HashedLayoutStrategy extends DefaultLayoutStrategy {
+
+    static final int bucketCount = 256;
+
+    public HashedLayoutStrategy(){
+        super();
+    }
+
+    public HashedLayoutStrategy(StorableResourceType[] mainResourceTypes, StorableResourceType[] resourceTypesWithOwnDirectory){
+        super(mainResourceTypes, resourceTypesWithOwnDirectory);
+    }
+
+    /**
+     * @return the name of the bucket directory that the item with this id belongs in.
+     */
+    static int getBucket(int id) {
+        //mix the bits of the id so that runs of ids (or ids allocated with a stride) still spread evenly.
+        int hash = id * 0x9E3779B1;
+        return hash >>> 24;
+    }
+
+    static String getBucketName(int bucket) {
+        return String.format("b%02x", bucket);
+    }
+
+    @Override
+    protected File getItemDirectory(File typeDirectory, int id) {
+        return new File(typeDirectory, getBucketName(getBucket(id)));
+    }
+
+    @Override
+    protected Collection<File> getItemDirectories(File typeDirectory) {
+        List<File> directories = new ArrayList<File>(bucketCount);
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            directories.add(new File(typeDirectory, getBucketName(bucket)));
+        }
+        return directories;
+    }
+}
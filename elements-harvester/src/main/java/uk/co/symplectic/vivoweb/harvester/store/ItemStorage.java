@@ -0,0 +1,87 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Interface to define how an ElementsItemFileStore physically holds the data for each resource of each Elements item.
+ * FileItemStorage keeps each resource in its own file (placed according to a LayoutStrategy),
+ * SegmentItemStorage packs them into a small number of large segment files.
+ * Where the data handed back may have been compressed (isZipped), it is decoded by RecordCodec.decode according to
+ * what it actually holds, whichever codec it was written with.
+ * Implementations must be thread safe.
+ */
+interface ItemStorage {
+
+    /**
+     * Interface for code that wants to be handed the existing data of a type a batch at a time
+     */
+    interface BatchVisitor {
+        void visit(List<StoredData> batch) throws IOException;
+    }
+
+    /**
+     * Interface for code that wants to replace the data held for existing resources (e.g. to re-encode it)
+     */
+    interface Rewriter {
+        /**
+         * @param storedData the data as it is held
+         * @return the data to hold in its place, or null to leave it as it is
+         */
+        byte[] rewrite(byte[] storedData) throws IOException;
+    }
+
+    /**
+     * @return a StoredData representing where the resource is (or would be) held - it need not exist.
+     */
+    StoredData getItemData(ElementsItemId itemId, StorableResourceType resourceType, boolean isZipped);
+
+    boolean exists(ElementsItemId itemId, StorableResourceType resourceType);
+
+    /**
+     * @param data the data to hold, already encoded by the store's RecordCodec.
+     */
+    void store(ElementsItemId itemId, StorableResourceType resourceType, byte[] data) throws IOException;
+
+    void delete(ElementsItemId itemId, StorableResourceType resourceType) throws IOException;
+
+    void deleteAll(StorableResourceType resourceType) throws IOException;
+
+    /**
+     * @param subType the subtype of interest, or null for all subtypes of the resourceType
+     */
+    List<StoredData> getAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped);
+
+    /**
+     * Pass all the existing data of a type to the visitor in batches, in whatever order is most efficient to read it.
+     * @param subType the subtype of interest, or null for all subtypes of the resourceType
+     */
+    void scanAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped, BatchVisitor visitor) throws IOException;
+
+    /**
+     * Pass the data held for every existing resource of a type to the rewriter, holding whatever it returns instead.
+     * The storage must not be changed by anything else while this is going on.
+     * @param subType the subtype of interest, or null for all subtypes of the resourceType
+     * @return how many resources were rewritten.
+     */
+    int rewriteAll(StorableResourceType resourceType, ElementsItemType.SubType subType, Rewriter rewriter) throws IOException;
+
+    /**
+     * Release anything the storage holds open, once it is no longer going to be used (e.g. when a generation of a
+     * GenerationalItemStorage is removed).
+     */
+    void close() throws IOException;
+}
@@ -19,6 +19,7 @@ import java.util.Collection;
 /**
  * Interface to define methods that affect how a Store places data on disk for Elements items assuming a given
  * a base directory. Additional methods to search for all files of a particular Type/SubType held in the store
+ * (either all at once, or streamed a directory entry at a time via an ExistingFileIterator).
  */
 
 interface LayoutStrategy {
@@ -29,4 +30,9 @@ interface LayoutStrategy {
 
     Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType);
 
+    /**
+     * @param subType the subtype of interest, or null for all subtypes of the resourceType
+     */
+    ExistingFileIterator iterateExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType);
+
 }
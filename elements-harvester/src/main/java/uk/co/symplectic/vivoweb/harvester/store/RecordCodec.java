@@ -0,0 +1,210 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * enum representing the ways an ElementsItemFileStore can compress the records it holds:
+ *     NONE    - records are held as they are
+ *     GZIP    - records are gzipped
+ *     DEFLATE - records are deflated against a dictionary of the markup common to records of their type (see
+ *               RecordDictionary), which suits the small, repetitive records the harvester deals with far better than
+ *               gzip does. Records are written without a dictionary until one has been trained for their type.
+ *
+ * Whatever codec a store is writing with, records are decoded according to what they actually hold (see decode), so a
+ * store can switch codec without its existing data being rewritten (although see RecordRecompressor).
+ */
+public enum RecordCodec {
+    NONE,
+    GZIP,
+    DEFLATE;
+
+    //DEFLATE records start with these bytes (and a format version), followed by a zlib stream.
+    private static final byte[] deflateMagic = new byte[]{'E', 'H', 'R', 'C'};
+    private static final int deflateVersion = 1;
+    private static final int deflateHeaderSize = deflateMagic.length + 1;
+    private static final int deflateLevel = Deflater.BEST_SPEED;
+
+    //native (de)compressors are expensive to create, so each thread keeps one of each to hand.
+    private static final ThreadLocal<Deflater> spareDeflater = new ThreadLocal<Deflater>();
+    private static final ThreadLocal<Inflater> spareInflater = new ThreadLocal<Inflater>();
+
+    /**
+     * @param data the record to encode
+     * @param dictionary the dictionary to deflate against (if any), ignored by the other codecs.
+     * @return the record as it should be held.
+     */
+    public byte[] encode(byte[] data, RecordDictionary dictionary) throws IOException {
+        if (data == null) throw new NullArgumentException("data");
+        switch (this) {
+            case GZIP : return gzip(data);
+            case DEFLATE : return deflate(data, dictionary);
+            default : return data;
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream output = new GZIPOutputStream(bytes);
+        output.write(data);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, RecordDictionary dictionary) {
+        Deflater deflater = spareDeflater.get();
+        if (deflater == null) deflater = new Deflater(deflateLevel);
+        else spareDeflater.set(null);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary.getBytes());
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 3 + 64);
+            bytes.write(deflateMagic, 0, deflateMagic.length);
+            bytes.write(deflateVersion);
+            byte[] buffer = new byte[Math.max(512, data.length / 2)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            deflater.reset();
+            spareDeflater.set(deflater);
+        }
+    }
+
+    /**
+     * Wrap a stream of stored data so that it is decoded according to what it holds, whichever codec wrote it:
+     * gzip and DEFLATE records are recognised by their leading bytes, anything else is taken to be held as it is.
+     * DEFLATE records written against a dictionary can only be decoded once that dictionary has been loaded.
+     */
+    public static InputStream decode(InputStream input) throws IOException {
+        if (input == null) throw new NullArgumentException("input");
+        InputStream stream = input.markSupported() ? input : new BufferedInputStream(input);
+        byte[] header = new byte[deflateHeaderSize];
+        stream.mark(header.length);
+        int read = 0;
+        while (read < header.length) {
+            int count = stream.read(header, read, header.length - read);
+            if (count < 0) break;
+            read += count;
+        }
+        if (read >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b) {
+            stream.reset();
+            return new GZIPInputStream(stream);
+        }
+        if (read == deflateHeaderSize && isDeflateHeader(header)) {
+            if (header[deflateMagic.length] != deflateVersion)
+                throw new IOException(MessageFormat.format("Unsupported record format version {0}", header[deflateMagic.length]));
+            return new DictionaryInflaterInputStream(stream);
+        }
+        stream.reset();
+        return stream;
+    }
+
+    private static boolean isDeflateHeader(byte[] header) {
+        for (int i = 0; i < deflateMagic.length; i++) {
+            if (header[i] != deflateMagic[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stream inflating a DEFLATE record, which supplies whichever dictionary the record asks for when it is needed.
+     * (the zlib stream identifies its dictionary by the dictionary's adler32 checksum).
+     */
+    private static class DictionaryInflaterInputStream extends FilterInputStream {
+        private Inflater inflater;
+        private final byte[] buffer = new byte[4096];
+        private final byte[] single = new byte[1];
+
+        DictionaryInflaterInputStream(InputStream input) {
+            super(input);
+            Inflater spare = spareInflater.get();
+            if (spare == null) spare = new Inflater();
+            else spareInflater.set(null);
+            inflater = spare;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (inflater == null) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            try {
+                while (true) {
+                    int count = inflater.inflate(b, off, len);
+                    if (count > 0) return count;
+                    if (inflater.finished()) return -1;
+                    if (inflater.needsDictionary()) {
+                        RecordDictionary dictionary = RecordDictionary.lookup(inflater.getAdler());
+                        if (dictionary == null)
+                            throw new IOException(MessageFormat.format("Record needs dictionary {0} which has not been loaded", RecordDictionary.describeId(inflater.getAdler())));
+                        inflater.setDictionary(dictionary.getBytes());
+                    }
+                    else if (inflater.needsInput()) {
+                        int read = in.read(buffer, 0, buffer.length);
+                        if (read < 0) throw new EOFException("Unexpected end of record");
+                        inflater.setInput(buffer, 0, read);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Record is corrupt", e);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 4096)];
+            long remaining = n;
+            while (remaining > 0) {
+                int count = read(skipped, 0, (int) Math.min(remaining, skipped.length));
+                if (count < 0) break;
+                remaining -= count;
+            }
+            return n - remaining;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inflater == null || inflater.finished() ? 0 : 1;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater != null) {
+                inflater.reset();
+                spareInflater.set(inflater);
+                inflater = null;
+            }
+            super.close();
+        }
+    }
+}
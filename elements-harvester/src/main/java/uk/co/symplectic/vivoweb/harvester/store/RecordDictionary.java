@@ -0,0 +1,212 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.NullArgumentException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary for the DEFLATE RecordCodec: a block of the markup that turns up again and again in records of
+ * a particular type, which each record can then refer back to rather than spell out for itself.
+ *
+ * Dictionaries are identified by their adler32 checksum (which is what a zlib stream records of the dictionary it
+ * needs), and every dictionary that is created or loaded is registered under that id so that any record written
+ * against it can be decoded, whichever store it is in. As records only carry that id, a dictionary whose id is already
+ * registered to a different dictionary cannot be used (see register).
+ */
+@SuppressWarnings("WeakerAccess")
+public class RecordDictionary {
+    //the most a dictionary can usefully hold is the deflate window, but the whole dictionary is processed for every
+    //record encoded against it, so smaller dictionaries are used by default.
+    static final int maxDictionarySize = 32 * 1024;
+    static final int defaultDictionarySize = 8 * 1024;
+    //suffix of the files dictionaries are saved to.
+    public static final String fileSuffix = ".dictionary";
+
+    //records are handled a byte to a char while training, so that any encoding can be dealt with.
+    private static final Charset latin1 = Charset.forName("ISO-8859-1");
+    //the length of the stretches of the samples that are compared (deflate can only refer back to 3 bytes or more).
+    private static final int gramLength = 6;
+    //what appears in fewer than this fraction of the samples is not worth a place in the dictionary.
+    private static final int minSampleFraction = 10;
+
+    private static final Map<Integer, RecordDictionary> registry = new ConcurrentHashMap<Integer, RecordDictionary>();
+
+    private final byte[] bytes;
+    private final int id;
+
+    private RecordDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        Adler32 checksum = new Adler32();
+        checksum.update(bytes, 0, bytes.length);
+        this.id = (int) checksum.getValue();
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getSize() {
+        return bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return describeId(id);
+    }
+
+    static String describeId(int id) {
+        return String.format("%08x", id);
+    }
+
+    /**
+     * @return the registered dictionary with this id, or null if none has been created or loaded.
+     */
+    static RecordDictionary lookup(int id) {
+        return registry.get(id);
+    }
+
+    /**
+     * @throws IllegalStateException if a different dictionary is already registered with the same id.
+     */
+    private static synchronized RecordDictionary register(byte[] bytes) {
+        RecordDictionary dictionary = new RecordDictionary(bytes);
+        RecordDictionary existing = registry.get(dictionary.id);
+        if (existing != null) {
+            if (!Arrays.equals(existing.bytes, bytes))
+                throw new IllegalStateException("Record dictionary " + dictionary + " has the same id as a different dictionary that is already registered");
+            return existing;
+        }
+        registry.put(dictionary.id, dictionary);
+        return dictionary;
+    }
+
+    /**
+     * Load (and register) a dictionary saved by save.
+     */
+    public static RecordDictionary load(File file) throws IOException {
+        if (file == null) throw new NullArgumentException("file");
+        byte[] bytes = FileUtils.readFileToByteArray(file);
+        if (bytes.length == 0 || bytes.length > maxDictionarySize)
+            throw new IOException("File " + file.getAbsolutePath() + " does not hold a valid record dictionary");
+        try {
+            return register(bytes);
+        } catch (IllegalStateException e) {
+            throw new IOException("Could not register the record dictionary in " + file.getAbsolutePath(), e);
+        }
+    }
+
+    public void save(File file) throws IOException {
+        if (file == null) throw new NullArgumentException("file");
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileUtils.writeByteArrayToFile(tempFile, bytes);
+        if (file.exists() && !file.delete()) throw new IOException("Could not replace record dictionary " + file.getAbsolutePath());
+        if (!tempFile.renameTo(file)) throw new IOException("Could not write record dictionary " + file.getAbsolutePath());
+    }
+
+    /**
+     * Build (and register) a dictionary from a sample of records of one type.
+     *
+     * Every run of bytes of a sample is kept as a candidate if each short stretch of it (of gramLength bytes) turns up
+     * in a good share of the samples - so the markup, namespaces and URLs the records share are kept, and ids, dates
+     * and text are not. The candidates found in the most samples (weighted by their length) are packed into the
+     * dictionary, the most valuable last - as deflate can refer to the end of the dictionary most cheaply.
+     * @param samples records of the type the dictionary is for (the more representative the better).
+     * @param maxSize the largest the dictionary can be.
+     * @return the dictionary, or null if the samples have too little in common to be worth building one (or, very rarely,
+     *         the dictionary built has the same id as a different one that is already registered).
+     */
+    public static RecordDictionary train(Collection<byte[]> samples, int maxSize) {
+        if (samples == null) throw new NullArgumentException("samples");
+        if (maxSize < 1 || maxSize > maxDictionarySize)
+            throw new IllegalArgumentException("maxSize must be between 1 and " + maxDictionarySize);
+
+        //how many of the samples each stretch turns up in.
+        Map<String, Integer> gramCounts = new HashMap<String, Integer>();
+        for (byte[] sample : samples) {
+            String text = new String(sample, latin1);
+            Set<String> grams = new HashSet<String>();
+            for (int i = 0; i + gramLength <= text.length(); i++) grams.add(text.substring(i, i + gramLength));
+            for (String gram : grams) {
+                Integer count = gramCounts.get(gram);
+                gramCounts.put(gram, count == null ? 1 : count + 1);
+            }
+        }
+
+        //how many of the samples each candidate turns up in.
+        int minSamples = Math.max(2, samples.size() / minSampleFraction);
+        Map<String, Integer> candidateCounts = new HashMap<String, Integer>();
+        for (byte[] sample : samples) {
+            String text = new String(sample, latin1);
+            Set<String> candidates = new HashSet<String>();
+            int runStart = -1;
+            for (int i = 0; i + gramLength <= text.length() + 1; i++) {
+                Integer count = i + gramLength <= text.length() ? gramCounts.get(text.substring(i, i + gramLength)) : null;
+                boolean common = count != null && count >= minSamples;
+                if (common && runStart < 0) runStart = i;
+                else if (!common && runStart >= 0) {
+                    candidates.add(text.substring(runStart, i - 1 + gramLength));
+                    runStart = -1;
+                }
+            }
+            for (String candidate : candidates) {
+                Integer count = candidateCounts.get(candidate);
+                candidateCounts.put(candidate, count == null ? 1 : count + 1);
+            }
+        }
+
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<Map.Entry<String, Integer>>();
+        for (Map.Entry<String, Integer> entry : candidateCounts.entrySet()) {
+            if (entry.getValue() >= minSamples) candidates.add(entry);
+        }
+        //most valuable first, so that the most valuable are chosen.
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                long aValue = (long) a.getValue() * a.getKey().length();
+                long bValue = (long) b.getValue() * b.getKey().length();
+                if (aValue != bValue) return aValue > bValue ? -1 : 1;
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            byte[] bytes = candidate.getKey().getBytes(latin1);
+            if (size + bytes.length > maxSize) continue;
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        if (size == 0) return null;
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) dictionary.write(chosen.get(i), 0, chosen.get(i).length);
+        try {
+            return register(dictionary.toByteArray());
+        } catch (IllegalStateException e) {
+            //the existing dictionary's records must still decode, so this one cannot be used.
+            return null;
+        }
+    }
+}
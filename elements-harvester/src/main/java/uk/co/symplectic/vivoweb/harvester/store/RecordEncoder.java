@@ -0,0 +1,158 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the records an ElementsItemFileStore writes with the store's RecordCodec (for the resource types that are
+ * compressed at all, see StorableResourceType.selectCodec).
+ *
+ * For the DEFLATE codec it also looks after the store's dictionaries - one per resource type and item subtype (as e.g.
+ * users and publications have little markup in common) - which are held in the store directory as
+ * "[resource name]-[subtype].dictionary" files (e.g. raw-publication.dictionary). Every dictionary file found there is loaded (so records written against
+ * older dictionaries can still be read) and the current one for each type is used for writing. If a type has no
+ * dictionary, one is trained from the first records written, which are written without a dictionary in the meantime.
+ */
+class RecordEncoder {
+    private static final Logger log = LoggerFactory.getLogger(RecordEncoder.class);
+
+    //how many records of a type are sampled to train its dictionary.
+    static final int trainingSampleCount = 200;
+
+    private final RecordCodec codec;
+    private final File dir;
+    //keyed by dictionary name (see getDictionaryName).
+    private final Map<String, RecordDictionary> dictionaries = new HashMap<String, RecordDictionary>();
+    private final Map<String, List<byte[]>> trainingSamples = new HashMap<String, List<byte[]>>();
+
+    /**
+     * @param codec the codec to write records with
+     * @param dir the store directory, where any dictionaries are kept
+     */
+    RecordEncoder(RecordCodec codec, File dir, List<StorableResourceType> supportedTypes) {
+        if (codec == null) throw new NullArgumentException("codec");
+        if (dir == null) throw new NullArgumentException("dir");
+        this.codec = codec;
+        this.dir = dir;
+        loadDictionaries(supportedTypes);
+    }
+
+    RecordCodec getCodec() {
+        return codec;
+    }
+
+    synchronized boolean hasDictionary(StorableResourceType resourceType, ElementsItemType.SubType subType) {
+        return dictionaries.containsKey(getDictionaryName(resourceType, subType));
+    }
+
+    byte[] encode(StorableResourceType resourceType, ElementsItemType.SubType subType, byte[] data) throws IOException {
+        RecordCodec typeCodec = resourceType.selectCodec(codec);
+        if (typeCodec != RecordCodec.DEFLATE) return typeCodec.encode(data, null);
+        return typeCodec.encode(data, getDictionary(getDictionaryName(resourceType, subType), data));
+    }
+
+    /**
+     * Train a new dictionary for a type from the samples given, and write records of the type against it from now on.
+     * (the file of any previous dictionary is kept, as existing records will still need it).
+     * @return whether a dictionary could be trained (if not, the current one is kept).
+     */
+    synchronized boolean train(StorableResourceType resourceType, ElementsItemType.SubType subType, Collection<byte[]> samples) throws IOException {
+        RecordDictionary trained = RecordDictionary.train(samples, RecordDictionary.defaultDictionarySize);
+        if (trained == null) return false;
+        setDictionary(getDictionaryName(resourceType, subType), trained);
+        return true;
+    }
+
+    //must hold the lock on this object.
+    private void setDictionary(String name, RecordDictionary dictionary) throws IOException {
+        RecordDictionary current = dictionaries.get(name);
+        if (current != null) {
+            if (current.getId() == dictionary.getId()) return;
+            File currentFile = getDictionaryFile(name, null);
+            if (currentFile.exists() && !currentFile.renameTo(getDictionaryFile(name, current)))
+                throw new IOException(MessageFormat.format("Could not retire dictionary {0}", currentFile.getAbsolutePath()));
+        }
+        dictionary.save(getDictionaryFile(name, null));
+        dictionaries.put(name, dictionary);
+        trainingSamples.remove(name);
+        log.info(MessageFormat.format("Records of type {0} in {1} are now written against dictionary {2} ({3} bytes)",
+                name, dir.getAbsolutePath(), dictionary, dictionary.getSize()));
+    }
+
+    //the dictionary to write this record against - gathering the record as a sample if the type is not trained yet.
+    private synchronized RecordDictionary getDictionary(String name, byte[] data) throws IOException {
+        RecordDictionary dictionary = dictionaries.get(name);
+        if (dictionary != null) return dictionary;
+        List<byte[]> samples = trainingSamples.get(name);
+        if (samples == null) {
+            samples = new ArrayList<byte[]>();
+            trainingSamples.put(name, samples);
+        }
+        if (data.length > 0) samples.add(data);
+        if (samples.size() >= trainingSampleCount) {
+            RecordDictionary trained = RecordDictionary.train(samples, RecordDictionary.defaultDictionarySize);
+            if (trained != null) {
+                setDictionary(name, trained);
+                return trained;
+            }
+            //nothing in common worth a dictionary, so stop looking.
+            samples.clear();
+        }
+        return null;
+    }
+
+    private static String getDictionaryName(StorableResourceType resourceType, ElementsItemType.SubType subType) {
+        return MessageFormat.format("{0}-{1}", resourceType.getName(), subType.getSingular());
+    }
+
+    //the file a dictionary is held in - either the current one, or (with the dictionary) a retired one.
+    private File getDictionaryFile(String name, RecordDictionary retired) {
+        return new File(dir, (retired == null ? name : name + "-" + retired) + RecordDictionary.fileSuffix);
+    }
+
+    private void loadDictionaries(List<StorableResourceType> supportedTypes) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(RecordDictionary.fileSuffix);
+            }
+        });
+        if (files == null) return;
+        for (File file : files) {
+            try {
+                RecordDictionary dictionary = RecordDictionary.load(file);
+                for (StorableResourceType type : supportedTypes) {
+                    for (ElementsItemType.SubType subType : type.getSupportedSubTypes()) {
+                        String name = getDictionaryName(type, subType);
+                        if (file.equals(getDictionaryFile(name, null))) dictionaries.put(name, dictionary);
+                    }
+                }
+            } catch (IOException e) {
+                //records written against it will fail to decode, which is reported when they are read.
+                log.error(MessageFormat.format("Could not load record dictionary {0}", file.getAbsolutePath()), e);
+            }
+        }
+    }
+}
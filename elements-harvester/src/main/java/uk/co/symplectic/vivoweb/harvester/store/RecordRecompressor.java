@@ -0,0 +1,112 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line tool to rewrite the records already held in the harvester's intermediate stores (data/raw-records and
+ * data/translated-records) with a different RecordCodec, e.g. after changing storeCodec. Stores read records whichever
+ * codec wrote them, so this is never required - it just saves the space (and read time) sooner.
+ * For the DEFLATE codec a dictionary is trained from the existing records of each type that does not have one.
+ * Each record is written to a partial file and renamed into place, so an interrupted run leaves every record readable
+ * and can simply be run again. The harvester must not be running while a store is recompressed.
+ *
+ * Arguments are of the form name=value:
+ *     raw - comma separated list of raw record store directories to recompress
+ *     rdf - comma separated list of translated record store directories to recompress
+ *     layout - the storeLayout of the stores, "flat" (default), "hashed" or "segmented"
+ *     codec - the codec to rewrite the records with, "deflate" (default), "gzip" or "none"
+ *     retrain - whether to train new dictionaries even for types that have one already, "false" (default) or "true"
+ */
+public class RecordRecompressor {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordRecompressor.class);
+
+    public static void main(String[] args) {
+        List<File> rawStores = new ArrayList<File>();
+        List<File> rdfStores = new ArrayList<File>();
+        StoreLayout layout = StoreLayout.FLAT;
+        RecordCodec codec = RecordCodec.DEFLATE;
+        boolean retrain = false;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            String name = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+            if ("raw".equals(name)) addStores(rawStores, value);
+            else if ("rdf".equals(name)) addStores(rdfStores, value);
+            else if ("layout".equals(name)) layout = parse(StoreLayout.class, value);
+            else if ("codec".equals(name)) codec = parse(RecordCodec.class, value);
+            else if ("retrain".equals(name)) retrain = Boolean.parseBoolean(value);
+            else {
+                log.error(MessageFormat.format("Unknown argument \"{0}\"", name));
+                System.exit(1);
+            }
+        }
+        if (rawStores.isEmpty() && rdfStores.isEmpty()) {
+            log.error("No stores specified - use raw=<directory>[,<directory>...] and/or rdf=<directory>[,<directory>...]");
+            System.exit(1);
+        }
+
+        try {
+            for (File store : rawStores) {
+                checkStore(store);
+                recompress(new ElementsRawDataStore(store, false, codec, layout, WriteDurability.ATOMIC), store, retrain);
+            }
+            for (File store : rdfStores) {
+                checkStore(store);
+                recompress(new ElementsRdfStore(store, false, codec, layout, WriteDurability.ATOMIC), store, retrain);
+            }
+        } catch (Exception e) {
+            log.error("Recompression failed", e);
+            System.exit(1);
+        }
+    }
+
+    private static void recompress(ElementsItemFileStore store, File dir, boolean retrain) throws Exception {
+        log.info(MessageFormat.format("Recompressing store \"{0}\" with the {1} codec", dir.getAbsolutePath(), store.getCodec().name().toLowerCase()));
+        for (StorableResourceType type : store.getSupportedTypes()) {
+            long startTime = System.currentTimeMillis();
+            int rewritten = store.recompress(type, retrain);
+            log.info(MessageFormat.format("Recompressed {0} : {1} records rewritten in {2}ms", type, rewritten, System.currentTimeMillis() - startTime));
+        }
+    }
+
+    private static void addStores(List<File> stores, String value) {
+        for (String store : value.split(",")) {
+            if (store.trim().length() > 0) stores.add(new File(store.trim()));
+        }
+    }
+
+    private static void checkStore(File store) {
+        if (!store.isDirectory()) throw new IllegalStateException(MessageFormat.format("Store \"{0}\" is not a directory", store.getAbsolutePath()));
+    }
+
+    private static <T extends Enum<T>> T parse(Class<T> enumClass, String value) {
+        for (T constant : enumClass.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value.trim())) return constant;
+        }
+        log.error(MessageFormat.format("Invalid value \"{0}\" - must be one of {1}", value, Arrays.toString(enumClass.getEnumConstants()).toLowerCase()));
+        System.exit(1);
+        return null;
+    }
+}
@@ -0,0 +1,727 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * ItemStorage that packs the resources of a store into a small number of large "segment" files rather than giving
+ * each one its own file, so that the store does not need an inode (and a directory entry) per item.
+ *
+ * Every change is appended to the current segment as a record: storing an item appends its data, deleting an item
+ * appends a "tombstone". An in memory offset index maps each item to the record holding its current data, and is
+ * rebuilt by reading through the segments (oldest first) when the storage is first used.
+ * Once a segment reaches maxSegmentSize a new one is started. Sealed segments in which most of the bytes have been
+ * superseded are compacted in the background, by copying their live records to the current segment and deleting them.
+ * Scans read each segment from start to finish, rather than seeking about for each item in turn.
+ * With a WriteDurability of SYNC each stored or deleted record is forced to disk before the call returns; otherwise
+ * segments are only forced as they are sealed or compacted.
+ *
+ * Record layout : kind (byte), resource type (UTF), item subtype (UTF), item id (int), data length (int), data, crc32 of data (int)
+ */
+class SegmentItemStorage implements ItemStorage {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentItemStorage.class);
+
+    private static final int segmentMagic = 0x45534547;
+    private static final int segmentVersion = 1;
+    private static final int segmentHeaderSize = 8;
+    private static final String segmentExtension = ".seg";
+
+    private static final byte tombstoneRecord = 0;
+    private static final byte dataRecord = 1;
+
+    static final long defaultMaxSegmentSize = 64L * 1024 * 1024;
+    //sealed segments where more than this fraction of the records are no longer live are compacted.
+    private static final double compactionThreshold = 0.5;
+
+    /**
+     * A single segment file, along with how much of it is no longer live.
+     * size and deadBytes are guarded by the storage lock.
+     */
+    private static class Segment {
+        private final int number;
+        private final File file;
+        private long size = 0;
+        private long deadBytes = 0;
+        private FileChannel channel = null;
+
+        Segment(File dir, int number) {
+            this.number = number;
+            this.file = new File(dir, String.format("%08d%s", number, segmentExtension));
+        }
+
+        synchronized FileChannel getChannel() throws IOException {
+            if (channel == null) channel = new RandomAccessFile(file, "rw").getChannel();
+            return channel;
+        }
+
+        synchronized void close() throws IOException {
+            if (channel != null) channel.close();
+            channel = null;
+        }
+
+        boolean isWorthCompacting() {
+            return deadBytes > (size - segmentHeaderSize) * compactionThreshold;
+        }
+    }
+
+    /**
+     * Where the current record for an item is.
+     */
+    private static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final long dataOffset;
+        private final int dataLength;
+
+        Location(Segment segment, long offset, int length, long dataOffset, int dataLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+    }
+
+    /**
+     * Reads the records of a segment one after another, from a single buffered stream.
+     */
+    private class SegmentReader implements Closeable {
+        private final CountingInputStream counter;
+        private final DataInputStream input;
+        private final long limit;
+        private final boolean readData;
+
+        private byte kind;
+        private StorableResourceType resourceType;
+        private ElementsItemId itemId;
+        private long recordOffset;
+        private long dataOffset;
+        private int dataLength;
+        private byte[] data;
+
+        SegmentReader(Segment segment, long limit, boolean readData) throws IOException {
+            this.counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+            this.input = new DataInputStream(counter);
+            this.limit = limit;
+            this.readData = readData;
+            recordOffset = segmentHeaderSize;
+            if (input.readInt() != segmentMagic) throw new IOException(MessageFormat.format("{0} is not a segment file", segment.file.getAbsolutePath()));
+            int version = input.readInt();
+            if (version != segmentVersion) throw new IOException(MessageFormat.format("Segment file {0} has unsupported version {1}", segment.file.getAbsolutePath(), version));
+        }
+
+        long getPosition() { return counter.getByteCount(); }
+
+        /**
+         * @return false once the end of the segment is reached, having read a whole record otherwise.
+         * @throws IOException if the segment ends part way through a record, or the record is corrupt.
+         */
+        boolean next() throws IOException {
+            recordOffset = getPosition();
+            if (recordOffset >= limit) return false;
+            int first = input.read();
+            if (first < 0) return false;
+            kind = (byte) first;
+            if (kind != dataRecord && kind != tombstoneRecord) throw new IOException(MessageFormat.format("Unknown record kind {0}", kind));
+            String resourceTypeName = input.readUTF();
+            resourceType = typesByName.get(resourceTypeName);
+            if (resourceType == null) throw new IOException(MessageFormat.format("Unknown resource type {0}", resourceTypeName));
+            itemId = ElementsItemInfoIndex.createItemId(ElementsItemInfoIndex.readSubType(input, resourceType), input.readInt());
+            dataLength = input.readInt();
+            if (dataLength < 0) throw new IOException("Negative data length");
+            dataOffset = getPosition();
+            if (readData) {
+                data = new byte[dataLength];
+                input.readFully(data);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (input.readInt() != (int) crc.getValue()) throw new IOException("Checksum mismatch");
+            } else {
+                data = null;
+                IOUtils.skipFully(input, dataLength);
+                input.readInt();
+            }
+            return true;
+        }
+
+        int getRecordLength() { return (int) (getPosition() - recordOffset); }
+
+        @Override
+        public void close() throws IOException { input.close(); }
+    }
+
+    /**
+     * StoredData for a record - which reads the item's current record whenever it is opened
+     * (unless it was created by a scan that has already read the data).
+     */
+    private class StoredRecord implements StoredData {
+        private final StorableResourceType resourceType;
+        private final ElementsItemId itemId;
+        private final boolean isZipped;
+        private final byte[] data;
+
+        StoredRecord(StorableResourceType resourceType, ElementsItemId itemId, boolean isZipped, byte[] data) {
+            this.resourceType = resourceType;
+            this.itemId = itemId;
+            this.isZipped = isZipped;
+            this.data = data;
+        }
+
+        @Override
+        public String getAddress() {
+            return MessageFormat.format("{0}[{1}/{2}/{3}]", dir.getAbsolutePath(), resourceType, itemId.getItemDescriptor(), Integer.toString(itemId.getId()));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            byte[] bytes = data != null ? data : read(resourceType, itemId);
+            if (bytes == null) throw new FileNotFoundException(getAddress());
+            InputStream stream = new ByteArrayInputStream(bytes);
+            if (isZipped) stream = RecordCodec.decode(stream);
+            return stream;
+        }
+
+        @Override
+        public void delete() {
+            try {
+                SegmentItemStorage.this.delete(itemId, resourceType);
+            } catch (IOException e) {
+                log.warn(MessageFormat.format("Failed to delete {0}", getAddress()), e);
+            }
+        }
+    }
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final WriteDurability durability;
+    private final Map<String, StorableResourceType> typesByName = new HashMap<String, StorableResourceType>();
+
+    //guards the offset index and the segments.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //held (shared) by scans and (exclusively) by compaction, so that records are not moved out from under a scan.
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private final Map<StorableResourceType, Map<ElementsItemId, Location>> locations = new HashMap<StorableResourceType, Map<ElementsItemId, Location>>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment = null;
+    private volatile boolean opened = false;
+
+    private final AtomicBoolean compactionPending = new AtomicBoolean(false);
+    private ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> compactionService = null;
+
+    SegmentItemStorage(File dir, Collection<StorableResourceType> supportedTypes) {
+        this(dir, defaultMaxSegmentSize, WriteDurability.NONE, supportedTypes);
+    }
+
+    SegmentItemStorage(File dir, WriteDurability durability, Collection<StorableResourceType> supportedTypes) {
+        this(dir, defaultMaxSegmentSize, durability, supportedTypes);
+    }
+
+    SegmentItemStorage(File dir, long maxSegmentSize, WriteDurability durability, Collection<StorableResourceType> supportedTypes) {
+        if (dir == null) throw new NullArgumentException("dir");
+        if (durability == null) throw new NullArgumentException("durability");
+        if (maxSegmentSize <= segmentHeaderSize) throw new IllegalArgumentException("maxSegmentSize is too small");
+        if (supportedTypes == null || supportedTypes.isEmpty()) throw new IllegalArgumentException("supportedTypes must not be null or empty");
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.durability = durability;
+        for (StorableResourceType type : supportedTypes) {
+            if (typesByName.put(type.toString(), type) != null)
+                throw new IllegalArgumentException(MessageFormat.format("Multiple resource types are named {0}", type));
+            locations.put(type, new ElementsItemIdMap<ElementsItemId, Location>());
+        }
+    }
+
+    @Override
+    public StoredData getItemData(ElementsItemId itemId, StorableResourceType resourceType, boolean isZipped) {
+        return new StoredRecord(resourceType, itemId, isZipped, null);
+    }
+
+    @Override
+    public boolean exists(ElementsItemId itemId, StorableResourceType resourceType) {
+        checkOpen();
+        lock.readLock().lock();
+        try {
+            return getLocations(resourceType).containsKey(itemId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void store(ElementsItemId itemId, StorableResourceType resourceType, byte[] data) throws IOException {
+        ensureOpen();
+        lock.writeLock().lock();
+        try {
+            Location location = append(dataRecord, resourceType, itemId, data);
+            retire(getLocations(resourceType).put(itemId, location));
+            if (durability == WriteDurability.SYNC) location.segment.getChannel().force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(ElementsItemId itemId, StorableResourceType resourceType) throws IOException {
+        ensureOpen();
+        lock.writeLock().lock();
+        try {
+            deleteRecord(itemId, resourceType);
+            if (durability == WriteDurability.SYNC) activeSegment.getChannel().force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll(StorableResourceType resourceType) throws IOException {
+        ensureOpen();
+        lock.writeLock().lock();
+        try {
+            for (ElementsItemId itemId : new ArrayList<ElementsItemId>(getLocations(resourceType).keySet())) {
+                deleteRecord(itemId, resourceType);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<StoredData> getAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped) {
+        checkOpen();
+        List<Map.Entry<ElementsItemId, Location>> entries = new ArrayList<Map.Entry<ElementsItemId, Location>>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<ElementsItemId, Location> entry : getLocations(resourceType).entrySet()) {
+                if (subType == null || entry.getKey().getItemSubType() == subType) entries.add(entry);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        //hand the items out in the order they sit on disk, so that reading them one after another is (mostly) sequential.
+        Collections.sort(entries, new Comparator<Map.Entry<ElementsItemId, Location>>() {
+            @Override
+            public int compare(Map.Entry<ElementsItemId, Location> a, Map.Entry<ElementsItemId, Location> b) {
+                int result = compareInts(a.getValue().segment.number, b.getValue().segment.number);
+                return result != 0 ? result : compareLongs(a.getValue().offset, b.getValue().offset);
+            }
+        });
+        List<StoredData> data = new ArrayList<StoredData>(entries.size());
+        for (Map.Entry<ElementsItemId, Location> entry : entries) {
+            data.add(new StoredRecord(resourceType, entry.getKey(), isZipped, null));
+        }
+        return data;
+    }
+
+    /**
+     * Reads through each segment in turn, handing the live records of the requested type in it to the visitor as a batch.
+     */
+    @Override
+    public void scanAllExisting(StorableResourceType resourceType, ElementsItemType.SubType subType, boolean isZipped, BatchVisitor visitor) throws IOException {
+        ensureOpen();
+        compactionLock.readLock().lock();
+        try {
+            List<Segment> segmentsToScan;
+            lock.readLock().lock();
+            try {
+                segmentsToScan = new ArrayList<Segment>(segments.values());
+            } finally {
+                lock.readLock().unlock();
+            }
+            Map<ElementsItemId, Location> typeLocations = getLocations(resourceType);
+            for (Segment segment : segmentsToScan) {
+                List<StoredData> batch = new ArrayList<StoredData>();
+                long limit;
+                lock.readLock().lock();
+                try {
+                    limit = segment.size;
+                } finally {
+                    lock.readLock().unlock();
+                }
+                SegmentReader reader = new SegmentReader(segment, limit, true);
+                try {
+                    while (reader.next()) {
+                        if (reader.kind != dataRecord || reader.resourceType != resourceType) continue;
+                        if (subType != null && reader.itemId.getItemSubType() != subType) continue;
+                        lock.readLock().lock();
+                        try {
+                            Location current = typeLocations.get(reader.itemId);
+                            if (current == null || current.segment != segment || current.offset != reader.recordOffset) continue;
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                        batch.add(new StoredRecord(resourceType, reader.itemId, isZipped, reader.data));
+                    }
+                } finally {
+                    reader.close();
+                }
+                if (!batch.isEmpty()) visitor.visit(batch);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the records in the order they sit on disk, appending the new versions of them to the active segment.
+     * As most of the old segments will then be dead, they are compacted straight away rather than in the background.
+     */
+    @Override
+    public int rewriteAll(StorableResourceType resourceType, ElementsItemType.SubType subType, Rewriter rewriter) throws IOException {
+        int rewritten = 0;
+        for (StoredData data : getAllExisting(resourceType, subType, false)) {
+            StoredRecord record = (StoredRecord) data;
+            byte[] storedData = read(resourceType, record.itemId);
+            if (storedData == null) continue;
+            byte[] newData = rewriter.rewrite(storedData);
+            if (newData == null) continue;
+            store(record.itemId, resourceType, newData);
+            rewritten++;
+        }
+        if (rewritten > 0) compact();
+        return rewritten;
+    }
+
+    /**
+     * Close the files of every segment (forcing the current one to disk first). Segments are reopened if the storage
+     * is used again.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!opened) return;
+        compactionLock.writeLock().lock();
+        lock.writeLock().lock();
+        try {
+            activeSegment.getChannel().force(false);
+            for (Segment segment : segments.values()) segment.close();
+        } finally {
+            lock.writeLock().unlock();
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the stored (possibly compressed) data for the item, or null if it has none.
+     */
+    private byte[] read(StorableResourceType resourceType, ElementsItemId itemId) throws IOException {
+        ensureOpen();
+        lock.readLock().lock();
+        try {
+            Location location = getLocations(resourceType).get(itemId);
+            if (location == null) return null;
+            ByteBuffer buffer = ByteBuffer.allocate(location.dataLength);
+            FileChannel channel = location.segment.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.dataOffset + buffer.position()) < 0)
+                    throw new EOFException(MessageFormat.format("Segment {0} is truncated", location.segment.file.getAbsolutePath()));
+            }
+            return buffer.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Map<ElementsItemId, Location> getLocations(StorableResourceType resourceType) {
+        Map<ElementsItemId, Location> typeLocations = locations.get(resourceType);
+        if (typeLocations == null) throw new IllegalStateException("resourceType is incompatible with storage");
+        return typeLocations;
+    }
+
+    //must hold the write lock
+    private void deleteRecord(ElementsItemId itemId, StorableResourceType resourceType) throws IOException {
+        Location previous = getLocations(resourceType).remove(itemId);
+        //if there is no live record then there is nothing for a tombstone to hide.
+        if (previous == null) return;
+        Location tombstone = append(tombstoneRecord, resourceType, itemId, new byte[0]);
+        tombstone.segment.deadBytes += tombstone.length;
+        retire(previous);
+    }
+
+    //must hold the write lock
+    private void retire(Location location) {
+        if (location == null) return;
+        location.segment.deadBytes += location.length;
+        if (location.segment != activeSegment && location.segment.isWorthCompacting()) scheduleCompaction();
+    }
+
+    //must hold the write lock
+    private Location append(byte kind, StorableResourceType resourceType, ElementsItemId itemId, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(kind);
+        output.writeUTF(resourceType.toString());
+        output.writeUTF(itemId.getItemSubType().getSingular());
+        output.writeInt(itemId.getId());
+        output.writeInt(data.length);
+        int dataOffset = output.size();
+        output.write(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        output.writeInt((int) crc.getValue());
+        output.flush();
+
+        if (activeSegment.size > segmentHeaderSize && activeSegment.size + bytes.size() > maxSegmentSize) {
+            //seal the current segment and move on to a new one.
+            activeSegment.getChannel().force(false);
+            Segment sealed = activeSegment;
+            activeSegment = createSegment(sealed.number + 1);
+            if (sealed.isWorthCompacting()) scheduleCompaction();
+        }
+        Segment segment = activeSegment;
+        long offset = segment.size;
+        write(segment, offset, bytes.toByteArray());
+        segment.size += bytes.size();
+        return new Location(segment, offset, bytes.size(), offset + dataOffset, data.length);
+    }
+
+    private static void write(Segment segment, long offset, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        FileChannel channel = segment.getChannel();
+        while (buffer.hasRemaining()) channel.write(buffer, offset + buffer.position());
+    }
+
+    //must hold the write lock
+    private Segment createSegment(int number) throws IOException {
+        Segment segment = new Segment(dir, number);
+        segment.getChannel().truncate(0);
+        write(segment, 0, createHeader());
+        segment.size = segmentHeaderSize;
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private void checkOpen() {
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw new IllegalStateException(MessageFormat.format("Could not open segment storage {0}", dir.getAbsolutePath()), e);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (opened) return;
+        lock.writeLock().lock();
+        try {
+            if (!opened) {
+                open();
+                opened = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //must hold the write lock
+    private void open() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File directory, String name) { return name.endsWith(segmentExtension); }
+        });
+        List<Integer> numbers = new ArrayList<Integer>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(0, name.length() - segmentExtension.length())));
+                } catch (NumberFormatException e) {
+                    log.warn(MessageFormat.format("Ignoring unexpected file {0} in segment storage", file.getAbsolutePath()));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            Segment segment = new Segment(dir, numbers.get(i));
+            //only the last segment can have been part way through a write, so only its checksums are worth checking.
+            replay(segment, i == numbers.size() - 1);
+            segments.put(segment.number, segment);
+        }
+        if (segments.isEmpty() || segments.lastEntry().getValue().size >= maxSegmentSize) {
+            activeSegment = createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+        int itemCount = 0;
+        for (Map<ElementsItemId, Location> typeLocations : locations.values()) itemCount += typeLocations.size();
+        log.info(MessageFormat.format("Opened segment storage \"{0}\" ({1} segments, {2} items)", dir.getAbsolutePath(), segments.size(), itemCount));
+
+        for (Segment segment : segments.values()) {
+            if (segment != activeSegment && segment.isWorthCompacting()) {
+                scheduleCompaction();
+                break;
+            }
+        }
+    }
+
+    //must hold the write lock
+    private void replay(Segment segment, boolean verify) throws IOException {
+        long length = segment.file.length();
+        if (length < segmentHeaderSize) {
+            //created but never written to.
+            segment.getChannel().truncate(0);
+            write(segment, 0, createHeader());
+            segment.size = segmentHeaderSize;
+            return;
+        }
+        SegmentReader reader = new SegmentReader(segment, length, verify);
+        long validLength;
+        try {
+            while (true) {
+                try {
+                    if (!reader.next()) break;
+                } catch (IOException e) {
+                    log.warn(MessageFormat.format("Segment {0} is damaged at offset {1} ({2}), discarding the rest of it",
+                            segment.file.getAbsolutePath(), Long.toString(reader.recordOffset), e.getMessage()));
+                    break;
+                }
+                Location location = new Location(segment, reader.recordOffset, reader.getRecordLength(), reader.dataOffset, reader.dataLength);
+                Map<ElementsItemId, Location> typeLocations = getLocations(reader.resourceType);
+                Location previous = reader.kind == dataRecord ? typeLocations.put(reader.itemId, location) : typeLocations.remove(reader.itemId);
+                if (previous != null) previous.segment.deadBytes += previous.length;
+                if (reader.kind == tombstoneRecord) segment.deadBytes += location.length;
+            }
+            validLength = reader.recordOffset;
+        } finally {
+            reader.close();
+        }
+        if (validLength < length) segment.getChannel().truncate(validLength);
+        segment.size = validLength;
+    }
+
+    private static byte[] createHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(segmentHeaderSize);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(segmentMagic);
+        output.writeInt(segmentVersion);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private synchronized void scheduleCompaction() {
+        if (!compactionPending.compareAndSet(false, true)) return;
+        if (compactionService == null) compactionService = ExecutorServiceUtils.newFixedThreadPool("SegmentCompaction", 1);
+        compactionService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    compact();
+                    return true;
+                } catch (IOException e) {
+                    log.error(MessageFormat.format("Error compacting segment storage \"{0}\"", dir.getAbsolutePath()), e);
+                    return false;
+                } finally {
+                    compactionPending.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compact every sealed segment that is worth compacting, oldest first.
+     */
+    void compact() throws IOException {
+        ensureOpen();
+        compactionLock.writeLock().lock();
+        try {
+            while (true) {
+                Segment candidate = null;
+                lock.readLock().lock();
+                try {
+                    for (Segment segment : segments.values()) {
+                        if (segment != activeSegment && segment.isWorthCompacting()) {
+                            candidate = segment;
+                            break;
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                if (candidate == null) return;
+                compact(candidate);
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    //must hold the compaction lock
+    private void compact(Segment segment) throws IOException {
+        long limit;
+        lock.readLock().lock();
+        try {
+            limit = segment.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+        int moved = 0;
+        SegmentReader reader = new SegmentReader(segment, limit, true);
+        try {
+            while (reader.next()) {
+                lock.writeLock().lock();
+                try {
+                    Map<ElementsItemId, Location> typeLocations = getLocations(reader.resourceType);
+                    Location current = typeLocations.get(reader.itemId);
+                    if (reader.kind == dataRecord) {
+                        if (current != null && current.segment == segment && current.offset == reader.recordOffset) {
+                            typeLocations.put(reader.itemId, append(dataRecord, reader.resourceType, reader.itemId, reader.data));
+                            moved++;
+                        }
+                    }
+                    //a tombstone is only still needed while an older segment might hold a record that it hides.
+                    else if (current == null && segments.firstKey() < segment.number) {
+                        Location tombstone = append(tombstoneRecord, reader.resourceType, reader.itemId, new byte[0]);
+                        tombstone.segment.deadBytes += tombstone.length;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        lock.writeLock().lock();
+        try {
+            //make sure the moved records are on disk before the originals go.
+            activeSegment.getChannel().force(false);
+            segments.remove(segment.number);
+            segment.close();
+            if (!segment.file.delete()) log.warn(MessageFormat.format("Could not delete compacted segment {0}", segment.file.getAbsolutePath()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info(MessageFormat.format("Compacted segment {0} ({1} live records moved)", segment.file.getAbsolutePath(), moved));
+    }
+
+    private static int compareInts(int a, int b) { return a < b ? -1 : (a == b ? 0 : 1); }
+
+    private static int compareLongs(long a, long b) { return a < b ? -1 : (a == b ? 0 : 1); }
+}
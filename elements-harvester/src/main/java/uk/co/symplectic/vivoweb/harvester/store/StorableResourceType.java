@@ -63,6 +63,15 @@ public class StorableResourceType {
         return shouldZip;
     }
 
+    /**
+     * @param storeCodec the RecordCodec a store is writing with
+     * @return the RecordCodec resources of this type should be written with in that store - resources that are not
+     * worth compressing (e.g. photos, which are compressed already) are always held as they are.
+     */
+    public RecordCodec selectCodec(RecordCodec storeCodec) {
+        return shouldZip ? storeCodec : RecordCodec.NONE;
+    }
+
     public Collection<ElementsItemType.SubType> getSupportedSubTypes() {
         return keyItem.getSupportedSubTypes();
     }
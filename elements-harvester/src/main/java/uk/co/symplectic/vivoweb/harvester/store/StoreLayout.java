@@ -0,0 +1,49 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * enum representing the ways an ElementsItemFileStore can hold its data on disk:
+ *     FLAT      - a file per item, directly within a directory per type (DefaultLayoutStrategy)
+ *     HASHED    - a file per item, spread over hashed subdirectories of a directory per type (HashedLayoutStrategy)
+ *     SEGMENTED - packed into a few large segment files (SegmentItemStorage)
+ * Whichever layout is used, each generation of each type (see GenerationalItemStorage) is laid out in the same way.
+ */
+public enum StoreLayout {
+    FLAT,
+    HASHED,
+    SEGMENTED;
+
+    //directory (within the store directory) holding the segment files of a SEGMENTED store.
+    static final String segmentDirectoryName = "segments";
+
+    GenerationalItemStorage createStorage(File dir, final StorableResourceType[] mainResourceTypes, final StorableResourceType[] resourceTypesWithOwnDirectory,
+                                          final Collection<StorableResourceType> supportedTypes, final WriteDurability durability) {
+        return new GenerationalItemStorage(dir, new GenerationalItemStorage.StorageFactory() {
+            @Override
+            public ItemStorage create(File generationDir) {
+                return createGenerationStorage(generationDir, mainResourceTypes, resourceTypesWithOwnDirectory, supportedTypes, durability);
+            }
+        }, supportedTypes);
+    }
+
+    private ItemStorage createGenerationStorage(File dir, StorableResourceType[] mainResourceTypes, StorableResourceType[] resourceTypesWithOwnDirectory,
+                                                Collection<StorableResourceType> supportedTypes, WriteDurability durability) {
+        switch (this) {
+            case HASHED : return new FileItemStorage(dir, new HashedLayoutStrategy(mainResourceTypes, resourceTypesWithOwnDirectory), durability);
+            case SEGMENTED : return new SegmentItemStorage(new File(dir, segmentDirectoryName), durability, supportedTypes);
+            default : return new FileItemStorage(dir, new DefaultLayoutStrategy(mainResourceTypes, resourceTypesWithOwnDirectory), durability);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool to move the files of existing ElementsItemFileStores (e.g. data/raw-records and
+ * data/translated-records) between the FLAT and HASHED StoreLayouts, so that storeLayout can be changed without
+ * re-fetching everything. Files are renamed in place, so no extra disk space is needed.
+ * Every generation of every type (see GenerationalItemStorage) is migrated.
+ * The harvester must not be running while a store is migrated.
+ *
+ * Arguments are of the form name=value:
+ *     stores - comma separated list of store directories to migrate (required)
+ *     to - the layout to migrate to, "hashed" (default) or "flat"
+ */
+public class StoreLayoutMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(StoreLayoutMigrator.class);
+
+    private static final int logEveryN = 10000;
+
+    private int moved = 0;
+    private int skipped = 0;
+
+    public static void main(String[] args) {
+        List<File> stores = new ArrayList<File>();
+        StoreLayout target = StoreLayout.HASHED;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            String name = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+            if ("stores".equals(name)) {
+                for (String store : value.split(",")) {
+                    if (store.trim().length() > 0) stores.add(new File(store.trim()));
+                }
+            }
+            else if ("to".equals(name)) {
+                if ("hashed".equalsIgnoreCase(value)) target = StoreLayout.HASHED;
+                else if ("flat".equalsIgnoreCase(value)) target = StoreLayout.FLAT;
+                else {
+                    log.error(MessageFormat.format("Invalid layout \"{0}\" - must be \"hashed\" or \"flat\"", value));
+                    System.exit(1);
+                }
+            }
+            else {
+                log.error(MessageFormat.format("Unknown argument \"{0}\"", name));
+                System.exit(1);
+            }
+        }
+        if (stores.isEmpty()) {
+            log.error("No stores specified - use stores=<directory>[,<directory>...]");
+            System.exit(1);
+        }
+
+        try {
+            for (File store : stores) {
+                if (!store.isDirectory()) throw new IllegalStateException(MessageFormat.format("Store \"{0}\" is not a directory", store.getAbsolutePath()));
+                StoreLayoutMigrator migrator = new StoreLayoutMigrator();
+                log.info(MessageFormat.format("Migrating store \"{0}\" to the {1} layout", store.getAbsolutePath(), target.name().toLowerCase()));
+                if (target == StoreLayout.HASHED) migrator.toHashed(store);
+                else migrator.toFlat(store);
+                log.info(MessageFormat.format("Migrated store \"{0}\" : {1} files moved, {2} skipped", store.getAbsolutePath(), migrator.moved, migrator.skipped));
+            }
+        } catch (Exception e) {
+            log.error("Migration failed", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Move every item file from each type directory of the store into the bucket for its id.
+     */
+    private void toHashed(File store) throws IOException {
+        for (Path typeDirectory : getTypeDirectories(store)) {
+            boolean[] createdBuckets = new boolean[HashedLayoutStrategy.bucketCount];
+            DirectoryStream<Path> files = Files.newDirectoryStream(typeDirectory);
+            try {
+                for (Path file : files) {
+                    if (!Files.isRegularFile(file)) continue;
+                    Integer id = getItemId(file);
+                    if (id == null) {
+                        skip(file, "it is not named for an item");
+                        continue;
+                    }
+                    int bucket = HashedLayoutStrategy.getBucket(id);
+                    Path bucketDirectory = typeDirectory.resolve(HashedLayoutStrategy.getBucketName(bucket));
+                    if (!createdBuckets[bucket]) {
+                        Files.createDirectories(bucketDirectory);
+                        createdBuckets[bucket] = true;
+                    }
+                    move(file, bucketDirectory.resolve(file.getFileName()));
+                }
+            } finally {
+                files.close();
+            }
+        }
+    }
+
+    /**
+     * Move every item file out of the buckets in each type directory of the store, removing the emptied buckets.
+     */
+    private void toFlat(File store) throws IOException {
+        for (Path typeDirectory : getTypeDirectories(store)) {
+            for (int bucket = 0; bucket < HashedLayoutStrategy.bucketCount; bucket++) {
+                Path bucketDirectory = typeDirectory.resolve(HashedLayoutStrategy.getBucketName(bucket));
+                if (!Files.isDirectory(bucketDirectory)) continue;
+                DirectoryStream<Path> files = Files.newDirectoryStream(bucketDirectory);
+                try {
+                    for (Path file : files) move(file, typeDirectory.resolve(file.getFileName()));
+                } finally {
+                    files.close();
+                }
+                try {
+                    Files.delete(bucketDirectory);
+                } catch (DirectoryNotEmptyException e) {
+                    log.warn(MessageFormat.format("Bucket \"{0}\" was not emptied", bucketDirectory));
+                }
+            }
+        }
+    }
+
+    //the directories (one per type of item/resource) directly within the store, or within any of the store's
+    //generation directories, ignoring those of a segmented store.
+    private static List<Path> getTypeDirectories(File store) throws IOException {
+        List<Path> directories = new ArrayList<Path>();
+        addTypeDirectories(store.toPath(), directories);
+        Path generationsDirectory = store.toPath().resolve(GenerationalItemStorage.generationDirectoryName);
+        if (Files.isDirectory(generationsDirectory)) {
+            DirectoryStream<Path> generations = Files.newDirectoryStream(generationsDirectory);
+            try {
+                for (Path generation : generations) {
+                    if (Files.isDirectory(generation)) addTypeDirectories(generation, directories);
+                }
+            } finally {
+                generations.close();
+            }
+        }
+        return directories;
+    }
+
+    private static void addTypeDirectories(Path root, List<Path> directories) throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(root);
+        try {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (Files.isDirectory(entry) && !StoreLayout.segmentDirectoryName.equals(name) && !GenerationalItemStorage.generationDirectoryName.equals(name))
+                    directories.add(entry);
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    //item files are named for the item id, optionally followed by "-" and the resource type.
+    private static Integer getItemId(Path file) {
+        String name = file.getFileName().toString();
+        int split = name.indexOf('-');
+        try {
+            return Integer.parseInt(split < 0 ? name : name.substring(0, split));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void move(Path file, Path target) throws IOException {
+        try {
+            Files.move(file, target);
+        } catch (FileAlreadyExistsException e) {
+            skip(file, MessageFormat.format("\"{0}\" already exists", target));
+            return;
+        }
+        moved++;
+        if (moved % logEveryN == 0) log.info(MessageFormat.format("{0} files moved", moved));
+    }
+
+    private void skip(Path file, String reason) {
+        log.warn(MessageFormat.format("Skipped \"{0}\" as {1}", file, reason));
+        skipped++;
+    }
+}
@@ -14,7 +14,6 @@ package uk.co.symplectic.vivoweb.harvester.store;
 import org.apache.commons.lang.NullArgumentException;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Interface to represent access to some raw data in a store.
@@ -63,7 +62,7 @@ public interface StoredData {
 
     /**
      * Class to implement StoredData interface for some data held in a file
-     * where the file may be gzipped or may not.
+     * where the file may be compressed (by any RecordCodec) or may not.
      */
     @SuppressWarnings("WeakerAccess")
     class InFile implements StoredData {
@@ -87,7 +86,7 @@ public interface StoredData {
         @Override
         public InputStream getInputStream() throws IOException {
             InputStream stream = new BufferedInputStream(new FileInputStream(getFile()));
-            if (isZipped()) stream = new GZIPInputStream(stream);
+            if (isZipped()) stream = RecordCodec.decode(stream);
             return stream;
         }
 
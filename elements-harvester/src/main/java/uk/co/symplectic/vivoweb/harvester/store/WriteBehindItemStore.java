@@ -0,0 +1,250 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wrapper that puts a bounded queue between the callers of an ElementsItemStore and the store itself, so that whoever
+ * is storing items (e.g. the filters parsing an API response) can carry on while the data is written (and zipped) and
+ * the store's observers are run in the background.
+ *
+ * Queued writes are applied in the order they were made, in batches, by a single writer task (run on a shared pool)
+ * that holds the lock on the wrapped store for each batch - so the wrapped store and its observers still only ever see
+ * one call at a time, and it is safe to call into the wrapper from several threads.
+ * Callers block if the queue is full.
+ *
+ * Nothing queued is guaranteed to be in the wrapped store until flush (or close) has returned, so those must be called
+ * before anything reads the store back. If a queued write fails, the writes after it are abandoned and the failure is
+ * thrown from the next call into the wrapper.
+ * storeItem returns null, as nothing has been stored at that point.
+ */
+@SuppressWarnings("WeakerAccess")
+public class WriteBehindItemStore implements ElementsItemStore, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindItemStore.class);
+
+    //the most writes applied under a single acquisition of the wrapped store's lock.
+    private static final int batchSize = 64;
+
+    private static ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> writerPool = null;
+
+    private static synchronized ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> getWriterPool() {
+        if (writerPool == null) writerPool = ExecutorServiceUtils.newFixedIOThreadPool("StoreWriteBehind", 4);
+        return writerPool;
+    }
+
+    /**
+     * A store or delete call waiting to be applied to the wrapped store.
+     */
+    private static class PendingWrite {
+        private final ElementsItemInfo itemInfo;
+        private final ElementsItemId deletedItemId;
+        private final StorableResourceType resourceType;
+        private final byte[] data;
+
+        private PendingWrite(ElementsItemInfo itemInfo, ElementsItemId deletedItemId, StorableResourceType resourceType, byte[] data) {
+            this.itemInfo = itemInfo;
+            this.deletedItemId = deletedItemId;
+            this.resourceType = resourceType;
+            this.data = data;
+        }
+
+        private void applyTo(ElementsItemStore store) throws IOException {
+            if (deletedItemId != null) ((ElementsDeletableItemStore) store).deleteItem(deletedItemId, resourceType);
+            else store.storeItem(itemInfo, resourceType, data);
+        }
+    }
+
+    protected final ElementsItemStore innerStore;
+    private final BlockingQueue<PendingWrite> queue;
+    //whether a writer task has been submitted to work through the queue.
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    //how many writes have been queued and how many of those have been dealt with (applied or abandoned).
+    private final Object progressLock = new Object();
+    private long queuedCount = 0;
+    private long completedCount = 0;
+
+    //anything thrown applying a queued write (Errors included), rethrown (wrapped) from the next call into the wrapper.
+    private volatile Throwable failure = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param store the store to wrap.
+     * @param queueSize how many writes may be waiting to be applied before callers block.
+     * @return a wrapper that is an ElementsDeletableItemStore if the store is one.
+     */
+    public static WriteBehindItemStore wrap(ElementsItemStore store, int queueSize) {
+        if (store instanceof ElementsDeletableItemStore)
+            return new DeletableWriteBehindItemStore((ElementsDeletableItemStore) store, queueSize);
+        return new WriteBehindItemStore(store, queueSize);
+    }
+
+    private WriteBehindItemStore(ElementsItemStore innerStore, int queueSize) {
+        if (innerStore == null) throw new NullArgumentException("innerStore");
+        if (queueSize < 1) throw new IllegalArgumentException("queueSize must be at least 1");
+        this.innerStore = innerStore;
+        this.queue = new ArrayBlockingQueue<PendingWrite>(queueSize);
+    }
+
+    @Override
+    public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+        if (itemInfo == null) throw new NullArgumentException("itemInfo");
+        if (resourceType == null) throw new NullArgumentException("resourceType");
+        enqueue(new PendingWrite(itemInfo, null, resourceType, data));
+        return null;
+    }
+
+    void enqueue(PendingWrite write) throws IOException {
+        if (closed) throw new IllegalStateException("WriteBehindItemStore has been closed");
+        checkFailure();
+        //counted before it is queued so that a flush made once this call returns is sure to wait for it.
+        synchronized (progressLock) {
+            queuedCount++;
+        }
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            synchronized (progressLock) {
+                queuedCount--;
+            }
+            throw new InterruptedIOException("Interrupted whilst waiting to queue a write");
+        }
+        if (writing.compareAndSet(false, true)) {
+            getWriterPool().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    write();
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Block until every write queued so far has been applied to the wrapped store.
+     * @throws IOException if any queued write failed.
+     */
+    public void flush() throws IOException {
+        synchronized (progressLock) {
+            try {
+                while (completedCount < queuedCount) progressLock.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted whilst waiting for queued writes to complete");
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * flush, then refuse any further writes.
+     * @throws IOException if any queued write failed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        flush();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable currentFailure = failure;
+        if (currentFailure != null) throw new IOException("A queued write to the store failed", currentFailure);
+    }
+
+    //work through the queue (on the writer pool) until it is empty.
+    private void write() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>(batchSize);
+        while (true) {
+            queue.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                writing.set(false);
+                //something may have been queued after the queue was found to be empty but before the flag was cleared.
+                if (queue.isEmpty() || !writing.compareAndSet(false, true)) return;
+                continue;
+            }
+            try {
+                apply(batch);
+            } finally {
+                //whatever happened the batch has been dealt with, so flush must not go on waiting for it.
+                synchronized (progressLock) {
+                    completedCount += batch.size();
+                    progressLock.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void apply(List<PendingWrite> batch) {
+        //once something has failed the rest are abandoned, so the store is never left further ahead than the failure.
+        if (failure != null) return;
+        try {
+            synchronized (innerStore) {
+                for (PendingWrite write : batch) write.applyTo(innerStore);
+            }
+        } catch (Throwable e) {
+            //Errors are caught too - left to escape they would stop the writer with writes still queued behind them.
+            log.error("Queued write to the store failed", e);
+            failure = e;
+        }
+    }
+
+    /**
+     * The wrapper for ElementsDeletableItemStores: deletions are queued along with the stores, touch and cleardown
+     * are applied immediately (after a flush) as they are not made while items are being fetched.
+     */
+    private static class DeletableWriteBehindItemStore extends WriteBehindItemStore implements ElementsDeletableItemStore {
+        private final ElementsDeletableItemStore innerDeletableStore;
+
+        private DeletableWriteBehindItemStore(ElementsDeletableItemStore innerStore, int queueSize) {
+            super(innerStore, queueSize);
+            this.innerDeletableStore = innerStore;
+        }
+
+        @Override
+        public void deleteItem(ElementsItemId itemId, StorableResourceType resourceType) throws IOException {
+            if (itemId == null) throw new NullArgumentException("itemId");
+            if (resourceType == null) throw new NullArgumentException("resourceType");
+            enqueue(new PendingWrite(null, itemId, resourceType, null));
+        }
+
+        @Override
+        public ElementsStoredItemInfo touchItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, IElementsStoredItemObserver... explicitObservers) throws IOException {
+            flush();
+            synchronized (innerStore) {
+                return innerDeletableStore.touchItem(itemInfo, resourceType, explicitObservers);
+            }
+        }
+
+        @Override
+        public void cleardown(StorableResourceType resourceType, boolean followObservers) throws IOException {
+            flush();
+            synchronized (innerStore) {
+                innerDeletableStore.cleardown(resourceType, followObservers);
+            }
+        }
+    }
+}
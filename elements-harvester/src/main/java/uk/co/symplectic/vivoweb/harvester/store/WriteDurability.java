@@ -0,0 +1,24 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+/**
+ * enum representing how carefully an ElementsItemFileStore writes data to disk:
+ *     NONE   - files are written directly in place, and left to the operating system to flush
+ *     ATOMIC - files are written alongside their final location and renamed into place once complete, so a crash never
+ *              leaves a partially written file behind (records in segment files are always effectively atomic)
+ *     SYNC   - as ATOMIC, but each file (or segment record) is also forced to disk before the write is complete
+ */
+public enum WriteDurability {
+    NONE,
+    ATOMIC,
+    SYNC
+}
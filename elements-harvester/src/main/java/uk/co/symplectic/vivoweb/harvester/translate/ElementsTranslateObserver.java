@@ -58,6 +58,13 @@ abstract class ElementsTranslateObserver extends ElementsStoreOutputItemObserver
 
     }
 
+    /**
+     * @param failureListener told about each item this observer could not translate (see TranslationService.FailureListener).
+     */
+    public void setFailureListener(TranslationService.FailureListener failureListener){
+        translationService.getConfig().setFailureListener(failureListener);
+    }
+
     void translate(ElementsStoredItemInfo item, Map<String, Object> extraParams){
         translationService.translate(item, getStore(), getOutputType(), templatesHolder, extraParams);
     }
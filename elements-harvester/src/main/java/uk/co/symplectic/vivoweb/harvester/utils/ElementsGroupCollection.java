@@ -12,6 +12,9 @@
 package uk.co.symplectic.vivoweb.harvester.utils;
 
 import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.vivoweb.harvester.fetch.ElementsFetch;
 import uk.co.symplectic.vivoweb.harvester.model.*;
 import uk.co.symplectic.vivoweb.harvester.store.ElementsItemStore;
@@ -19,10 +22,11 @@ import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
 import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * A Class representing a set of Elements Groups in a map, keyed by GroupID.
@@ -30,6 +34,11 @@ import java.util.Set;
  * groups position in the tree (links to parent and child objects and user membership).
  */
 public class ElementsGroupCollection extends ElementsItemKeyedCollection<ElementsGroupInfo.GroupHierarchyWrapper> {
+    private static final Logger log = LoggerFactory.getLogger(ElementsGroupCollection.class);
+
+    //how many of the slowest group membership fetches to report on.
+    private static final int slowestGroupsToReport = 10;
+
     private ElementsGroupInfo.GroupHierarchyWrapper topLevel = null;
     private boolean membershipPopulated = false;
 
@@ -98,18 +107,118 @@ public class ElementsGroupCollection extends ElementsItemKeyedCollection<Element
      * @throws IOException if there are errors fetching the data.
      */
     public synchronized void populateUserMembership(ElementsFetch fetcher, Set<ElementsItemId> systemUsers) throws IOException {
+        populateUserMembership(fetcher, systemUsers, 1);
+    }
+
+    /**
+     * As populateUserMembership(fetcher, systemUsers) but fetching the memberships of up to maxConcurrentFetches groups
+     * at the same time.
+     * Each group's members are gathered by its own (thread safe) GroupMembershipStore while the fetches are in flight,
+     * and are only applied to the group hierarchy once every fetch has completed, on the calling thread.
+     * The time taken to fetch each group's membership is recorded and the slowest groups are reported in the log.
+     * @param fetcher The ElementsFetch object to provide access to fetching group membership info from the ElementsAPI.
+     * @param systemUsers A set of ElementsItemId listing all Elements users - see populateUserMembership(fetcher, systemUsers).
+     * @param maxConcurrentFetches how many group membership feeds may be fetched at once (1 or less means one at a time).
+     * @throws IOException if there are errors fetching the data.
+     */
+    public synchronized void populateUserMembership(final ElementsFetch fetcher, Set<ElementsItemId> systemUsers, int maxConcurrentFetches) throws IOException {
+        if(fetcher == null) throw new NullArgumentException("fetcher");
         if(topLevel == null) throw new IllegalStateException("must construct group hierarchy before populating membership");
         if(!membershipPopulated) {
-            //fetch memberships from the API
+            List<GroupMembershipStore> membershipStores = new ArrayList<GroupMembershipStore>();
             for (ElementsGroupInfo.GroupHierarchyWrapper group : this.values()) {
                 //take care with == here - this really is the same reference...
                 if (topLevel == group) continue; //don't process explicit memberships for the org group
-                fetcher.execute(new ElementsFetch.GroupMembershipConfig(group.getGroupInfo().getItemId().getId()),new GroupMembershipStore(group));
+                membershipStores.add(new GroupMembershipStore(group));
+            }
+
+            //fetch memberships from the API
+            long startTime = System.currentTimeMillis();
+            if(maxConcurrentFetches > 1 && membershipStores.size() > 1) {
+                fetchConcurrently(fetcher, membershipStores, maxConcurrentFetches);
+            }
+            else {
+                for (GroupMembershipStore membershipStore : membershipStores) membershipStore.fetch(fetcher);
+            }
+            log.info(MessageFormat.format("Fetched the memberships of {0} groups in {1}ms", membershipStores.size(), System.currentTimeMillis() - startTime));
+            reportMembershipTimings(membershipStores);
+
+            //now everything has been fetched, apply the memberships to the groups (on this thread).
+            for (GroupMembershipStore membershipStore : membershipStores) {
+                ElementsGroupInfo.GroupHierarchyWrapper group = membershipStore.getGroup();
+                for (ElementsItemId.ObjectId userId : membershipStore.getMembers()) {
+                    group.addExplicitUser(userId);
+                    getUsersGroups(userId).add((ElementsItemId.GroupId) group.getGroupInfo().getItemId());
+                }
             }
             finaliseUserMembership(systemUsers);
         }
     }
 
+    /**
+     * Internal helper method to run the fetches of the provided GroupMembershipStores on a pool of maxConcurrentFetches
+     * threads and wait for them all to complete.
+     * If any fetch fails the remaining fetches are cancelled and an IllegalStateException is thrown.
+     */
+    private void fetchConcurrently(final ElementsFetch fetcher, List<GroupMembershipStore> membershipStores, int maxConcurrentFetches) {
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> pool =
+                ExecutorServiceUtils.newFixedIOThreadPool("GroupMembershipFetch", Math.min(maxConcurrentFetches, membershipStores.size()));
+        List<Future<Boolean>> tasks = new ArrayList<Future<Boolean>>();
+        try {
+            for (final GroupMembershipStore membershipStore : membershipStores) {
+                tasks.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        membershipStore.fetch(fetcher);
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> task : tasks) task.get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Error fetching group memberships", e.getCause());
+        }
+        catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted whilst waiting for group memberships to be fetched", e);
+        }
+        finally {
+            //if anything went wrong make sure we don't leave fetches running in the background.
+            for (Future<Boolean> task : tasks) task.cancel(true);
+            pool.awaitShutdown();
+        }
+    }
+
+    /**
+     * Internal helper method to log how long each group's membership took to fetch (at debug level) and the slowest
+     * groups, along with their depth in the hierarchy (at info level).
+     */
+    private void reportMembershipTimings(List<GroupMembershipStore> membershipStores) {
+        List<GroupMembershipStore> slowestFirst = new ArrayList<GroupMembershipStore>(membershipStores);
+        Collections.sort(slowestFirst, new Comparator<GroupMembershipStore>() {
+            @Override
+            public int compare(GroupMembershipStore a, GroupMembershipStore b) {
+                return a.getFetchMillis() < b.getFetchMillis() ? 1 : (a.getFetchMillis() == b.getFetchMillis() ? 0 : -1);
+            }
+        });
+        for (int i = 0; i < slowestFirst.size(); i++) {
+            GroupMembershipStore membershipStore = slowestFirst.get(i);
+            ElementsGroupInfo.GroupHierarchyWrapper group = membershipStore.getGroup();
+            String message = MessageFormat.format("Group {0} (\"{1}\", depth {2}) : {3} explicit members fetched in {4}ms",
+                    Integer.toString(group.getGroupInfo().getItemId().getId()), group.getGroupInfo().getName(), getDepth(group),
+                    membershipStore.getMembers().size(), membershipStore.getFetchMillis());
+            if(i < slowestGroupsToReport) log.info("Slow group membership fetch - " + message);
+            else log.debug(message);
+        }
+    }
+
+    //how far a group is from the top level group (which has depth 0).
+    private static int getDepth(ElementsGroupInfo.GroupHierarchyWrapper group) {
+        int depth = 0;
+        for (ElementsGroupInfo.GroupHierarchyWrapper parent = group.getParent(); parent != null; parent = parent.getParent()) depth++;
+        return depth;
+    }
+
     /**
      * method to populate the GroupHierarchyWrappers in the collection with user membership information.
      * It does this by populating them based on the cache of group-user membership information represented by the
@@ -236,23 +345,41 @@ public class ElementsGroupCollection extends ElementsItemKeyedCollection<Element
      * Internal class representing the ability to target an individual GroupHierarchyWrapper object as an ElementsItemStore for
      * group membership information. storeItem will be called with a resourceType or rawObject - but all we want or need
      * is the parsed ObjectID which will represent a user.
+     * The members are only gathered here (the store is safe to use from any thread) - they are applied to the group by
+     * populateUserMembership once every group's membership has been fetched.
      */
     @SuppressWarnings("WeakerAccess")
-    private class GroupMembershipStore implements ElementsItemStore {
+    private static class GroupMembershipStore implements ElementsItemStore {
         private final  ElementsGroupInfo.GroupHierarchyWrapper group;
+        private final List<ElementsItemId.ObjectId> members = new ArrayList<ElementsItemId.ObjectId>();
+        private volatile long fetchMillis = 0;
 
         public GroupMembershipStore(ElementsGroupInfo.GroupHierarchyWrapper group){
             if(group == null) throw new NullArgumentException("group");
             this.group = group;
         }
 
+        /**
+         * Fetch this store's group membership from the API, recording how long it took.
+         */
+        public void fetch(ElementsFetch fetcher) throws IOException {
+            long startTime = System.currentTimeMillis();
+            fetcher.execute(new ElementsFetch.GroupMembershipConfig(group.getGroupInfo().getItemId().getId()), this);
+            fetchMillis = System.currentTimeMillis() - startTime;
+        }
+
+        public ElementsGroupInfo.GroupHierarchyWrapper getGroup() { return group; }
+
+        public synchronized List<ElementsItemId.ObjectId> getMembers() { return new ArrayList<ElementsItemId.ObjectId>(members); }
+
+        public long getFetchMillis() { return fetchMillis; }
+
         @Override
-        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+        public synchronized ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
             if(!itemInfo.isObjectInfo()) throw new IllegalStateException("GroupUserMembershipStore can only store Object items");
             ElementsObjectInfo objectInfo = itemInfo.asObjectInfo();
             if(!(objectInfo instanceof ElementsUserInfo)) throw new IllegalStateException("GroupUserMembershipStore can only store User items");
-            group.addExplicitUser(objectInfo.getObjectId());
-            getUsersGroups(objectInfo.getObjectId()).add((ElementsItemId.GroupId) group.getGroupInfo().getItemId());
+            members.add(objectInfo.getObjectId());
             return null;
         }
     }
@@ -19,6 +19,7 @@ import java.util.*;
 /**
  * A class representing a collection of ElementsItems (as ElementsItemId objects), sorted by ElementsItemType.
  * you can simply add and remove items as if this was a simple set, but you can retrieve items by Category.
+ * The items of each type are held compactly in an ElementsItemIdSet.
  */
 
 @SuppressWarnings("unused")
@@ -43,7 +44,7 @@ public class ElementsItemCollection {
     private Set<ElementsItemId> getOrCreateSetForCategory(ElementsItemType type) {
         Set<ElementsItemId> itemSet = mData.get(type);
         if (itemSet == null) {
-            itemSet = new HashSet<ElementsItemId>();
+            itemSet = new ElementsItemIdSet<ElementsItemId>();
             mData.put(type, itemSet);
         }
         return itemSet;
@@ -70,6 +71,12 @@ public class ElementsItemCollection {
         }
     }
 
+    public synchronized boolean contains(ElementsItemId item) {
+        if (item == null) return false;
+        Set<ElementsItemId> itemSet = mData.get(item.getItemType());
+        return itemSet != null && itemSet.contains(item);
+    }
+
     public synchronized Set<ElementsItemId> get(ElementsItemType type) {
         return Collections.unmodifiableSet(getOrCreateSetForCategory(type));
     }
@@ -0,0 +1,315 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.vivoweb.harvester.utils;
+
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+
+import java.util.*;
+
+/**
+ * A Map keyed by ElementsItemIds that holds its keys as primitive longs (see ElementsItemId.asLong) in an open addressed
+ * table rather than holding an entry object and an id object per key - 20 to 40 bytes an entry, plus the values, in
+ * place of the 80 or so a HashMap entry and its key cost. Keys (and entries) are recreated as they are iterated over.
+ *
+ * Like a HashMap it is not thread safe - it can be read from several threads at once, but must not be read while it is
+ * being modified.
+ *
+ * @param <K> the type of ElementsItemId used as the key (ElementsItemId itself for a mix of types).
+ * @param <V> the type of the values (nulls are not supported).
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsItemIdMap<K extends ElementsItemId, V> extends AbstractMap<K, V> {
+    //packed ids are never negative (see ElementsItemId.asLong), so negative keys can mark the free and removed slots.
+    private static final long free = -1L;
+    private static final long removed = -2L;
+    private static final int minCapacity = 16;
+    //the table is grown once this share of it is in use (removed slots included, as lookups still have to pass them).
+    private static final float loadFactor = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+    private int usedSlots = 0;
+    private int modCount = 0;
+
+    private transient Set<K> keySet = null;
+    private transient Set<Map.Entry<K, V>> entrySet = null;
+
+    public ElementsItemIdMap() {
+        this(minCapacity);
+    }
+
+    public ElementsItemIdMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = minCapacity;
+        while (capacity * loadFactor <= expectedSize && capacity < (1 << 30)) capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, free);
+        values = new Object[capacity];
+        usedSlots = size;
+    }
+
+    //multiplying spreads ids that differ only in their low bits (sequential ids) across the table.
+    private static int slotFor(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    //the slot holding the key, or -1.
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = slotFor(key, mask);
+        while (true) {
+            long current = keys[slot];
+            if (current == key) return slot;
+            if (current == free) return -1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static long keyOf(Object o) {
+        return o instanceof ElementsItemId ? ((ElementsItemId) o).asLong() : free;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        long packed = keyOf(key);
+        return packed != free && find(packed) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        long packed = keyOf(key);
+        if (packed == free) return null;
+        int slot = find(packed);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (key == null) throw new NullPointerException("ElementsItemIdMap does not support null keys");
+        if (value == null) throw new NullPointerException("ElementsItemIdMap does not support null values");
+        long packed = key.asLong();
+        int mask = keys.length - 1;
+        int slot = slotFor(packed, mask);
+        int firstRemoved = -1;
+        while (true) {
+            long current = keys[slot];
+            if (current == packed) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            if (current == free) break;
+            if (current == removed && firstRemoved < 0) firstRemoved = slot;
+            slot = (slot + 1) & mask;
+        }
+        if (firstRemoved >= 0) {
+            slot = firstRemoved;
+        } else {
+            usedSlots++;
+        }
+        keys[slot] = packed;
+        values[slot] = value;
+        size++;
+        modCount++;
+        if (usedSlots > keys.length * loadFactor) rehash();
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        long packed = keyOf(key);
+        if (packed == free) return null;
+        int slot = find(packed);
+        return slot < 0 ? null : removeSlot(slot);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeSlot(int slot) {
+        V previous = (V) values[slot];
+        //a removed marker rather than a free slot, so that lookups of keys further along still get past it.
+        keys[slot] = removed;
+        values[slot] = null;
+        size--;
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        allocate(minCapacity);
+        modCount++;
+    }
+
+    //rebuild the table (dropping the removed markers) at a size to suit the entries now held.
+    private void rehash() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacityFor(size));
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key < 0) continue;
+            int slot = slotFor(key, mask);
+            while (keys[slot] != free) slot = (slot + 1) & mask;
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    @Override
+    public Set<K> keySet() {
+        if (keySet == null) {
+            keySet = new AbstractSet<K>() {
+                @Override
+                public Iterator<K> iterator() {
+                    return new SlotIterator<K>() {
+                        @Override
+                        K get(int slot) { return keyAt(slot); }
+                    };
+                }
+
+                @Override
+                public int size() { return size; }
+
+                @Override
+                public boolean contains(Object o) { return containsKey(o); }
+
+                @Override
+                public boolean remove(Object o) { return ElementsItemIdMap.this.remove(o) != null; }
+
+                @Override
+                public void clear() { ElementsItemIdMap.this.clear(); }
+            };
+        }
+        return keySet;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new SlotIterator<Map.Entry<K, V>>() {
+                        @Override
+                        Map.Entry<K, V> get(int slot) { return new Entry(slot); }
+                    };
+                }
+
+                @Override
+                public int size() { return size; }
+
+                @Override
+                public void clear() { ElementsItemIdMap.this.clear(); }
+            };
+        }
+        return entrySet;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyAt(int slot) {
+        //only ever holds K's, and each key is recreated as the same class it was put as.
+        return (K) ElementsItemId.fromLong(keys[slot]);
+    }
+
+    //an entry of the map, which writes setValue through to the table.
+    //(deliberately not Serializable, unlike AbstractMap.SimpleEntry, as the map itself is not).
+    private class Entry implements Map.Entry<K, V> {
+        private final int slot;
+        private final K key;
+        private V value;
+
+        @SuppressWarnings("unchecked")
+        Entry(int slot) {
+            this.slot = slot;
+            this.key = keyAt(slot);
+            this.value = (V) values[slot];
+        }
+
+        @Override
+        public K getKey() { return key; }
+
+        @Override
+        public V getValue() { return value; }
+
+        @Override
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException("ElementsItemIdMap does not support null values");
+            values[slot] = value;
+            V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return key.equals(entry.getKey()) && value.equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode() { return key.hashCode() ^ value.hashCode(); }
+
+        @Override
+        public String toString() { return key + "=" + value; }
+    }
+
+    //removals through the iterator only mark the slot as removed, so the iteration carries on undisturbed.
+    private abstract class SlotIterator<E> implements Iterator<E> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        abstract E get(int slot);
+
+        @Override
+        public boolean hasNext() {
+            while (next < keys.length && keys[next] < 0) next++;
+            return next < keys.length;
+        }
+
+        @Override
+        public E next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            last = next++;
+            return get(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            removeSlot(last);
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.vivoweb.harvester.utils;
+
+import uk.co.symplectic.utils.IntBitmap;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A Set of ElementsItemIds that holds the integer identifiers of each subtype in an IntBitmap rather than holding an
+ * object per id - a few bytes an id (far less for dense runs of ids) in place of the 50 or so bytes a HashSet entry and
+ * its id cost. The ids are recreated as they are iterated over (as the concrete ElementsItemId class for their subtype),
+ * grouped by subtype and in order of integer identifier within each.
+ *
+ * Like a HashSet it is not thread safe - wrap it with Collections.synchronizedSet where it is shared.
+ *
+ * @param <T> the type of ElementsItemId held (ElementsItemId itself for a mix of types).
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsItemIdSet<T extends ElementsItemId> extends AbstractSet<T> {
+    //indexed by subtype index (see ElementsItemType.SubType.getIndex), null where no ids of that subtype are held.
+    private IntBitmap[] bitmaps = new IntBitmap[0];
+    private int size = 0;
+    private int modCount = 0;
+
+    public ElementsItemIdSet() {}
+
+    public ElementsItemIdSet(Collection<? extends T> items) {
+        if (items instanceof ElementsItemIdSet) {
+            //copy the bitmaps rather than recreate every id.
+            ElementsItemIdSet<?> other = (ElementsItemIdSet<?>) items;
+            bitmaps = new IntBitmap[other.bitmaps.length];
+            for (int i = 0; i < bitmaps.length; i++) {
+                if (other.bitmaps[i] != null) bitmaps[i] = new IntBitmap(other.bitmaps[i]);
+            }
+            size = other.size;
+        }
+        else addAll(items);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof ElementsItemId)) return false;
+        ElementsItemId itemId = (ElementsItemId) o;
+        int index = itemId.getItemSubType().getIndex();
+        return index < bitmaps.length && bitmaps[index] != null && bitmaps[index].contains(itemId.getId());
+    }
+
+    @Override
+    public boolean add(T itemId) {
+        if (itemId == null) throw new NullPointerException("ElementsItemIdSet cannot hold null");
+        int index = itemId.getItemSubType().getIndex();
+        if (index >= bitmaps.length) {
+            IntBitmap[] newBitmaps = new IntBitmap[index + 1];
+            System.arraycopy(bitmaps, 0, newBitmaps, 0, bitmaps.length);
+            bitmaps = newBitmaps;
+        }
+        if (bitmaps[index] == null) bitmaps[index] = new IntBitmap();
+        if (!bitmaps[index].add(itemId.getId())) return false;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof ElementsItemId)) return false;
+        ElementsItemId itemId = (ElementsItemId) o;
+        int index = itemId.getItemSubType().getIndex();
+        if (index >= bitmaps.length || bitmaps[index] == null || !bitmaps[index].remove(itemId.getId())) return false;
+        if (bitmaps[index].isEmpty()) bitmaps[index] = null;
+        size--;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        bitmaps = new IntBitmap[0];
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new IdIterator();
+    }
+
+    private class IdIterator implements Iterator<T> {
+        private int index = -1;
+        private IntBitmap.IntIterator ids = null;
+        private IntBitmap.IntIterator lastIds = null;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            while (ids == null || !ids.hasNext()) {
+                if (++index >= bitmaps.length) return false;
+                ids = bitmaps[index] == null ? null : bitmaps[index].intIterator();
+            }
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            lastIds = ids;
+            //only ever holds T's, and each id is recreated as the same class it was added as.
+            return (T) ElementsItemId.fromLong(((long) index << 32) | (ids.next() & 0xffffffffL));
+        }
+
+        @Override
+        public void remove() {
+            if (lastIds == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            //an emptied bitmap is left in place (rather than disturb the iteration), it costs next to nothing.
+            lastIds.remove();
+            lastIds = null;
+            size--;
+            modCount++;
+            expectedModCount = modCount;
+        }
+    }
+}
@@ -22,7 +22,6 @@ import uk.co.symplectic.vivoweb.harvester.store.StoredData;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An abstract generic class representing an in memory dictionary of data (of type T) keyed by ElementsItemIDs.
@@ -32,11 +31,14 @@ import java.util.concurrent.ConcurrentHashMap;
  * the class exposes a "StoreWrapper" which allows the object to be used as an ElementsItemStore so that
  * it can be targeted (for example) as the output of a FetchConfig.
  *
+ * The data is held in an ElementsItemIdMap, so the keySet and values views must not be iterated over while the
+ * collection is still being added to (in practice collections are filled by a fetch, and only read from after that).
+ *
  * @param <T> The type of data being held in the dictionary.
  */
 public abstract class ElementsItemKeyedCollection<T> {
 
-    private final Map<ElementsItemId, T> mData = new ConcurrentHashMap<ElementsItemId, T>();
+    private final Map<ElementsItemId, T> mData = new ElementsItemIdMap<ElementsItemId, T>();
     private ItemRestrictor mRestrictor = null;
 
     ElementsItemKeyedCollection(ItemRestrictor restrictor){
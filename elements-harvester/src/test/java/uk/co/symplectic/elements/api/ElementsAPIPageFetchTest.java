@@ -0,0 +1,140 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.symplectic.elements.api.standin.ElementsAPIStandInServer;
+import uk.co.symplectic.elements.api.standin.FaultProfile;
+import uk.co.symplectic.elements.api.standin.SyntheticElementsData;
+import uk.co.symplectic.utils.http.HttpClient;
+import uk.co.symplectic.vivoweb.harvester.fetch.ElementsFetch;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsItemStore;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
+import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches feeds from an ElementsAPIStandInServer with several pages in flight at once, checking that every item is
+ * fetched exactly once - including when the results shift part way through (so that the concurrent fetch has to fall
+ * back to following next links) and when the API version pages with continuation tokens.
+ */
+public class ElementsAPIPageFetchTest {
+
+    private static final int users = 300;
+    private static final int publications = 600;
+    private static final int pageFetchWindow = 4;
+
+    private ElementsAPIStandInServer server = null;
+    //the shared request limiter's settings before the test changed them.
+    private double requestRate;
+    private int requestBurst;
+
+    /**
+     * Store that counts how many times each item is stored.
+     */
+    private static class CountingStore implements ElementsItemStore {
+        private final Map<ElementsItemId, AtomicInteger> counts = new ConcurrentHashMap<ElementsItemId, AtomicInteger>();
+
+        @Override
+        public synchronized ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) {
+            AtomicInteger count = counts.get(itemInfo.getItemId());
+            if (count == null) {
+                count = new AtomicInteger(0);
+                counts.put(itemInfo.getItemId(), count);
+            }
+            count.incrementAndGet();
+            return null;
+        }
+
+        void assertEachStoredOnce(ElementsObjectCategory category, int expected) {
+            int found = 0;
+            for (Map.Entry<ElementsItemId, AtomicInteger> entry : counts.entrySet()) {
+                if (entry.getKey().getItemSubType() != category) continue;
+                assertEquals("times " + entry.getKey() + " was stored", 1, entry.getValue().get());
+                found++;
+            }
+            assertEquals(category.getPlural() + " stored", expected, found);
+        }
+    }
+
+    @Before
+    public void removeRequestLimit() {
+        //the stand-in does not need protecting, and the default request rate would make the tests needlessly slow.
+        requestRate = HttpClient.getRateLimiter().getMaxRate();
+        requestBurst = HttpClient.getRateLimiter().getBurst();
+        HttpClient.setRequestRate(0, 1);
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) server.stop();
+        //the limiter is shared by everything else that runs in this JVM.
+        HttpClient.setRequestRate(requestRate, requestBurst);
+    }
+
+    @Test
+    public void fetchesPagesConcurrently() throws IOException {
+        ElementsFetch fetch = startServer(ElementsAPIVersion.VERSION_4_9);
+        CountingStore store = new CountingStore();
+        fetch.execute(new ElementsFetch.ObjectConfig(true, null, ElementsObjectCategory.PUBLICATION), store);
+        store.assertEachStoredOnce(ElementsObjectCategory.PUBLICATION, publications);
+        assertTrue("pages should have been requested by number", server.getPageNumberRequestCount() > 0);
+    }
+
+    @Test
+    public void sharedPoolStillUsableAfterFallback() throws IOException {
+        ElementsFetch fetch = startServer(ElementsAPIVersion.VERSION_4_9);
+        //the results appear to change from the third page of each feed, so each fetch falls back part way through
+        //with later pages still in flight (and so cancelled).
+        server.setResultsDriftFromPage(3);
+        CountingStore store = new CountingStore();
+        fetch.execute(new ElementsFetch.ObjectConfig(true, null, ElementsObjectCategory.PUBLICATION), store);
+        fetch.execute(new ElementsFetch.ObjectConfig(true, null, ElementsObjectCategory.USER), store);
+        store.assertEachStoredOnce(ElementsObjectCategory.PUBLICATION, publications);
+        store.assertEachStoredOnce(ElementsObjectCategory.USER, users);
+    }
+
+    @Test
+    public void tokenPagedVersionFollowsNextLinks() throws IOException {
+        ElementsFetch fetch = startServer(ElementsAPIVersion.VERSION_5_5);
+        CountingStore store = new CountingStore();
+        fetch.execute(new ElementsFetch.ObjectConfig(true, null, ElementsObjectCategory.PUBLICATION), store);
+        store.assertEachStoredOnce(ElementsObjectCategory.PUBLICATION, publications);
+        assertEquals("pages requested by number", 0, server.getPageNumberRequestCount());
+    }
+
+    private ElementsFetch startServer(ElementsAPIVersion version) throws IOException {
+        Map<ElementsObjectCategory, Integer> objectCounts = new LinkedHashMap<ElementsObjectCategory, Integer>();
+        objectCounts.put(ElementsObjectCategory.USER, users);
+        objectCounts.put(ElementsObjectCategory.PUBLICATION, publications);
+        SyntheticElementsData data = new SyntheticElementsData(1, new Date(), objectCounts, 0, 1, 0);
+        //enough latency that pages are still in flight when a fetch falls back.
+        server = new ElementsAPIStandInServer(data, version, new FaultProfile(20, 0, 0, 0, 0, 1), 0, 8);
+        server.start();
+        ElementsAPI api = new ElementsAPI(null, server.getUrl(), null, null, false,
+                new ElementsAPI.ProcessingDefaults(true, 25, 100, pageFetchWindow));
+        return new ElementsFetch(api);
+    }
+}
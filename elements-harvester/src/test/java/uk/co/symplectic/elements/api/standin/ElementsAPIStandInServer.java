@@ -0,0 +1,569 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang.NullArgumentException;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.elements.api.ElementsAPI;
+import uk.co.symplectic.elements.api.ElementsAPIVersion;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process, plain http stand-in for an Elements API, serving the feeds of a SyntheticElementsData set so that
+ * fetching can be exercised (and benchmarked) end to end without a live Elements instance.
+ *
+ * The stand-in understands the resources requested by the v4.X and v5.5 url builders:
+ *   my-account, {category plural}, deleted/{category plural}, relationships, relationships/deleted,
+ *   relationship/types and groups
+ * along with the per-page, page, detail, groups, types, ids, modified-since, affected-since and deleted-since parameters.
+ * Items are always served in id order. "next" links use page numbers when standing in for a v4.X API and after-id
+ * continuation tokens when standing in for a v5.5 API (page numbers are understood by both).
+ * Group membership is served as the users feed restricted by the groups parameter; the groups parameter is ignored
+ * for other categories.
+ *
+ * Each request is delayed and may be failed (500) or throttled (429 with Retry-After) according to a FaultProfile.
+ * Responses are gzipped when the client asks for it.
+ *
+ * setResultsDriftFromPage makes later pages of every feed report one more result than the feed holds, as if an item
+ * had been added part way through paging (which is what a client fetching pages concurrently has to notice).
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsAPIStandInServer {
+
+    /**
+     * SLF4J Logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(ElementsAPIStandInServer.class);
+
+    private static final String contextPath = "/elements-api/";
+
+    //default page size used by the API when a feed is requested without a per-page parameter.
+    private static final int defaultPerPage = 25;
+    private static final int maxPerPage = 1000;
+
+    private static final String[] pagingParams = {"page", "after-id"};
+
+    /**
+     * Interfaces used to describe a feed - which ids it contains and how to write out the entry for each id.
+     */
+    private interface IdFilter { boolean accept(int id); }
+
+    private interface EntryWriter { void write(StringBuilder xml, int id, boolean fullDetail); }
+
+    private static final IdFilter acceptAll = new IdFilter() {
+        @Override
+        public boolean accept(int id) { return true; }
+    };
+
+    private final SyntheticElementsData data;
+    private final ElementsAPIVersion version;
+    private final FaultProfile faultProfile;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String url;
+
+    //ids making up each distinct (filtered) feed - so that paging through a feed does not rescan it for every page.
+    private final Map<String, int[]> feedCache = new ConcurrentHashMap<String, int[]>();
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong errorCount = new AtomicLong(0);
+    private final AtomicLong throttledCount = new AtomicLong(0);
+    private final AtomicLong entriesServed = new AtomicLong(0);
+    private final AtomicLong bytesServed = new AtomicLong(0);
+    private final AtomicLong pageNumberRequests = new AtomicLong(0);
+
+    //pages numbered this or higher report one more result than the feed holds (0 means none do).
+    private volatile int resultsDriftFromPage = 0;
+
+    /**
+     * Creates (but does not start) a stand-in server listening on the loopback interface.
+     * @param data the data to serve.
+     * @param version the version of the API to stand in for (reported by my-account and determines the style of "next" links).
+     * @param faultProfile how badly the server should behave (null means not at all).
+     * @param port the port to listen on (0 means any free port).
+     * @param threads how many requests can be handled at once.
+     * @throws IOException if the server cannot be bound.
+     */
+    public ElementsAPIStandInServer(SyntheticElementsData data, ElementsAPIVersion version, FaultProfile faultProfile, int port, int threads) throws IOException {
+        if (data == null) throw new NullArgumentException("data");
+        if (version == null) throw new NullArgumentException("version");
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.data = data;
+        this.version = version;
+        this.faultProfile = faultProfile == null ? FaultProfile.NONE : faultProfile;
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(executor);
+        this.server.createContext(contextPath, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        this.url = MessageFormat.format("http://127.0.0.1:{0}{1}", Integer.toString(server.getAddress().getPort()), contextPath);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * @return the base url of the stand-in API (suitable for passing to the ElementsAPI constructor).
+     */
+    public String getUrl() { return url; }
+
+    public SyntheticElementsData getData() { return data; }
+
+    public long getRequestCount() { return requestCount.get(); }
+
+    public long getErrorCount() { return errorCount.get(); }
+
+    public long getThrottledCount() { return throttledCount.get(); }
+
+    public long getEntriesServed() { return entriesServed.get(); }
+
+    public long getBytesServed() { return bytesServed.get(); }
+
+    /**
+     * @return how many feed pages have been requested by page number (rather than as a first page or by continuation token).
+     */
+    public long getPageNumberRequestCount() { return pageNumberRequests.get(); }
+
+    /**
+     * @param page the first page number of each feed that should report one more result than the feed holds (0 for none).
+     */
+    public void setResultsDriftFromPage(int page) {
+        if (page < 0) throw new IllegalArgumentException("page must not be negative");
+        this.resultsDriftFromPage = page;
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("requests: {0}, errors injected: {1}, requests throttled: {2}, entries served: {3}, bytes served: {4}",
+                getRequestCount(), getErrorCount(), getThrottledCount(), getEntriesServed(), getBytesServed());
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        try {
+            requestCount.incrementAndGet();
+            long latency = faultProfile.nextLatencyMillis();
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+
+            int faultStatus = faultProfile.nextFaultStatus();
+            if (faultStatus == 429) {
+                throttledCount.incrementAndGet();
+                if (faultProfile.getRetryAfterSeconds() > 0)
+                    exchange.getResponseHeaders().set("Retry-After", Integer.toString(faultProfile.getRetryAfterSeconds()));
+                sendError(exchange, 429, "Too many requests");
+                return;
+            } else if (faultStatus != 0) {
+                errorCount.incrementAndGet();
+                sendError(exchange, faultStatus, "Injected failure");
+                return;
+            }
+
+            String resource = exchange.getRequestURI().getPath().substring(contextPath.length());
+            if (resource.endsWith("/")) resource = resource.substring(0, resource.length() - 1);
+            String body = buildResponse(resource, exchange.getRequestURI().getRawQuery());
+            if (body == null) {
+                sendError(exchange, 404, MessageFormat.format("Unknown resource {0}", resource));
+                return;
+            }
+            send(exchange, 200, body);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Error handling stand-in API request", e);
+            sendError(exchange, 500, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, MessageFormat.format("<?xml version=\"1.0\" encoding=\"utf-8\"?><error>{0}</error>", StringEscapeUtils.escapeXml(message)));
+    }
+
+    private void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.close();
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+        bytesServed.addAndGet(bytes.length);
+    }
+
+    /**
+     * @return the xml of the response for the requested resource, or null if the resource is not known.
+     */
+    private String buildResponse(String resource, String rawQuery) {
+        final Map<String, String> params = parseQuery(rawQuery);
+
+        if ("my-account".equals(resource)) {
+            StringBuilder xml = startFeed("My account");
+            xml.append("<entry>");
+            writeObject(xml, ElementsObjectCategory.USER, 1, false);
+            xml.append("</entry>");
+            return endFeed(xml);
+        }
+        if ("groups".equals(resource)) {
+            return buildFeed(resource, rawQuery, params, "Groups", 1, data.getGroupCount(), acceptAll, false, new EntryWriter() {
+                @Override
+                public void write(StringBuilder xml, int id, boolean fullDetail) { writeGroup(xml, id); }
+            });
+        }
+        if ("relationship/types".equals(resource)) {
+            return buildFeed(resource, rawQuery, params, "Relationship types", 1, data.getRelationshipTypes().size(), acceptAll, false, new EntryWriter() {
+                @Override
+                public void write(StringBuilder xml, int id, boolean fullDetail) { writeRelationshipType(xml, id); }
+            });
+        }
+        if ("relationships".equals(resource)) {
+            final Set<Integer> types = parseIntegers(params.get("types"));
+            final Set<Integer> ids = parseIntegers(params.get("ids"));
+            final Date since = parseDate(params.get("modified-since"));
+            IdFilter filter = new IdFilter() {
+                @Override
+                public boolean accept(int id) {
+                    return (types == null || types.contains(data.getRelationshipType(id).getId())) && (ids == null || ids.contains(id)) &&
+                            (since == null || data.getRelationshipLastModified(id).after(since));
+                }
+            };
+            return buildFeed(resource, rawQuery, params, "Relationships", 1, data.getRelationshipCount(), filter, true, new EntryWriter() {
+                @Override
+                public void write(StringBuilder xml, int id, boolean fullDetail) { writeRelationship(xml, id, fullDetail); }
+            });
+        }
+        if ("relationships/deleted".equals(resource)) {
+            final Set<Integer> ids = parseIntegers(params.get("ids"));
+            final Date since = parseDate(params.get("deleted-since"));
+            IdFilter filter = new IdFilter() {
+                @Override
+                public boolean accept(int id) {
+                    return (ids == null || ids.contains(id)) && (since == null || data.getRelationshipDeletedWhen(id).after(since));
+                }
+            };
+            int first = data.getRelationshipCount() + 1;
+            return buildFeed(resource, rawQuery, params, "Deleted relationships", first, first + data.getDeletedRelationshipCount() - 1, filter, true, new EntryWriter() {
+                @Override
+                public void write(StringBuilder xml, int id, boolean fullDetail) {
+                    xml.append("<entry><api:deleted-relationship id=\"").append(id).append("\" deleted-when=\"")
+                            .append(formatDate(data.getRelationshipDeletedWhen(id))).append("\"/></entry>");
+                }
+            });
+        }
+
+        final boolean deleted = resource.startsWith("deleted/");
+        final ElementsObjectCategory category = getCategory(deleted ? resource.substring("deleted/".length()) : resource);
+        if (category == null) return null;
+
+        if (deleted) {
+            final Date since = parseDate(params.get("deleted-since"));
+            IdFilter filter = new IdFilter() {
+                @Override
+                public boolean accept(int id) { return since == null || data.getDeletedWhen(category, id).after(since); }
+            };
+            int first = data.getObjectCount(category) + 1;
+            return buildFeed(resource, rawQuery, params, "Deleted " + category.getPlural(), first, first + data.getDeletedObjectCount(category) - 1, filter, true, new EntryWriter() {
+                @Override
+                public void write(StringBuilder xml, int id, boolean fullDetail) {
+                    xml.append("<entry><api:deleted-object category=\"").append(category.getSingular()).append("\" id=\"").append(id).append("\"");
+                    //deleted users are still identified by their username.
+                    if (category == ElementsObjectCategory.USER) xml.append(" username=\"user").append(id).append("\"");
+                    xml.append(" deleted-when=\"").append(formatDate(data.getDeletedWhen(category, id))).append("\"/></entry>");
+                }
+            });
+        }
+
+        final Date since = parseDate(params.containsKey("affected-since") ? params.get("affected-since") : params.get("modified-since"));
+        final Set<Integer> groups = category == ElementsObjectCategory.USER ? parseIntegers(params.get("groups")) : null;
+        IdFilter filter = new IdFilter() {
+            @Override
+            public boolean accept(int id) {
+                return (since == null || data.getLastModified(category, id).after(since)) && (groups == null || groups.contains(data.getGroupOfUser(id)));
+            }
+        };
+        return buildFeed(resource, rawQuery, params, category.getPlural(), 1, data.getObjectCount(category), filter, true, new EntryWriter() {
+            @Override
+            public void write(StringBuilder xml, int id, boolean fullDetail) {
+                xml.append("<entry>");
+                writeObject(xml, category, id, fullDetail);
+                xml.append("</entry>");
+            }
+        });
+    }
+
+    private ElementsObjectCategory getCategory(String plural) {
+        for (ElementsObjectCategory category : data.getCategories()) {
+            if (category.getPlural().equals(plural)) return category;
+        }
+        return null;
+    }
+
+    /**
+     * Builds one page of a feed containing the ids from firstId to lastId that are accepted by the filter.
+     * @param pagedByDefault whether the feed is paged when no per-page parameter is supplied (groups and relationship types are not).
+     */
+    private String buildFeed(String resource, String rawQuery, Map<String, String> params, String title, int firstId, int lastId,
+                             IdFilter filter, boolean pagedByDefault, EntryWriter writer) {
+        String baseQuery = stripParams(rawQuery, pagingParams);
+        String feedKey = resource + "?" + stripParams(baseQuery, "per-page", "detail");
+        int[] ids = feedCache.get(feedKey);
+        if (ids == null) {
+            ids = selectIds(firstId, lastId, filter);
+            feedCache.put(feedKey, ids);
+        }
+
+        int perPage = pagedByDefault ? defaultPerPage : Math.max(ids.length, 1);
+        if (params.containsKey("per-page")) {
+            perPage = Integer.parseInt(params.get("per-page"));
+            if (perPage < 1 || perPage > maxPerPage)
+                throw new IllegalArgumentException(MessageFormat.format("per-page must be between 1 and {0}", maxPerPage));
+        }
+
+        int start;
+        if (params.containsKey("after-id")) {
+            int position = Arrays.binarySearch(ids, Integer.parseInt(params.get("after-id")));
+            start = position >= 0 ? position + 1 : -(position + 1);
+        } else {
+            int page = params.containsKey("page") ? Integer.parseInt(params.get("page")) : 1;
+            if (page < 1) throw new IllegalArgumentException("page must be 1 or greater");
+            if (params.containsKey("page")) pageNumberRequests.incrementAndGet();
+            start = (int) Math.min((long) (page - 1) * perPage, ids.length);
+        }
+        int end = Math.min(start + perPage, ids.length);
+        int pageNumber = start / perPage + 1;
+        int lastPage = Math.max(1, (ids.length + perPage - 1) / perPage);
+
+        String pageBase = url + resource + "?" + (baseQuery.length() == 0 ? "" : baseQuery + "&");
+        boolean fullDetail = "full".equals(params.get("detail"));
+
+        StringBuilder xml = startFeed(title);
+        int reportedCount = resultsDriftFromPage > 0 && pageNumber >= resultsDriftFromPage ? ids.length + 1 : ids.length;
+        xml.append("<api:pagination results-count=\"").append(reportedCount).append("\" items-per-page=\"").append(perPage).append("\">");
+        writePage(xml, "first", 1, pageBase + "page=1");
+        if (pageNumber > 1) writePage(xml, "previous", pageNumber - 1, pageBase + "page=" + (pageNumber - 1));
+        writePage(xml, "this", pageNumber, pageBase + "page=" + pageNumber);
+        if (end < ids.length) {
+            String nextHref = version.equals(ElementsAPIVersion.VERSION_5_5) ? pageBase + "after-id=" + ids[end - 1] : pageBase + "page=" + (pageNumber + 1);
+            writePage(xml, "next", pageNumber + 1, nextHref);
+        }
+        writePage(xml, "last", lastPage, pageBase + "page=" + lastPage);
+        xml.append("</api:pagination>");
+
+        for (int i = start; i < end; i++) {
+            writer.write(xml, ids[i], fullDetail);
+        }
+        entriesServed.addAndGet(end - start);
+        return endFeed(xml);
+    }
+
+    private static int[] selectIds(int firstId, int lastId, IdFilter filter) {
+        int[] ids = new int[Math.max(0, Math.min(lastId - firstId + 1, 1024))];
+        int count = 0;
+        for (int id = firstId; id <= lastId; id++) {
+            if (filter.accept(id)) {
+                if (count == ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+                ids[count++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private static void writePage(StringBuilder xml, String position, int number, String href) {
+        xml.append("<api:page position=\"").append(position).append("\" number=\"").append(number)
+                .append("\" href=\"").append(StringEscapeUtils.escapeXml(href)).append("\"/>");
+    }
+
+    private StringBuilder startFeed(String title) {
+        StringBuilder xml = new StringBuilder(8192);
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        xml.append("<feed xmlns=\"").append(ElementsAPI.atomNS).append("\" xmlns:api=\"").append(ElementsAPI.apiNS).append("\">");
+        xml.append("<api:schema-version>").append(version.toString()).append("</api:schema-version>");
+        xml.append("<title>").append(StringEscapeUtils.escapeXml(title)).append("</title>");
+        return xml;
+    }
+
+    private static String endFeed(StringBuilder xml) {
+        return xml.append("</feed>").toString();
+    }
+
+    private void writeObject(StringBuilder xml, ElementsObjectCategory category, int id, boolean fullDetail) {
+        String href = url + category.getPlural() + "/" + id;
+        xml.append("<api:object category=\"").append(category.getSingular()).append("\" id=\"").append(id)
+                .append("\" last-modified-when=\"").append(formatDate(data.getLastModified(category, id))).append("\" href=\"").append(href).append("\"");
+        if (category == ElementsObjectCategory.USER) {
+            xml.append(" username=\"user").append(id).append("\" proprietary-id=\"P").append(id).append("\"");
+        }
+        xml.append(">");
+        if (fullDetail) {
+            if (category == ElementsObjectCategory.USER) {
+                xml.append("<api:is-public>").append(data.getFlag(category, id, 0)).append("</api:is-public>");
+                xml.append("<api:is-current-staff>").append(data.getFlag(category, id, 1)).append("</api:is-current-staff>");
+                xml.append("<api:is-academic>").append(data.getFlag(category, id, 2)).append("</api:is-academic>");
+                xml.append("<api:first-name>").append(data.getTitle(category, id, 1)).append("</api:first-name>");
+                xml.append("<api:last-name>").append(data.getTitle(category, -id, 1)).append("</api:last-name>");
+                xml.append("<api:primary-group-descriptor>Group ").append(data.getGroupOfUser(id)).append("</api:primary-group-descriptor>");
+            } else {
+                xml.append("<api:records><api:record format=\"native\" id=\"").append(id).append("\" source-id=\"1\" source-name=\"manual\" source-display-name=\"Manual\">");
+                xml.append("<api:native>");
+                writeField(xml, "title", data.getTitle(category, id, 8));
+                writeField(xml, "abstract", data.getTitle(category, -id, 60));
+                writeField(xml, "keywords", data.getTitle(category, id + 1, 5));
+                xml.append("</api:native></api:record></api:records>");
+            }
+        }
+        xml.append("</api:object>");
+    }
+
+    private static void writeField(StringBuilder xml, String name, String text) {
+        xml.append("<api:field name=\"").append(name).append("\" type=\"text\" display-name=\"").append(name)
+                .append("\"><api:text>").append(text).append("</api:text></api:field>");
+    }
+
+    private void writeRelationship(StringBuilder xml, int id, boolean fullDetail) {
+        SyntheticElementsData.RelationshipType type = data.getRelationshipType(id);
+        xml.append("<entry><api:relationship id=\"").append(id).append("\" type-id=\"").append(type.getId()).append("\" type=\"").append(type.getName())
+                .append("\" last-modified-when=\"").append(formatDate(data.getRelationshipLastModified(id))).append("\">");
+        writeRelated(xml, "from", type.getFromCategory(), data.getRelationshipObject(id), fullDetail);
+        writeRelated(xml, "to", type.getToCategory(), data.getRelationshipUser(id), fullDetail);
+        xml.append("<api:is-visible>true</api:is-visible>");
+        xml.append("</api:relationship></entry>");
+    }
+
+    private void writeRelated(StringBuilder xml, String direction, ElementsObjectCategory category, int id, boolean fullDetail) {
+        xml.append("<api:related direction=\"").append(direction).append("\">");
+        writeObject(xml, category, id, fullDetail);
+        xml.append("</api:related>");
+    }
+
+    private void writeGroup(StringBuilder xml, int id) {
+        xml.append("<entry><api:user-group id=\"").append(id).append("\" href=\"").append(url).append("groups/").append(id).append("\">");
+        xml.append("<api:name>Group ").append(id).append("</api:name>");
+        xml.append("<api:group-description>Synthetic group ").append(id).append("</api:group-description>");
+        int parent = data.getParentGroup(id);
+        if (parent > 0) xml.append("<api:parent id=\"").append(parent).append("\"/>");
+        xml.append("<api:explicit-group-members href=\"")
+                .append(StringEscapeUtils.escapeXml(url + ElementsObjectCategory.USER.getPlural() + "?groups=" + id + "&group-membership=explicit"))
+                .append("\"/>");
+        xml.append("</api:user-group></entry>");
+    }
+
+    private void writeRelationshipType(StringBuilder xml, int id) {
+        SyntheticElementsData.RelationshipType type = data.getRelationshipTypes().get(id - 1);
+        xml.append("<entry><api:relationship-type id=\"").append(id).append("\" type=\"").append(type.getName()).append("\">");
+        xml.append("<api:from-object category=\"").append(type.getFromCategory().getSingular()).append("\"/>");
+        xml.append("<api:to-object category=\"").append(type.getToCategory().getSingular()).append("\"/>");
+        xml.append("</api:relationship-type></entry>");
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        if (rawQuery == null || rawQuery.length() == 0) return params;
+        try {
+            for (String param : rawQuery.split("&")) {
+                int split = param.indexOf('=');
+                if (split < 0) params.put(URLDecoder.decode(param, "UTF-8"), "");
+                else params.put(URLDecoder.decode(param.substring(0, split), "UTF-8"), URLDecoder.decode(param.substring(split + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    /**
+     * @return the raw query string without the named parameters.
+     */
+    private static String stripParams(String rawQuery, String... names) {
+        if (rawQuery == null || rawQuery.length() == 0) return "";
+        StringBuilder query = new StringBuilder();
+        for (String param : rawQuery.split("&")) {
+            String name = param.indexOf('=') < 0 ? param : param.substring(0, param.indexOf('='));
+            if (Arrays.asList(names).contains(name)) continue;
+            if (query.length() > 0) query.append('&');
+            query.append(param);
+        }
+        return query.toString();
+    }
+
+    private static Set<Integer> parseIntegers(String value) {
+        if (value == null) return null;
+        Set<Integer> integers = new HashSet<Integer>();
+        for (String part : value.split(",")) {
+            if (part.trim().length() != 0) integers.add(Integer.parseInt(part.trim()));
+        }
+        return integers;
+    }
+
+    private static Date parseDate(String value) {
+        if (value == null) return null;
+        try {
+            return getDateFormat().parse(value);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(MessageFormat.format("Invalid date {0}", value));
+        }
+    }
+
+    private static String formatDate(Date value) { return getDateFormat().format(value); }
+
+    //SimpleDateFormat is not thread safe so create as needed.
+    private static SimpleDateFormat getDateFormat() {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.elements.api.ElementsAPI;
+import uk.co.symplectic.elements.api.ElementsAPIVersion;
+import uk.co.symplectic.utils.http.HttpClient;
+import uk.co.symplectic.vivoweb.harvester.fetch.ElementsFetch;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+import uk.co.symplectic.vivoweb.harvester.store.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Main class that benchmarks ElementsFetch end to end against an in-process ElementsAPIStandInServer.
+ *
+ * Runs the same sequence of fetches as a harvest (relationship types, groups, group memberships, objects and then
+ * relationships) into a store that counts what it is given, and reports the throughput of each phase.
+ * If a storeDir is given the items are also written to a raw data store there, otherwise they are discarded.
+ * For full (non delta) runs the counts are checked against the synthetic data.
+ * The process exits with a non zero status if the checks fail or the overall throughput falls below minItemsPerSecond.
+ * ElementsFetchThroughputTest runs it (on a smaller data set) as part of the build to catch throughput regressions.
+ *
+ * Arguments are optional name=value pairs (defaults in brackets):
+ *   version (5.5), seed (1), users (1000), publications (5000), grants (500), relationships (20000), groups (20),
+ *   deletedFraction (0.05), deltaDays (0 - i.e. a full pull), latencyMillis (5), latencyJitterMillis (10),
+ *   errorRate (0), throttleRate (0), retryAfterSeconds (1), serverThreads (16), maxConcurrentFeeds (1),
+ *   pageFetchWindow (1), perPageFull (25), perPageRef (100), requestsPerSecond (0 - unlimited), requestBurst (1),
+ *   compression (true), minItemsPerSecond (0 - no check), storeDir (none), zipFiles (true), storeLayout (flat),
+ *   storeWriteDurability (none), storeCodec (gzip - if zipFiles), writeBehindQueueSize (0).
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsFetchBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(ElementsFetchBenchmark.class);
+
+    /**
+     * An ElementsItemStore that counts the items and bytes it is given, passing them on to a target store (if there
+     * is one, and it supports the type of item) or otherwise discarding them.
+     */
+    private static class CountingItemStore implements ElementsItemStore.ElementsDeletableItemStore {
+        private final AtomicLong stored = new AtomicLong(0);
+        private final AtomicLong deleted = new AtomicLong(0);
+        private final AtomicLong bytes = new AtomicLong(0);
+        private final ElementsItemFileStore target;
+
+        CountingItemStore(ElementsItemFileStore target) {
+            this.target = target;
+        }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            stored.incrementAndGet();
+            bytes.addAndGet(data.length);
+            if (target != null && target.getSupportedTypes().contains(resourceType)) target.storeItem(itemInfo, resourceType, data);
+            return null;
+        }
+
+        @Override
+        public ElementsStoredItemInfo touchItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, IElementsStoredItemObserver... explicitObservers) throws IOException {
+            return null;
+        }
+
+        @Override
+        public void deleteItem(ElementsItemId itemId, StorableResourceType resourceType) throws IOException {
+            deleted.incrementAndGet();
+            if (target != null && target.getSupportedTypes().contains(resourceType)) target.deleteItem(itemId, resourceType);
+        }
+
+        @Override
+        public void cleardown(StorableResourceType resourceType, boolean followObservers) throws IOException { }
+
+        long getItemCount() { return stored.get() + deleted.get(); }
+    }
+
+    private final Map<String, String> arguments;
+    //why the benchmark failed its checks (empty if it passed).
+    private final List<String> failures = new ArrayList<String>();
+    private CountingItemStore store = null;
+    private long totalItems = 0;
+    private long totalNanos = 0;
+
+    ElementsFetchBenchmark(Map<String, String> arguments) {
+        this.arguments = arguments;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> arguments = new HashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            arguments.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        try {
+            System.exit(new ElementsFetchBenchmark(arguments).run() ? 0 : 2);
+        } catch (Exception e) {
+            log.error("Benchmark failed", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return true if the benchmark passed its checks (see getFailures if not).
+     */
+    boolean run() throws IOException {
+        Map<ElementsObjectCategory, Integer> objectCounts = new LinkedHashMap<ElementsObjectCategory, Integer>();
+        objectCounts.put(ElementsObjectCategory.USER, getInt("users", 1000));
+        objectCounts.put(ElementsObjectCategory.PUBLICATION, getInt("publications", 5000));
+        objectCounts.put(ElementsObjectCategory.GRANT, getInt("grants", 500));
+
+        long seed = getLong("seed", 1);
+        SyntheticElementsData data = new SyntheticElementsData(seed, new Date(), objectCounts, getInt("relationships", 20000),
+                getInt("groups", 20), getDouble("deletedFraction", 0.05));
+        FaultProfile faultProfile = new FaultProfile(getLong("latencyMillis", 5), getLong("latencyJitterMillis", 10),
+                getDouble("errorRate", 0), getDouble("throttleRate", 0), getInt("retryAfterSeconds", 1), seed);
+        ElementsAPIVersion version = ElementsAPIVersion.parse(getString("version", "5.5"));
+
+        int maxConcurrentFeeds = getInt("maxConcurrentFeeds", 1);
+        int pageFetchWindow = getInt("pageFetchWindow", 1);
+        double requestsPerSecond = getDouble("requestsPerSecond", 0);
+        HttpClient.setRequestRate(requestsPerSecond, getInt("requestBurst", 1));
+        HttpClient.setMaxConnections(Math.max(20, maxConcurrentFeeds * pageFetchWindow));
+        HttpClient.setRequestCompression(getBoolean("compression", true));
+
+        String storeDir = getString("storeDir", null);
+        store = new CountingItemStore(storeDir == null ? null : new ElementsRawDataStore(new File(storeDir), false,
+                getBoolean("zipFiles", true) ? RecordCodec.valueOf(getString("storeCodec", "gzip").toUpperCase()) : RecordCodec.NONE,
+                StoreLayout.valueOf(getString("storeLayout", "flat").toUpperCase()), WriteDurability.valueOf(getString("storeWriteDurability", "none").toUpperCase())));
+        int writeBehindQueueSize = getInt("writeBehindQueueSize", 0);
+
+        int deltaDays = getInt("deltaDays", 0);
+        Date modifiedSince = deltaDays > 0 ? new Date(data.getReferenceTime().getTime() - TimeUnit.DAYS.toMillis(deltaDays)) : null;
+
+        ElementsAPIStandInServer server = new ElementsAPIStandInServer(data, version, faultProfile, 0, getInt("serverThreads", 16));
+        server.start();
+        try {
+            log.info(MessageFormat.format("Stand-in Elements API v{0} running at {1}", version, server.getUrl()));
+            log.info(MessageFormat.format("Synthetic data - {0}", data));
+            log.info(MessageFormat.format("Fault profile - {0}", faultProfile));
+            log.info(MessageFormat.format("Fetching with maxConcurrentFeeds: {0}, pageFetchWindow: {1}, requestsPerSecond: {2}, {3}",
+                    maxConcurrentFeeds, pageFetchWindow, requestsPerSecond == 0 ? "unlimited" : requestsPerSecond, modifiedSince == null ? "full pull" : "delta of " + deltaDays + " days"));
+            log.info(MessageFormat.format("Storing into {0}, writeBehindQueueSize: {1}", storeDir == null ? "nothing" : storeDir, writeBehindQueueSize));
+
+            ElementsAPI api = new ElementsAPI(null, server.getUrl(), null, null, false,
+                    new ElementsAPI.ProcessingDefaults(true, getInt("perPageFull", 25), getInt("perPageRef", 100), pageFetchWindow));
+            ElementsFetch fetch = new ElementsFetch(api, maxConcurrentFeeds, writeBehindQueueSize);
+
+            runPhase("relationship types", fetch, new ElementsFetch.RelationshipTypesConfig(), data.getRelationshipTypes().size(), modifiedSince == null);
+            runPhase("groups", fetch, new ElementsFetch.GroupConfig(), data.getGroupCount(), modifiedSince == null);
+
+            //every user is an explicit member of exactly one group.
+            long membershipStartCount = store.getItemCount();
+            long membershipStart = System.nanoTime();
+            for (int groupId = 1; groupId <= data.getGroupCount(); groupId++) {
+                fetch.execute(new ElementsFetch.GroupMembershipConfig(groupId), store);
+            }
+            recordPhase("group memberships", store.getItemCount() - membershipStartCount, System.nanoTime() - membershipStart,
+                    data.getObjectCount(ElementsObjectCategory.USER), modifiedSince == null);
+
+            long expectedObjects = 0;
+            for (ElementsObjectCategory category : data.getCategories()) expectedObjects += data.getObjectCount(category);
+            runPhase("objects", fetch, new ElementsFetch.ObjectConfig(true, modifiedSince, data.getCategories()), expectedObjects, modifiedSince == null);
+            runPhase("relationships", fetch, new ElementsFetch.RelationshipConfig(modifiedSince, null), data.getRelationshipCount(), modifiedSince == null);
+
+            double itemsPerSecond = getItemsPerSecond(totalItems, totalNanos);
+            log.info(MessageFormat.format("Total: {0} items in {1}ms - {2} items/s", totalItems, TimeUnit.NANOSECONDS.toMillis(totalNanos), Math.round(itemsPerSecond)));
+            log.info(MessageFormat.format("Stand-in server - {0}", server));
+            log.info(MessageFormat.format("API session - {0}", api.getSession()));
+
+            double minItemsPerSecond = getDouble("minItemsPerSecond", 0);
+            if (itemsPerSecond < minItemsPerSecond) {
+                fail(MessageFormat.format("Throughput of {0} items/s is below the required minimum of {1} items/s", Math.round(itemsPerSecond), minItemsPerSecond));
+            }
+            return failures.isEmpty();
+        } finally {
+            server.stop();
+        }
+    }
+
+    List<String> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    private void fail(String message) {
+        log.error(message);
+        failures.add(message);
+    }
+
+    private void runPhase(String name, ElementsFetch fetch, ElementsFetch.FetchConfig config, long expectedItems, boolean checkCount) throws IOException {
+        long startCount = store.getItemCount();
+        long start = System.nanoTime();
+        fetch.execute(config, store);
+        recordPhase(name, store.getItemCount() - startCount, System.nanoTime() - start, expectedItems, checkCount);
+    }
+
+    private void recordPhase(String name, long items, long nanos, long expectedItems, boolean checkCount) {
+        totalItems += items;
+        totalNanos += nanos;
+        log.info(MessageFormat.format("Fetched {0}: {1} items in {2}ms - {3} items/s", name, items, TimeUnit.NANOSECONDS.toMillis(nanos), Math.round(getItemsPerSecond(items, nanos))));
+        if (checkCount && items != expectedItems) {
+            fail(MessageFormat.format("Fetched {0} {1} but the stand-in server holds {2}", items, name, expectedItems));
+        }
+    }
+
+    private static double getItemsPerSecond(long items, long nanos) {
+        return nanos == 0 ? 0 : items * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    private String getString(String name, String defaultValue) {
+        String value = arguments.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private int getInt(String name, int defaultValue) { return Integer.parseInt(getString(name, Integer.toString(defaultValue))); }
+
+    private long getLong(String name, long defaultValue) { return Long.parseLong(getString(name, Long.toString(defaultValue))); }
+
+    private double getDouble(String name, double defaultValue) { return Double.parseDouble(getString(name, Double.toString(defaultValue))); }
+
+    private boolean getBoolean(String name, boolean defaultValue) { return Boolean.parseBoolean(getString(name, Boolean.toString(defaultValue))); }
+}
@@ -0,0 +1,79 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.symplectic.utils.http.HttpClient;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the ElementsFetchBenchmark (a full pull of every feed a harvest fetches) against an ElementsAPIStandInServer
+ * holding a small synthetic data set, checking that every item held by the server is fetched and that the overall
+ * throughput stays above a floor low enough that only a real regression (rather than a slow build machine) trips it.
+ */
+public class ElementsFetchThroughputTest {
+
+    //far below what a full pull of this data set manages, even on a single busy CPU.
+    private static final String minItemsPerSecond = "50";
+
+    //the shared request limiter's settings before the benchmark changed them.
+    private double requestRate;
+    private int requestBurst;
+
+    @Before
+    public void saveRequestLimit() {
+        requestRate = HttpClient.getRateLimiter().getMaxRate();
+        requestBurst = HttpClient.getRateLimiter().getBurst();
+    }
+
+    @After
+    public void restoreRequestLimit() {
+        //the limiter is shared by everything else that runs in this JVM.
+        HttpClient.setRequestRate(requestRate, requestBurst);
+    }
+
+    @Test
+    public void fullPullFollowingNextLinks() throws IOException {
+        runBenchmark("5.5", 1, 1);
+    }
+
+    @Test
+    public void fullPullWithConcurrentFeedsAndPages() throws IOException {
+        runBenchmark("4.9", 2, 4);
+    }
+
+    private static void runBenchmark(String version, int maxConcurrentFeeds, int pageFetchWindow) throws IOException {
+        Map<String, String> arguments = new HashMap<String, String>();
+        arguments.put("version", version);
+        arguments.put("users", "200");
+        arguments.put("publications", "1000");
+        arguments.put("grants", "100");
+        arguments.put("relationships", "3000");
+        arguments.put("groups", "5");
+        arguments.put("latencyMillis", "1");
+        arguments.put("latencyJitterMillis", "2");
+        arguments.put("maxConcurrentFeeds", Integer.toString(maxConcurrentFeeds));
+        arguments.put("pageFetchWindow", Integer.toString(pageFetchWindow));
+        arguments.put("minItemsPerSecond", minItemsPerSecond);
+
+        ElementsFetchBenchmark benchmark = new ElementsFetchBenchmark(arguments);
+        benchmark.run();
+        assertEquals("benchmark failures", Collections.<String>emptyList(), benchmark.getFailures());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import java.text.MessageFormat;
+import java.util.Random;
+
+/**
+ * Immutable description of how badly an ElementsAPIStandInServer should behave:
+ * how long each response should be delayed by, and what proportion of requests should fail with a server error
+ * or be throttled (429 with a Retry-After header) rather than served.
+ * The "random" decisions are driven from a seed so that a given profile produces a repeatable sequence of faults.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FaultProfile {
+
+    /**
+     * A profile that serves every request immediately and successfully.
+     */
+    public static final FaultProfile NONE = new FaultProfile(0, 0, 0, 0, 0, 0);
+
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double errorRate;
+    private final double throttleRate;
+    private final int retryAfterSeconds;
+
+    private final Random random;
+
+    /**
+     * @param latencyMillis the minimum delay added to every response.
+     * @param latencyJitterMillis the maximum additional (uniformly distributed) random delay added to every response.
+     * @param errorRate the proportion (0 - 1) of requests that should fail with a 500 error.
+     * @param throttleRate the proportion (0 - 1) of requests that should be rejected with a 429 (Too Many Requests).
+     * @param retryAfterSeconds the Retry-After value sent with 429 responses (0 means no header is sent).
+     * @param seed seed for the decisions about which requests fail.
+     */
+    public FaultProfile(long latencyMillis, long latencyJitterMillis, double errorRate, double throttleRate, int retryAfterSeconds, long seed) {
+        if (latencyMillis < 0) throw new IllegalArgumentException("latencyMillis must not be negative");
+        if (latencyJitterMillis < 0) throw new IllegalArgumentException("latencyJitterMillis must not be negative");
+        if (errorRate < 0 || throttleRate < 0 || errorRate + throttleRate > 1)
+            throw new IllegalArgumentException("errorRate and throttleRate must not be negative and must not add up to more than 1");
+        if (retryAfterSeconds < 0) throw new IllegalArgumentException("retryAfterSeconds must not be negative");
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+        this.errorRate = errorRate;
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.random = new Random(seed);
+    }
+
+    public long getLatencyMillis() { return latencyMillis; }
+
+    public long getLatencyJitterMillis() { return latencyJitterMillis; }
+
+    public double getErrorRate() { return errorRate; }
+
+    public double getThrottleRate() { return throttleRate; }
+
+    public int getRetryAfterSeconds() { return retryAfterSeconds; }
+
+    /**
+     * @return how long (in milliseconds) the next response should be delayed by.
+     */
+    synchronized long nextLatencyMillis() {
+        if (latencyJitterMillis == 0) return latencyMillis;
+        return latencyMillis + (long) (random.nextDouble() * latencyJitterMillis);
+    }
+
+    /**
+     * @return the status code the next request should fail with, or 0 if it should be served normally.
+     */
+    synchronized int nextFaultStatus() {
+        if (errorRate == 0 && throttleRate == 0) return 0;
+        double roll = random.nextDouble();
+        if (roll < errorRate) return 500;
+        if (roll < errorRate + throttleRate) return 429;
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormat.format("latency: {0}ms (+ up to {1}ms), error rate: {2}, throttle rate: {3}, retry after: {4}s",
+                latencyMillis, latencyJitterMillis, errorRate, throttleRate, retryAfterSeconds);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdMap;
+import uk.co.symplectic.vivoweb.harvester.utils.ElementsItemIdSet;
+
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * Main class that measures the heap taken (and the time spent) holding the ids of a large Elements instance in the
+ * collections the harvester uses for them - ElementsItemIdSet and ElementsItemIdMap - against the HashSet and HashMap
+ * they replaced. This is what bounds the size of instance the harvester can handle in a given heap, as the sets of
+ * affected items, the indexes and the keyed collections all scale with the number of objects and relationships.
+ *
+ * The ids are generated as Elements hands them out: ascending within each type, with gaps where items have been deleted.
+ * Each collection is built on its own and measured once garbage has been collected, so the heap needs to be big enough
+ * to hold the largest (by default around 1GB for the HashMap).
+ *
+ * Arguments are optional name=value pairs, defaulting to:
+ *   objects=2000000 relationships=10000000 (how many ids of each to hold)
+ *   deleted=20 (the percentage of ids that have been deleted, i.e. left as gaps)  seed=1
+ */
+@SuppressWarnings("WeakerAccess")
+public class ItemIdCollectionBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(ItemIdCollectionBenchmark.class);
+
+    private static final ElementsObjectCategory[] categories = new ElementsObjectCategory[]{
+            ElementsObjectCategory.PUBLICATION, ElementsObjectCategory.USER, ElementsObjectCategory.GRANT,
+            ElementsObjectCategory.ACTIVITY, ElementsObjectCategory.PROJECT, ElementsObjectCategory.TEACHING_ACTIVITY
+    };
+
+    //a value shared by every map entry, so that only what the map itself costs is measured.
+    private static final byte[] sharedValue = new byte[0];
+
+    private final Map<String, String> arguments;
+
+    private ItemIdCollectionBenchmark(Map<String, String> arguments) {
+        this.arguments = arguments;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> arguments = new HashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            arguments.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        try {
+            new ItemIdCollectionBenchmark(arguments).run();
+        } catch (Exception e) {
+            log.error("Benchmark failed", e);
+            System.exit(1);
+        }
+    }
+
+    private void run() {
+        int objects = getInt("objects", 2000000);
+        int relationships = getInt("relationships", 10000000);
+        int deleted = getInt("deleted", 20);
+        long seed = getInt("seed", 1);
+
+        //held as packed ids so that the ids themselves are not counted against the collections.
+        long[] ids = generateIds(objects, relationships, deleted, new Random(seed));
+        log.info(MessageFormat.format("Generated {0} object and {1} relationship ids ({2}% deleted)", objects, relationships, deleted));
+
+        //every collection is measured against the heap in use before any of them were built.
+        long baseline = usedHeap();
+        long hashSetBytes = measure("HashSet", ids, new HashSet<ElementsItemId>(), baseline);
+        long idSetBytes = measure("ElementsItemIdSet", ids, new ElementsItemIdSet<ElementsItemId>(), baseline);
+        long hashMapBytes = measure("HashMap", ids, new HashMap<ElementsItemId, byte[]>(), baseline);
+        long idMapBytes = measure("ElementsItemIdMap", ids, new ElementsItemIdMap<ElementsItemId, byte[]>(), baseline);
+        log.info(MessageFormat.format("ElementsItemIdSet takes {0}% of the heap a HashSet does, ElementsItemIdMap {1}% of a HashMap",
+                Long.toString(idSetBytes * 100 / Math.max(1, hashSetBytes)), Long.toString(idMapBytes * 100 / Math.max(1, hashMapBytes))));
+    }
+
+    private static long[] generateIds(int objects, int relationships, int deleted, Random random) {
+        long[] ids = new long[objects + relationships];
+        int count = 0;
+        int perCategory = objects / categories.length;
+        for (int i = 0; i < categories.length; i++) {
+            int wanted = i == 0 ? objects - perCategory * (categories.length - 1) : perCategory;
+            count = addIds(ids, count, categories[i], wanted, deleted, random);
+        }
+        addIds(ids, count, null, relationships, deleted, random);
+        return ids;
+    }
+
+    //adds the ids of a category of objects (or, if the category is null, of relationships).
+    private static int addIds(long[] ids, int count, ElementsObjectCategory category, int wanted, int deleted, Random random) {
+        int id = 0;
+        for (int i = 0; i < wanted; i++) {
+            do id++; while (random.nextInt(100) < deleted);
+            ElementsItemId itemId = category != null ? ElementsItemId.createObjectId(category, id) : ElementsItemId.createRelationshipId(id);
+            ids[count++] = itemId.asLong();
+        }
+        return count;
+    }
+
+    private static long measure(String description, long[] ids, Collection<ElementsItemId> collection, long baseline) {
+        long startTime = System.nanoTime();
+        for (long id : ids) collection.add(ElementsItemId.fromLong(id));
+        long addTime = System.nanoTime() - startTime;
+        return report(description, ids, collection, baseline, addTime);
+    }
+
+    private static long measure(String description, long[] ids, Map<ElementsItemId, byte[]> map, long baseline) {
+        long startTime = System.nanoTime();
+        for (long id : ids) map.put(ElementsItemId.fromLong(id), sharedValue);
+        long addTime = System.nanoTime() - startTime;
+        return report(description, ids, map.keySet(), baseline, addTime);
+    }
+
+    private static long report(String description, long[] ids, Collection<ElementsItemId> collection, long baseline, long addTime) {
+        long bytes = usedHeap() - baseline;
+        //look up every id, along with as many that are not held (the negated ids).
+        long startTime = System.nanoTime();
+        int found = 0;
+        for (long id : ids) {
+            if (collection.contains(ElementsItemId.fromLong(id))) found++;
+            if (collection.contains(ElementsItemId.fromLong((id & ~0xffffffffL) | (-(int) id & 0xffffffffL)))) found++;
+        }
+        long lookupTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+        int iterated = 0;
+        for (ElementsItemId ignored : collection) iterated++;
+        long iterateTime = System.nanoTime() - startTime;
+        if (found != ids.length || iterated != ids.length || collection.size() != ids.length)
+            throw new IllegalStateException(MessageFormat.format("{0} holds the wrong ids ({1} found, {2} iterated, {3} expected)",
+                    description, found, iterated, ids.length));
+
+        log.info(MessageFormat.format("{0}: {1} MB ({2} bytes an id), add {3}ms, lookup {4}ms, iterate {5}ms", description,
+                Long.toString(bytes / (1024 * 1024)), String.format("%.1f", (double) bytes / ids.length),
+                Long.toString(addTime / 1000000), Long.toString(lookupTime / 1000000), Long.toString(iterateTime / 1000000)));
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //keep collecting until nothing more is freed.
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) break;
+            used = current;
+        }
+        return used;
+    }
+
+    private String getString(String name, String defaultValue) {
+        String value = arguments.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private int getInt(String name, int defaultValue) { return Integer.parseInt(getString(name, Integer.toString(defaultValue))); }
+}
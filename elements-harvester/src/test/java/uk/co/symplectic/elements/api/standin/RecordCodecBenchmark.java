@@ -0,0 +1,188 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.store.RecordCodec;
+import uk.co.symplectic.vivoweb.harvester.store.RecordDictionary;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Main class that compares the RecordCodecs the intermediate stores can write with, over the records held in an
+ * existing store (e.g. data/raw-records - whatever codec they were written with).
+ *
+ * Records are grouped by the directory directly within the store that holds them (i.e. by type of item), and for each
+ * group every codec is timed encoding and then decoding every record, and the total size of the encoded records is
+ * reported. The DEFLATE codec is tried without a dictionary and with dictionaries of several sizes, trained from a
+ * sample of the group's records in the same way a store trains them.
+ *
+ * Arguments are name=value pairs (defaults in brackets):
+ *   records (required), dictionarySizes (4096,8192,16384,32768), trainingSamples (200),
+ *   warmupIterations (3), iterations (5)
+ */
+@SuppressWarnings("WeakerAccess")
+public class RecordCodecBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordCodecBenchmark.class);
+
+    //directory within a store holding the generations of each type after the first (see ElementsItemFileStore.cleardown).
+    private static final String generationDirectoryName = "generations";
+
+    private final Map<String, String> arguments;
+
+    private RecordCodecBenchmark(Map<String, String> arguments) {
+        this.arguments = arguments;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> arguments = new HashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            arguments.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        try {
+            new RecordCodecBenchmark(arguments).run();
+        } catch (Exception e) {
+            log.error("Benchmark failed", e);
+            System.exit(1);
+        }
+    }
+
+    private void run() throws IOException {
+        String recordsDir = arguments.get("records");
+        if (recordsDir == null) throw new IllegalArgumentException("records=<store directory> must be specified");
+        List<Integer> dictionarySizes = new ArrayList<Integer>();
+        for (String size : getString("dictionarySizes", "4096,8192,16384,32768").split(",")) {
+            if (size.trim().length() > 0) dictionarySizes.add(Integer.parseInt(size.trim()));
+        }
+        int trainingSamples = getInt("trainingSamples", 200);
+        int warmupIterations = getInt("warmupIterations", 3);
+        int iterations = getInt("iterations", 5);
+
+        for (Map.Entry<String, List<byte[]>> group : loadRecords(new File(recordsDir)).entrySet()) {
+            List<byte[]> records = group.getValue();
+            long rawBytes = 0;
+            for (byte[] record : records) rawBytes += record.length;
+            log.info(MessageFormat.format("{0} : {1} records, {2} bytes (mean {3} bytes)", group.getKey(), records.size(), rawBytes, rawBytes / Math.max(1, records.size())));
+
+            List<byte[]> samples = new ArrayList<byte[]>();
+            int step = Math.max(1, records.size() / trainingSamples);
+            for (int i = 0; i < records.size(); i += step) samples.add(records.get(i));
+
+            measure(group.getKey(), "gzip", RecordCodec.GZIP, null, records, rawBytes, warmupIterations, iterations);
+            measure(group.getKey(), "deflate", RecordCodec.DEFLATE, null, records, rawBytes, warmupIterations, iterations);
+            int previousSize = 0;
+            for (int size : dictionarySizes) {
+                long startTime = System.nanoTime();
+                RecordDictionary dictionary = RecordDictionary.train(samples, size);
+                long trainingMillis = (System.nanoTime() - startTime) / 1000000;
+                if (dictionary == null) {
+                    log.info(MessageFormat.format("{0} : no dictionary could be trained", group.getKey()));
+                    break;
+                }
+                //the samples may not have enough in common to fill the larger sizes.
+                if (dictionary.getSize() == previousSize) continue;
+                previousSize = dictionary.getSize();
+                String name = MessageFormat.format("deflate+{0}", Integer.toString(dictionary.getSize()));
+                log.info(MessageFormat.format("{0} : trained {1} in {2}ms", group.getKey(), name, trainingMillis));
+                measure(group.getKey(), name, RecordCodec.DEFLATE, dictionary, records, rawBytes, warmupIterations, iterations);
+            }
+        }
+    }
+
+    private static void measure(String group, String name, RecordCodec codec, RecordDictionary dictionary, List<byte[]> records,
+                                long rawBytes, int warmupIterations, int iterations) throws IOException {
+        List<byte[]> encoded = new ArrayList<byte[]>(records.size());
+        for (byte[] record : records) encoded.add(codec.encode(record, dictionary));
+        long encodedBytes = 0;
+        for (byte[] record : encoded) encodedBytes += record.length;
+        for (int i = 0; i < records.size(); i++) {
+            if (!Arrays.equals(records.get(i), decode(encoded.get(i)))) throw new IllegalStateException(MessageFormat.format("{0} did not round trip record {1} of {2}", name, i, group));
+        }
+
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < warmupIterations + iterations; iteration++) {
+            long startTime = System.nanoTime();
+            for (byte[] record : records) codec.encode(record, dictionary);
+            long encodeTime = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            for (byte[] record : encoded) decode(record);
+            long decodeTime = System.nanoTime() - startTime;
+            if (iteration >= warmupIterations) {
+                encodeNanos = Math.min(encodeNanos, encodeTime);
+                decodeNanos = Math.min(decodeNanos, decodeTime);
+            }
+        }
+        log.info(String.format("%s : %-14s %10d bytes (%5.1f%% of raw), encode %8.1f MB/s (%5.1f us/record), decode %8.1f MB/s (%5.1f us/record)",
+                group, name, encodedBytes, 100.0 * encodedBytes / rawBytes,
+                rawBytes * 1000.0 / encodeNanos, encodeNanos / 1000.0 / records.size(),
+                rawBytes * 1000.0 / decodeNanos, decodeNanos / 1000.0 / records.size()));
+    }
+
+    private static byte[] decode(byte[] data) throws IOException {
+        InputStream stream = RecordCodec.decode(new ByteArrayInputStream(data));
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    //the (decoded) records of the store, grouped by the directory directly within the store (or within one of its
+    //generation directories) that holds them.
+    private static Map<String, List<byte[]>> loadRecords(File directory) throws IOException {
+        if (!directory.isDirectory()) throw new IllegalArgumentException(MessageFormat.format("{0} is not a directory", directory.getAbsolutePath()));
+        Collection<File> files = FileUtils.listFiles(directory, null, true);
+        for (File file : files) {
+            if (file.getName().endsWith(RecordDictionary.fileSuffix)) RecordDictionary.load(file);
+        }
+        Map<String, List<byte[]>> groups = new TreeMap<String, List<byte[]>>();
+        String root = directory.getCanonicalPath() + File.separator;
+        for (File file : files) {
+            String path = file.getCanonicalPath();
+            if (!path.startsWith(root)) continue;
+            String[] names = path.substring(root.length()).split(Pattern.quote(File.separator));
+            int groupIndex = generationDirectoryName.equals(names[0]) ? 2 : 0;
+            if (names.length <= groupIndex + 1) continue;
+            String group = names[groupIndex];
+            List<byte[]> records = groups.get(group);
+            if (records == null) {
+                records = new ArrayList<byte[]>();
+                groups.put(group, records);
+            }
+            records.add(decode(FileUtils.readFileToByteArray(file)));
+        }
+        return groups;
+    }
+
+    private String getString(String name, String defaultValue) {
+        String value = arguments.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private int getInt(String name, int defaultValue) {
+        String value = arguments.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.elements.api.ElementsAPI;
+import uk.co.symplectic.elements.api.ElementsAPIVersion;
+import uk.co.symplectic.utils.http.HttpClient;
+import uk.co.symplectic.utils.xml.StAXUtils;
+import uk.co.symplectic.utils.xml.XMLEventProcessor;
+import uk.co.symplectic.vivoweb.harvester.fetch.ElementsFetch;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsItemStore;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
+import uk.co.symplectic.vivoweb.harvester.store.RecordCodec;
+import uk.co.symplectic.vivoweb.harvester.store.RecordDictionary;
+import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Main class that compares StAX parser implementations, and the event (XMLEventReader) and cursor (XMLStreamReader)
+ * processing paths of XMLEventProcessor, by running the harvester's item extractors over two corpora:
+ *   feed pages - complete API responses, as parsed by ElementsAPI
+ *   raw records - the individual entries held in the raw data cache, as parsed by ElementsStoredItemInfo
+ *
+ * Real data can be supplied as directories of files (raw records may be compressed, as written when zipFiles = true),
+ * otherwise both corpora are captured from an in-process ElementsAPIStandInServer.
+ * Each implementation is created through StAXUtils.createXMLInputFactory so has the same fast path properties turned on
+ * as it would in a harvest. The fastest combination is reported at the end.
+ *
+ * Arguments are optional name=value pairs, defaulting to:
+ *   factories= (comma separated XMLInputFactory class names - defaults to the one found on the classpath)
+ *   pages= (directory of saved API feed pages)  records= (directory of raw records, e.g. data/raw-records)
+ *   standInPages=20 standInPerPage=100 warmupIterations=5 iterations=10
+ */
+@SuppressWarnings("WeakerAccess")
+public class StAXParserBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(StAXParserBenchmark.class);
+
+    /**
+     * A document to be parsed, along with the item type and extraction source its extractor needs.
+     */
+    private static class Document {
+        private final byte[] data;
+        private final ElementsItemType itemType;
+        private final ElementsItemInfo.ExtractionSource source;
+
+        private Document(byte[] data, ElementsItemType itemType, ElementsItemInfo.ExtractionSource source) {
+            this.data = data;
+            this.itemType = itemType;
+            this.source = source;
+        }
+    }
+
+    /**
+     * A store that just holds on to the raw data of each item it is given.
+     */
+    private static class CapturingItemStore implements ElementsItemStore {
+        private final List<byte[]> captured = new ArrayList<byte[]>();
+
+        @Override
+        public synchronized ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            captured.add(data);
+            return null;
+        }
+    }
+
+    private final Map<String, String> arguments;
+
+    private StAXParserBenchmark(Map<String, String> arguments) {
+        this.arguments = arguments;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> arguments = new HashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            arguments.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        try {
+            new StAXParserBenchmark(arguments).run();
+        } catch (Exception e) {
+            log.error("Benchmark failed", e);
+            System.exit(1);
+        }
+    }
+
+    private void run() throws IOException, XMLStreamException {
+        List<String> factories = new ArrayList<String>();
+        for (String factory : getString("factories", "").split(",")) {
+            if (factory.trim().length() > 0) factories.add(factory.trim());
+        }
+        if (factories.isEmpty()) factories.add(XMLInputFactory.newFactory().getClass().getName());
+
+        Map<String, List<Document>> corpora = new LinkedHashMap<String, List<Document>>();
+        String pagesDir = getString("pages", null);
+        String recordsDir = getString("records", null);
+        if (pagesDir == null && recordsDir == null) {
+            captureFromStandIn(corpora);
+        } else {
+            if (pagesDir != null) corpora.put("feed pages", loadDocuments(new File(pagesDir), ElementsItemInfo.ExtractionSource.FEED));
+            if (recordsDir != null) corpora.put("raw records", loadDocuments(new File(recordsDir), ElementsItemInfo.ExtractionSource.FILE));
+        }
+
+        int warmupIterations = getInt("warmupIterations", 5);
+        int iterations = getInt("iterations", 10);
+        String fastest = null;
+        double fastestTotalNanos = Double.MAX_VALUE;
+        for (String factoryClass : factories) {
+            XMLInputFactory factory = StAXUtils.createXMLInputFactory(factoryClass);
+            for (boolean cursor : new boolean[]{false, true}) {
+                String description = MessageFormat.format("{0} ({1})", factoryClass, cursor ? "cursor" : "event");
+                long totalNanos = 0;
+                for (Map.Entry<String, List<Document>> corpus : corpora.entrySet()) {
+                    List<Document> documents = corpus.getValue();
+                    for (int i = 0; i < warmupIterations; i++) parseAll(factory, documents, cursor);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) parseAll(factory, documents, cursor);
+                    long nanos = System.nanoTime() - start;
+                    totalNanos += nanos;
+
+                    long bytes = 0;
+                    for (Document document : documents) bytes += document.data.length;
+                    double seconds = (double) nanos / TimeUnit.SECONDS.toNanos(1);
+                    log.info(MessageFormat.format("{0} - {1}: {2} documents/s, {3} MB/s", description, corpus.getKey(),
+                            Math.round(documents.size() * iterations / seconds), Math.round(bytes * iterations / seconds / (1024 * 1024))));
+                }
+                if (totalNanos < fastestTotalNanos) {
+                    fastestTotalNanos = totalNanos;
+                    fastest = description;
+                }
+            }
+        }
+        log.info(MessageFormat.format("Fastest overall: {0}", fastest));
+    }
+
+    private static void parseAll(XMLInputFactory factory, List<Document> documents, boolean cursor) throws XMLStreamException {
+        for (Document document : documents) {
+            XMLEventProcessor.ItemExtractingFilter<ElementsItemInfo> extractor = ElementsItemInfo.getExtractor(document.itemType, document.source, 0);
+            XMLEventProcessor processor = new XMLEventProcessor(extractor);
+            InputStream stream = new ByteArrayInputStream(document.data);
+            if (cursor) {
+                XMLStreamReader reader = factory.createXMLStreamReader(stream);
+                processor.process(reader);
+                reader.close();
+            } else {
+                processor.process(factory.createXMLEventReader(stream));
+            }
+            if (extractor.getExtractedItem() == null) throw new IllegalStateException("No item extracted from document");
+        }
+    }
+
+    private void captureFromStandIn(Map<String, List<Document>> corpora) throws IOException, XMLStreamException {
+        int pages = getInt("standInPages", 20);
+        int perPage = getInt("standInPerPage", 100);
+        Map<ElementsObjectCategory, Integer> objectCounts = new LinkedHashMap<ElementsObjectCategory, Integer>();
+        objectCounts.put(ElementsObjectCategory.USER, 100);
+        objectCounts.put(ElementsObjectCategory.PUBLICATION, pages * perPage);
+        SyntheticElementsData data = new SyntheticElementsData(1, new Date(), objectCounts, pages * perPage, 10, 0);
+        ElementsAPIStandInServer server = new ElementsAPIStandInServer(data, ElementsAPIVersion.VERSION_5_5, FaultProfile.NONE, 0, 4);
+        server.start();
+        try {
+            List<Document> feedPages = new ArrayList<Document>();
+            for (int page = 1; page <= pages; page++) {
+                byte[] body = get(server.getUrl() + "publications?detail=full&per-page=" + perPage + "&page=" + page);
+                feedPages.add(new Document(body, ElementsItemType.OBJECT, ElementsItemInfo.ExtractionSource.FEED));
+            }
+            corpora.put("feed pages", feedPages);
+
+            HttpClient.setRequestRate(0, 1);
+            ElementsFetch fetch = new ElementsFetch(new ElementsAPI(ElementsAPIVersion.VERSION_5_5, server.getUrl()));
+            CapturingItemStore store = new CapturingItemStore();
+            fetch.execute(new ElementsFetch.ObjectConfig(true, null, ElementsObjectCategory.PUBLICATION), store);
+            List<Document> records = new ArrayList<Document>();
+            for (byte[] record : store.captured) {
+                records.add(new Document(record, ElementsItemType.OBJECT, ElementsItemInfo.ExtractionSource.FILE));
+            }
+            corpora.put("raw records", records);
+            log.info(MessageFormat.format("Captured {0} feed pages and {1} raw records from the stand-in server", feedPages.size(), records.size()));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static byte[] get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        InputStream stream = connection.getInputStream();
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+            connection.disconnect();
+        }
+    }
+
+    private static List<Document> loadDocuments(File directory, ElementsItemInfo.ExtractionSource source) throws IOException, XMLStreamException {
+        if (!directory.isDirectory()) throw new IllegalArgumentException(MessageFormat.format("{0} is not a directory", directory.getAbsolutePath()));
+        List<Document> documents = new ArrayList<Document>();
+        //raw records are compressed if the cache is zipped, possibly against the cache's dictionaries.
+        Collection<File> files = FileUtils.listFiles(directory, null, true);
+        for (File file : files) {
+            if (file.getName().endsWith(RecordDictionary.fileSuffix)) RecordDictionary.load(file);
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(RecordDictionary.fileSuffix)) continue;
+            InputStream stream = RecordCodec.decode(new ByteArrayInputStream(FileUtils.readFileToByteArray(file)));
+            byte[] data;
+            try {
+                data = IOUtils.toByteArray(stream);
+            } finally {
+                stream.close();
+            }
+            ElementsItemType itemType = detectItemType(data);
+            if (itemType == null) {
+                log.debug(MessageFormat.format("Skipping {0} as it does not contain an Elements item", file.getAbsolutePath()));
+                continue;
+            }
+            documents.add(new Document(data, itemType, source));
+        }
+        log.info(MessageFormat.format("Loaded {0} documents from {1}", documents.size(), directory.getAbsolutePath()));
+        return documents;
+    }
+
+    //the type of the first (non deleted) Elements item described in the document, or null if there isn't one.
+    private static ElementsItemType detectItemType(byte[] data) throws XMLStreamException {
+        XMLStreamReader reader = StAXUtils.getXMLInputFactory().createXMLStreamReader(new ByteArrayInputStream(data));
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && ElementsAPI.apiNS.equals(reader.getNamespaceURI())) {
+                    String name = reader.getLocalName();
+                    if ("object".equals(name)) return ElementsItemType.OBJECT;
+                    if ("relationship".equals(name)) return ElementsItemType.RELATIONSHIP;
+                    if ("group".equals(name) || "user-group".equals(name)) return ElementsItemType.GROUP;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String getString(String name, String defaultValue) {
+        String value = arguments.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private int getInt(String name, int defaultValue) { return Integer.parseInt(getString(name, Integer.toString(defaultValue))); }
+}
@@ -0,0 +1,235 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.standin;
+
+import org.apache.commons.lang.NullArgumentException;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * Immutable, seeded, synthetic "Elements" dataset served by an ElementsAPIStandInServer.
+ *
+ * Nothing is held per item - every property of an item (its last modified date, which group a user is in, which objects
+ * a relationship links, its title, etc) is derived on demand by hashing the seed with the item's id. The same seed and
+ * volumes therefore always describe exactly the same data, however large the volumes are.
+ *
+ * Ids are allocated per resource: objects of each category have ids 1 to N, and the deleted objects of that category
+ * follow on from N + 1. Relationships and deleted relationships are numbered in the same way.
+ * There is one relationship type linking users to each other configured category, and every relationship links a
+ * random user to a random object of the other category of its type.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SyntheticElementsData {
+
+    /**
+     * A relationship type within the synthetic data (always linking an object of some category to a user).
+     */
+    public static class RelationshipType {
+        private final int id;
+        private final ElementsObjectCategory fromCategory;
+        private final ElementsObjectCategory toCategory;
+
+        private RelationshipType(int id, ElementsObjectCategory fromCategory, ElementsObjectCategory toCategory) {
+            this.id = id;
+            this.fromCategory = fromCategory;
+            this.toCategory = toCategory;
+        }
+
+        public int getId() { return id; }
+
+        public ElementsObjectCategory getFromCategory() { return fromCategory; }
+
+        public ElementsObjectCategory getToCategory() { return toCategory; }
+
+        public String getName() { return fromCategory.getSingular() + "-" + toCategory.getSingular() + "-association"; }
+    }
+
+    //how far back in time the synthetic last modified and deleted dates are spread.
+    private static final long historyMillis = 365L * 24 * 60 * 60 * 1000;
+
+    //salts used to derive independent values for the different properties of an item from the same id.
+    private static final int saltModified = 1;
+    private static final int saltDeleted = 2;
+    private static final int saltGroup = 3;
+    private static final int saltType = 4;
+    private static final int saltUser = 5;
+    private static final int saltObject = 6;
+    private static final int saltText = 7;
+    private static final int saltFlag = 8;
+
+    private static final String[] words = {
+            "analysis", "adaptive", "behaviour", "cellular", "climate", "data", "dynamics", "evidence", "framework", "genomic",
+            "health", "impact", "learning", "model", "network", "observation", "policy", "quantum", "research", "signal",
+            "structure", "survey", "system", "theory", "urban", "variation", "water", "wellbeing"
+    };
+
+    private final long seed;
+    private final Date referenceTime;
+    private final Map<ElementsObjectCategory, Integer> objectCounts = new LinkedHashMap<ElementsObjectCategory, Integer>();
+    private final int relationshipCount;
+    private final int groupCount;
+    private final double deletedFraction;
+    private final List<RelationshipType> relationshipTypes = new ArrayList<RelationshipType>();
+
+    /**
+     * @param seed seed from which all the data is derived.
+     * @param referenceTime the "current" time of the data - all last modified and deleted dates fall in the year before it.
+     * @param objectCounts how many (live) objects of each category should exist.
+     * @param relationshipCount how many (live) relationships should exist.
+     * @param groupCount how many user groups should exist (every user is an explicit member of one of them).
+     * @param deletedFraction how many deleted objects/relationships should exist, as a proportion of the live ones.
+     */
+    public SyntheticElementsData(long seed, Date referenceTime, Map<ElementsObjectCategory, Integer> objectCounts, int relationshipCount, int groupCount, double deletedFraction) {
+        if (referenceTime == null) throw new NullArgumentException("referenceTime");
+        if (objectCounts == null) throw new NullArgumentException("objectCounts");
+        if (relationshipCount < 0) throw new IllegalArgumentException("relationshipCount must not be negative");
+        if (groupCount < 1) throw new IllegalArgumentException("groupCount must be at least 1");
+        if (deletedFraction < 0) throw new IllegalArgumentException("deletedFraction must not be negative");
+
+        this.seed = seed;
+        this.referenceTime = new Date(referenceTime.getTime());
+        for (Map.Entry<ElementsObjectCategory, Integer> count : objectCounts.entrySet()) {
+            if (count.getValue() == null || count.getValue() < 0) throw new IllegalArgumentException("object counts must not be negative");
+            this.objectCounts.put(count.getKey(), count.getValue());
+        }
+        this.groupCount = groupCount;
+        this.deletedFraction = deletedFraction;
+
+        if (getObjectCount(ElementsObjectCategory.USER) > 0) {
+            for (ElementsObjectCategory category : this.objectCounts.keySet()) {
+                if (category != ElementsObjectCategory.USER && getObjectCount(category) > 0)
+                    relationshipTypes.add(new RelationshipType(relationshipTypes.size() + 1, category, ElementsObjectCategory.USER));
+            }
+        }
+        //relationships need a type, so there can be none if there are no types.
+        this.relationshipCount = relationshipTypes.isEmpty() ? 0 : relationshipCount;
+    }
+
+    public long getSeed() { return seed; }
+
+    public Date getReferenceTime() { return new Date(referenceTime.getTime()); }
+
+    public Set<ElementsObjectCategory> getCategories() { return Collections.unmodifiableSet(objectCounts.keySet()); }
+
+    public int getObjectCount(ElementsObjectCategory category) {
+        Integer count = objectCounts.get(category);
+        return count == null ? 0 : count;
+    }
+
+    public int getDeletedObjectCount(ElementsObjectCategory category) { return getDeletedCount(getObjectCount(category)); }
+
+    public int getRelationshipCount() { return relationshipCount; }
+
+    public int getDeletedRelationshipCount() { return getDeletedCount(relationshipCount); }
+
+    public int getGroupCount() { return groupCount; }
+
+    public List<RelationshipType> getRelationshipTypes() { return Collections.unmodifiableList(relationshipTypes); }
+
+    public RelationshipType getRelationshipType(int relationshipId) {
+        return relationshipTypes.get(pick(saltType, relationshipId, relationshipTypes.size()));
+    }
+
+    /**
+     * @return the total number of live items of all kinds (objects, relationships, groups and relationship types).
+     */
+    public long getTotalItemCount() {
+        long total = relationshipCount + groupCount + relationshipTypes.size();
+        for (Integer count : objectCounts.values()) total += count;
+        return total;
+    }
+
+    /**
+     * @return the total number of deleted objects and relationships.
+     */
+    public long getTotalDeletedItemCount() {
+        long total = getDeletedRelationshipCount();
+        for (ElementsObjectCategory category : objectCounts.keySet()) total += getDeletedObjectCount(category);
+        return total;
+    }
+
+    private int getDeletedCount(int liveCount) { return (int) Math.round(liveCount * deletedFraction); }
+
+    public Date getLastModified(ElementsObjectCategory category, int objectId) { return pickDate(saltModified, kindOf(category), objectId); }
+
+    public Date getDeletedWhen(ElementsObjectCategory category, int objectId) { return pickDate(saltDeleted, kindOf(category), objectId); }
+
+    public Date getRelationshipLastModified(int relationshipId) { return pickDate(saltModified, 0, relationshipId); }
+
+    public Date getRelationshipDeletedWhen(int relationshipId) { return pickDate(saltDeleted, 0, relationshipId); }
+
+    /**
+     * @return the id of the group the user is an explicit member of.
+     */
+    public int getGroupOfUser(int userId) { return pick(saltGroup, userId, groupCount) + 1; }
+
+    /**
+     * @return the id of the parent of the group, or -1 for the top level group (group 1).
+     */
+    public int getParentGroup(int groupId) { return groupId <= 1 ? -1 : pick(saltGroup, -groupId, groupId - 1) + 1; }
+
+    public int getRelationshipUser(int relationshipId) {
+        return pick(saltUser, relationshipId, getObjectCount(ElementsObjectCategory.USER)) + 1;
+    }
+
+    public int getRelationshipObject(int relationshipId) {
+        return pick(saltObject, relationshipId, getObjectCount(getRelationshipType(relationshipId).getFromCategory())) + 1;
+    }
+
+    public boolean getFlag(ElementsObjectCategory category, int objectId, int flag) {
+        return (hash(saltFlag + flag, kindOf(category), objectId) & 1) == 0;
+    }
+
+    /**
+     * @return a repeatable, pseudo random title for an object.
+     */
+    public String getTitle(ElementsObjectCategory category, int objectId, int wordCount) {
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) title.append(' ');
+            title.append(words[pick(saltText + i, kindOf(category), objectId, words.length)]);
+        }
+        return title.toString();
+    }
+
+    //String hash codes are stable between runs (unlike the identity hash code of the category object).
+    private static int kindOf(ElementsObjectCategory category) { return category.getPlural().hashCode(); }
+
+    private Date pickDate(int salt, int kind, int id) {
+        return new Date(referenceTime.getTime() - (hash(salt, kind, id) >>> 1) % historyMillis);
+    }
+
+    private int pick(int salt, int id, int bound) { return pick(salt, 0, id, bound); }
+
+    private int pick(int salt, int kind, int id, int bound) {
+        return (int) ((hash(salt, kind, id) >>> 1) % bound);
+    }
+
+    //SplitMix64 style finaliser over the seed and the item's coordinates.
+    private long hash(int salt, int kind, int id) {
+        long z = seed + salt * 0x9E3779B97F4A7C15L + kind * 0xC2B2AE3D27D4EB4FL + id * 0x165667B19E3779F9L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder counts = new StringBuilder();
+        for (Map.Entry<ElementsObjectCategory, Integer> count : objectCounts.entrySet()) {
+            counts.append(count.getKey().getPlural()).append(": ").append(count.getValue()).append(", ");
+        }
+        return MessageFormat.format("seed: {0}, {1}relationships: {2}, groups: {3}, relationship types: {4}, deleted items: {5}",
+                Long.toString(seed), counts, relationshipCount, groupCount, relationshipTypes.size(), getTotalDeletedItemCount());
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils.xml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.XMLEvent;
+import java.io.StringReader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Main class that measures how many events per second an XMLEventProcessor can dispatch to a typical set of filters.
+ *
+ * A synthetic Atom style feed page (shaped like an Elements API response) is parsed once up front and its events are
+ * then replayed into the processor repeatedly, so the figures reflect the cost of the processor and its filter
+ * dispatch rather than the cost of the underlying XML parser.
+ *
+ * Arguments are optional name=value pairs, defaulting to:
+ *   entries=1000 fieldsPerEntry=10 warmupIterations=20 iterations=50
+ */
+@SuppressWarnings("WeakerAccess")
+public class XMLEventProcessorBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(XMLEventProcessorBenchmark.class);
+
+    private static final String atomNS = "http://www.w3.org/2005/Atom";
+    private static final String apiNS = "http://www.symplectic.co.uk/publications/api";
+
+    private static final QName feedName = new QName(atomNS, "feed");
+    private static final QName entryName = new QName(atomNS, "entry");
+    private static final QName objectName = new QName(apiNS, "object");
+    private static final QName fieldName = new QName(apiNS, "field");
+    private static final QName textName = new QName(apiNS, "text");
+    private static final QName paginationName = new QName(apiNS, "pagination");
+
+    /**
+     * XMLEventReader that replays a pre-parsed list of events.
+     * Iterator.remove is not supported, as for any XMLEventReader.
+     */
+    private static class ReplayingEventReader implements XMLEventReader {
+        private final List<XMLEvent> events;
+        private int position = 0;
+
+        ReplayingEventReader(List<XMLEvent> events) { this.events = events; }
+
+        @Override
+        public XMLEvent nextEvent() {
+            if (position >= events.size()) throw new NoSuchElementException();
+            return events.get(position++);
+        }
+
+        @Override
+        public boolean hasNext() { return position < events.size(); }
+
+        @Override
+        public XMLEvent peek() { return position < events.size() ? events.get(position) : null; }
+
+        //reads the text content of the element whose start was the last event returned, leaving its end the last returned.
+        @Override
+        public String getElementText() throws XMLStreamException {
+            if (position == 0 || !events.get(position - 1).isStartElement())
+                throw new XMLStreamException("getElementText must be called when positioned on a start element");
+            StringBuilder text = new StringBuilder();
+            while (true) {
+                if (!hasNext()) throw new XMLStreamException("Unexpected end of document reading element text");
+                XMLEvent event = nextEvent();
+                switch (event.getEventType()) {
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        text.append(event.asCharacters().getData());
+                        break;
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        text.append(((EntityReference) event).getDeclaration().getReplacementText());
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        return text.toString();
+                    default:
+                        throw new XMLStreamException("Element text is not text only", event.getLocation());
+                }
+            }
+        }
+
+        //skips whitespace, comments and processing instructions up to the next start or end element.
+        @Override
+        public XMLEvent nextTag() throws XMLStreamException {
+            while (hasNext()) {
+                XMLEvent event = nextEvent();
+                switch (event.getEventType()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                    case XMLStreamConstants.END_ELEMENT:
+                        return event;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!event.asCharacters().isWhiteSpace())
+                            throw new XMLStreamException("Found non whitespace text looking for a tag", event.getLocation());
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        break;
+                    default:
+                        throw new XMLStreamException("Found something other than a tag looking for one", event.getLocation());
+                }
+            }
+            throw new XMLStreamException("Unexpected end of document looking for a tag");
+        }
+
+        @Override
+        public Object getProperty(String name) { return null; }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public Object next() { return nextEvent(); }
+
+        @Override
+        public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    /**
+     * Filter that behaves like the Elements item extractors - reading attributes at the start of each item and
+     * checking the relative location of every event to find the values it is interested in.
+     */
+    private static class FieldReadingFilter extends XMLEventProcessor.EventFilter {
+        private final DocumentLocation textLocation = new DocumentLocation(objectName, fieldName, textName);
+        private long idTotal = 0;
+        private long textCount = 0;
+
+        FieldReadingFilter() { super(new DocumentLocation(feedName, entryName)); }
+
+        @Override
+        protected void processEvent(XMLEventProcessor.WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException {
+            if (event.isRelevantForExtraction()) {
+                QName name = event.getName();
+                if (name.equals(objectName)) idTotal += Integer.parseInt(event.getAttribute("id"));
+                else if (textLocation.matches(relativeLocation) && event.hasValue()) textCount++;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int entries = 1000;
+        int fieldsPerEntry = 10;
+        int warmupIterations = 20;
+        int iterations = 50;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 1) {
+                log.error(MessageFormat.format("Invalid argument \"{0}\" - arguments must be of the form name=value", arg));
+                System.exit(1);
+            }
+            String name = arg.substring(0, split);
+            int value = Integer.parseInt(arg.substring(split + 1));
+            if ("entries".equals(name)) entries = value;
+            else if ("fieldsPerEntry".equals(name)) fieldsPerEntry = value;
+            else if ("warmupIterations".equals(name)) warmupIterations = value;
+            else if ("iterations".equals(name)) iterations = value;
+            else {
+                log.error(MessageFormat.format("Unknown argument \"{0}\"", name));
+                System.exit(1);
+            }
+        }
+
+        try {
+            List<XMLEvent> events = parse(buildFeed(entries, fieldsPerEntry));
+            log.info(MessageFormat.format("Replaying a feed of {0} entries ({1} events), {2} warmup and {3} measured iterations",
+                    entries, events.size(), warmupIterations, iterations));
+            for (int i = 0; i < warmupIterations; i++) runOnce(events, entries);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) runOnce(events, entries);
+            long nanos = System.nanoTime() - start;
+            double eventsPerSecond = (double) events.size() * iterations * TimeUnit.SECONDS.toNanos(1) / nanos;
+            log.info(MessageFormat.format("Processed {0} events in {1}ms - {2} events/s",
+                    (long) events.size() * iterations, TimeUnit.NANOSECONDS.toMillis(nanos), Math.round(eventsPerSecond)));
+        } catch (Exception e) {
+            log.error("Benchmark failed", e);
+            System.exit(1);
+        }
+    }
+
+    private static void runOnce(List<XMLEvent> events, int expectedEntries) throws XMLStreamException {
+        XMLEventProcessor.ItemCountingFilter entryCounter = new XMLEventProcessor.ItemCountingFilter(
+                new XMLEventProcessor.EventFilter.DocumentLocation(feedName, entryName));
+        XMLEventProcessor.ItemCountingFilter paginationCounter = new XMLEventProcessor.ItemCountingFilter(
+                new XMLEventProcessor.EventFilter.DocumentLocation(feedName, paginationName));
+        FieldReadingFilter fieldReader = new FieldReadingFilter();
+        new XMLEventProcessor(entryCounter, paginationCounter, fieldReader).process(new ReplayingEventReader(events));
+        if (entryCounter.getItemCount() != expectedEntries || paginationCounter.getItemCount() != 1 || fieldReader.idTotal == 0)
+            throw new IllegalStateException("Filters did not see the expected items");
+    }
+
+    private static List<XMLEvent> parse(String xml) throws XMLStreamException {
+        XMLEventReader reader = StAXUtils.getXMLInputFactory().createXMLEventReader(new StringReader(xml));
+        List<XMLEvent> events = new ArrayList<XMLEvent>();
+        while (reader.hasNext()) events.add(reader.nextEvent());
+        reader.close();
+        return events;
+    }
+
+    private static String buildFeed(int entries, int fieldsPerEntry) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        xml.append("<feed xmlns=\"").append(atomNS).append("\" xmlns:api=\"").append(apiNS).append("\">");
+        xml.append("<title>benchmark</title>");
+        xml.append("<api:pagination results-count=\"").append(entries).append("\" items-per-page=\"").append(entries).append("\">");
+        xml.append("<api:page position=\"this\" number=\"1\" href=\"http://localhost/feed?page=1\"/>");
+        xml.append("</api:pagination>");
+        for (int id = 1; id <= entries; id++) {
+            xml.append("<entry><title>entry ").append(id).append("</title><id>tag:benchmark,").append(id).append("</id>");
+            xml.append("<api:object category=\"publication\" id=\"").append(id).append("\" type=\"journal-article\">");
+            for (int field = 0; field < fieldsPerEntry; field++) {
+                xml.append("<api:field name=\"field-").append(field).append("\" type=\"text\">");
+                xml.append("<api:text>value ").append(field).append(" of entry ").append(id).append("</api:text>");
+                xml.append("</api:field>");
+            }
+            xml.append("</api:object></entry>");
+        }
+        xml.append("</feed>");
+        return xml.toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers an ElementsItemFileStore (with an item info index and a digest index, as the raw data store has) from many
+ * threads at once - storing, re-storing, touching and deleting a small pool of items so that the same items are
+ * constantly being changed by different threads - and then checks that the store came through intact:
+ *   - no observer was ever notified about an item while another notification about the same item was in progress;
+ *   - every item the item info index holds is in the store, and vice versa;
+ *   - storing each item's data again is recognised as unchanged (so the digest index matches what is stored);
+ *   - every item observed as affected is in getAffectedItems.
+ */
+public class ItemFileStoreStressTest {
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final StorableResourceType resourceType = StorableResourceType.RAW_OBJECT;
+
+    private static final int threads = 8;
+    private static final int items = 200;
+    private static final int operationsPerThread = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Observer that checks notifications about the same item never overlap, and records which items it was told about.
+     */
+    private static class OrderingObserver implements IElementsStoredItemObserver {
+        private final ConcurrentHashMap<ElementsItemId, Boolean> inProgress = new ConcurrentHashMap<ElementsItemId, Boolean>();
+        private final Set<ElementsItemId> observed = Collections.newSetFromMap(new ConcurrentHashMap<ElementsItemId, Boolean>());
+        private final AtomicInteger overlaps = new AtomicInteger(0);
+
+        @Override
+        public void observe(ElementsStoredItemInfo item) {
+            observed.add(item.getItemInfo().getItemId());
+            notified(item.getItemInfo().getItemId());
+        }
+
+        @Override
+        public void observeDeletion(ElementsItemId itemId, StorableResourceType type) {
+            notified(itemId);
+        }
+
+        @Override
+        public void observeCleardown(StorableResourceType type, ElementsItemStore source) {}
+
+        private void notified(ElementsItemId itemId) {
+            if (inProgress.putIfAbsent(itemId, Boolean.TRUE) != null) {
+                overlaps.incrementAndGet();
+                return;
+            }
+            //linger, so that an overlapping notification would have a chance to be seen.
+            Thread.yield();
+            inProgress.remove(itemId);
+        }
+    }
+
+    @Test
+    public void flatLayoutSurvivesConcurrentUse() throws Exception {
+        run(StoreLayout.FLAT, RecordCodec.DEFLATE);
+    }
+
+    @Test
+    public void hashedLayoutSurvivesConcurrentUse() throws Exception {
+        run(StoreLayout.HASHED, RecordCodec.GZIP);
+    }
+
+    @Test
+    public void segmentedLayoutSurvivesConcurrentUse() throws Exception {
+        run(StoreLayout.SEGMENTED, RecordCodec.DEFLATE);
+    }
+
+    private void run(StoreLayout layout, RecordCodec codec) throws Exception {
+        File dir = folder.newFolder(layout.name().toLowerCase());
+        GenerationalItemStorage storage = layout.createStorage(dir, new StorableResourceType[]{resourceType}, new StorableResourceType[0],
+                Collections.singletonList(resourceType), WriteDurability.ATOMIC);
+        ElementsItemInfoIndex itemInfoIndex = new ElementsItemInfoIndex(new File(dir, "item-info.index"), resourceType);
+        ElementsItemDigestIndex digestIndex = new ElementsItemDigestIndex(new File(dir, "item-digest.index"), resourceType);
+        final ElementsItemFileStore store = new ElementsItemFileStore(dir, false, codec, storage, itemInfoIndex, digestIndex, resourceType);
+        OrderingObserver observer = new OrderingObserver();
+        store.addItemObserver(observer);
+
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final long seed = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random(seed);
+                        for (int j = 0; j < operationsPerThread; j++) {
+                            ElementsItemInfo itemInfo = ElementsItemInfo.createObjectItem(ElementsObjectCategory.PUBLICATION, 1 + random.nextInt(items));
+                            int operation = random.nextInt(20);
+                            if (operation < 12) {
+                                //a handful of versions of each item, so that both changed and unchanged data is stored.
+                                store.storeItem(itemInfo, resourceType, createData(itemInfo.getItemId(), random.nextInt(4)));
+                            } else if (operation < 16) {
+                                store.deleteItem(itemInfo.getItemId(), resourceType);
+                            } else {
+                                try {
+                                    store.touchItem(itemInfo, resourceType);
+                                } catch (FileNotFoundException e) {
+                                    //not currently stored.
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            executor.shutdown();
+            //rethrows anything that went wrong on the worker threads.
+            for (Future<Void> result : results) result.get();
+
+            assertEquals("notifications that overlapped one about the same item", 0, observer.overlaps.get());
+
+            Set<ElementsItemId> stored = new HashSet<ElementsItemId>();
+            for (int id = 1; id <= items; id++) {
+                ElementsItemId itemId = ElementsItemId.createObjectId(ElementsObjectCategory.PUBLICATION, id);
+                if (store.retrieveItem(itemId, resourceType) != null) stored.add(itemId);
+            }
+            Set<ElementsItemId> indexed = new HashSet<ElementsItemId>();
+            for (byte[] record : itemInfoIndex.getRecords(resourceType, null)) indexed.add(ElementsItemInfoIndex.decode(record).getItemId());
+            assertEquals("items held by the item info index", stored, indexed);
+
+            int unchangedBefore = store.getUnchangedItemCount(resourceType);
+            for (ElementsItemId itemId : stored) {
+                InputStream input = store.retrieveItem(itemId, resourceType).getStoredData().getInputStream();
+                try {
+                    store.storeItem(ElementsItemInfo.createObjectItem(ElementsObjectCategory.PUBLICATION, itemId.getId()), resourceType, IOUtils.toByteArray(input));
+                } finally {
+                    input.close();
+                }
+            }
+            assertEquals("stored items that matched their digests", stored.size(), store.getUnchangedItemCount(resourceType) - unchangedBefore);
+
+            assertTrue("items observed as affected that getAffectedItems does not hold",
+                    store.getAffectedItems(resourceType).containsAll(observer.observed));
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static byte[] createData(ElementsItemId itemId, int version) {
+        return MessageFormat.format("<api:object category=\"publication\" id=\"{0}\"><api:version>{1}</api:version></api:object>",
+                Integer.toString(itemId.getId()), Integer.toString(version)).getBytes(utf8);
+    }
+}
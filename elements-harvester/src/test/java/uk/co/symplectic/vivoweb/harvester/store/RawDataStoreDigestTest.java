@@ -0,0 +1,100 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stores the same records in an ElementsRawDataStore over two "runs" (the second reopening the store from the digest
+ * index the first saved), checking which records are skipped as unchanged and which are passed on to the observers.
+ */
+public class RawDataStoreDigestTest {
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final StorableResourceType resourceType = StorableResourceType.RAW_OBJECT;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Observer that counts the items it is told about.
+     */
+    private static class CountingObserver implements IElementsStoredItemObserver {
+        private final AtomicInteger observed = new AtomicInteger(0);
+
+        @Override
+        public void observe(ElementsStoredItemInfo item) { observed.incrementAndGet(); }
+
+        @Override
+        public void observeDeletion(ElementsItemId itemId, StorableResourceType type) {}
+
+        @Override
+        public void observeCleardown(StorableResourceType type, ElementsItemStore source) {}
+    }
+
+    @Test
+    public void unchangedRecordIsSkipped() throws IOException {
+        ElementsItemInfo publication = ElementsItemInfo.createObjectItem(ElementsObjectCategory.PUBLICATION, 1);
+        CountingObserver observer = storeInTwoRuns(publication, false);
+        assertEquals("observed in the second run", 0, observer.observed.get());
+    }
+
+    @Test
+    public void userIsAlwaysPassedOn() throws IOException {
+        //so that the user's photo is fetched again, even though the user's record has not changed.
+        ElementsItemInfo user = ElementsItemInfo.createObjectItem(ElementsObjectCategory.USER, 1);
+        CountingObserver observer = storeInTwoRuns(user, false);
+        assertEquals("observed in the second run", 1, observer.observed.get());
+    }
+
+    @Test
+    public void recordIsRetriedOnceItsDigestIsForgotten() throws IOException {
+        //as happens when the record fails to translate.
+        ElementsItemInfo publication = ElementsItemInfo.createObjectItem(ElementsObjectCategory.PUBLICATION, 1);
+        CountingObserver observer = storeInTwoRuns(publication, true);
+        assertEquals("observed in the second run", 1, observer.observed.get());
+    }
+
+    private CountingObserver storeInTwoRuns(ElementsItemInfo itemInfo, boolean forgetDigest) throws IOException {
+        File dir = folder.newFolder();
+        byte[] data = createData(itemInfo.getItemId());
+
+        ElementsRawDataStore firstRun = new ElementsRawDataStore(dir);
+        firstRun.storeItem(itemInfo, resourceType, data);
+        if (forgetDigest) firstRun.forgetDigest(itemInfo.getItemId(), resourceType);
+        firstRun.saveDigestIndex();
+
+        ElementsRawDataStore secondRun = new ElementsRawDataStore(dir);
+        CountingObserver observer = new CountingObserver();
+        secondRun.addItemObserver(observer);
+        secondRun.storeItem(itemInfo, resourceType, data);
+        assertEquals("stored unchanged in the second run", 1 - observer.observed.get(), secondRun.getUnchangedItemCount(resourceType));
+        return observer;
+    }
+
+    private static byte[] createData(ElementsItemId itemId) {
+        return MessageFormat.format("<api:object category=\"{0}\" id=\"{1}\"><api:version>1</api:version></api:object>",
+                itemId.getItemSubType().getSingular(), Integer.toString(itemId.getId())).getBytes(utf8);
+    }
+}